@@ -10,6 +10,11 @@ MAXINSERT=900
 FORCESORTED=""
 STARTBASES="DEFAULT"
 ENDBASES="DEFAULT"
+THREADS=1
+BARCODEDUPS=""
+SORTMEM=""
+CORRECTBC=""
+JAVAMULTIPLETS=""
 
 ARGUMENTS=()
 
@@ -25,6 +30,11 @@ while [[ "$#" -gt 0 ]]; do
         --mapqthresh) MAPQTHRESH=$2; shift 2 ;;
         --startbases) STARTBASES="$2"; shift 2 ;;
         --endbases) ENDBASES="$2"; shift 2 ;;
+        --threads) THREADS=$2; shift 2 ;;
+        --barcodedups) BARCODEDUPS="--barcodedups "; shift ;;
+        --sortmem) SORTMEM="--sortmem $2 "; shift 2 ;;
+        --correctbc) CORRECTBC="--correctbc $2 "; shift 2 ;;
+        --javamultiplets) JAVAMULTIPLETS="TRUE"; shift ;;
         --*) echo "Unknown argument: $1"; exit 1 ;;
         *)  ARGUMENTS+=("$1"); shift ;;
     esac
@@ -36,13 +46,18 @@ if [[ ${#ARGUMENTS[@]} -ne 6 ]]; then
 	echo "         --maxinsertsize The maximum insert size (in bp) between read pairs. (Default: 900)";
     echo "         --startbases The amount of bases add to the start position. (BAM Default: 4, Frag Default: 0)";
     echo "         --endbases The amount of bases to add to the end position. (BAM Default: -5, Frag Default: 0)";
+	echo "         --threads   Number of threads of the java overlap counter, requires an indexed BAM file or a bgzipped fragment file. (Default: 1)";
+	echo "         --javamultiplets Runs the multiplet detection in the java code instead of AMULET.py.";
 	echo "         BAM Input Only Parameters:";
 	echo "         --bambc     Bamfile attribute used for the barcode. (Default: \"CB\")";
 	echo "         --forcesorted Forces the input bam file to be treated as sorted.";
 	echo "         --bcidx     The column index of the CSV for barcode. (Default: 0)";
 	echo "         --cellidx   The column index of the CSV for cellid. (Default: 0)";
 	echo "         --iscellidx The index for determining cells (selecting values=1). (Default: 9)";
+	echo "         --sortmem   Sorts the reads of a bam file that is not coordinate sorted with this much memory (in MB).";
+	echo "         --correctbc Bamfile attribute of the uncorrected barcode (e.g., \"CR\") for the reads without a cell, corrected to at most one mismatch.";
 	echo "         --mapqthresh Threshold for filtering low map quality reads (<= comparison). (Default: 30)";
+	echo "         --barcodedups Marks duplicates by cell barcode, start, end and strand instead of by the duplicate flag.";
 	echo "         Fragment file singlecell.csv input requires columns containing 'barcode' and 'is__cell_barcode':";
 
 	exit 0;
@@ -55,7 +70,33 @@ REPFILTER=${ARGUMENTS[3]}
 OUTDIR=${ARGUMENTS[4]}
 SCRIPTPATH=${ARGUMENTS[5]}
 
-#Branch based on file extension. If BAM, use java code, if txt.gz/tsv.gz/txt/tsv, use python script
+#The multiplet detection is AMULET.py unless --javamultiplets is given, then the java code runs it after counting
+MULTIPLETS=""
+if [ "${JAVAMULTIPLETS}" == "TRUE" ]; then
+    MULTIPLETS="--multiplets --rfilter ${REPFILTER} "
+fi
+
+#The column index (counting from 0) of the named column in the header of the CSV file, empty if there is none
+getColumnIndex() {
+    head -n 1 "$1" | tr -d '\r"' | awk -F, -v name="$2" '{for(i=1;i<=NF;i++){if($i==name){print i-1; exit}}}'
+}
+
+#Runs AMULET.py on the outputs of each expected overlap, which are in ExpectedOverlap<n> with more than one
+runAMULETpy() {
+    if [ "${JAVAMULTIPLETS}" == "TRUE" ]; then
+        return
+    fi
+    if [[ ${EXPECTEDOVERLAP} != *,* ]]; then
+        python3 ${SCRIPTPATH}/AMULET.py --expectedoverlap ${EXPECTEDOVERLAP} --rfilter ${REPFILTER} ${OUTDIR}/Overlaps.txt ${OUTDIR}/OverlapSummary.txt ${OUTDIR}
+        return
+    fi
+    for EO in ${EXPECTEDOVERLAP//,/ }; do
+        python3 ${SCRIPTPATH}/AMULET.py --expectedoverlap ${EO} --rfilter ${REPFILTER} ${OUTDIR}/ExpectedOverlap${EO}/Overlaps.txt ${OUTDIR}/ExpectedOverlap${EO}/OverlapSummary.txt ${OUTDIR}/ExpectedOverlap${EO}
+    done
+}
+
+#Branch based on file extension. Both BAM and txt.gz/tsv.gz/txt/tsv files are read by the java code
+#--threads is only passed to the java code, the python scripts have no such option
 if [ "${BAMFILE: -4}" == ".bam" ]; then
 	#These are defaults when the bam file is not shifted to account for the 9bp duplication
 	#If the BAM file accounts for these, set these parameters to 0
@@ -68,8 +109,9 @@ if [ "${BAMFILE: -4}" == ".bam" ]; then
 
 	#Another issue is duplicate marking. Better duplicate marking needs to account for the cell barcodes
 	#Otherwise more reads are marked as duplicates when they are actually unique to that cell
-    java -jar ${SCRIPTPATH}/snATACOverlapCounter.jar ${FORCESORTED}--expectedoverlap ${EXPECTEDOVERLAP} --bambc ${BAMBC} --bcidx ${BCIDX} --cellidx ${CELLIDX} --iscellidx ${ISCELLIDX} --mapqthresh ${MAPQTHRESH} --maxinsertsize ${MAXINSERT} --startbases ${STARTBASES} --endbases ${ENDBASES} ${BAMFILE} ${BCMAP} ${CHRLIST} ${OUTDIR}
-    python3 ${SCRIPTPATH}/AMULET.py --expectedoverlap ${EXPECTEDOVERLAP} --rfilter ${REPFILTER} ${OUTDIR}/Overlaps.txt ${OUTDIR}/OverlapSummary.txt ${OUTDIR}
+	#--barcodedups does this while the BAM file is read, instead of the duplicate flag
+    java -jar ${SCRIPTPATH}/snATACOverlapCounter.jar ${FORCESORTED}${SORTMEM}${CORRECTBC}${BARCODEDUPS}--expectedoverlap ${EXPECTEDOVERLAP} --bambc ${BAMBC} --bcidx ${BCIDX} --cellidx ${CELLIDX} --iscellidx ${ISCELLIDX} --mapqthresh ${MAPQTHRESH} --maxinsertsize ${MAXINSERT} --startbases ${STARTBASES} --endbases ${ENDBASES} --threads ${THREADS} ${MULTIPLETS}${BAMFILE} ${BCMAP} ${CHRLIST} ${OUTDIR}
+    runAMULETpy
 
 elif [ "${BAMFILE: -4}" == ".tsv" ] || [ "${BAMFILE: -4}" == ".txt" ] ||[ "${BAMFILE: -7}" == ".tsv.gz" ] || [ "${BAMFILE: -7}" == ".txt.gz" ]; then
     if [ ${STARTBASES} == "DEFAULT" ]; then
@@ -79,8 +121,17 @@ elif [ "${BAMFILE: -4}" == ".tsv" ] || [ "${BAMFILE: -4}" == ".txt" ] ||[ "${BAM
         ENDBASES=0
     fi
 
-    python3 ${SCRIPTPATH}/FragmentFileOverlapCounter.py --maxinsertsize ${MAXINSERT} --expectedoverlap ${EXPECTEDOVERLAP} --startbases ${STARTBASES} --endbases ${ENDBASES} ${BAMFILE} ${BCMAP} ${CHRLIST} ${OUTDIR}
-    python3 ${SCRIPTPATH}/AMULET.py --expectedoverlap ${EXPECTEDOVERLAP} --rfilter ${REPFILTER} ${OUTDIR}/Overlaps.txt ${OUTDIR}/OverlapSummary.txt ${OUTDIR}
+    #As for FragmentFileOverlapCounter.py, the columns are found by their names and the barcode is the cell id
+    BCIDX=$(getColumnIndex ${BCMAP} barcode)
+    ISCELLIDX=$(getColumnIndex ${BCMAP} is__cell_barcode)
+    if [ -z "${BCIDX}" ] || [ -z "${ISCELLIDX}" ]; then
+        echo "Fragment file singlecell.csv input requires columns containing 'barcode' and 'is__cell_barcode'.";
+        exit 1;
+    fi
+    CELLIDX=${BCIDX}
+
+    java -jar ${SCRIPTPATH}/snATACOverlapCounter.jar --expectedoverlap ${EXPECTEDOVERLAP} --bcidx ${BCIDX} --cellidx ${CELLIDX} --iscellidx ${ISCELLIDX} --maxinsertsize ${MAXINSERT} --startbases ${STARTBASES} --endbases ${ENDBASES} --threads ${THREADS} ${MULTIPLETS}${BAMFILE} ${BCMAP} ${CHRLIST} ${OUTDIR}
+    runAMULETpy
 else
 	echo "Unsupported file formatted.";
 fi
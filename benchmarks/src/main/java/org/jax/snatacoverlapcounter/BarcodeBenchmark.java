@@ -0,0 +1,143 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.jax.snatacoverlapcounter.util.CellIndex;
+import org.jax.snatacoverlapcounter.util.Util;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * Util.getBarcode and the cell lookup on BAM records with the given number of aux tags, the
+ * barcode tag last. BAM records decode their tags on the first lookup, so every invocation
+ * decodes the records again; decode is the baseline without the lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BarcodeBenchmark {
+
+	private static final int RECORDS = 4096;
+	private static final int CELLS = 1000;
+
+	@Param({ "1", "4", "16" })
+	public int tags;
+
+	private BAMRecordCodec _codec;
+	private ByteArrayInputStream _in;
+	private Util _u;
+	private short _barcodetag;
+	private CellIndex _cells;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(SyntheticData.SEED);
+		String[] barcodes = SyntheticData.getBarcodes(r, CELLS);
+		_cells = SyntheticData.getCells(barcodes);
+		_u = new Util();
+		_barcodetag = _u.getBinaryTag("CB");
+
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 250000000));
+		_codec = new BAMRecordCodec(header);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		_codec.setOutputStream(out);
+		for(int i = 0; i < RECORDS; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("read"+Integer.toString(i));
+			record.setReferenceIndex(0);
+			record.setAlignmentStart(1+100*i);
+			record.setMappingQuality(SyntheticData.MAPQ);
+			record.setFlags(SyntheticData.FORWARDFLAGS);
+			record.setMateReferenceIndex(0);
+			record.setMateAlignmentStart(301+100*i);
+			record.setInferredInsertSize(300);
+			record.setCigarString(Integer.toString(SyntheticData.READLENGTH)+"M");
+			record.setReadString(getBases(r, SyntheticData.READLENGTH));
+			record.setBaseQualityString(getQualities(SyntheticData.READLENGTH));
+			//The other tags of a cellranger BAM, then the barcode
+			for(int j = 0; j < tags-1; j++) {
+				String tag = "X"+Character.toString((char) ('A'+j));
+				if(j % 2 == 0) {
+					record.setAttribute(tag, Integer.valueOf(r.nextInt(1000)));
+				}
+				else {
+					record.setAttribute(tag, barcodes[r.nextInt(CELLS)]);
+				}
+			}
+			record.setAttribute("CB", barcodes[r.nextInt(CELLS)]);
+			_codec.encode(record);
+		}
+		_in = new ByteArrayInputStream(out.toByteArray());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public void decode(Blackhole bh) {
+		_in.reset();
+		_codec.setInputStream(_in);
+		for(int i = 0; i < RECORDS; i++) {
+			bh.consume(_codec.decode());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public void getBarcode(Blackhole bh) {
+		_in.reset();
+		_codec.setInputStream(_in);
+		for(int i = 0; i < RECORDS; i++) {
+			bh.consume(_u.getBarcode(_codec.decode(), _barcodetag));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public void getCellIndex(Blackhole bh) {
+		_in.reset();
+		_codec.setInputStream(_in);
+		for(int i = 0; i < RECORDS; i++) {
+			bh.consume(_cells.getCellIndex(_u.getBarcode(_codec.decode(), _barcodetag)));
+		}
+	}
+
+	private String getBases(Random r, int length) {
+		String[] barcodes = SyntheticData.getBarcodes(r, (length+15)/16);
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < barcodes.length; i++) {
+			sb.append(barcodes[i], 0, 16);
+		}
+		return sb.substring(0, length);
+	}
+
+	private String getQualities(int length) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < length; i++) {
+			sb.append('I');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,72 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedWriter;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * OverlapSweep.findOverlaps and setOverlapInfo on 1024 clusters of the given depth, per cluster.
+ * findOverlaps includes setOverlapInfo, as in the sweep.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OverlapBenchmark {
+
+	private static final int CLUSTERS = 1024;
+	private static final int OVERLAPTHRESHOLD = 3;
+
+	@Param({ "4", "16", "64", "256" })
+	public int clusterdepth;
+
+	private OverlapSweep _sweep;
+	private ReadCluster[] _clusters;
+	private LinkedList<OverlapLocation>[] _overlaps;
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() {
+		Random r = new Random(SyntheticData.SEED);
+		_sweep = new OverlapSweep("CB", 30, 900, 0, 0, OVERLAPTHRESHOLD, new String[] { "chr1" }, new boolean[] { true }, SyntheticData.getCells(SyntheticData.getBarcodes(r, 1)), new BufferedWriter(new SyntheticData.NullWriter()), true);
+		_clusters = new ReadCluster[CLUSTERS];
+		_overlaps = new LinkedList[CLUSTERS];
+		for(int i = 0; i < CLUSTERS; i++) {
+			_clusters[i] = SyntheticData.getCluster(r, clusterdepth, 1000000*i);
+			_overlaps[i] = _sweep.findOverlaps(_clusters[i], OVERLAPTHRESHOLD, "chr1");
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CLUSTERS)
+	public void findOverlaps(Blackhole bh) {
+		for(int i = 0; i < CLUSTERS; i++) {
+			bh.consume(_sweep.findOverlaps(_clusters[i], OVERLAPTHRESHOLD, "chr1"));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CLUSTERS)
+	public void setOverlapInfo() {
+		for(int i = 0; i < CLUSTERS; i++) {
+			_sweep.setOverlapInfo(_overlaps[i], _clusters[i]);
+		}
+	}
+}
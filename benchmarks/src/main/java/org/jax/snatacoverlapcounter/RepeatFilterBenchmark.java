@@ -0,0 +1,65 @@
+package org.jax.snatacoverlapcounter;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.jax.snatacoverlapcounter.util.RegionIndex;
+
+/**
+ * The repeat lookup of the multiplet detection (RegionIndex.findOverlappingRegions) for reads
+ * of 100-500bp, with the given number of repeats per Mb.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepeatFilterBenchmark {
+
+	private static final int CHRLENGTH = 50000000;
+	private static final int READS = 4096;
+
+	@Param({ "100", "1000", "10000" })
+	public int repeatspermb;
+
+	private RegionIndex _repeats;
+	private int[] _starts, _ends;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(SyntheticData.SEED);
+		_repeats = new RegionIndex(SyntheticData.getRepeats(r, CHRLENGTH, repeatspermb), 1);
+		_starts = new int[READS];
+		_ends = new int[READS];
+		for(int i = 0; i < READS; i++) {
+			_starts[i] = r.nextInt(CHRLENGTH);
+			_ends[i] = _starts[i]+SyntheticData.getInsertSize(r);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(READS)
+	public int findOverlappingRegions() {
+		int rv = 0;
+		for(int i = 0; i < READS; i++) {
+			if(_repeats.findOverlappingRegions(0, _starts[i], _ends[i]) > 0) {
+				rv++;
+			}
+		}
+		return rv;
+	}
+}
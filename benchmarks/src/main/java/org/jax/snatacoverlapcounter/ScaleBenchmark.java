@@ -0,0 +1,286 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Runs the overlap counter and the multiplet detection on synthetic samples of each combination of
+ * the given numbers of cells and reads. Each run is a new JVM, which reports its peak RSS and GC
+ * time (see ScaleRun). The throughput is from its Metrics.txt and the detected multiplets are
+ * compared to the injected ones. The results are appended to ScaleBenchmark.txt after each run.
+ *
+ * The samples are generated once in the work directory and reused by later runs unless --delete
+ * is given.
+ */
+public class ScaleBenchmark {
+
+	private String[] _cells, _reads;
+	private String _format, _threads, _xmx, _chromosomes, _seed;
+	private boolean _rawbam, _delete;
+
+	public static void main(String[] args) {
+		String cells = "5000";
+		String reads = "100M";
+		String format = "bam";
+		String threads = "1";
+		String xmx = null;
+		String chromosomes = "22";
+		String seed = "1";
+		boolean rawbam = false;
+		boolean delete = false;
+		String workdir = null;
+
+		for(int i = 0; i < args.length; i++) {
+			switch(args[i]) {
+				case "--cells":
+					cells = args[++i];
+					break;
+				case "--reads":
+					reads = args[++i];
+					break;
+				case "--format":
+					format = args[++i];
+					break;
+				case "--threads":
+					threads = args[++i];
+					break;
+				case "--xmx":
+					xmx = args[++i];
+					break;
+				case "--chromosomes":
+					chromosomes = args[++i];
+					break;
+				case "--seed":
+					seed = args[++i];
+					break;
+				case "--rawbam":
+					rawbam = true;
+					break;
+				case "--delete":
+					delete = true;
+					break;
+				default:
+					if(i < args.length-1 || args[i].startsWith("-")) {
+						workdir = null;
+						i = args.length;
+					}
+					else {
+						workdir = args[i];
+					}
+					break;
+			}
+		}
+
+		if(workdir == null || (!format.equals("bam") && !format.equals("fragments"))) {
+			System.out.println("Usage: workdirectory");
+			System.out.println("Options: --cells       Comma separated numbers of cells. (Default: 5000)");
+			System.out.println("         --reads       Comma separated numbers of reads, k, M and B suffixes allowed. (Default: 100M)");
+			System.out.println("         --format      bam or fragments. (Default: bam)");
+			System.out.println("         --threads     Comma separated numbers of overlap counter threads. (Default: 1)");
+			System.out.println("         --xmx         The maximum heap of the overlap counter runs, e.g., 16g. (Default: the JVM default)");
+			System.out.println("         --chromosomes The number of chromosomes of the samples, from chr1. (Default: 22)");
+			System.out.println("         --seed        The random seed of the samples. (Default: 1)");
+			System.out.println("         --rawbam      Runs the overlap counter with --rawbam.");
+			System.out.println("         --delete      Deletes each sample after its runs.");
+			System.exit(0);
+		}
+
+		ScaleBenchmark sb = new ScaleBenchmark(cells.split(","), reads.split(","), format, threads, xmx, chromosomes, seed, rawbam, delete);
+		try {
+			sb.run(workdir);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public ScaleBenchmark(String[] cells, String[] reads, String format, String threads, String xmx, String chromosomes, String seed, boolean rawbam, boolean delete) {
+		_cells = cells;
+		_reads = reads;
+		_format = format;
+		_threads = threads;
+		_xmx = xmx;
+		_chromosomes = chromosomes;
+		_seed = seed;
+		_rawbam = rawbam;
+		_delete = delete;
+	}
+
+	public void run(String workdir) throws IOException {
+		new File(workdir).mkdirs();
+		String summary = workdir+"/ScaleBenchmark.txt";
+		if(!new File(summary).exists()) {
+			writeLine(summary, new String[] { "Cells", "Reads", "Format", "Threads", "Records", "Wall Time (s)", "Records per Second", "Peak RSS (MB)", "GC Time (s)", "GC Count", "Injected Multiplets", "Detected Multiplets", "Recovered Multiplets", "Recall", "Precision", "Status" });
+		}
+
+		String[] threads = _threads.split(",");
+		for(int i = 0; i < _cells.length; i++) {
+			for(int j = 0; j < _reads.length; j++) {
+				String sampledir = workdir+"/cells"+_cells[i]+"_reads"+_reads[j];
+				String input = sampledir+(_format.equals("bam") ? "/sample.bam" : "/fragments.tsv.gz");
+				if(!new File(input).exists() || !new File(sampledir+"/MultipletTruth.txt").exists()) {
+					System.out.println("Generating "+sampledir+".");
+					SyntheticSampleGenerator g = new SyntheticSampleGenerator(Integer.parseInt(_cells[i]), SyntheticSampleGenerator.parseCount(_reads[j]), 0.08, 0.2, 0.5, 0.01, Integer.parseInt(_chromosomes), _format, Long.parseLong(_seed));
+					g.generate(sampledir);
+				}
+
+				for(int k = 0; k < threads.length; k++) {
+					String outdir = sampledir+"/output_"+_format+"_t"+threads[k];
+					System.out.println("Running "+outdir+".");
+					writeLine(summary, runSample(sampledir, input, threads[k], outdir, _cells[i], _reads[j]));
+				}
+
+				if(_delete) {
+					new File(input).delete();
+					new File(sampledir+"/sample.bai").delete();
+				}
+			}
+		}
+	}
+
+	private String[] runSample(String sampledir, String input, String threads, String outdir, String cells, String reads) throws IOException {
+		new File(outdir).mkdirs();
+		LinkedList<String> command = new LinkedList<String>();
+		command.add(System.getProperty("java.home")+"/bin/java");
+		if(_xmx != null) {
+			command.add("-Xmx"+_xmx);
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ScaleRun.class.getName());
+		command.add("--cellidx");
+		command.add("8");
+		command.add("--iscellidx");
+		command.add("9");
+		command.add("--threads");
+		command.add(threads);
+		if(_rawbam) {
+			command.add("--rawbam");
+		}
+		command.add("--multiplets");
+		command.add("--rfilter");
+		command.add(sampledir+"/repeats.bed");
+		command.add(input);
+		command.add(sampledir+"/singlecell.csv");
+		command.add(sampledir+"/chromosomes.txt");
+		command.add(outdir);
+
+		File log = new File(outdir, "ScaleRun.log");
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(log);
+		long timestart = System.nanoTime();
+		int exitcode;
+		try {
+			exitcode = pb.start().waitFor();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		double walltime = (System.nanoTime()-timestart)/1e9;
+
+		HashMap<String, String> run = readValues(log, ScaleRun.PREFIX);
+		HashMap<String, String> metrics = readValues(new File(outdir, "Metrics.txt"), "");
+		HashSet<String> injected = readFirstColumn(new File(sampledir, "MultipletTruth.txt"), true);
+		HashSet<String> detected = readFirstColumn(new File(outdir, "MultipletCellIds_01.txt"), false);
+		int recovered = 0;
+		for(Iterator<String> it = detected.iterator(); it.hasNext();) {
+			if(injected.contains(it.next())) {
+				recovered++;
+			}
+		}
+
+		String status = exitcode == 0 && run.containsKey("peak_rss_bytes") && new File(outdir, "MultipletCellIds_01.txt").exists() ? "Complete" : "Failed, see "+log.getPath();
+		long peakrss = parseLong(run.get("peak_rss_bytes"));
+		return new String[] {
+			cells,
+			reads,
+			_format,
+			threads,
+			getValue(metrics, "records"),
+			Double.toString(walltime),
+			getValue(metrics, "records_per_second"),
+			peakrss < 0 ? "NA" : Long.toString(peakrss >> 20),
+			run.containsKey("gc_milliseconds") ? Double.toString(parseLong(run.get("gc_milliseconds"))/1000.0) : "NA",
+			getValue(run, "gc_count"),
+			Integer.toString(injected.size()),
+			Integer.toString(detected.size()),
+			Integer.toString(recovered),
+			injected.size() == 0 ? "NA" : Double.toString((double) recovered/injected.size()),
+			detected.size() == 0 ? "NA" : Double.toString((double) recovered/detected.size()),
+			status
+		};
+	}
+
+	//Tab separated name value lines that start with the prefix
+	private HashMap<String, String> readValues(File file, String prefix) throws IOException {
+		HashMap<String, String> rv = new HashMap<String, String>();
+		if(!file.exists()) {
+			return rv;
+		}
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		String line;
+		while((line = br.readLine()) != null) {
+			if(line.startsWith(prefix)) {
+				String[] split = line.substring(prefix.length()).split("\t");
+				if(split.length > 1) {
+					rv.put(split[0], split[1]);
+				}
+			}
+		}
+		br.close();
+		return rv;
+	}
+
+	private HashSet<String> readFirstColumn(File file, boolean header) throws IOException {
+		HashSet<String> rv = new HashSet<String>();
+		if(!file.exists()) {
+			return rv;
+		}
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		if(header) {
+			br.readLine();
+		}
+		String line;
+		while((line = br.readLine()) != null) {
+			if(line.length() > 0) {
+				rv.add(line.split("\t")[0]);
+			}
+		}
+		br.close();
+		return rv;
+	}
+
+	private String getValue(HashMap<String, String> values, String key) {
+		return values.containsKey(key) ? values.get(key) : "NA";
+	}
+
+	private long parseLong(String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void writeLine(String file, String[] columns) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(file, true));
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < columns.length; i++) {
+			if(i > 0) {
+				sb.append("\t");
+			}
+			sb.append(columns[i]);
+		}
+		sb.append("\n");
+		bw.write(sb.toString());
+		bw.flush();
+		bw.close();
+	}
+}
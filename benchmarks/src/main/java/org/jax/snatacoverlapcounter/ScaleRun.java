@@ -0,0 +1,53 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+
+/**
+ * Runs OverlapCounter with the given arguments in this JVM, then prints the peak resident set
+ * size and the garbage collection time of the JVM for ScaleBenchmark.
+ */
+public class ScaleRun {
+
+	public static final String PREFIX = "ScaleRun\t";
+
+	public static void main(String[] args) {
+		OverlapCounter.main(args);
+
+		long gctime = 0;
+		long gccount = 0;
+		for(Iterator<GarbageCollectorMXBean> it = ManagementFactory.getGarbageCollectorMXBeans().iterator(); it.hasNext();) {
+			GarbageCollectorMXBean next = it.next();
+			gctime += Math.max(0, next.getCollectionTime());
+			gccount += Math.max(0, next.getCollectionCount());
+		}
+		System.out.println(PREFIX+"peak_rss_bytes\t"+Long.toString(getPeakRSS()));
+		System.out.println(PREFIX+"gc_milliseconds\t"+Long.toString(gctime));
+		System.out.println(PREFIX+"gc_count\t"+Long.toString(gccount));
+	}
+
+	//VmHWM of /proc/self/status, -1 if it is not available
+	private static long getPeakRSS() {
+		try {
+			BufferedReader br = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				String line;
+				while((line = br.readLine()) != null) {
+					if(line.startsWith("VmHWM:")) {
+						String[] split = line.substring(6).trim().split("\\s+");
+						return Long.parseLong(split[0])*1024;
+					}
+				}
+			}
+			finally {
+				br.close();
+			}
+		} catch (IOException e) {
+		}
+		return -1;
+	}
+}
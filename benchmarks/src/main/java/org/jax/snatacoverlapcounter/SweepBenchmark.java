@@ -0,0 +1,66 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.jax.snatacoverlapcounter.util.CellIndex;
+
+/**
+ * The whole sweep over decoded reads, per read: the read filters, the clusters of each cell,
+ * findOverlaps and formatting the overlaps. Each invocation is a new sweep over the same reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SweepBenchmark {
+
+	private static final int READS = 1 << 18;
+	private static final int BATCHSIZE = 4096;
+
+	@Param({ "100", "1000", "10000" })
+	public int cells;
+
+	@Param({ "4", "16", "64" })
+	public int clusterdepth;
+
+	private CellIndex _cells;
+	private ReadBatch[] _batches;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(SyntheticData.SEED);
+		_cells = SyntheticData.getCells(SyntheticData.getBarcodes(r, cells));
+		_batches = SyntheticData.getReadBatches(r, READS, clusterdepth, _cells.size(), BATCHSIZE);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(READS)
+	public OverlapSweep sweep() throws IOException {
+		OverlapSweep sweep = new OverlapSweep("CB", 30, 900, 4, -5, 3, new String[] { "chr1", "chr2" }, new boolean[] { true, true }, _cells, new BufferedWriter(new SyntheticData.NullWriter()), true);
+		for(int i = 0; i < _batches.length; i++) {
+			ReadBatch batch = _batches[i];
+			for(int j = 0; j < batch.size(); j++) {
+				sweep.process(batch, j);
+			}
+		}
+		return sweep;
+	}
+}
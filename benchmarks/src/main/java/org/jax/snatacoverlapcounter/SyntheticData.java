@@ -0,0 +1,144 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.jax.snatacoverlapcounter.util.CellIndex;
+import org.jax.snatacoverlapcounter.util.RegionList;
+
+/**
+ * Seeded synthetic inputs for the benchmarks. A cluster is the reads of one cell at one locus:
+ * read pairs that start within 40bp per read of each other with 100-500bp inserts, so the
+ * coverage, and the number of overlaps found, grows with the cluster depth.
+ */
+public class SyntheticData {
+
+	public static final long SEED = 42;
+	public static final int MAPQ = 60;
+	public static final int READLENGTH = 50;
+
+	//Paired, proper pair, mate reverse strand, first of pair and the reverse mate
+	public static final int FORWARDFLAGS = 99;
+	public static final int REVERSEFLAGS = 147;
+
+	private static final char[] BASES = { 'A', 'C', 'G', 'T' };
+
+	public static ReadCluster getCluster(Random r, int depth, int position) {
+		int[] starts = new int[depth];
+		for(int i = 0; i < depth; i++) {
+			starts[i] = position+r.nextInt(depth*40);
+		}
+		Arrays.sort(starts);
+		ReadCluster rv = new ReadCluster();
+		for(int i = 0; i < depth; i++) {
+			rv.add(starts[i], starts[i]+getInsertSize(r), MAPQ-r.nextInt(30));
+		}
+		return rv;
+	}
+
+	public static int getInsertSize(Random r) {
+		return 100+r.nextInt(400);
+	}
+
+	public static String[] getBarcodes(Random r, int n) {
+		String[] rv = new String[n];
+		for(int i = 0; i < n; i++) {
+			StringBuilder sb = new StringBuilder();
+			for(int j = 0; j < 16; j++) {
+				sb.append(BASES[r.nextInt(4)]);
+			}
+			sb.append("-1");
+			rv[i] = sb.toString();
+		}
+		return rv;
+	}
+
+	//Barcodes that collide are kept once, so the index can have a few cells less than n
+	public static CellIndex getCells(String[] barcodes) {
+		TreeMap<String, String> cellbarcodemap = new TreeMap<String, String>();
+		for(int i = 0; i < barcodes.length; i++) {
+			cellbarcodemap.put(barcodes[i], "cell"+Integer.toString(i));
+		}
+		return new CellIndex(cellbarcodemap);
+	}
+
+	/**
+	 * Read pairs of clusters on chromosome 0, in coordinate order. The clusters are at increasing
+	 * loci 1kb apart and each belongs to a random cell. A last read on chromosome 1 makes the
+	 * sweep flush the open clusters of chromosome 0.
+	 */
+	public static ReadBatch[] getReadBatches(Random r, int reads, int depth, int cells, int batchsize) {
+		int clusters = Math.max(1, reads/(2*depth));
+		long[] records = new long[2*clusters*depth];
+		int[] cellidx = new int[records.length];
+		int[] insertsize = new int[records.length];
+		int n = 0;
+		for(int i = 0; i < clusters; i++) {
+			int cell = r.nextInt(cells);
+			int position = 1000*i;
+			for(int j = 0; j < depth; j++) {
+				int start = position+r.nextInt(depth*40);
+				int insert = getInsertSize(r);
+				//Position, then the record number, so the records stay in order after sorting
+				records[n] = ((long) start << 32) | n;
+				cellidx[n] = cell;
+				insertsize[n++] = insert;
+				records[n] = ((long) (start+insert-READLENGTH) << 32) | n;
+				cellidx[n] = cell;
+				insertsize[n++] = -insert;
+			}
+		}
+		Arrays.sort(records);
+
+		ReadBatch[] rv = new ReadBatch[records.length/batchsize+1];
+		for(int i = 0; i < rv.length; i++) {
+			rv[i] = new ReadBatch(batchsize);
+		}
+		for(int i = 0; i < records.length; i++) {
+			int start = (int) (records[i] >>> 32);
+			int idx = (int) records[i];
+			int flags = insertsize[idx] > 0 ? FORWARDFLAGS : REVERSEFLAGS;
+			//1-based as in the BAM records
+			rv[i/batchsize].add(0, start+1, insertsize[idx], MAPQ, flags, READLENGTH, cellidx[idx]);
+		}
+		rv[rv.length-1].add(1, 1, 300, MAPQ, FORWARDFLAGS, READLENGTH, 0);
+		return rv;
+	}
+
+	//Repeats of 20-300bp at the given number per Mb, as in a repeat masker BED file
+	public static RegionList getRepeats(Random r, int chrlength, int permb) {
+		int n = (int) ((long) chrlength*permb/1000000);
+		int[] starts = new int[n];
+		for(int i = 0; i < n; i++) {
+			starts[i] = r.nextInt(chrlength);
+		}
+		Arrays.sort(starts);
+		RegionList rv = new RegionList();
+		for(int i = 0; i < n; i++) {
+			rv.add(0, starts[i], starts[i]+20+r.nextInt(280), -1);
+		}
+		return rv;
+	}
+
+	//For runs that format the overlaps without keeping them
+	public static class NullWriter extends Writer {
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,625 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Writes a synthetic snATAC-seq sample: a coordinate sorted and indexed BAM file, a 10x style
+ * fragment file, the barcode to cell id map, the chromosome list, the repeat hotspots as a BED
+ * file and the barcodes of the injected multiplets.
+ *
+ * Each nucleus has two copies of the genome and a copy is cut at most once at a position, so the
+ * fragments of a nucleus overlap at most twice. A multiplet barcode has the fragments of two
+ * nuclei. The fragments per nucleus are log-normal, half of them fall in 100k peaks shared by all
+ * cells and a small fraction in repeat hotspots, where every cell has many overlapping fragments.
+ * Insert sizes are a mixture of the nucleosome free and the mono-, di- and tri-nucleosome lengths.
+ *
+ * The sample is written one window of the genome at a time, so memory does not grow with the
+ * number of reads. With fewer chromosomes the reads are the share of those chromosomes, so the
+ * read density stays that of a whole genome sample.
+ */
+public class SyntheticSampleGenerator {
+
+	//GRCh38 primary assembly
+	private static final String[] CHROMOSOMES = { "chr1", "chr2", "chr3", "chr4", "chr5", "chr6", "chr7", "chr8", "chr9", "chr10", "chr11", "chr12", "chr13", "chr14", "chr15", "chr16", "chr17", "chr18", "chr19", "chr20", "chr21", "chr22", "chrX", "chrY" };
+	private static final int[] LENGTHS = { 248956422, 242193529, 198295559, 190214555, 181538259, 170805979, 159345973, 145138636, 138394717, 133797422, 135086622, 133275309, 114364328, 107043718, 101991189, 90338345, 83257441, 80373285, 58617616, 64444167, 46709983, 50818468, 156040895, 57227415 };
+	private static final int AUTOSOMES = 22;
+
+	private static final int WINDOWSIZE = 1 << 20;
+	private static final int READLENGTH = 50;
+	private static final int MAXINSERTSIZE = 1000;
+	private static final int PEAKS = 100000;
+	private static final int PEAKWIDTH = 60;
+	private static final int HOTSPOTS = 200;
+	private static final int HOTSPOTLENGTH = 300;
+	private static final int MAPQ = 60;
+	private static final int LOWMAPQ = 10;
+	private static final double LOWMAPQFRACTION = 0.05;
+	private static final double CELLSIGMA = 0.6;
+	private static final int MAXCELLS = 1 << 20;
+
+	//Record flags below the insert size in the sort key
+	private static final int REVERSE = 1;
+	private static final int DUPLICATE = 2;
+	private static final int LOWQUALITY = 4;
+
+	private int _cells;
+	private long _reads;
+	private double _multipletrate, _duplicaterate, _peakfraction, _hotspotfraction;
+	private int _numchromosomes;
+	private boolean _writebam, _writefragments;
+	private Random _r;
+
+	private String[] _barcodes;
+	private int[] _nucleuscell;
+	private double[] _nucleusfragments;
+	private int[] _lastend;
+	private long[] _cellfragments;
+	private int _multiplets;
+	private long _genomelength;
+	private int[][] _peaks;
+	private int[][] _hotspots;
+
+	private SAMFileHeader _header;
+	private Cigar _cigar;
+	private byte[] _bases, _qualities;
+	private long[] _records;
+	private int _numrecords;
+	private long[] _carry;
+	private int _numcarry;
+
+	public static void main(String[] args) {
+		String cells = "5000";
+		String reads = "100M";
+		String multiplets = "0.08";
+		String duplicates = "0.2";
+		String peakfraction = "0.5";
+		String hotspotfraction = "0.01";
+		String chromosomes = Integer.toString(AUTOSOMES);
+		String format = "both";
+		String seed = "1";
+		String outdir = null;
+
+		for(int i = 0; i < args.length; i++) {
+			if(i < args.length-1) {
+				switch(args[i]) {
+					case "--cells":
+						cells = args[++i];
+						break;
+					case "--reads":
+						reads = args[++i];
+						break;
+					case "--multiplets":
+						multiplets = args[++i];
+						break;
+					case "--duplicates":
+						duplicates = args[++i];
+						break;
+					case "--peakfraction":
+						peakfraction = args[++i];
+						break;
+					case "--hotspotfraction":
+						hotspotfraction = args[++i];
+						break;
+					case "--chromosomes":
+						chromosomes = args[++i];
+						break;
+					case "--format":
+						format = args[++i];
+						break;
+					case "--seed":
+						seed = args[++i];
+						break;
+					default:
+						outdir = null;
+						i = args.length;
+						break;
+				}
+			}
+			else if(!args[i].startsWith("-")) {
+				outdir = args[i];
+			}
+		}
+
+		if(outdir == null) {
+			System.out.println("Usage: outputdirectory");
+			System.out.println("Options: --cells       The number of cell barcodes. (Default: 5000)");
+			System.out.println("         --reads       The number of reads of a whole genome sample, k, M and B suffixes allowed. (Default: 100M)");
+			System.out.println("         --multiplets  The fraction of cell barcodes with two nuclei. (Default: 0.08)");
+			System.out.println("         --duplicates  The fraction of fragments with a PCR duplicate. (Default: 0.2)");
+			System.out.println("         --peakfraction The fraction of fragments in peaks. (Default: 0.5)");
+			System.out.println("         --hotspotfraction The fraction of fragments in repeat hotspots. (Default: 0.01)");
+			System.out.println("         --chromosomes The number of chromosomes to write, from chr1. (Default: 22)");
+			System.out.println("         --format      bam, fragments or both. (Default: both)");
+			System.out.println("         --seed        The random seed. (Default: 1)");
+			System.exit(0);
+		}
+
+		try {
+			SyntheticSampleGenerator g = new SyntheticSampleGenerator(Integer.parseInt(cells), parseCount(reads), Double.parseDouble(multiplets), Double.parseDouble(duplicates), Double.parseDouble(peakfraction), Double.parseDouble(hotspotfraction), Integer.parseInt(chromosomes), format, Long.parseLong(seed));
+			g.generate(outdir);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public SyntheticSampleGenerator(int cells, long reads, double multipletrate, double duplicaterate, double peakfraction, double hotspotfraction, int numchromosomes, String format, long seed) throws IOException {
+		if(cells < 1 || cells > MAXCELLS) {
+			throw new IOException("The number of cells must be 1 to "+Integer.toString(MAXCELLS)+".");
+		}
+		if(numchromosomes < 1 || numchromosomes > CHROMOSOMES.length) {
+			throw new IOException("The number of chromosomes must be 1 to "+Integer.toString(CHROMOSOMES.length)+".");
+		}
+		if(!format.equals("bam") && !format.equals("fragments") && !format.equals("both")) {
+			throw new IOException("Unknown format: "+format);
+		}
+		_cells = cells;
+		_reads = reads;
+		_multipletrate = multipletrate;
+		_duplicaterate = duplicaterate;
+		_peakfraction = peakfraction;
+		_hotspotfraction = hotspotfraction;
+		_numchromosomes = numchromosomes;
+		_writebam = !format.equals("fragments");
+		_writefragments = !format.equals("bam");
+		_r = new Random(seed);
+	}
+
+	//Accepts a k, M or B suffix
+	public static long parseCount(String count) {
+		long multiplier = 1;
+		char suffix = Character.toUpperCase(count.charAt(count.length()-1));
+		if(suffix == 'K') {
+			multiplier = 1000L;
+		}
+		else if(suffix == 'M') {
+			multiplier = 1000000L;
+		}
+		else if(suffix == 'B' || suffix == 'G') {
+			multiplier = 1000000000L;
+		}
+		if(multiplier > 1) {
+			count = count.substring(0, count.length()-1);
+		}
+		return (long) (Double.parseDouble(count)*multiplier);
+	}
+
+	public void generate(String outdir) throws IOException {
+		new File(outdir).mkdirs();
+		initCells();
+		initRegions();
+		_cigar = new Cigar(Arrays.asList(new CigarElement(READLENGTH, CigarOperator.M)));
+		_bases = new byte[READLENGTH];
+		_qualities = new byte[READLENGTH];
+		for(int i = 0; i < READLENGTH; i++) {
+			_bases[i] = (byte) "ACGT".charAt(i % 4);
+			_qualities[i] = 30;
+		}
+		_records = new long[1 << 16];
+		_carry = new long[1 << 10];
+
+		_header = new SAMFileHeader();
+		_header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		for(int i = 0; i < _numchromosomes; i++) {
+			_header.addSequence(new SAMSequenceRecord(CHROMOSOMES[i], LENGTHS[i]));
+		}
+
+		SAMFileWriter bamwriter = null;
+		if(_writebam) {
+			bamwriter = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(_header, true, new File(outdir, "sample.bam"));
+		}
+		OutputStream fragmentwriter = null;
+		if(_writefragments) {
+			fragmentwriter = new BufferedOutputStream(new BlockCompressedOutputStream(new File(outdir, "fragments.tsv.gz")), 1 << 16);
+		}
+
+		long written = 0;
+		for(int chr = 0; chr < _numchromosomes; chr++) {
+			System.out.println("Writing "+CHROMOSOMES[chr]+".");
+			Arrays.fill(_lastend, Integer.MIN_VALUE);
+			_numcarry = 0;
+			for(int windowstart = 0; windowstart < LENGTHS[chr]; windowstart += WINDOWSIZE) {
+				int windowend = (int) Math.min((long) windowstart+WINDOWSIZE, LENGTHS[chr]);
+				generateWindow(chr, windowstart, windowend);
+				written += writeWindow(chr, windowend, bamwriter, fragmentwriter);
+			}
+		}
+
+		if(bamwriter != null) {
+			bamwriter.close();
+		}
+		if(fragmentwriter != null) {
+			fragmentwriter.flush();
+			fragmentwriter.close();
+		}
+		writeCells(outdir+"/singlecell.csv");
+		writeChromosomes(outdir+"/chromosomes.txt");
+		writeHotspots(outdir+"/repeats.bed");
+		writeMultiplets(outdir+"/MultipletTruth.txt");
+		System.out.println("Wrote "+Long.toString(written)+" reads of "+Integer.toString(_cells)+" cells ("+Integer.toString(_multiplets)+" multiplets).");
+	}
+
+	private void initCells() {
+		HashSet<String> used = new HashSet<String>();
+		_barcodes = new String[_cells];
+		for(int i = 0; i < _cells; i++) {
+			String barcode;
+			do {
+				barcode = SyntheticData.getBarcodes(_r, 1)[0];
+			} while(!used.add(barcode));
+			_barcodes[i] = barcode;
+		}
+
+		//The multiplets are the first cells in a random order of the cells
+		_multiplets = (int) Math.round(_cells*_multipletrate);
+		int[] order = new int[_cells];
+		for(int i = 0; i < _cells; i++) {
+			order[i] = i;
+		}
+		for(int i = _cells-1; i > 0; i--) {
+			int j = _r.nextInt(i+1);
+			int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+		int nuclei = _cells+_multiplets;
+		_nucleuscell = new int[nuclei];
+		for(int i = 0; i < _cells; i++) {
+			_nucleuscell[i] = i;
+		}
+		for(int i = 0; i < _multiplets; i++) {
+			_nucleuscell[_cells+i] = order[i];
+		}
+
+		//Unique fragments of a whole genome, the duplicates make up the rest of the reads
+		double fragments = _reads/2.0/(1+_duplicaterate);
+		_nucleusfragments = new double[nuclei];
+		double sum = 0;
+		for(int i = 0; i < nuclei; i++) {
+			_nucleusfragments[i] = Math.exp(CELLSIGMA*_r.nextGaussian());
+			sum += _nucleusfragments[i];
+		}
+		for(int i = 0; i < nuclei; i++) {
+			_nucleusfragments[i] *= fragments/sum;
+		}
+		_lastend = new int[2*nuclei];
+		_cellfragments = new long[_cells];
+	}
+
+	//Peaks and hotspots over the whole genome, so they do not depend on the number of chromosomes written
+	private void initRegions() {
+		_genomelength = 0;
+		for(int i = 0; i < LENGTHS.length; i++) {
+			_genomelength += LENGTHS[i];
+		}
+		_peaks = getRegions(PEAKS);
+		_hotspots = getRegions(HOTSPOTS);
+	}
+
+	private int[][] getRegions(int n) {
+		long[] positions = new long[n];
+		for(int i = 0; i < n; i++) {
+			positions[i] = (long) (_r.nextDouble()*_genomelength);
+		}
+		Arrays.sort(positions);
+		int[][] rv = new int[LENGTHS.length][];
+		int chr = 0;
+		long chrstart = 0;
+		int from = 0;
+		for(int i = 0; i <= n; i++) {
+			while(chr < LENGTHS.length && (i == n || positions[i] >= chrstart+LENGTHS[chr])) {
+				rv[chr] = new int[i-from];
+				for(int j = from; j < i; j++) {
+					rv[chr][j-from] = (int) (positions[j]-chrstart);
+				}
+				from = i;
+				chrstart += LENGTHS[chr];
+				chr++;
+			}
+		}
+		return rv;
+	}
+
+	private void generateWindow(int chr, int windowstart, int windowend) {
+		_numrecords = 0;
+		for(int i = 0; i < _numcarry; i++) {
+			addRecord(_carry[i]);
+		}
+		_numcarry = 0;
+
+		double windowfraction = (double) (windowend-windowstart)/_genomelength;
+		int peakfrom = getIndex(_peaks[chr], windowstart);
+		int peakto = getIndex(_peaks[chr], windowend);
+		int hotspotfrom = getIndex(_hotspots[chr], windowstart);
+		int hotspotto = getIndex(_hotspots[chr], windowend);
+		double hotspotshare = (double) (hotspotto-hotspotfrom)/HOTSPOTS;
+
+		long[] copies = new long[0];
+		for(int nucleus = 0; nucleus < _nucleuscell.length; nucleus++) {
+			int cell = _nucleuscell[nucleus];
+			int n = getPoisson(_nucleusfragments[nucleus]*(1-_hotspotfraction)*windowfraction);
+			if(copies.length < n) {
+				copies = new long[Math.max(n, 2*copies.length)];
+			}
+			for(int i = 0; i < n; i++) {
+				int insertsize = getInsertSize();
+				int start = -1;
+				if(peakto > peakfrom && _r.nextDouble() < _peakfraction) {
+					int peak = _peaks[chr][peakfrom+_r.nextInt(peakto-peakfrom)];
+					start = peak+(int) Math.round(_r.nextGaussian()*PEAKWIDTH)-insertsize/2;
+				}
+				if(start < windowstart || start >= windowend) {
+					start = windowstart+_r.nextInt(windowend-windowstart);
+				}
+				//Start, insert size and genome copy
+				copies[i] = (long) start << 11 | insertsize << 1 | _r.nextInt(2);
+			}
+
+			//A genome copy is cut once at a position, so its fragments do not overlap
+			Arrays.sort(copies, 0, n);
+			for(int i = 0; i < n; i++) {
+				int start = (int) (copies[i] >>> 11);
+				int insertsize = (int) (copies[i] >>> 1) & 0x3ff;
+				int copy = 2*nucleus+(int) (copies[i] & 1);
+				if(start <= _lastend[copy] || start+insertsize > LENGTHS[chr]) {
+					continue;
+				}
+				_lastend[copy] = start+insertsize;
+				addFragment(start, insertsize, cell);
+			}
+
+			//Repeat hotspots are in many copies, so their fragments overlap
+			int hotspotfragments = hotspotto > hotspotfrom ? getPoisson(_nucleusfragments[nucleus]*_hotspotfraction*hotspotshare) : 0;
+			for(int i = 0; i < hotspotfragments; i++) {
+				int insertsize = getInsertSize();
+				int hotspot = _hotspots[chr][hotspotfrom+_r.nextInt(hotspotto-hotspotfrom)];
+				int start = hotspot+_r.nextInt(HOTSPOTLENGTH)-insertsize/2;
+				if(start >= windowstart && start < windowend && start+insertsize <= LENGTHS[chr]) {
+					addFragment(start, insertsize, cell);
+				}
+			}
+		}
+		Arrays.sort(_records, 0, _numrecords);
+	}
+
+	private void addFragment(int start, int insertsize, int cell) {
+		int flags = _r.nextDouble() < LOWMAPQFRACTION ? LOWQUALITY : 0;
+		int copies = _r.nextDouble() < _duplicaterate ? 2 : 1;
+		for(int i = 0; i < copies; i++) {
+			addRecord(getRecord(start, cell, insertsize, flags));
+			addRecord(getRecord(start+insertsize-READLENGTH, cell, insertsize, flags | REVERSE));
+			flags |= DUPLICATE;
+		}
+		_cellfragments[cell]++;
+	}
+
+	//Position, cell, insert size and flags, in the order of the sorted BAM file
+	private long getRecord(int position, int cell, int insertsize, int flags) {
+		return (long) position << 35 | (long) cell << 15 | insertsize << 5 | flags;
+	}
+
+	private void addRecord(long record) {
+		if(_numrecords == _records.length) {
+			_records = Arrays.copyOf(_records, 2*_records.length);
+		}
+		_records[_numrecords++] = record;
+	}
+
+	//Writes the records before the window end and carries the reverse reads after it to the next window
+	private long writeWindow(int chr, int windowend, SAMFileWriter bamwriter, OutputStream fragmentwriter) throws IOException {
+		long rv = 0;
+		StringBuilder fragments = new StringBuilder();
+		long lastfragment = -1;
+		int duplicates = 0;
+		for(int i = 0; i < _numrecords; i++) {
+			long record = _records[i];
+			int position = (int) (record >>> 35);
+			int cell = (int) (record >>> 15) & (MAXCELLS-1);
+			int insertsize = (int) (record >>> 5) & 0x3ff;
+			int flags = (int) record & 0x1f;
+			if(position >= windowend) {
+				if(_numcarry == _carry.length) {
+					_carry = Arrays.copyOf(_carry, 2*_carry.length);
+				}
+				_carry[_numcarry++] = record;
+				continue;
+			}
+
+			if(bamwriter != null) {
+				bamwriter.addAlignment(getSAMRecord(chr, position, cell, insertsize, flags));
+			}
+			rv++;
+
+			//One line per unique high quality fragment with its number of reads, as cellranger
+			if(fragmentwriter != null && (flags & (REVERSE | LOWQUALITY)) == 0) {
+				long fragment = record >>> 5;
+				if(fragment == lastfragment) {
+					duplicates++;
+					continue;
+				}
+				appendFragment(fragments, duplicates);
+				lastfragment = fragment;
+				duplicates = 1;
+				fragments.append(CHROMOSOMES[chr]);
+				fragments.append("\t");
+				fragments.append(Integer.toString(position+4));
+				fragments.append("\t");
+				fragments.append(Integer.toString(position+insertsize-5));
+				fragments.append("\t");
+				fragments.append(_barcodes[cell]);
+			}
+		}
+		if(fragmentwriter != null) {
+			appendFragment(fragments, duplicates);
+			fragmentwriter.write(fragments.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		return rv;
+	}
+
+	private void appendFragment(StringBuilder fragments, int duplicates) {
+		if(duplicates > 0) {
+			fragments.append("\t");
+			fragments.append(Integer.toString(duplicates));
+			fragments.append("\n");
+		}
+	}
+
+	private SAMRecord getSAMRecord(int chr, int position, int cell, int insertsize, int flags) {
+		boolean reverse = (flags & REVERSE) != 0;
+		int fragmentstart = reverse ? position+READLENGTH-insertsize : position;
+		SAMRecord rv = new SAMRecord(_header);
+		StringBuilder name = new StringBuilder();
+		name.append(Integer.toString(cell));
+		name.append(":");
+		name.append(Integer.toString(chr));
+		name.append(":");
+		name.append(Integer.toString(fragmentstart));
+		name.append(":");
+		name.append(Integer.toString(insertsize));
+		if((flags & DUPLICATE) != 0) {
+			name.append(":d");
+		}
+		rv.setReadName(name.toString());
+		rv.setReadPairedFlag(true);
+		rv.setProperPairFlag(true);
+		rv.setReadNegativeStrandFlag(reverse);
+		rv.setMateNegativeStrandFlag(!reverse);
+		rv.setFirstOfPairFlag(!reverse);
+		rv.setSecondOfPairFlag(reverse);
+		rv.setDuplicateReadFlag((flags & DUPLICATE) != 0);
+		rv.setReferenceIndex(chr);
+		rv.setAlignmentStart(position+1);
+		rv.setMappingQuality((flags & LOWQUALITY) != 0 ? LOWMAPQ : MAPQ);
+		rv.setCigar(_cigar);
+		rv.setMateReferenceIndex(chr);
+		rv.setMateAlignmentStart((reverse ? fragmentstart : fragmentstart+insertsize-READLENGTH)+1);
+		rv.setInferredInsertSize(reverse ? -insertsize : insertsize);
+		rv.setReadBases(_bases);
+		rv.setBaseQualities(_qualities);
+		String barcode = _barcodes[cell];
+		rv.setAttribute("CR", barcode.substring(0, barcode.length()-2));
+		rv.setAttribute("CB", barcode);
+		return rv;
+	}
+
+	/**
+	 * Nucleosome free fragments (55%) and fragments around one (30%), two (11%) and three (4%)
+	 * nucleosomes.
+	 */
+	private int getInsertSize() {
+		double u = _r.nextDouble();
+		double rv;
+		if(u < 0.55) {
+			rv = READLENGTH-Math.log(1-_r.nextDouble())*40;
+		}
+		else if(u < 0.85) {
+			rv = 200+_r.nextGaussian()*25;
+		}
+		else if(u < 0.96) {
+			rv = 400+_r.nextGaussian()*35;
+		}
+		else {
+			rv = 600+_r.nextGaussian()*45;
+		}
+		return (int) Math.max(READLENGTH, Math.min(MAXINSERTSIZE, Math.round(rv)));
+	}
+
+	private int getPoisson(double lambda) {
+		if(lambda > 30) {
+			return (int) Math.max(0, Math.round(lambda+Math.sqrt(lambda)*_r.nextGaussian()));
+		}
+		double l = Math.exp(-lambda);
+		int rv = 0;
+		double p = _r.nextDouble();
+		while(p > l) {
+			rv++;
+			p *= _r.nextDouble();
+		}
+		return rv;
+	}
+
+	//The index of the first position >= the given one
+	private int getIndex(int[] positions, int position) {
+		int rv = Arrays.binarySearch(positions, position);
+		if(rv < 0) {
+			return -rv-1;
+		}
+		while(rv > 0 && positions[rv-1] == position) {
+			rv--;
+		}
+		return rv;
+	}
+
+	//Same columns as the cellranger singlecell.csv, use --cellidx 8
+	private void writeCells(String outfile) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outfile));
+		bw.write("barcode,total,duplicate,chimeric,unmapped,lowmapq,mitochondrial,passed_filters,cell_id,is__cell_barcode\n");
+		for(int i = 0; i < _cells; i++) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(_barcodes[i]);
+			sb.append(",0,0,0,0,0,0,");
+			sb.append(Long.toString(_cellfragments[i]));
+			sb.append(",");
+			sb.append(getCellId(i));
+			sb.append(",1\n");
+			bw.write(sb.toString());
+		}
+		bw.flush();
+		bw.close();
+	}
+
+	private void writeChromosomes(String outfile) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outfile));
+		for(int i = 0; i < Math.min(_numchromosomes, AUTOSOMES); i++) {
+			bw.write(CHROMOSOMES[i]+"\n");
+		}
+		bw.flush();
+		bw.close();
+	}
+
+	private void writeHotspots(String outfile) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outfile));
+		for(int chr = 0; chr < _numchromosomes; chr++) {
+			for(int i = 0; i < _hotspots[chr].length; i++) {
+				int start = Math.max(0, _hotspots[chr][i]-MAXINSERTSIZE/2);
+				int end = Math.min(LENGTHS[chr], _hotspots[chr][i]+HOTSPOTLENGTH+MAXINSERTSIZE/2);
+				bw.write(CHROMOSOMES[chr]+"\t"+Integer.toString(start)+"\t"+Integer.toString(end)+"\n");
+			}
+		}
+		bw.flush();
+		bw.close();
+	}
+
+	private void writeMultiplets(String outfile) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outfile));
+		bw.write("cell_id\tbarcode\n");
+		for(int i = _cells; i < _nucleuscell.length; i++) {
+			int cell = _nucleuscell[i];
+			bw.write(getCellId(cell)+"\t"+_barcodes[cell]+"\n");
+		}
+		bw.flush();
+		bw.close();
+	}
+
+	public static String getCellId(int cell) {
+		return "_cell_"+Integer.toString(cell);
+	}
+}
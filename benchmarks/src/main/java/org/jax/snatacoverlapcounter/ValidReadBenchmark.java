@@ -0,0 +1,95 @@
+package org.jax.snatacoverlapcounter;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.jax.snatacoverlapcounter.util.ValidReadSummary;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFlag;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * ValidReadSummary.isValidRead on paired reads of which the given fraction fails one of the
+ * checks, from the packed flags as in the sweep and from SAMRecords.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidReadBenchmark {
+
+	private static final int RECORDS = 4096;
+	private static final int[] INVALIDFLAGS = { SAMFlag.READ_UNMAPPED.intValue(), SAMFlag.MATE_UNMAPPED.intValue(), SAMFlag.SECONDARY_ALIGNMENT.intValue(), SAMFlag.SUPPLEMENTARY_ALIGNMENT.intValue(), SAMFlag.DUPLICATE_READ.intValue(), ValidReadSummary.REFERENCEMISMATCH };
+
+	@Param({ "0", "0.1", "0.5" })
+	public double invalidfraction;
+
+	private int[] _flags;
+	private SAMRecord[] _records;
+	private ValidReadSummary _vrs;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(SyntheticData.SEED);
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 250000000));
+		header.addSequence(new SAMSequenceRecord("chr2", 250000000));
+		_flags = new int[RECORDS];
+		_records = new SAMRecord[RECORDS];
+		for(int i = 0; i < RECORDS; i++) {
+			int flags = r.nextBoolean() ? SyntheticData.FORWARDFLAGS : SyntheticData.REVERSEFLAGS;
+			if(r.nextDouble() < invalidfraction) {
+				flags |= INVALIDFLAGS[r.nextInt(INVALIDFLAGS.length)];
+			}
+			_flags[i] = flags;
+
+			SAMRecord record = new SAMRecord(header);
+			record.setFlags(flags & ~ValidReadSummary.REFERENCEMISMATCH);
+			record.setReferenceIndex(0);
+			record.setMateReferenceIndex((flags & ValidReadSummary.REFERENCEMISMATCH) != 0 ? 1 : 0);
+			_records[i] = record;
+		}
+		_vrs = new ValidReadSummary();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public int isValidRead() {
+		int rv = 0;
+		for(int i = 0; i < RECORDS; i++) {
+			if(_vrs.isValidRead(_flags[i])) {
+				rv++;
+			}
+		}
+		return rv;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public int isValidRecord() {
+		int rv = 0;
+		for(int i = 0; i < RECORDS; i++) {
+			if(_vrs.isValidRead(_records[i])) {
+				rv++;
+			}
+		}
+		return rv;
+	}
+}
@@ -0,0 +1,136 @@
+package org.jax.snatacoverlapcounter;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Timespan;
+
+/**
+ * The JFR events of RunMetrics. This source set is compiled against jdk.jfr for Java 11, apart
+ * from the Java 8 sources, and the class is only loaded by RunMetrics if the JVM has JFR.
+ */
+public class JFRRunEvents implements RunEvents {
+
+	static {
+		FlightRecorder.addPeriodicEvent(ProgressEvent.class, new Runnable() {
+			@Override
+			public void run() {
+				RunMetrics.commitProgressEvents();
+			}
+		});
+	}
+
+	private RunEvent _runevent;
+
+	public JFRRunEvents() {
+		_runevent = new RunEvent();
+	}
+
+	@Override
+	public void begin() {
+		_runevent.begin();
+	}
+
+	@Override
+	public void end(RunMetrics metrics) {
+		_runevent.end();
+		if(_runevent.shouldCommit()) {
+			_runevent.input = metrics.getInput();
+			_runevent.records = metrics.getRecords();
+			_runevent.bytesread = metrics.getBytesRead();
+			_runevent.commit();
+		}
+		commitStageEvent(metrics, "Decode", metrics.getDecodeSeconds());
+		commitStageEvent(metrics, "Barcode lookup", metrics.getBarcodeLookupSeconds());
+		commitStageEvent(metrics, "Filter", metrics.getFilterSeconds());
+		commitStageEvent(metrics, "Sweep", metrics.getSweepSeconds());
+		commitStageEvent(metrics, "setOverlapInfo", metrics.getSetOverlapInfoSeconds());
+		commitStageEvent(metrics, "Write", metrics.getWriteSeconds());
+	}
+
+	@Override
+	public void commitProgress(RunMetrics metrics) {
+		ProgressEvent event = new ProgressEvent();
+		if(event.shouldCommit()) {
+			event.input = metrics.getInput();
+			event.records = metrics.getRecords();
+			event.bytesread = metrics.getBytesRead();
+			event.recordspersecond = metrics.getRecordsPerSecond();
+			event.heapused = metrics.getHeapUsed();
+			event.commit();
+		}
+	}
+
+	private void commitStageEvent(RunMetrics metrics, String stage, double seconds) {
+		if(Double.isNaN(seconds)) {
+			return;
+		}
+		StageEvent event = new StageEvent();
+		if(event.shouldCommit()) {
+			event.input = metrics.getInput();
+			event.stage = stage;
+			event.busytime = (long) (seconds*1e9);
+			event.commit();
+		}
+	}
+
+	@Name("org.jax.snatacoverlapcounter.Run")
+	@Label("Overlap Counter Run")
+	@Category("snATAC Overlap Counter")
+	static class RunEvent extends Event {
+
+		@Label("Input")
+		String input;
+
+		@Label("Records")
+		long records;
+
+		@Label("Bytes Read")
+		@DataAmount
+		long bytesread;
+	}
+
+	@Name("org.jax.snatacoverlapcounter.Stage")
+	@Label("Overlap Counter Stage")
+	@Category("snATAC Overlap Counter")
+	static class StageEvent extends Event {
+
+		@Label("Input")
+		String input;
+
+		@Label("Stage")
+		String stage;
+
+		@Label("Busy Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long busytime;
+	}
+
+	@Name("org.jax.snatacoverlapcounter.Progress")
+	@Label("Overlap Counter Progress")
+	@Category("snATAC Overlap Counter")
+	@Period("1 s")
+	static class ProgressEvent extends Event {
+
+		@Label("Input")
+		String input;
+
+		@Label("Records")
+		long records;
+
+		@Label("Bytes Read")
+		@DataAmount
+		long bytesread;
+
+		@Label("Records per Second")
+		double recordspersecond;
+
+		@Label("Heap Used")
+		@DataAmount
+		long heapused;
+	}
+}
@@ -0,0 +1,23 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.IOException;
+
+/**
+ * The input of the decoder stage of a ReadPipeline.
+ */
+public interface BatchReader {
+
+	/**
+	 * Adds records to the empty batch until it is full or the input ends. Returns false if there
+	 * were no more records.
+	 */
+	public boolean read(ReadBatch batch) throws IOException;
+
+	//The compressed bytes read so far, can be called from other threads
+	public long getBytesRead();
+
+	//Estimated nanoseconds spent finding the cells of the barcodes
+	public long getBarcodeLookupTime();
+
+	public void close() throws IOException;
+}
@@ -0,0 +1,334 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Iterates the rows of an Overlaps.bin file (see BinaryOverlapWriter) in place. The blocks are
+ * memory mapped in segments of at most MAXSEGMENT bytes and the getters read the current row from
+ * the mapping, so nothing is copied or allocated per row. The chromosomes and cell ids are the
+ * strings of the dictionary.
+ *
+ * The main method converts an Overlaps.bin file back to Overlaps.txt.
+ */
+public class BinaryOverlapReader {
+
+	private static final long MAXSEGMENT = 1L << 30;
+
+	private RandomAccessFile _file;
+	private FileChannel _channel;
+	private String[] _chromosomes, _cellids;
+	private long[] _blockoffsets;
+	private int[] _blockchrs, _blockstarts, _blockrows;
+	private long _dictionaryoffset;
+
+	private MappedByteBuffer _segment;
+	private long _segmentstart;
+	private int _segmentlast;
+	private int _block, _rows, _row, _rowpos, _coordinatepos;
+
+	public static void main(String[] args) {
+		if(args.length != 2) {
+			System.out.println("Usage: overlaps.bin overlaps.txt");
+			System.out.println("Converts a binary overlap file (--binaryoverlaps) to the Overlaps.txt format.");
+			System.exit(0);
+		}
+		try {
+			BinaryOverlapReader reader = new BinaryOverlapReader(args[0]);
+			reader.writeText(args[1]);
+			reader.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	//True if the file starts with the magic number of Overlaps.bin
+	public static boolean isBinaryOverlapFile(String file) throws IOException {
+		if(new File(file).length() < BinaryOverlapWriter.HEADERSIZE) {
+			return false;
+		}
+		FileInputStream in = new FileInputStream(file);
+		byte[] magic = new byte[4];
+		int read = in.read(magic);
+		in.close();
+		return read == 4 && ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == BinaryOverlapWriter.MAGIC;
+	}
+
+	public BinaryOverlapReader(String file) throws IOException {
+		_file = new RandomAccessFile(file, "r");
+		_channel = _file.getChannel();
+		long size = _channel.size();
+		if(size < BinaryOverlapWriter.HEADERSIZE+BinaryOverlapWriter.FOOTERSIZE) {
+			throw new IOException(file+" is not a binary overlap file.");
+		}
+
+		ByteBuffer header = _channel.map(FileChannel.MapMode.READ_ONLY, 0, BinaryOverlapWriter.HEADERSIZE).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer footer = _channel.map(FileChannel.MapMode.READ_ONLY, size-BinaryOverlapWriter.FOOTERSIZE, BinaryOverlapWriter.FOOTERSIZE).order(ByteOrder.LITTLE_ENDIAN);
+		if(header.getInt(0) != BinaryOverlapWriter.MAGIC || footer.getInt(16) != BinaryOverlapWriter.MAGIC) {
+			throw new IOException(file+" is not a binary overlap file or is incomplete.");
+		}
+		if(header.getInt(4) != BinaryOverlapWriter.VERSION) {
+			throw new IOException(file+" has the unsupported version "+Integer.toString(header.getInt(4))+".");
+		}
+		_dictionaryoffset = footer.getLong(0);
+		long indexoffset = footer.getLong(8);
+
+		ByteBuffer dictionary = _channel.map(FileChannel.MapMode.READ_ONLY, _dictionaryoffset, size-_dictionaryoffset).order(ByteOrder.LITTLE_ENDIAN);
+		_chromosomes = readStrings(dictionary);
+		_cellids = readStrings(dictionary);
+
+		dictionary.position((int) (indexoffset-_dictionaryoffset));
+		int blocks = dictionary.getInt();
+		_blockoffsets = new long[blocks];
+		_blockchrs = new int[blocks];
+		_blockstarts = new int[blocks];
+		_blockrows = new int[blocks];
+		for(int i = 0; i < blocks; i++) {
+			_blockoffsets[i] = dictionary.getLong();
+			_blockchrs[i] = dictionary.getInt();
+			_blockstarts[i] = dictionary.getInt();
+			_blockrows[i] = dictionary.getInt();
+		}
+		seek(0);
+	}
+
+	public void close() throws IOException {
+		_segment = null;
+		_channel.close();
+		_file.close();
+	}
+
+	public String[] getChromosomes() {
+		return _chromosomes;
+	}
+
+	public String[] getCellIds() {
+		return _cellids;
+	}
+
+	public int getBlockCount() {
+		return _blockoffsets.length;
+	}
+
+	//The chromosome index and the start of the first row of the block
+	public int getBlockChromosome(int block) {
+		return _blockchrs[block];
+	}
+
+	public int getBlockStart(int block) {
+		return _blockstarts[block];
+	}
+
+	public int getBlockRows(int block) {
+		return _blockrows[block];
+	}
+
+	//The next call of next() moves to the first row of the block
+	public void seek(int block) {
+		_block = block;
+		_rows = 0;
+		_row = 0;
+	}
+
+	//Moves to the next row, false after the last one
+	public boolean next() throws IOException {
+		if(++_row < _rows) {
+			_rowpos += BinaryOverlapWriter.ROWSIZE;
+			return true;
+		}
+		if(_block >= _blockoffsets.length) {
+			return false;
+		}
+		if(_segment == null || _blockoffsets[_block] < _segmentstart || _block > _segmentlast) {
+			mapSegment(_block);
+		}
+		int blockpos = (int) (_blockoffsets[_block]-_segmentstart);
+		_rows = _segment.getInt(blockpos);
+		_row = 0;
+		_rowpos = blockpos+BinaryOverlapWriter.BLOCKHEADERSIZE;
+		_coordinatepos = _rowpos+_rows*BinaryOverlapWriter.ROWSIZE;
+		_block++;
+		return true;
+	}
+
+	public int getChromosomeIndex() {
+		return _segment.getInt(_rowpos);
+	}
+
+	public String getChromosome() {
+		return _chromosomes[getChromosomeIndex()];
+	}
+
+	public int getStart() {
+		return _segment.getInt(_rowpos+4);
+	}
+
+	public int getEnd() {
+		return _segment.getInt(_rowpos+8);
+	}
+
+	public int getCellIndex() {
+		return _segment.getInt(_rowpos+12);
+	}
+
+	public String getCellId() {
+		return _cellids[getCellIndex()];
+	}
+
+	public int getMinOverlap() {
+		return _segment.getInt(_rowpos+16);
+	}
+
+	public int getMaxOverlap() {
+		return _segment.getInt(_rowpos+20);
+	}
+
+	//False for fragment files, the mapping qualities are then NaN and -1
+	public boolean hasMappingQuality() {
+		return !Double.isNaN(getMeanMappingQuality());
+	}
+
+	public double getMeanMappingQuality() {
+		return _segment.getDouble(_rowpos+24);
+	}
+
+	public int getMinMappingQuality() {
+		return _segment.getInt(_rowpos+32);
+	}
+
+	public int getMaxMappingQuality() {
+		return _segment.getInt(_rowpos+36);
+	}
+
+	public int getReadCount() {
+		return _segment.getInt(_rowpos+40);
+	}
+
+	/**
+	 * Decodes the starts and ends of the reads of the row into the arrays, which must hold
+	 * getReadCount() values. Returns the number of reads.
+	 */
+	public int getReads(int[] starts, int[] ends) {
+		int n = getReadCount();
+		int pos = _coordinatepos+_segment.getInt(_rowpos+44);
+		int previous = getStart();
+		for(int i = 0; i < n; i++) {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = _segment.get(pos++);
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while(b < 0);
+			starts[i] = previous+((value >>> 1) ^ -(value & 1));
+			previous = starts[i];
+
+			value = 0;
+			shift = 0;
+			do {
+				b = _segment.get(pos++);
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while(b < 0);
+			ends[i] = starts[i]+((value >>> 1) ^ -(value & 1));
+		}
+		return n;
+	}
+
+	/**
+	 * Writes all rows in the Overlaps.txt format. The text is the same as the Overlaps.txt the
+	 * binary file was written instead of.
+	 */
+	public void writeText(String file) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+		bw.write("chr\tstart\tend\tcell id\tMin Overlap Count\tMax Overlap Count\tMean Mapping Quality\tMin Mapping Quality\tMax Mapping Quality\tStarts\tEnds\n");
+
+		int[] starts = new int[64];
+		int[] ends = new int[64];
+		StringBuilder sb = new StringBuilder();
+		seek(0);
+		while(next()) {
+			int n = getReadCount();
+			if(n > starts.length) {
+				starts = new int[Math.max(n, starts.length*2)];
+				ends = new int[starts.length];
+			}
+			getReads(starts, ends);
+
+			sb.setLength(0);
+			sb.append(getChromosome());
+			sb.append("\t");
+			sb.append(getStart());
+			sb.append("\t");
+			sb.append(getEnd());
+			sb.append("\t");
+			sb.append(getCellId());
+			sb.append("\t");
+			sb.append(getMinOverlap());
+			sb.append("\t");
+			sb.append(getMaxOverlap());
+			sb.append("\t");
+			if(hasMappingQuality()) {
+				sb.append(Double.toString(getMeanMappingQuality()));
+				sb.append("\t");
+				sb.append(getMinMappingQuality());
+				sb.append("\t");
+				sb.append(getMaxMappingQuality());
+			}
+			else {
+				sb.append(".\t.\t.");
+			}
+			sb.append("\t");
+			for(int i = 0; i < n; i++) {
+				sb.append(starts[i]);
+				sb.append(',');
+			}
+			sb.append("\t");
+			for(int i = 0; i < n; i++) {
+				sb.append(ends[i]);
+				sb.append(',');
+			}
+			sb.append("\n");
+			bw.write(sb.toString());
+		}
+		bw.flush();
+		bw.close();
+	}
+
+	//Maps the block and the blocks after it that fit in a segment
+	private void mapSegment(int block) throws IOException {
+		long start = _blockoffsets[block];
+		int last = block;
+		while(last+1 < _blockoffsets.length && getBlockEnd(last+1)-start <= MAXSEGMENT) {
+			last++;
+		}
+		_segment = _channel.map(FileChannel.MapMode.READ_ONLY, start, getBlockEnd(last)-start);
+		_segment.order(ByteOrder.LITTLE_ENDIAN);
+		_segmentstart = start;
+		_segmentlast = last;
+	}
+
+	private long getBlockEnd(int block) {
+		return block+1 < _blockoffsets.length ? _blockoffsets[block+1] : _dictionaryoffset;
+	}
+
+	private String[] readStrings(ByteBuffer buffer) {
+		String[] rv = new String[buffer.getInt()];
+		for(int i = 0; i < rv.length; i++) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			rv[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return rv;
+	}
+}
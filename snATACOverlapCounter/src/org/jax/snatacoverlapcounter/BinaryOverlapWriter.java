@@ -0,0 +1,354 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Writes the Overlaps.txt rows it is given (without the header) to Overlaps.bin, a little endian
+ * binary file that BinaryOverlapReader memory maps:
+ *
+ * magic, version, rows per block
+ * blocks: row count, coordinate bytes, the fixed width rows, then the coordinate column
+ * dictionary: the chromosomes and the cell ids in order of appearance, as length and UTF-8 bytes
+ * block index: per block its offset, first chromosome, first start and row count
+ * footer: dictionary offset, block index offset, magic
+ *
+ * A row is chromosome, start, end, cell, min and max overlap, mean mapping quality (NaN without
+ * mapping qualities), min and max mapping quality, number of reads and the offset of its reads in
+ * the coordinate column. The reads are zigzag varints, each start is the difference to the previous
+ * start (the first to the start of the row) and each end the difference to its start.
+ *
+ * The rows are parsed from the text, so everything that writes Overlaps.txt can write Overlaps.bin.
+ */
+public class BinaryOverlapWriter extends Writer {
+
+	static final int MAGIC = 0x564f4d41;
+	static final int VERSION = 1;
+	static final int BLOCKROWS = 4096;
+	static final int ROWSIZE = 48;
+	static final int HEADERSIZE = 12;
+	static final int BLOCKHEADERSIZE = 8;
+	static final int FOOTERSIZE = 20;
+
+	private FileOutputStream _out;
+	private FileChannel _channel;
+	private ByteBuffer _rows, _coordinates, _header;
+	private int _rowcount;
+	private StringBuilder _line;
+	private int[] _tabs;
+
+	private HashMap<String, Integer> _chrindices, _cellindices;
+	private ArrayList<String> _chromosomes, _cellids;
+	private String _lastchr, _lastcell;
+	private int _lastchridx, _lastcellidx;
+
+	private long[] _blockoffsets;
+	private int[] _blockchrs, _blockstarts, _blockrows;
+	private int _blockcount;
+
+	public BinaryOverlapWriter(String file) throws IOException {
+		_out = new FileOutputStream(file);
+		_channel = _out.getChannel();
+		_rows = ByteBuffer.allocate(BLOCKROWS*ROWSIZE).order(ByteOrder.LITTLE_ENDIAN);
+		_coordinates = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		_header = ByteBuffer.allocate(HEADERSIZE).order(ByteOrder.LITTLE_ENDIAN);
+		_rowcount = 0;
+		_line = new StringBuilder();
+		_tabs = new int[10];
+		_chrindices = new HashMap<String, Integer>();
+		_cellindices = new HashMap<String, Integer>();
+		_chromosomes = new ArrayList<String>();
+		_cellids = new ArrayList<String>();
+		_lastchridx = -1;
+		_lastcellidx = -1;
+		_blockoffsets = new long[64];
+		_blockchrs = new int[64];
+		_blockstarts = new int[64];
+		_blockrows = new int[64];
+		_blockcount = 0;
+
+		_header.putInt(MAGIC);
+		_header.putInt(VERSION);
+		_header.putInt(BLOCKROWS);
+		writeBuffer(_header);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		for(int i = off; i < off+len; i++) {
+			char c = cbuf[i];
+			if(c == '\n') {
+				addRow();
+				_line.setLength(0);
+			}
+			else {
+				_line.append(c);
+			}
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		for(int i = off; i < off+len; i++) {
+			char c = str.charAt(i);
+			if(c == '\n') {
+				addRow();
+				_line.setLength(0);
+			}
+			else {
+				_line.append(c);
+			}
+		}
+	}
+
+	//The rows are only written in whole blocks
+	@Override
+	public void flush() throws IOException {
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(_channel == null) {
+			return;
+		}
+		if(_line.length() > 0) {
+			addRow();
+			_line.setLength(0);
+		}
+		writeBlock();
+
+		long dictionaryoffset = _channel.position();
+		writeStrings(_chromosomes);
+		writeStrings(_cellids);
+
+		long indexoffset = _channel.position();
+		ByteBuffer index = ByteBuffer.allocate(4+_blockcount*20+FOOTERSIZE).order(ByteOrder.LITTLE_ENDIAN);
+		index.putInt(_blockcount);
+		for(int i = 0; i < _blockcount; i++) {
+			index.putLong(_blockoffsets[i]);
+			index.putInt(_blockchrs[i]);
+			index.putInt(_blockstarts[i]);
+			index.putInt(_blockrows[i]);
+		}
+		index.putLong(dictionaryoffset);
+		index.putLong(indexoffset);
+		index.putInt(MAGIC);
+		writeBuffer(index);
+
+		_channel.close();
+		_out.close();
+		_channel = null;
+	}
+
+	//chr, start, end, cell id, min overlap, max overlap, mean, min and max mapping quality, starts, ends
+	private void addRow() throws IOException {
+		int[] tabs = _tabs;
+		int t = 0;
+		for(int i = 0; i < _line.length() && t < tabs.length; i++) {
+			if(_line.charAt(i) == '\t') {
+				tabs[t++] = i;
+			}
+		}
+		if(t != tabs.length) {
+			throw new IOException("Not an overlap line: "+_line.toString());
+		}
+
+		int chr = getChromosomeIndex(0, tabs[0]);
+		int start = parseInt(tabs[0]+1, tabs[1]);
+		int cell = getCellIndex(tabs[2]+1, tabs[3]);
+		if(_rowcount == 0) {
+			addBlock(chr, start);
+		}
+
+		int row = _rowcount*ROWSIZE;
+		_rows.putInt(row, chr);
+		_rows.putInt(row+4, start);
+		_rows.putInt(row+8, parseInt(tabs[1]+1, tabs[2]));
+		_rows.putInt(row+12, cell);
+		_rows.putInt(row+16, parseInt(tabs[3]+1, tabs[4]));
+		_rows.putInt(row+20, parseInt(tabs[4]+1, tabs[5]));
+		if(_line.charAt(tabs[5]+1) == '.') {
+			_rows.putDouble(row+24, Double.NaN);
+			_rows.putInt(row+32, -1);
+			_rows.putInt(row+36, -1);
+		}
+		else {
+			_rows.putDouble(row+24, Double.parseDouble(_line.substring(tabs[5]+1, tabs[6])));
+			_rows.putInt(row+32, parseInt(tabs[6]+1, tabs[7]));
+			_rows.putInt(row+36, parseInt(tabs[7]+1, tabs[8]));
+		}
+		_rows.putInt(row+44, _coordinates.position());
+
+		//The starts and ends lists have the same length and a trailing comma
+		int reads = 0;
+		int previous = start;
+		int startpos = tabs[8]+1;
+		int endpos = tabs[9]+1;
+		while(startpos < tabs[9]) {
+			int startcomma = indexOf(',', startpos, tabs[9]);
+			int endcomma = indexOf(',', endpos, _line.length());
+			if(endpos >= _line.length()) {
+				throw new IOException("The starts and ends differ in length: "+_line.toString());
+			}
+			int readstart = parseInt(startpos, startcomma);
+			int readend = parseInt(endpos, endcomma);
+			putVarint(readstart-previous);
+			putVarint(readend-readstart);
+			previous = readstart;
+			reads++;
+			startpos = startcomma+1;
+			endpos = endcomma+1;
+		}
+		_rows.putInt(row+40, reads);
+
+		_rowcount++;
+		if(_rowcount == BLOCKROWS) {
+			writeBlock();
+		}
+	}
+
+	private void addBlock(int chr, int start) throws IOException {
+		if(_blockcount == _blockoffsets.length) {
+			int size = _blockcount*2;
+			_blockoffsets = Arrays.copyOf(_blockoffsets, size);
+			_blockchrs = Arrays.copyOf(_blockchrs, size);
+			_blockstarts = Arrays.copyOf(_blockstarts, size);
+			_blockrows = Arrays.copyOf(_blockrows, size);
+		}
+		_blockoffsets[_blockcount] = _channel.position();
+		_blockchrs[_blockcount] = chr;
+		_blockstarts[_blockcount] = start;
+		_blockcount++;
+	}
+
+	private void writeBlock() throws IOException {
+		if(_rowcount == 0) {
+			return;
+		}
+		_blockrows[_blockcount-1] = _rowcount;
+		_header.clear();
+		_header.putInt(_rowcount);
+		_header.putInt(_coordinates.position());
+		writeBuffer(_header);
+
+		//The rows are put at absolute positions
+		_rows.position(_rowcount*ROWSIZE);
+		writeBuffer(_rows);
+		writeBuffer(_coordinates);
+		_coordinates.clear();
+		_rowcount = 0;
+	}
+
+	//Writes the buffer from 0 to its position and clears it
+	private void writeBuffer(ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			_channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void writeStrings(ArrayList<String> strings) throws IOException {
+		int size = 4;
+		byte[][] bytes = new byte[strings.size()][];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+			size += 4+bytes[i].length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(bytes.length);
+		for(int i = 0; i < bytes.length; i++) {
+			buffer.putInt(bytes[i].length);
+			buffer.put(bytes[i]);
+		}
+		writeBuffer(buffer);
+	}
+
+	private void putVarint(int value) {
+		if(_coordinates.remaining() < 5) {
+			ByteBuffer grown = ByteBuffer.allocate(_coordinates.capacity()*2).order(ByteOrder.LITTLE_ENDIAN);
+			_coordinates.flip();
+			grown.put(_coordinates);
+			_coordinates = grown;
+		}
+		int zigzag = (value << 1) ^ (value >> 31);
+		while((zigzag & ~0x7f) != 0) {
+			_coordinates.put((byte) ((zigzag & 0x7f) | 0x80));
+			zigzag >>>= 7;
+		}
+		_coordinates.put((byte) zigzag);
+	}
+
+	//Consecutive rows mostly share the chromosome and the cell, so only a change is looked up
+	private int getChromosomeIndex(int from, int to) {
+		if(_lastchr == null || !matches(_lastchr, from, to)) {
+			_lastchr = _line.substring(from, to);
+			_lastchridx = getIndex(_lastchr, _chrindices, _chromosomes);
+		}
+		return _lastchridx;
+	}
+
+	private int getCellIndex(int from, int to) {
+		if(_lastcell == null || !matches(_lastcell, from, to)) {
+			_lastcell = _line.substring(from, to);
+			_lastcellidx = getIndex(_lastcell, _cellindices, _cellids);
+		}
+		return _lastcellidx;
+	}
+
+	private int getIndex(String value, HashMap<String, Integer> indices, ArrayList<String> values) {
+		Integer rv = indices.get(value);
+		if(rv == null) {
+			rv = values.size();
+			indices.put(value, rv);
+			values.add(value);
+		}
+		return rv;
+	}
+
+	private boolean matches(String value, int from, int to) {
+		if(value.length() != to-from) {
+			return false;
+		}
+		for(int i = 0; i < value.length(); i++) {
+			if(value.charAt(i) != _line.charAt(from+i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int indexOf(char c, int from, int to) {
+		for(int i = from; i < to; i++) {
+			if(_line.charAt(i) == c) {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	private int parseInt(int from, int to) throws IOException {
+		boolean negative = from < to && _line.charAt(from) == '-';
+		int i = negative ? from+1 : from;
+		if(i == to) {
+			throw new IOException("Not a number in overlap line: "+_line.toString());
+		}
+		int rv = 0;
+		for(; i < to; i++) {
+			char c = _line.charAt(i);
+			if(c < '0' || c > '9') {
+				throw new IOException("Not a number in overlap line: "+_line.toString());
+			}
+			rv = rv*10+(c-'0');
+		}
+		return negative ? -rv : rv;
+	}
+}
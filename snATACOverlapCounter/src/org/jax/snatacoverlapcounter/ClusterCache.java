@@ -0,0 +1,419 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The read clusters of a run, so that a run with other overlap thresholds can replay them
+ * instead of reading the input again. Every cluster of two or more reads is saved when it is
+ * written, in the order of the output, together with the counts of the run.
+ *
+ * The cache of an input is the subdirectory of the cache directory named after the hash of its
+ * key, the fingerprint of the input and the parameters that decide which reads form the clusters
+ * (see OverlapCounter.getClusterCacheKey). It holds:
+ *
+ * Key.txt: the key, a cache is only used if the key is the same
+ * Cache.txt: the reference names, whether there were mapping qualities and whether the totals are approximate
+ * Counts.txt: the counts of the run, see OverlapSweep.writeCounts
+ * Clusters.bin: little endian magic and version, then one section of clusters per chromosome
+ * change. A cluster is the cell and the number of reads as varints, then per read the zigzag
+ * varint difference of its start to the previous start, the zigzag varint length and the mapping
+ * quality byte. The section index (offset, cluster count and chromosome of each section) and the
+ * footer (index offset, magic) follow the sections.
+ *
+ * A cache is written to a temporary directory that is renamed when it is complete.
+ */
+public class ClusterCache {
+
+	static final int MAGIC = 0x43434f41;
+	static final int VERSION = 1;
+	private static final int FOOTERSIZE = 12;
+	private static final int FINGERPRINTBYTES = 1 << 20;
+
+	private File _dir;
+	private String _key;
+
+	private File _tmpdir;
+	private FileOutputStream _out;
+	private FileChannel _channel;
+	private ByteBuffer _buffer;
+	private ArrayList<String> _sectionchrs;
+	private long[] _sectionoffsets;
+	private int[] _sectionclusters;
+	private int _sectioncount;
+
+	public ClusterCache(String directory, String key) throws IOException {
+		_dir = new File(directory, getHash(key));
+		_key = key;
+	}
+
+	public String getDirectory() {
+		return _dir.getPath();
+	}
+
+	/**
+	 * The size, modification time and a checksum of the start and the end of a file, which
+	 * change when the file is replaced.
+	 */
+	public static String getFingerprint(String file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		long size = raf.length();
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[65536];
+		updateChecksum(crc, raf, 0, Math.min(size, FINGERPRINTBYTES), buffer);
+		long tailstart = Math.max(Math.min(size, FINGERPRINTBYTES), size-FINGERPRINTBYTES);
+		updateChecksum(crc, raf, tailstart, size-tailstart, buffer);
+		raf.close();
+		return Long.toString(size)+","+Long.toString(new File(file).lastModified())+","+Long.toHexString(crc.getValue());
+	}
+
+	//The checksum of a whole (small) file, for the barcode map, the chromosome list and the region filter
+	public static String getChecksum(String file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		CRC32 crc = new CRC32();
+		updateChecksum(crc, raf, 0, raf.length(), new byte[65536]);
+		raf.close();
+		return Long.toHexString(crc.getValue());
+	}
+
+	private static void updateChecksum(CRC32 crc, RandomAccessFile raf, long start, long length, byte[] buffer) throws IOException {
+		raf.seek(start);
+		long remaining = length;
+		while(remaining > 0) {
+			int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if(read < 0) {
+				break;
+			}
+			crc.update(buffer, 0, read);
+			remaining -= read;
+		}
+	}
+
+	private static String getHash(String key) throws IOException {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < 8; i++) {
+				sb.append(Integer.toHexString((digest[i] >> 4) & 0xf));
+				sb.append(Integer.toHexString(digest[i] & 0xf));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	//True if the cache is complete and has the key
+	public boolean exists() throws IOException {
+		File keyfile = new File(_dir, "Key.txt");
+		if(!keyfile.exists() || !new File(_dir, "Clusters.bin").exists()) {
+			return false;
+		}
+		return _key.equals(readFile(keyfile));
+	}
+
+	//Starts writing the cache, the sweep adds the clusters
+	public void create() throws IOException {
+		_tmpdir = new File(_dir.getPath()+"-tmp");
+		_tmpdir.mkdirs();
+		_out = new FileOutputStream(new File(_tmpdir, "Clusters.bin"));
+		_channel = _out.getChannel();
+		_buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		_sectionchrs = new ArrayList<String>();
+		_sectionoffsets = new long[64];
+		_sectionclusters = new int[64];
+		_sectioncount = 0;
+		_buffer.putInt(MAGIC);
+		_buffer.putInt(VERSION);
+	}
+
+	//The clusters added after this were written on the chromosome
+	public void setChromosome(String chr) throws IOException {
+		if(_sectioncount == _sectionoffsets.length) {
+			_sectionoffsets = Arrays.copyOf(_sectionoffsets, _sectioncount*2);
+			_sectionclusters = Arrays.copyOf(_sectionclusters, _sectioncount*2);
+		}
+		_sectionoffsets[_sectioncount] = _channel.position()+_buffer.position();
+		_sectionclusters[_sectioncount] = 0;
+		_sectionchrs.add(chr);
+		_sectioncount++;
+	}
+
+	public void add(int cellidx, ReadCluster cluster) throws IOException {
+		int n = cluster.size();
+		int[] starts = cluster.getStarts();
+		int[] ends = cluster.getEnds();
+		int[] mapq = cluster.getMappingQualities();
+		ensureRemaining(10);
+		putVarint(cellidx);
+		putVarint(n);
+		int previous = 0;
+		for(int i = 0; i < n; i++) {
+			ensureRemaining(11);
+			putVarint(zigzag(starts[i]-previous));
+			putVarint(zigzag(ends[i]-starts[i]));
+			_buffer.put((byte) mapq[i]);
+			previous = starts[i];
+		}
+		_sectionclusters[_sectioncount-1]++;
+	}
+
+	/**
+	 * Writes the index and the counts of the finished sweep and makes the cache available. The
+	 * sweep must have seen a chromosome.
+	 */
+	public void finish(OverlapSweep sweep, boolean approximate) throws IOException {
+		long indexoffset = _channel.position()+_buffer.position();
+		ensureRemaining(4);
+		_buffer.putInt(_sectioncount);
+		for(int i = 0; i < _sectioncount; i++) {
+			byte[] chr = _sectionchrs.get(i).getBytes(StandardCharsets.UTF_8);
+			ensureRemaining(16+chr.length);
+			_buffer.putLong(_sectionoffsets[i]);
+			_buffer.putInt(_sectionclusters[i]);
+			_buffer.putInt(chr.length);
+			_buffer.put(chr);
+		}
+		ensureRemaining(FOOTERSIZE);
+		_buffer.putLong(indexoffset);
+		_buffer.putInt(MAGIC);
+		writeBuffer();
+		_channel.close();
+		_out.close();
+
+		BufferedWriter bw = new BufferedWriter(new FileWriter(new File(_tmpdir, "Counts.txt")));
+		sweep.writeCounts(bw);
+		bw.flush();
+		bw.close();
+
+		String[] refnames = sweep.getReferenceNames();
+		StringBuilder sb = new StringBuilder();
+		sb.append("references\t");
+		for(int i = 0; i < refnames.length; i++) {
+			if(i > 0) {
+				sb.append(",");
+			}
+			sb.append(refnames[i]);
+		}
+		sb.append("\nmappingquality\t");
+		sb.append(Boolean.toString(sweep.hasMappingQuality()));
+		sb.append("\napproximate\t");
+		sb.append(Boolean.toString(approximate));
+		sb.append("\n");
+		writeFile(new File(_tmpdir, "Cache.txt"), sb.toString());
+		//Written last, the cache is complete with it
+		writeFile(new File(_tmpdir, "Key.txt"), _key);
+
+		deleteDirectory(_dir);
+		if(!_tmpdir.renameTo(_dir)) {
+			throw new IOException("Could not move the cluster cache to "+_dir.getPath()+".");
+		}
+	}
+
+	//The reference names of the cached run, for the sweep that replays it
+	public String[] getReferenceNames() throws IOException {
+		String references = getInfo("references");
+		return references.length() == 0 ? new String[0] : references.split(",");
+	}
+
+	public boolean hasMappingQuality() throws IOException {
+		return Boolean.parseBoolean(getInfo("mappingquality"));
+	}
+
+	public boolean isApproximate() throws IOException {
+		return Boolean.parseBoolean(getInfo("approximate"));
+	}
+
+	public long getSize() {
+		return new File(_dir, "Clusters.bin").length();
+	}
+
+	/**
+	 * Adds the cached counts to the sweep and replays the clusters through it, which finds and
+	 * writes their overlaps with the thresholds of the sweep.
+	 */
+	public void replay(OverlapSweep sweep) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(new File(_dir, "Counts.txt")));
+		sweep.addCounts(br, false);
+		br.close();
+
+		RandomAccessFile file = new RandomAccessFile(new File(_dir, "Clusters.bin"), "r");
+		FileChannel channel = file.getChannel();
+		long size = channel.size();
+		ByteBuffer footer = ByteBuffer.allocate(FOOTERSIZE).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, footer, size-FOOTERSIZE);
+		if(footer.getInt(8) != MAGIC) {
+			file.close();
+			throw new IOException(_dir.getPath()+" is not a complete cluster cache.");
+		}
+		long indexoffset = footer.getLong(0);
+		ByteBuffer index = ByteBuffer.allocate((int) (size-FOOTERSIZE-indexoffset)).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, index, indexoffset);
+		int sections = index.getInt();
+
+		_buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		_buffer.limit(0);
+		_channel = channel;
+		ReadCluster cluster = new ReadCluster();
+		for(int i = 0; i < sections; i++) {
+			long offset = index.getLong();
+			int clusters = index.getInt();
+			byte[] chr = new byte[index.getInt()];
+			index.get(chr);
+			sweep.replayChromosome(new String(chr, StandardCharsets.UTF_8));
+
+			_channel.position(offset);
+			_buffer.limit(0);
+			for(int j = 0; j < clusters; j++) {
+				int cellidx = getVarint();
+				int n = getVarint();
+				cluster.clear();
+				int previous = 0;
+				for(int k = 0; k < n; k++) {
+					int start = previous+unzigzag(getVarint());
+					int end = start+unzigzag(getVarint());
+					cluster.add(start, end, getByte() & 0xff);
+					previous = start;
+				}
+				sweep.replayCluster(cellidx, cluster);
+			}
+		}
+		_channel = null;
+		file.close();
+	}
+
+	private int getVarint() throws IOException {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = getByte();
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while(b < 0);
+		return value;
+	}
+
+	private byte getByte() throws IOException {
+		if(!_buffer.hasRemaining()) {
+			_buffer.clear();
+			if(_channel.read(_buffer) <= 0) {
+				throw new IOException("Unexpected end of the cluster cache "+_dir.getPath()+".");
+			}
+			_buffer.flip();
+		}
+		return _buffer.get();
+	}
+
+	private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		long pos = position;
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, pos);
+			if(read < 0) {
+				throw new IOException("Unexpected end of the cluster cache "+_dir.getPath()+".");
+			}
+			pos += read;
+		}
+		buffer.flip();
+	}
+
+	private int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private void putVarint(int value) {
+		while((value & ~0x7f) != 0) {
+			_buffer.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		_buffer.put((byte) value);
+	}
+
+	//Writes the buffer out if it has less than length bytes left
+	private void ensureRemaining(int length) throws IOException {
+		if(_buffer.remaining() < length) {
+			writeBuffer();
+			if(_buffer.capacity() < length) {
+				_buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		_buffer.flip();
+		while(_buffer.hasRemaining()) {
+			_channel.write(_buffer);
+		}
+		_buffer.clear();
+	}
+
+	private String getInfo(String name) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(new File(_dir, "Cache.txt")));
+		String line;
+		try {
+			while((line = br.readLine()) != null) {
+				String[] split = line.split("\t", 2);
+				if(split[0].equals(name)) {
+					return split.length > 1 ? split[1] : "";
+				}
+			}
+		}
+		finally {
+			br.close();
+		}
+		throw new IOException("The cluster cache "+_dir.getPath()+" has no "+name+".");
+	}
+
+	private String readFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		byte[] bytes = new byte[(int) file.length()];
+		int read = 0;
+		while(read < bytes.length) {
+			int r = in.read(bytes, read, bytes.length-read);
+			if(r < 0) {
+				break;
+			}
+			read += r;
+		}
+		in.close();
+		return new String(bytes, 0, read, StandardCharsets.UTF_8);
+	}
+
+	private void writeFile(File file, String value) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+		bw.write(value);
+		bw.flush();
+		bw.close();
+	}
+
+	private void deleteDirectory(File dir) {
+		File[] files = dir.listFiles();
+		if(files == null) {
+			return;
+		}
+		for(int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+}
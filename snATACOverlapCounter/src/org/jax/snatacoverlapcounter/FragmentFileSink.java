@@ -0,0 +1,109 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.jax.snatacoverlapcounter.util.CellIndex;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+
+/**
+ * Writes the reads of a sweep as a bgzipped 10x style fragment file (chr, start, end, cell id,
+ * count) with its tabix index. The reads of a cell with the same start and end are written once,
+ * the count is their number. The fragment file can be read again with start and end
+ * corrections of 0.
+ */
+public class FragmentFileSink implements ReadSink {
+
+	private String _file;
+	private CellIndex _cells;
+	private BlockCompressedOutputStream _out;
+	private TabixIndexCreator _indexcreator;
+	private StringBuilder _sb;
+
+	//The reads at the current start, as end << 32 | cell
+	private String _curchr;
+	private int _curstart;
+	private long[] _pending;
+	private int _pendingcount;
+
+	public FragmentFileSink(String file, CellIndex cells) {
+		_file = file;
+		_cells = cells;
+		_out = new BlockCompressedOutputStream(new File(file));
+		_indexcreator = new TabixIndexCreator(TabixFormat.BED);
+		_sb = new StringBuilder();
+		_curchr = null;
+		_curstart = Integer.MIN_VALUE;
+		_pending = new long[16];
+		_pendingcount = 0;
+	}
+
+	@Override
+	public void setChromosome(String chr) throws IOException {
+		flush();
+		_curchr = chr;
+		_curstart = Integer.MIN_VALUE;
+	}
+
+	@Override
+	public void add(int cellidx, int start, int end) throws IOException {
+		if(start != _curstart) {
+			flush();
+			_curstart = start;
+		}
+		if(_pendingcount == _pending.length) {
+			_pending = Arrays.copyOf(_pending, _pending.length*2);
+		}
+		_pending[_pendingcount++] = ((long) end << 32) | cellidx;
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		_out.flush();
+		long end = _out.getFilePointer();
+		_out.close();
+		_indexcreator.finalizeIndex(end).write(new File(_file+".tbi").toPath());
+	}
+
+	//Writes the reads at the current start in end and cell order
+	private void flush() throws IOException {
+		if(_pendingcount == 0) {
+			return;
+		}
+		Arrays.sort(_pending, 0, _pendingcount);
+		int i = 0;
+		while(i < _pendingcount) {
+			long key = _pending[i];
+			int count = 1;
+			while(i+count < _pendingcount && _pending[i+count] == key) {
+				count++;
+			}
+			i += count;
+
+			int end = (int) (key >>> 32);
+			_sb.setLength(0);
+			_sb.append(_curchr);
+			_sb.append("\t");
+			_sb.append(_curstart);
+			_sb.append("\t");
+			_sb.append(end);
+			_sb.append("\t");
+			_sb.append(_cells.getCellId((int) key));
+			_sb.append("\t");
+			_sb.append(count);
+			_sb.append("\n");
+
+			//Tabix features are 1-based
+			_indexcreator.addFeature(new SimpleFeature(_curchr, _curstart+1, end), _out.getFilePointer());
+			_out.write(_sb.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		_pendingcount = 0;
+	}
+}
@@ -0,0 +1,229 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+
+import org.jax.snatacoverlapcounter.util.CellIndex;
+import org.jax.snatacoverlapcounter.util.CountingInputStream;
+import org.jax.snatacoverlapcounter.util.ParallelBGZFInputStream;
+import org.jax.snatacoverlapcounter.util.SampledTimer;
+
+/**
+ * Reads a 10x style fragment file (chr, start, end, barcode, ...) into an OverlapSweep. Lines are
+ * parsed straight from the byte buffer. Only a new chromosome name is turned into a String,
+ * barcodes are resolved through the byte lookup of the CellIndex.
+ */
+public class FragmentReader {
+
+	private static final int BUFFERSIZE = 1 << 20;
+
+	private CellIndex _cells;
+	private TreeSet<String> _chromosomes;
+	private HashMap<String, Integer> _refindices;
+	private ArrayList<String> _refnames;
+	private boolean[] _inchromosomes;
+	private byte[] _curchr;
+	private int _currefindex;
+	private int _lines;
+	private CountingInputStream _counter;
+	private SampledTimer _lookuptimer, _processtimer;
+
+	public FragmentReader(CellIndex cells, TreeSet<String> chromosomes) {
+		_cells = cells;
+		_chromosomes = chromosomes;
+		_refindices = new HashMap<String, Integer>();
+		_refnames = new ArrayList<String>();
+		_inchromosomes = new boolean[0];
+		_curchr = new byte[0];
+		_currefindex = -1;
+		_lines = 0;
+		_lookuptimer = new SampledTimer();
+		_processtimer = new SampledTimer();
+	}
+
+	public static boolean isFragmentFile(String file) {
+		return file.endsWith(".tsv") || file.endsWith(".txt") || file.endsWith(".tsv.gz") || file.endsWith(".txt.gz");
+	}
+
+	/**
+	 * BGZF compressed files are inflated on the given number of threads, other gzip files
+	 * on a single thread.
+	 */
+	public void read(String file, int threads, OverlapSweep sweep) throws IOException {
+		_counter = new CountingInputStream(new FileInputStream(file));
+		InputStream in = new BufferedInputStream(_counter, BUFFERSIZE);
+		if(file.endsWith(".gz")) {
+			if(threads > 1 && ParallelBGZFInputStream.isBGZF(in)) {
+				in = new ParallelBGZFInputStream(in, threads);
+			}
+			else {
+				in = new GZIPInputStream(in, BUFFERSIZE);
+			}
+		}
+
+		sweep.setMappingQualityReported(false);
+		try {
+			byte[] buf = new byte[BUFFERSIZE];
+			int start = 0;
+			int end = 0;
+			while(true) {
+				int n = in.read(buf, end, buf.length-end);
+				if(n < 0) {
+					break;
+				}
+				end += n;
+
+				int linestart = 0;
+				for(int i = start; i < end; i++) {
+					if(buf[i] == '\n') {
+						processLine(buf, linestart, i, sweep);
+						linestart = i+1;
+					}
+				}
+
+				//Keep the partial line at the start of the buffer
+				int remaining = end-linestart;
+				if(remaining == buf.length) {
+					buf = Arrays.copyOf(buf, buf.length*2);
+				}
+				else {
+					System.arraycopy(buf, linestart, buf, 0, remaining);
+				}
+				start = remaining;
+				end = remaining;
+			}
+			if(end > 0) {
+				processLine(buf, 0, end, sweep);
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private void processLine(byte[] buf, int off, int end, OverlapSweep sweep) throws IOException {
+		if(end > off && buf[end-1] == '\r') {
+			end--;
+		}
+		int i = off;
+		while(i < end && (buf[i] == ' ' || buf[i] == '\t')) {
+			i++;
+		}
+		if(i == end || buf[i] == '#') {
+			return;
+		}
+
+		if(_lines % 10000000 == 0) {
+			System.out.println(Integer.toString(_lines));
+		}
+		_lines++;
+
+		int chrend = nextTab(buf, off, end);
+		int startend = nextTab(buf, chrend+1, end);
+		int endend = nextTab(buf, startend+1, end);
+		int barcodeend = endend+1;
+		while(barcodeend < end && buf[barcodeend] != '\t') {
+			barcodeend++;
+		}
+		if(endend >= end) {
+			throw new IOException("Fragment line has fewer than 4 columns: "+new String(buf, off, end-off, StandardCharsets.UTF_8));
+		}
+
+		int refindex = getReferenceIndex(buf, off, chrend-off, sweep);
+		int fragmentstart = parseInt(buf, chrend+1, startend);
+		int fragmentend = parseInt(buf, startend+1, endend);
+		boolean timed = _lookuptimer.start();
+		int cellidx = _cells.getCellIndex(buf, endend+1, barcodeend-endend-1);
+		if(timed) {
+			_lookuptimer.stop();
+		}
+
+		timed = _processtimer.start();
+		sweep.processFragment(refindex, fragmentstart, fragmentend, cellidx);
+		if(timed) {
+			_processtimer.stop();
+		}
+	}
+
+	//The compressed bytes read so far, 0 before read
+	public long getBytesRead() {
+		return _counter == null ? 0 : _counter.getCount();
+	}
+
+	//Estimated nanoseconds spent finding the cells of the barcodes
+	public long getBarcodeLookupTime() {
+		return _lookuptimer.getTime();
+	}
+
+	//Estimated nanoseconds spent in the sweep, including finding the overlaps
+	public long getSweepTime() {
+		return _processtimer.getTime();
+	}
+
+	//Returns the index of the next tab, or end if there is none
+	private int nextTab(byte[] buf, int off, int end) {
+		int i = off;
+		while(i < end && buf[i] != '\t') {
+			i++;
+		}
+		return i;
+	}
+
+	private int getReferenceIndex(byte[] buf, int off, int len, OverlapSweep sweep) {
+		if(len == _curchr.length && equals(_curchr, buf, off)) {
+			return _currefindex;
+		}
+
+		String chr = new String(buf, off, len, StandardCharsets.UTF_8);
+		Integer refindex = _refindices.get(chr);
+		if(refindex == null) {
+			refindex = _refnames.size();
+			_refindices.put(chr, refindex);
+			_refnames.add(chr);
+			_inchromosomes = Arrays.copyOf(_inchromosomes, _refnames.size());
+			_inchromosomes[refindex] = _chromosomes.contains(chr);
+			sweep.setReferences(_refnames.toArray(new String[0]), _inchromosomes);
+		}
+		_curchr = Arrays.copyOfRange(buf, off, off+len);
+		_currefindex = refindex;
+		return refindex;
+	}
+
+	private boolean equals(byte[] chr, byte[] buf, int off) {
+		for(int i = 0; i < chr.length; i++) {
+			if(chr[i] != buf[off+i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int parseInt(byte[] buf, int off, int end) throws IOException {
+		if(off >= end) {
+			throw new IOException("Missing fragment position.");
+		}
+		boolean negative = buf[off] == '-';
+		int i = negative ? off+1 : off;
+		long rv = 0;
+		for(; i < end; i++) {
+			int digit = buf[i]-'0';
+			if(digit < 0 || digit > 9 || rv > Integer.MAX_VALUE) {
+				throw new IOException("Invalid fragment position: "+new String(buf, off, end-off, StandardCharsets.UTF_8));
+			}
+			rv = rv*10+digit;
+		}
+		if(rv > Integer.MAX_VALUE || (negative && i == off+1)) {
+			throw new IOException("Invalid fragment position: "+new String(buf, off, end-off, StandardCharsets.UTF_8));
+		}
+		return (int) (negative ? -rv : rv);
+	}
+
+}
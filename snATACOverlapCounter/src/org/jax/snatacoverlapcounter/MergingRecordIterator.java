@@ -0,0 +1,119 @@
+package org.jax.snatacoverlapcounter;
+
+import java.util.NoSuchElementException;
+
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+
+/**
+ * Merges coordinate sorted iterators into one in coordinate order, the same order as the merged
+ * BAM file. A binary heap holds the iterators keyed on the reference index and position of their
+ * next record, the records without a reference come last. Records at the same position are taken
+ * in the order of the iterators.
+ */
+public class MergingRecordIterator implements SAMRecordIterator {
+
+	private SAMRecordIterator[] _its;
+	private SAMRecord[] _next;
+	private long[] _keys;
+	private int[] _heap;
+	private int _size;
+
+	public MergingRecordIterator(SAMRecordIterator[] its) {
+		_its = its;
+		_next = new SAMRecord[its.length];
+		_keys = new long[its.length];
+		_heap = new int[its.length];
+		_size = 0;
+		for(int i = 0; i < its.length; i++) {
+			if(its[i].hasNext()) {
+				setNext(i);
+				_heap[_size++] = i;
+				siftUp(_size-1);
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return _size > 0;
+	}
+
+	@Override
+	public SAMRecord next() {
+		if(_size == 0) {
+			throw new NoSuchElementException();
+		}
+		int top = _heap[0];
+		SAMRecord rv = _next[top];
+		if(_its[top].hasNext()) {
+			setNext(top);
+		}
+		else {
+			_next[top] = null;
+			_heap[0] = _heap[--_size];
+		}
+		if(_size > 0) {
+			siftDown(0);
+		}
+		return rv;
+	}
+
+	@Override
+	public void close() {
+		for(int i = 0; i < _its.length; i++) {
+			_its[i].close();
+		}
+	}
+
+	//The inputs are checked to be coordinate sorted before they are merged
+	@Override
+	public SAMRecordIterator assertSorted(SortOrder sortorder) {
+		return this;
+	}
+
+	private void setNext(int it) {
+		SAMRecord next = _its[it].next();
+		int refindex = next.getReferenceIndex();
+		long ref = refindex < 0 ? Integer.MAX_VALUE : refindex;
+		_next[it] = next;
+		_keys[it] = (ref << 32) | (next.getAlignmentStart() & 0xffffffffL);
+	}
+
+	private boolean isBefore(int a, int b) {
+		return _keys[a] < _keys[b] || (_keys[a] == _keys[b] && a < b);
+	}
+
+	private void siftUp(int pos) {
+		int it = _heap[pos];
+		while(pos > 0) {
+			int parent = (pos-1) >>> 1;
+			if(!isBefore(it, _heap[parent])) {
+				break;
+			}
+			_heap[pos] = _heap[parent];
+			pos = parent;
+		}
+		_heap[pos] = it;
+	}
+
+	private void siftDown(int pos) {
+		int it = _heap[pos];
+		while(true) {
+			int child = 2*pos+1;
+			if(child >= _size) {
+				break;
+			}
+			if(child+1 < _size && isBefore(_heap[child+1], _heap[child])) {
+				child++;
+			}
+			if(!isBefore(_heap[child], it)) {
+				break;
+			}
+			_heap[pos] = _heap[child];
+			pos = child;
+		}
+		_heap[pos] = it;
+	}
+}
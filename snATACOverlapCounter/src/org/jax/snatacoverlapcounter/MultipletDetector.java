@@ -0,0 +1,551 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+import org.jax.snatacoverlapcounter.util.PoissonTest;
+import org.jax.snatacoverlapcounter.util.RegionIndex;
+import org.jax.snatacoverlapcounter.util.RegionList;
+import org.jax.snatacoverlapcounter.util.SparseBinaryMatrix;
+
+/**
+ * Multiplet detection from Overlaps.txt and OverlapSummary.txt, the same steps as AMULET.py:
+ * repeat filtering of the overlaps, inferring repetitive regions from the merged regions and
+ * testing the number of merged regions per cell. The cell by region matrices are sparse.
+ */
+public class MultipletDetector {
+
+	private int _expectedoverlap, _minoverlap;
+	private double _qthreshold, _qrepthreshold;
+
+	private HashMap<String, Integer> _chrindices;
+	private ArrayList<String> _chrnames;
+	private ArrayList<String> _cellids;
+	private ArrayList<String> _barcodes;
+	private HashMap<String, Integer> _cellindices;
+
+	//Per overlap scratch for the starts and ends lists
+	private int[] _starts, _ends;
+	private long[] _loci;
+
+	public static void main(String[] args) {
+		String[] parsedargs = new String[4];
+		String expectedoverlap = "2";
+		String minoverlap = "1";
+		String qthreshold = "0.01";
+		String qrepthreshold = "0.01";
+		String rfilter = null;
+
+		int argidx = 0;
+		for(int i = 0; i < args.length; i++) {
+
+			if(i < args.length-1) {
+				switch(args[i]) {
+					case "--expectedoverlap":
+						expectedoverlap = args[i+1];
+						i++;
+						break;
+					case "--minoverlap":
+						minoverlap = args[i+1];
+						i++;
+						break;
+					case "--q":
+						qthreshold = args[i+1];
+						i++;
+						break;
+					case "--qrep":
+						qrepthreshold = args[i+1];
+						i++;
+						break;
+					case "--rfilter":
+						rfilter = args[i+1];
+						i++;
+						break;
+					default:
+						if(args[i].startsWith("-")) {
+							argidx = 4;
+						}
+						else {
+							parsedargs[argidx++] = args[i];
+						}
+						break;
+				}
+			}
+			else {
+				parsedargs[argidx++] = args[i];
+			}
+
+			if(argidx > 3) {
+				break;
+			}
+		}
+
+		if(argidx != 3) {
+			System.out.println("Usage: overlaps overlapsummary outputdirectory");
+			System.out.println("Options: --rfilter   Filepath of regions (e.g., known repetitive regions) to exclude.");
+			System.out.println("         --q         FDR corrected probability threshold. (Default: 0.01)");
+			System.out.println("         --qrep      FDR corrected probability threshold for inferring repetitive regions. (Default: 0.01)");
+			System.out.println("         --expectedoverlap Expected number of reads overlapping. (Default: 2)");
+			System.out.println("         --minoverlap The minimum length (in bp) of overlap to keep. (Default: 1)");
+			System.exit(0);
+		}
+
+		try {
+			MultipletDetector md = new MultipletDetector(Integer.parseInt(expectedoverlap), Integer.parseInt(minoverlap), Double.parseDouble(qthreshold), Double.parseDouble(qrepthreshold));
+			md.detectMultiplets(parsedargs[0], parsedargs[1], rfilter, parsedargs[2]);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public MultipletDetector(int expectedoverlap, int minoverlap, double qthreshold, double qrepthreshold) {
+		_expectedoverlap = expectedoverlap;
+		_minoverlap = minoverlap;
+		_qthreshold = qthreshold;
+		_qrepthreshold = qrepthreshold;
+		_chrindices = new HashMap<String, Integer>();
+		_chrnames = new ArrayList<String>();
+		_starts = new int[64];
+		_ends = new int[64];
+		_loci = new long[64];
+	}
+
+	public void detectMultiplets(String overlaps, String overlapsummary, String rfilter, String outdir) throws IOException {
+		//Step 1: Load data & repeat region filter
+		readOverlapSummary(overlapsummary);
+
+		RegionList simplerepeats = new RegionList();
+		if(rfilter != null) {
+			System.out.println("Filtering regions.");
+			simplerepeats = readRegions(rfilter).getUnion(getChromosomeRanks());
+		}
+
+		//Step 2: Filter repetitive elements and overlaps shorter than the minimum
+		RegionList filtereddata = new RegionList();
+		int numoverlaps = readFilteredOverlaps(overlaps, new RegionIndex(simplerepeats, _chrnames.size()), filtereddata);
+		int numfiltered = numoverlaps-filtereddata.size();
+		System.out.println("Number of regions filtered: "+Integer.toString(numfiltered)+" ("+formatDouble((double) (100L*numfiltered)/numoverlaps)+"%)");
+
+		System.out.println("Detecting multiplets.");
+		int[] chrrank = getChromosomeRanks();
+
+		//Step 3: Merge the overlaps and count the cells of each merged region
+		RegionList unionoverlaps = filtereddata.getUnion(chrrank);
+		SparseBinaryMatrix matrix = getMatrix(filtereddata, unionoverlaps);
+
+		//Step 4: Infer repetitive regions
+		PoissonTest pt = new PoissonTest();
+		double[] repqvalues = pt.getBHCorrectedPValues(pt.getPValues(matrix.getRowSums()));
+		RegionList repetitive = new RegionList();
+		for(int i = 0; i < unionoverlaps.size(); i++) {
+			if(repqvalues[i] < _qrepthreshold) {
+				repetitive.add(unionoverlaps.getChromosome(i), unionoverlaps.getStart(i), unionoverlaps.getEnd(i), -1);
+			}
+		}
+		matrix = null;
+
+		//Step 5: Filter repetitive regions & run multiplet detection
+		RegionIndex repindex = new RegionIndex(repetitive, _chrnames.size());
+		RegionList repfiltereddata = new RegionList();
+		for(int i = 0; i < filtereddata.size(); i++) {
+			if(repindex.findOverlappingRegions(filtereddata.getChromosome(i), filtereddata.getStart(i), filtereddata.getEnd(i)) == 0) {
+				repfiltereddata.add(filtereddata.getChromosome(i), filtereddata.getStart(i), filtereddata.getEnd(i), filtereddata.getCell(i));
+			}
+		}
+		int numunionregions = unionoverlaps.size();
+		filtereddata = null;
+		unionoverlaps = null;
+
+		SparseBinaryMatrix repfilteredmatrix = getMatrix(repfiltereddata, repfiltereddata.getUnion(chrrank));
+		double[] pvalues = pt.getPValues(repfilteredmatrix.getColumnSums());
+		double[] qvalues = pt.getBHCorrectedPValues(pvalues);
+
+		writeMultiplets(pvalues, qvalues, numunionregions, outdir);
+
+		System.out.println("Done.");
+	}
+
+	private void readOverlapSummary(String overlapsummary) throws IOException {
+		_cellids = new ArrayList<String>();
+		_barcodes = new ArrayList<String>();
+		_cellindices = new HashMap<String, Integer>();
+
+		BufferedReader br = new BufferedReader(new FileReader(overlapsummary));
+		br.readLine();
+		String line;
+		while((line = br.readLine()) != null) {
+			String[] split = line.split("\t");
+			_cellindices.put(split[0], _cellids.size());
+			_cellids.add(split[0]);
+			_barcodes.add(split[3]);
+		}
+		br.close();
+	}
+
+	private RegionList readRegions(String bedfile) throws IOException {
+		RegionList rv = new RegionList();
+		BufferedReader br = new BufferedReader(new FileReader(bedfile));
+		String line;
+		while((line = br.readLine()) != null) {
+			if(line.length() == 0 || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+				continue;
+			}
+			String[] split = line.split("\t");
+			rv.add(getChromosomeIndex(split[0]), Integer.parseInt(split[1]), Integer.parseInt(split[2]), -1);
+		}
+		br.close();
+		return rv;
+	}
+
+	/**
+	 * Reads the overlaps without the reads that overlap the repeats, same as getFilteredOverlaps
+	 * in AMULET.py. If any read is removed (or repeated) and more than the expected number of
+	 * distinct reads are left, the overlaps are recalculated from the Starts and Ends lists in
+	 * the order they are listed. Returns the number of overlaps read.
+	 */
+	private int readFilteredOverlaps(String overlaps, RegionIndex repeats, RegionList rv) throws IOException {
+		if(BinaryOverlapReader.isBinaryOverlapFile(overlaps)) {
+			return readFilteredBinaryOverlaps(overlaps, repeats, rv);
+		}
+		//Overlaps.txt.gz of --gzipoverlaps
+		BufferedReader br;
+		if(overlaps.endsWith(".gz")) {
+			br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(overlaps), 1 << 16)));
+		}
+		else {
+			br = new BufferedReader(new FileReader(overlaps));
+		}
+		br.readLine();
+		int numoverlaps = 0;
+		String line;
+		while((line = br.readLine()) != null) {
+			numoverlaps++;
+			int t1 = line.indexOf('\t');
+			int t2 = line.indexOf('\t', t1+1);
+			int t3 = line.indexOf('\t', t2+1);
+			int t4 = line.indexOf('\t', t3+1);
+			int te = line.lastIndexOf('\t');
+			int ts = line.lastIndexOf('\t', te-1);
+
+			int chr = getChromosomeIndex(line.substring(0, t1));
+			Integer cell = _cellindices.get(line.substring(t3+1, t4));
+			int cellidx = cell == null ? -1 : cell;
+
+			int n = parseList(line, ts+1, te, true);
+			parseList(line, te+1, line.length(), false);
+			if(!addFilteredOverlap(chr, n, cellidx, repeats, rv)) {
+				addOverlap(chr, Integer.parseInt(line.substring(t1+1, t2)), Integer.parseInt(line.substring(t2+1, t3)), cellidx, rv);
+			}
+		}
+		br.close();
+		return numoverlaps;
+	}
+
+	//The same for Overlaps.bin, the chromosomes and cells are mapped once from its dictionaries
+	private int readFilteredBinaryOverlaps(String overlaps, RegionIndex repeats, RegionList rv) throws IOException {
+		BinaryOverlapReader reader = new BinaryOverlapReader(overlaps);
+		String[] chromosomes = reader.getChromosomes();
+		int[] chrmap = new int[chromosomes.length];
+		for(int i = 0; i < chromosomes.length; i++) {
+			chrmap[i] = getChromosomeIndex(chromosomes[i]);
+		}
+		String[] cellids = reader.getCellIds();
+		int[] cellmap = new int[cellids.length];
+		for(int i = 0; i < cellids.length; i++) {
+			Integer cell = _cellindices.get(cellids[i]);
+			cellmap[i] = cell == null ? -1 : cell;
+		}
+
+		int numoverlaps = 0;
+		while(reader.next()) {
+			numoverlaps++;
+			int n = reader.getReadCount();
+			if(n > _starts.length) {
+				int size = Math.max(n, _starts.length*2);
+				_starts = Arrays.copyOf(_starts, size);
+				_ends = Arrays.copyOf(_ends, size);
+				_loci = Arrays.copyOf(_loci, size);
+			}
+			reader.getReads(_starts, _ends);
+			int chr = chrmap[reader.getChromosomeIndex()];
+			int cellidx = cellmap[reader.getCellIndex()];
+			if(!addFilteredOverlap(chr, n, cellidx, repeats, rv)) {
+				addOverlap(chr, reader.getStart(), reader.getEnd(), cellidx, rv);
+			}
+		}
+		reader.close();
+		return numoverlaps;
+	}
+
+	//Adds the recalculated overlaps if a read of the starts and ends buffers was removed, false if none was
+	private boolean addFilteredOverlap(int chr, int n, int cellidx, RegionIndex repeats, RegionList rv) {
+		//Count the distinct reads that do not overlap a repeat
+		for(int i = 0; i < n; i++) {
+			_loci[i] = ((long) _starts[i] << 32) | (_ends[i] & 0xffffffffL);
+		}
+		Arrays.sort(_loci, 0, n);
+		int kept = 0;
+		for(int i = 0; i < n; i++) {
+			if(i > 0 && _loci[i] == _loci[i-1]) {
+				continue;
+			}
+			if(repeats.findOverlappingRegions(chr, (int) (_loci[i] >> 32), (int) _loci[i]) == 0) {
+				kept++;
+			}
+		}
+
+		if(kept < n) {
+			if(kept > _expectedoverlap) {
+				addRecalculatedOverlaps(chr, n, cellidx, rv);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The running sum over the starts (+1) followed by the ends (-1) as listed. AMULET.py does not
+	 * sort these before the scan, so neither is this.
+	 */
+	private void addRecalculatedOverlaps(int chr, int n, int cellidx, RegionList rv) {
+		int runningsum = 0;
+		boolean startoverlap = false;
+		int startoverlapposition = 0;
+		int i = 0;
+		while(i < 2*n) {
+			int position = getCombinedPosition(i, n);
+			runningsum += i < n ? 1 : -1;
+			int j = i+1;
+			while(j < 2*n && getCombinedPosition(j, n) == position) {
+				runningsum += j < n ? 1 : -1;
+				j++;
+			}
+
+			if(!startoverlap && runningsum > _expectedoverlap) {
+				startoverlap = true;
+				startoverlapposition = position;
+			}
+			else if(startoverlap && runningsum <= _expectedoverlap) {
+				addOverlap(chr, startoverlapposition, position, cellidx, rv);
+				startoverlap = false;
+			}
+			i = j;
+		}
+		if(startoverlap) {
+			addOverlap(chr, startoverlapposition, getCombinedPosition(2*n-1, n), cellidx, rv);
+		}
+	}
+
+	private int getCombinedPosition(int i, int n) {
+		return i < n ? _starts[i] : _ends[i-n];
+	}
+
+	private void addOverlap(int chr, int start, int end, int cellidx, RegionList rv) {
+		if(end-start+1 >= _minoverlap) {
+			rv.add(chr, start, end, cellidx);
+		}
+	}
+
+	//Parses a "v1,v2,...," list into the starts or ends buffer, returns the number of values
+	private int parseList(String line, int from, int to, boolean starts) {
+		int n = 0;
+		int value = 0;
+		boolean negative = false;
+		boolean hasvalue = false;
+		for(int i = from; i <= to; i++) {
+			char c = i < to ? line.charAt(i) : ',';
+			if(c == ',') {
+				if(hasvalue) {
+					if(n == _starts.length) {
+						_starts = Arrays.copyOf(_starts, n*2);
+						_ends = Arrays.copyOf(_ends, n*2);
+						_loci = Arrays.copyOf(_loci, n*2);
+					}
+					if(starts) {
+						_starts[n] = negative ? -value : value;
+					}
+					else {
+						_ends[n] = negative ? -value : value;
+					}
+					n++;
+				}
+				value = 0;
+				negative = false;
+				hasvalue = false;
+			}
+			else if(c == '-') {
+				negative = true;
+			}
+			else {
+				value = value*10+(c-'0');
+				hasvalue = true;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * The cells of each merged region. A cell is set for the merged regions that overlap one of
+	 * its overlaps, with the end extended by one as in generateMatrix.
+	 */
+	private SparseBinaryMatrix getMatrix(RegionList data, RegionList unionoverlaps) {
+		RegionIndex index = new RegionIndex(unionoverlaps, _chrnames.size());
+		int[] rows = new int[Math.max(16, data.size())];
+		int[] cols = new int[rows.length];
+		int n = 0;
+		for(int i = 0; i < data.size(); i++) {
+			int cellidx = data.getCell(i);
+			if(cellidx < 0) {
+				continue;
+			}
+			int count = index.findOverlappingRegions(data.getChromosome(i), data.getStart(i), data.getEnd(i)+1);
+			int[] overlaps = index.getOverlaps();
+			for(int j = 0; j < count; j++) {
+				if(n == rows.length) {
+					rows = Arrays.copyOf(rows, n*2);
+					cols = Arrays.copyOf(cols, n*2);
+				}
+				rows[n] = overlaps[j];
+				cols[n] = cellidx;
+				n++;
+			}
+		}
+		return new SparseBinaryMatrix(unionoverlaps.size(), _cellids.size(), rows, cols, n);
+	}
+
+	private void writeMultiplets(double[] pvalues, double[] qvalues, int numunionregions, String outdir) throws IOException {
+		String qsuffix = formatDouble(_qthreshold);
+		qsuffix = qsuffix.substring(qsuffix.indexOf('.')+1);
+
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outdir+"/MultipletProbabilities.txt"));
+		BufferedWriter cellidwriter = new BufferedWriter(new FileWriter(outdir+"/MultipletCellIds_"+qsuffix+".txt"));
+		BufferedWriter barcodewriter = new BufferedWriter(new FileWriter(outdir+"/MultipletBarcodes_"+qsuffix+".txt"));
+		bw.write("cell_id\tbarcode\tp-value\tq-value\n");
+
+		int nummultiplets = 0;
+		for(int i = 0; i < _cellids.size(); i++) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(_cellids.get(i));
+			sb.append("\t");
+			sb.append(_barcodes.get(i));
+			sb.append("\t");
+			sb.append(formatDouble(pvalues[i]));
+			sb.append("\t");
+			sb.append(formatDouble(qvalues[i]));
+			sb.append("\n");
+			bw.write(sb.toString());
+
+			if(qvalues[i] < _qthreshold) {
+				cellidwriter.write(_cellids.get(i)+"\n");
+				barcodewriter.write(_barcodes.get(i)+"\n");
+				nummultiplets++;
+			}
+		}
+		bw.flush();
+		bw.close();
+		cellidwriter.flush();
+		cellidwriter.close();
+		barcodewriter.flush();
+		barcodewriter.close();
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Number of Cells\t");
+		sb.append(Integer.toString(_cellids.size()));
+		sb.append("\nNumber of Merged Regions\t");
+		sb.append(Integer.toString(numunionregions));
+		sb.append("\nNumber of Multiplets\t");
+		sb.append(Integer.toString(nummultiplets));
+		sb.append("\nMultiplet Percent\t");
+		sb.append(formatDouble((double) (nummultiplets*100L)/_cellids.size()));
+		sb.append("\n");
+
+		bw = new BufferedWriter(new FileWriter(outdir+"/MultipletSummary.txt"));
+		bw.write(sb.toString());
+		bw.flush();
+		bw.close();
+	}
+
+	private int getChromosomeIndex(String chr) {
+		Integer rv = _chrindices.get(chr);
+		if(rv == null) {
+			rv = _chrnames.size();
+			_chrindices.put(chr, rv);
+			_chrnames.add(chr);
+		}
+		return rv;
+	}
+
+	//Merged regions are ordered by chromosome name
+	private int[] getChromosomeRanks() {
+		String[] sorted = _chrnames.toArray(new String[0]);
+		Arrays.sort(sorted);
+		int[] rv = new int[sorted.length];
+		for(int i = 0; i < sorted.length; i++) {
+			rv[_chrindices.get(sorted[i])] = i;
+		}
+		return rv;
+	}
+
+	//Shortest repr of a double as written by Python, e.g. 0.0001, 1e-05 and 1.0
+	private String formatDouble(double d) {
+		if(Double.isNaN(d)) {
+			return "nan";
+		}
+		if(Double.isInfinite(d)) {
+			return d > 0 ? "inf" : "-inf";
+		}
+		if(d == 0) {
+			return 1/d < 0 ? "-0.0" : "0.0";
+		}
+		BigDecimal bd = new BigDecimal(Double.toString(Math.abs(d))).stripTrailingZeros();
+		String digits = bd.unscaledValue().toString();
+		int exponent = digits.length()-1-bd.scale();
+
+		StringBuilder sb = new StringBuilder();
+		if(d < 0) {
+			sb.append("-");
+		}
+		if(exponent < -4 || exponent >= 16) {
+			sb.append(digits.charAt(0));
+			if(digits.length() > 1) {
+				sb.append(".");
+				sb.append(digits, 1, digits.length());
+			}
+			sb.append(exponent < 0 ? "e-" : "e+");
+			if(Math.abs(exponent) < 10) {
+				sb.append("0");
+			}
+			sb.append(Integer.toString(Math.abs(exponent)));
+		}
+		else if(exponent < 0) {
+			sb.append("0.");
+			for(int i = -1; i > exponent; i--) {
+				sb.append("0");
+			}
+			sb.append(digits);
+		}
+		else if(digits.length() <= exponent+1) {
+			sb.append(digits);
+			for(int i = digits.length(); i <= exponent; i++) {
+				sb.append("0");
+			}
+			sb.append(".0");
+		}
+		else {
+			sb.append(digits, 0, exponent+1);
+			sb.append(".");
+			sb.append(digits, exponent+1, digits.length());
+		}
+		return sb.toString();
+	}
+}
@@ -1,32 +1,77 @@
 package org.jax.snatacoverlapcounter;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Comparator;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Map.Entry;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import org.jax.snatacoverlapcounter.util.BarcodeCorrector;
+import org.jax.snatacoverlapcounter.util.CellIndex;
+import org.jax.snatacoverlapcounter.util.RegionFilter;
+import org.jax.snatacoverlapcounter.util.CountingInputStream;
+import org.jax.snatacoverlapcounter.util.CountingSeekableStream;
+import org.jax.snatacoverlapcounter.util.StageStatistics;
 import org.jax.snatacoverlapcounter.util.Util;
 import org.jax.snatacoverlapcounter.util.ValidReadSummary;
 
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.QueryInterval;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordCoordinateComparator;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamFiles;
+import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.seekablestream.SeekableFileStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 
 public class OverlapCounter {
 	
-	private String _barcodeattribute;
-	private int _barcodeidx, _cellididx, _iscellidx, _mapqthreshold, _maxinsertsize, _forwardcorrection, _reversecorrection, _expectedoverlap;
-	private boolean _forcesorted;
+	private static final int MINWINDOWSIZE = 1000000;
+	private static final int WINDOWSPERTHREAD = 4;
+	private static final int SCANBATCHSIZE = 4096;
+	//The work units per shard, so that a shard can still use several threads
+	private static final int SHARDPARTS = 8;
+	
+	//What happens to the contigs that are not in the chromosome list
+	private static final String EXCLUDED_READ = "read";
+	private static final String EXCLUDED_SCAN = "scan";
+	private static final String EXCLUDED_SKIP = "skip";
+	
+	//The input of a SAM or BAM stream on stdin
+	private static final String STDIN = "-";
+	
+	private String _barcodeattribute, _excludedcontigs;
+	private int _barcodeidx, _cellididx, _iscellidx, _mapqthreshold, _maxinsertsize, _forwardcorrection, _reversecorrection, _expectedoverlap, _threads, _shard, _shards;
+	private int[] _expectedoverlaps;
+	private boolean _forcesorted, _rawbam, _insidebatch, _binaryoverlaps, _gzipoverlaps, _barcodeduplicates, _fragmentsout;
+	private RegionFilter _regionfilter;
+	private String _clustercache, _peakfile;
+	//The memory of the sort of input that is not coordinate sorted in bytes, 0 to not sort it
+	private long _sortmemory;
+	//The tag of the uncorrected barcodes that are corrected to the cells, null for none
+	private String _correctiontag;
 	
 	public static void main(String[] args) {
 		
@@ -38,12 +83,37 @@ public class OverlapCounter {
 		String iscellidx = "9";
 		String maxinsertsize = "900";
 		String mapqthreshold = "30";
-		String forwardcorrection = "4";
-		String reversecorrection = "-5";
+		String forwardcorrection = null;
+		String reversecorrection = null;
+		String threads = "1";
 		boolean forcesorted = false;
+		boolean rawbam = false;
+		String excludedcontigs = EXCLUDED_READ;
+		boolean multiplets = false;
+		String rfilter = null;
+		String qthreshold = "0.01";
+		String qrepthreshold = "0.01";
+		String minoverlap = "1";
+		String memory = null;
+		String shard = null;
+		boolean binaryoverlaps = false;
+		boolean gzipoverlaps = false;
+		boolean rfilterreads = false;
+		String clustercache = null;
+		boolean barcodedups = false;
+		boolean fragmentsout = false;
+		String peakmatrix = null;
+		String sortmem = null;
+		String correctbc = null;
+		
+		//batch manifest chromosomelist outputdirectory runs the samples of the manifest in one JVM
+		boolean batch = args.length > 0 && args[0].equals("batch");
+		//merge sharddirectories cellidbarcodemap outputdirectory merges the outputs of --shard runs
+		boolean merge = args.length > 0 && args[0].equals("merge");
+		int numargs = batch || merge ? 3 : 4;
 		
 		int argidx = 0;
-		for(int i = 0; i < args.length; i++) {
+		for(int i = batch || merge ? 1 : 0; i < args.length; i++) {
 			
 			if(i < args.length-1) {
 				switch(args[i]) {
@@ -83,11 +153,80 @@ public class OverlapCounter {
 						reversecorrection = args[i+1];
 						i++;
 						break;
+					case "--threads":  
+						threads = args[i+1];
+						i++;
+						break;
 					case "--forcesorted":  
 						forcesorted = true;
 						break;
+					case "--rawbam":  
+						rawbam = true;
+						break;
+					case "--binaryoverlaps":  
+						binaryoverlaps = true;
+						break;
+					case "--gzipoverlaps":  
+						gzipoverlaps = true;
+						break;
+					case "--excludedcontigs":  
+						excludedcontigs = args[i+1];
+						i++;
+						break;
+					case "--multiplets":  
+						multiplets = true;
+						break;
+					case "--rfilterreads":  
+						rfilterreads = true;
+						break;
+					case "--barcodedups":  
+						barcodedups = true;
+						break;
+					case "--fragmentsout":  
+						fragmentsout = true;
+						break;
+					case "--peakmatrix":  
+						peakmatrix = args[i+1];
+						i++;
+						break;
+					case "--rfilter":  
+						rfilter = args[i+1];
+						i++;
+						break;
+					case "--q":  
+						qthreshold = args[i+1];
+						i++;
+						break;
+					case "--qrep":  
+						qrepthreshold = args[i+1];
+						i++;
+						break;
+					case "--minoverlap":  
+						minoverlap = args[i+1];
+						i++;
+						break;
+					case "--memory":  
+						memory = args[i+1];
+						i++;
+						break;
+					case "--shard":  
+						shard = args[i+1];
+						i++;
+						break;
+					case "--clustercache":  
+						clustercache = args[i+1];
+						i++;
+						break;
+					case "--sortmem":  
+						sortmem = args[i+1];
+						i++;
+						break;
+					case "--correctbc":  
+						correctbc = args[i+1];
+						i++;
+						break;
 					default:
-						if(args[i].startsWith("-")) {
+						if(args[i].startsWith("-") && !args[i].equals(STDIN)) {
 							argidx = 5;
 						}
 						else {
@@ -100,38 +239,172 @@ public class OverlapCounter {
 				parsedargs[argidx++] = args[i];
 			}
 			
-			if(argidx > 4) {
+			if(argidx > numargs) {
 				break;
 			}
 		}
 		
-		if(argidx != 4) {
-			System.out.println("Usage: bamfile cellidbarcodemap chromosomelist outputdirectory");
-			System.out.println("Options: --expectedoverlap    Expected number of reads overlapping. (Default: 2)");
+		if(argidx != numargs || !(excludedcontigs.equals(EXCLUDED_READ) || excludedcontigs.equals(EXCLUDED_SCAN) || excludedcontigs.equals(EXCLUDED_SKIP))) {
+			System.out.println("Usage: bamfile|fragmentfile cellidbarcodemap chromosomelist outputdirectory");
+			System.out.println("       (bamfile can be several coordinate sorted BAM files separated by commas, which are merged while they are read, or - for a SAM/BAM stream on stdin)");
+			System.out.println("       batch manifest chromosomelist outputdirectory");
+			System.out.println("       (manifest lines: bamfile|fragmentfile,cellidbarcodemap[,samplename])");
+			System.out.println("       merge sharddirectory1,sharddirectory2,... cellidbarcodemap outputdirectory");
+			System.out.println("       (merges the outputs of the --shard runs 1/N to N/N into the output of a single run)");
+			System.out.println("Options: --expectedoverlap    Expected number of reads overlapping, a comma separated list (e.g., 2,3,4) runs each in one pass with its outputs in ExpectedOverlap<n>. (Default: 2)");
 			System.out.println("         --bambc     Bamfile attribute used for the barcode. (Default: \"CB\")");
 			System.out.println("         --forcesorted Forces the input bam file to be treated as sorted.");
+			System.out.println("         --correctbc Bamfile attribute of the uncorrected barcode (e.g., \"CR\"). Reads whose --bambc barcode is missing or not a cell are assigned to the cell of this barcode if it is at most one mismatch from a single cell, counted in OverlapSummary.txt.");
+			System.out.println("         --sortmem   Sorts the reads of a bam file that is not coordinate sorted (e.g., name sorted) with this much memory (in MB), spilling to the output directory when they do not fit.");
 			System.out.println("         --bcidx     The column index of the CSV for barcode. (Default: 0)");
 			System.out.println("         --cellidx   The column index of the CSV for cellid. (Default: 0)");
 			System.out.println("         --iscellidx The index for determining cells (selecting values=1). (Default: 9)");
 			System.out.println("         --mapqthresh Threshold for filtering low map quality reads (<= comparison). (Default: 30)");
 			System.out.println("         --maxinsertsize The maximum insert size (in bp) between read pairs. (Default: 900)");
-			System.out.println("         --startbases The amount of bases add to the start position. (Default: 4)");
-			System.out.println("         --endbases The amount of bases to add to the end position (can be negative). (Default: -5)");
+			System.out.println("         --startbases The amount of bases add to the start position. (BAM Default: 4, Fragment Default: 0)");
+			System.out.println("         --endbases The amount of bases to add to the end position (can be negative). (BAM Default: -5, Fragment Default: 0)");
+			System.out.println("         --threads   The number of threads, more than one requires an indexed BAM file or a bgzipped fragment file. (Default: 1)");
+			System.out.println("         --rawbam    Reads only the used BAM fields straight from the compressed stream, with a single reader. The threads decompress the file.");
+			System.out.println("         --excludedcontigs How the contigs that are not in the chromosome list are read with an indexed BAM file: read (decoded like the others), scan (seeked past and counted with a raw scan, same output) or skip (never read, the total read counts are approximate). (Default: read)");
+			System.out.println("         --barcodedups Marks the duplicate read pairs by cell barcode, start, end and strand instead of by the duplicate flag of the BAM file.");
+			System.out.println("         --fragmentsout Also writes the valid reads of the cells to Fragments.tsv.gz, a bgzipped and tabix indexed fragment file.");
+			System.out.println("         --peakmatrix Also writes the cut site counts of the cells in the peaks of this BED file to PeakMatrix (MatrixMarket format).");
+			System.out.println("         --binaryoverlaps Writes Overlaps.bin, a binary and smaller Overlaps.txt. BinaryOverlapReader converts it back.");
+			System.out.println("         --gzipoverlaps Writes Overlaps.txt.gz, a BGZF compressed Overlaps.txt, compressed on its own thread.");
+			System.out.println("         --multiplets Runs the multiplet detection on the output.");
+			System.out.println("         --rfilter   Multiplet detection: filepath of regions (e.g., known repetitive regions) to exclude.");
+			System.out.println("         --rfilterreads Drops the reads that overlap the --rfilter regions before they are counted for overlaps.");
+			System.out.println("         --q         Multiplet detection: FDR corrected probability threshold. (Default: 0.01)");
+			System.out.println("         --qrep      Multiplet detection: FDR corrected probability threshold for inferring repetitive regions. (Default: 0.01)");
+			System.out.println("         --minoverlap Multiplet detection: the minimum length (in bp) of overlap to keep. (Default: 1)");
+			System.out.println("         --memory    Batch: the memory (in MB) shared by the samples that run at the same time. (Default: 3/4 of the maximum heap)");
+			System.out.println("         --shard     i/N: processes the i-th of N balanced parts of an indexed BAM file, for merge.");
+			System.out.println("         --clustercache The directory of the cluster caches. A run saves the read clusters of its input there and a later run of the same input and read parameters replays them instead of reading the input.");
 
 			System.exit(0);
 		}
+		if(binaryoverlaps && gzipoverlaps) {
+			System.out.println("Please use either --binaryoverlaps or --gzipoverlaps.");
+			System.exit(0);
+		}
+		int[] shardargs = null;
+		if(shard != null) {
+			shardargs = parseShard(shard);
+			if(shardargs == null) {
+				System.out.println("Please use --shard i/N with 1 <= i <= N.");
+				System.exit(0);
+			}
+			if(binaryoverlaps || gzipoverlaps) {
+				System.out.println("The merge needs the text output of the shards, please use --binaryoverlaps or --gzipoverlaps with merge.");
+				System.exit(0);
+			}
+			if(clustercache != null) {
+				System.out.println("The cluster cache is written by a whole run, please do not use --clustercache with --shard.");
+				System.exit(0);
+			}
+			if(fragmentsout || peakmatrix != null) {
+				System.out.println("The fragments and the peak matrix are written by a whole run, please do not use --fragmentsout or --peakmatrix with --shard.");
+				System.exit(0);
+			}
+			if(multiplets && expectedoverlap.indexOf(',') >= 0) {
+				System.out.println("The shards of several expected overlaps are only split by merge, please use --multiplets with merge.");
+				System.exit(0);
+			}
+		}
+		RegionFilter regionfilter = null;
+		if(rfilterreads && !merge) {
+			if(rfilter == null) {
+				System.out.println("Please give the regions of --rfilterreads with --rfilter.");
+				System.exit(0);
+			}
+			try {
+				regionfilter = new RegionFilter(rfilter);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
 		long timestart = System.currentTimeMillis();
 		
+		if(merge) {
+			OverlapCounter pc = new OverlapCounter(expectedoverlap, barcodeattribute, barcodeidx, cellidx, iscellidx, forcesorted, rawbam, excludedcontigs, mapqthreshold, maxinsertsize, "4", "-5", threads);
+			pc.setBinaryOverlaps(binaryoverlaps);
+			pc.setGzipOverlaps(gzipoverlaps);
+			String outdir = parsedargs[2];
+			try {
+				pc.mergeShards(parsedargs[0].split(","), parsedargs[1], outdir);
+				if(multiplets) {
+					pc.detectMultiplets(Integer.parseInt(minoverlap), Double.parseDouble(qthreshold), Double.parseDouble(qrepthreshold), rfilter, outdir);
+				}
+				pc.writeRunTime(timestart, System.currentTimeMillis(), outdir);
+			} catch (IOException e) {
+				e.printStackTrace();
+				try {
+					Util u = new Util();
+					u.writeErrorFile(e, outdir);
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+			}
+			return;
+		}
+		
+		if(batch) {
+			OverlapCounter pc = new OverlapCounter(expectedoverlap, barcodeattribute, barcodeidx, cellidx, iscellidx, forcesorted, rawbam, excludedcontigs, mapqthreshold, maxinsertsize, forwardcorrection == null ? "4" : forwardcorrection, reversecorrection == null ? "-5" : reversecorrection, threads);
+			pc.setBinaryOverlaps(binaryoverlaps);
+			pc.setGzipOverlaps(gzipoverlaps);
+			pc.setRegionFilter(regionfilter);
+			pc.setClusterCache(clustercache);
+			pc.setBarcodeDuplicates(barcodedups);
+			pc.setReadOutputs(fragmentsout, peakmatrix);
+			pc.setSortMemory(sortmem);
+			pc.setBarcodeCorrection(correctbc);
+			long memorybudget = memory == null ? Runtime.getRuntime().maxMemory()/4*3 : Long.parseLong(memory)*1024*1024;
+			SampleBatch sb = new SampleBatch(pc, forwardcorrection, reversecorrection, memorybudget);
+			if(multiplets) {
+				sb.setMultipletDetection(Integer.parseInt(minoverlap), Double.parseDouble(qthreshold), Double.parseDouble(qrepthreshold), rfilter);
+			}
+			try {
+				sb.run(parsedargs[0], parsedargs[1], parsedargs[2]);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		
 		String bamfile = parsedargs[0];
 		String cellbarcodes = parsedargs[1];
 		String chromlist = parsedargs[2];
 		String outdir = parsedargs[3];
 		
-		OverlapCounter pc = new OverlapCounter(expectedoverlap, barcodeattribute, barcodeidx, cellidx, iscellidx, forcesorted, mapqthreshold, maxinsertsize, forwardcorrection, reversecorrection);
+		//Fragment files are already shifted to account for the 9bp duplication
+		boolean isfragmentfile = FragmentReader.isFragmentFile(bamfile);
+		if(forwardcorrection == null) {
+			forwardcorrection = isfragmentfile ? "0" : "4";
+		}
+		if(reversecorrection == null) {
+			reversecorrection = isfragmentfile ? "0" : "-5";
+		}
+		
+		OverlapCounter pc = new OverlapCounter(expectedoverlap, barcodeattribute, barcodeidx, cellidx, iscellidx, forcesorted, rawbam, excludedcontigs, mapqthreshold, maxinsertsize, forwardcorrection, reversecorrection, threads);
+		pc.setBinaryOverlaps(binaryoverlaps);
+		pc.setGzipOverlaps(gzipoverlaps);
+		pc.setRegionFilter(regionfilter);
+		pc.setClusterCache(clustercache);
+		pc.setBarcodeDuplicates(barcodedups);
+		pc.setReadOutputs(fragmentsout, peakmatrix);
+		pc.setSortMemory(sortmem);
+		pc.setBarcodeCorrection(correctbc);
+		if(shardargs != null) {
+			pc.setShard(shardargs[0], shardargs[1]);
+		}
 		
 		try {
 			pc.writeParameters(outdir+"/OverlapCounter-LastRunParameters.txt");
 			pc.findOverlaps(bamfile, cellbarcodes, chromlist, outdir);
+			if(multiplets) {
+				pc.detectMultiplets(Integer.parseInt(minoverlap), Double.parseDouble(qthreshold), Double.parseDouble(qrepthreshold), rfilter, outdir);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			try {
@@ -150,11 +423,13 @@ public class OverlapCounter {
 		}
 	}
 	
-	public OverlapCounter(String expectedoverlap, String bca, String bcidx, String cellidx, String iscellidx, boolean forcesorted, String mapqthresh, String maxinsertsize, String forwardcorrection, String reversecorrection) {
+	public OverlapCounter(String expectedoverlap, String bca, String bcidx, String cellidx, String iscellidx, boolean forcesorted, boolean rawbam, String excludedcontigs, String mapqthresh, String maxinsertsize, String forwardcorrection, String reversecorrection, String threads) {
 		_barcodeattribute = bca;
 		_forcesorted = forcesorted;
+		_rawbam = rawbam;
+		_excludedcontigs = excludedcontigs;
 		try {
-			_expectedoverlap = Integer.parseInt(expectedoverlap);
+			setExpectedOverlaps(expectedoverlap);
 			_barcodeidx = Integer.parseInt(bcidx);
 			_cellididx = Integer.parseInt(cellidx);
 			_iscellidx = Integer.parseInt(iscellidx);
@@ -162,242 +437,1272 @@ public class OverlapCounter {
 			_maxinsertsize = Integer.parseInt(maxinsertsize);
 			_forwardcorrection = Integer.parseInt(forwardcorrection);
 			_reversecorrection = Integer.parseInt(reversecorrection);
+			_threads = Math.max(1, Integer.parseInt(threads));
+		}
+		catch(NumberFormatException e) {
+			System.out.println("Please use integer values for index locations.");
+		}
+	}
+	
+	//One or more comma separated expected overlaps, sorted and without duplicates
+	private void setExpectedOverlaps(String expectedoverlap) {
+		TreeSet<Integer> values = new TreeSet<Integer>();
+		String[] split = expectedoverlap.split(",");
+		for(int i = 0; i < split.length; i++) {
+			values.add(Integer.parseInt(split[i].trim()));
+		}
+		_expectedoverlaps = new int[values.size()];
+		int idx = 0;
+		for(Iterator<Integer> it = values.iterator(); it.hasNext();) {
+			_expectedoverlaps[idx++] = it.next();
+		}
+		_expectedoverlap = _expectedoverlaps[0];
+	}
+	
+	//{ i, N } of i/N, null if it is not a shard of 1 <= i <= N
+	private static int[] parseShard(String shard) {
+		String[] split = shard.split("/");
+		if(split.length != 2) {
+			return null;
+		}
+		try {
+			int i = Integer.parseInt(split[0]);
+			int n = Integer.parseInt(split[1]);
+			return i >= 1 && i <= n ? new int[] { i, n } : null;
+		}
+		catch(NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	//A copy for one sample of a batch, the start and end corrections are null for the defaults of the input type
+	private OverlapCounter(OverlapCounter pc, String file, String forwardcorrection, String reversecorrection) {
+		_barcodeattribute = pc._barcodeattribute;
+		_barcodeidx = pc._barcodeidx;
+		_cellididx = pc._cellididx;
+		_iscellidx = pc._iscellidx;
+		_mapqthreshold = pc._mapqthreshold;
+		_maxinsertsize = pc._maxinsertsize;
+		_expectedoverlap = pc._expectedoverlap;
+		_expectedoverlaps = pc._expectedoverlaps;
+		_forcesorted = pc._forcesorted;
+		_rawbam = pc._rawbam;
+		_excludedcontigs = pc._excludedcontigs;
+		_binaryoverlaps = pc._binaryoverlaps;
+		_gzipoverlaps = pc._gzipoverlaps;
+		_regionfilter = pc._regionfilter;
+		_clustercache = pc._clustercache;
+		_barcodeduplicates = pc._barcodeduplicates;
+		_fragmentsout = pc._fragmentsout;
+		_peakfile = pc._peakfile;
+		_sortmemory = pc._sortmemory;
+		_correctiontag = pc._correctiontag;
+		_threads = 1;
+		_insidebatch = true;
+		
+		boolean isfragmentfile = FragmentReader.isFragmentFile(file);
+		_forwardcorrection = forwardcorrection != null ? Integer.parseInt(forwardcorrection) : isfragmentfile ? 0 : 4;
+		_reversecorrection = reversecorrection != null ? Integer.parseInt(reversecorrection) : isfragmentfile ? 0 : -5;
+	}
+	
+	public OverlapCounter getSampleCounter(String file, String forwardcorrection, String reversecorrection) {
+		return new OverlapCounter(this, file, forwardcorrection, reversecorrection);
+	}
+	
+	/**
+	 * Only processes the shard-th of shards balanced parts of the BAM file (counting from 1). The
+	 * outputs of the shards are combined by mergeShards.
+	 */
+	public void setShard(int shard, int shards) {
+		_shard = shard;
+		_shards = shards;
+	}
+	
+	//Overlaps.bin (see BinaryOverlapWriter) instead of Overlaps.txt
+	public void setBinaryOverlaps(boolean binaryoverlaps) {
+		_binaryoverlaps = binaryoverlaps;
+	}
+	
+	//Overlaps.txt.gz, compressed with BGZF, instead of Overlaps.txt
+	public void setGzipOverlaps(boolean gzipoverlaps) {
+		_gzipoverlaps = gzipoverlaps;
+	}
+	
+	//Drops the reads in the regions of the filter before they are counted for overlaps, null for none
+	public void setRegionFilter(RegionFilter regionfilter) {
+		_regionfilter = regionfilter;
+	}
+	
+	//Duplicates by cell barcode instead of by the duplicate flag, see OverlapSweep.setBarcodeDuplicates
+	public void setBarcodeDuplicates(boolean barcodeduplicates) {
+		_barcodeduplicates = barcodeduplicates;
+	}
+	
+	/**
+	 * Writes the valid reads to Fragments.tsv.gz (see FragmentFileSink) and, with a peak BED file,
+	 * their cut site counts to PeakMatrix (see PeakMatrixSink) in the pass over the input.
+	 */
+	public void setReadOutputs(boolean fragmentsout, String peakfile) {
+		_fragmentsout = fragmentsout;
+		_peakfile = peakfile;
+	}
+	
+	//Sorts the reads of unsorted input with this many MB (see ReadSorter), null to require sorted input
+	public void setSortMemory(String sortmem) {
+		_sortmemory = sortmem == null ? 0 : Long.parseLong(sortmem)*1024*1024;
+	}
+	
+	public long getSortMemory() {
+		return _sortmemory;
+	}
+	
+	//Corrects the barcodes of this tag for the reads without a cell (see BarcodeCorrector), null for none
+	public void setBarcodeCorrection(String correctiontag) {
+		_correctiontag = correctiontag;
+	}
+	
+	//The directory of the cluster caches (see ClusterCache), null for none
+	public void setClusterCache(String clustercache) {
+		_clustercache = clustercache;
+	}
+	
+	//The overlap output file in the output directory
+	public String getOverlapFile(String outdir) {
+		if(_binaryoverlaps) {
+			return outdir+"/Overlaps.bin";
+		}
+		return outdir+(_gzipoverlaps ? "/Overlaps.txt.gz" : "/Overlaps.txt");
+	}
+	
+	public int getThreads() {
+		return _threads;
+	}
+	
+	public int getExpectedOverlap() {
+		return _expectedoverlap;
+	}
+	
+	public int[] getExpectedOverlaps() {
+		return _expectedoverlaps;
+	}
+	
+	/**
+	 * The directory of the outputs of an expected overlap: the output directory itself with one
+	 * expected overlap, otherwise its ExpectedOverlap<n> subdirectory.
+	 */
+	public String getExpectedOverlapDirectory(String outdir, int idx) {
+		if(_expectedoverlaps.length == 1) {
+			return outdir;
+		}
+		return outdir+"/ExpectedOverlap"+Integer.toString(_expectedoverlaps[idx]);
+	}
+	
+	//Runs the multiplet detection on the outputs of each expected overlap
+	public void detectMultiplets(int minoverlap, double qthreshold, double qrepthreshold, String rfilter, String outdir) throws IOException {
+		for(int i = 0; i < _expectedoverlaps.length; i++) {
+			String dir = getExpectedOverlapDirectory(outdir, i);
+			MultipletDetector md = new MultipletDetector(_expectedoverlaps[i], minoverlap, qthreshold, qrepthreshold);
+			md.detectMultiplets(getOverlapFile(dir), dir+"/OverlapSummary.txt", rfilter, dir);
+		}
+	}
+	
+	//The number of cells in the barcode to cell id map
+	public int getCellCount(String cellbarcodes) throws IOException {
+		Util u = new Util();
+		return new TreeSet<String>(u.readCellBarcodes(cellbarcodes, _barcodeidx, _cellididx, _iscellidx).values()).size();
+	}
+	
+	public void writeRunTime(long start, long end, String outdir) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outdir+"/RunTime.txt"));
+		double duration = (double)(end-start)/1000;
+		
+		bw.write("Overlap counter finished in: "+Double.toString(duration)+" seconds.");
+		bw.flush();
+		bw.close();
+	}
+	
+	//Returns the sweep with the counts of the run, the run metrics are written to Metrics.txt
+	public OverlapSweep findOverlaps(String bamfile, String cellbarcodes, String chromsizes, String outdir) throws IOException{
+		RunMetrics metrics = new RunMetrics(bamfile);
+		metrics.register();
+		try {
+			OverlapSweep rv;
+			ClusterCache cache = getClusterCache(bamfile, cellbarcodes, chromsizes);
+			if(cache != null && cache.exists() && hasReadOutputs()) {
+				System.out.println("The fragments and the peak matrix need the reads, the input is read instead of the cluster cache.");
+				cache = null;
+			}
+			if(cache != null && cache.exists()) {
+				rv = replayClusterCache(cache, cellbarcodes, outdir, metrics);
+			}
+			else if(isMergedInput(bamfile)) {
+				rv = findMergedOverlaps(bamfile.split(","), cellbarcodes, chromsizes, outdir, metrics, cache);
+			}
+			else if(FragmentReader.isFragmentFile(bamfile)) {
+				if(_shards > 0) {
+					throw new IOException("--shard needs an indexed BAM file.");
+				}
+				rv = findFragmentOverlaps(bamfile, cellbarcodes, chromsizes, outdir, metrics, cache);
+			}
+			else {
+				rv = findBAMOverlaps(bamfile, cellbarcodes, chromsizes, outdir, metrics, cache);
+			}
+			metrics.finish();
+			metrics.writeMetrics(outdir+"/Metrics.txt");
+			return rv;
+		}
+		finally {
+			if(!metrics.isFinished()) {
+				metrics.finish();
+			}
+		}
+	}
+	
+	//With a cache the clusters of the run are saved to it
+	private OverlapSweep findBAMOverlaps(String bamfile, String cellbarcodes, String chromsizes, String outdir, RunMetrics metrics, ClusterCache cache) throws IOException{
+		int overlapthresh = _expectedoverlap+1; //If the expected is 2 then we are looking for overlaps of 3 or more
+		
+		final SamReader reader = getReaderFactory().open(new File(bamfile));
+		boolean sorted = checkSorted(reader);
+		
+		if(_shards > 0) {
+			boolean indexed = reader.hasIndex();
+			reader.close();
+			if(!indexed || !sorted) {
+				throw new IOException("--shard needs an indexed and coordinate sorted BAM file.");
+			}
+			return findOverlapsParallel(bamfile, cellbarcodes, chromsizes, outdir, metrics);
+		}
+		
+		if(_threads > 1 && !_rawbam && !sorted) {
+			System.out.println("The reads of an unsorted BAM file are sorted after a single reader.");
+		}
+		else if(_threads > 1 && !_rawbam && cache != null) {
+			System.out.println("The cluster cache is written by a single reader.");
+		}
+		else if(_threads > 1 && !_rawbam && hasReadOutputs()) {
+			System.out.println("The fragments and the peak matrix are written by a single reader.");
+		}
+		else if(_threads > 1 && !_rawbam) {
+			if(reader.hasIndex()) {
+				reader.close();
+				return findOverlapsParallel(bamfile, cellbarcodes, chromsizes, outdir, metrics);
+			}
+			System.out.println("The input BAM file is not indexed, running with a single reader.");
+		}
+		
+		boolean scan = _excludedcontigs.equals(EXCLUDED_SCAN);
+		boolean skip = _excludedcontigs.equals(EXCLUDED_SKIP);
+		if((scan || skip) && (!reader.hasIndex() || !sorted)) {
+			System.out.println("The input BAM file is not indexed or not sorted, reading the contigs that are not in the chromosome list.");
+			scan = false;
+			skip = false;
+		}
+		
+		Util u = new Util();
+		SAMSequenceDictionary dict = reader.getFileHeader().getSequenceDictionary();
+		boolean[] inchromosomes = getChromosomeFilter(dict, u.readChromSizes(chromsizes));
+		TreeMap<String, String> cellbarcodemap = u.readCellBarcodes(cellbarcodes, _barcodeidx, _cellididx, _iscellidx);
+		CellIndex cells = new CellIndex(cellbarcodemap);
+		BarcodeCorrector corrector = getBarcodeCorrector(cellbarcodemap, cells);
+		ReadSorter sorter = sorted ? null : getReadSorter(dict, outdir);
+
+		
+		System.out.println("Reading BAM file.");
+
+		//Decoding, the sweep and writing the overlaps each run on their own thread
+		BufferedWriter bw = _binaryoverlaps ? getOverlapsWriter(outdir, false) : null;
+		OverlapSweep sweep = new OverlapSweep(_barcodeattribute, _mapqthreshold, _maxinsertsize, _forwardcorrection, _reversecorrection, overlapthresh, getReferenceNames(dict), inchromosomes, cells, bw, true);
+		sweep.setOverlapThresholds(getOverlapThresholds());
+		sweep.setRegionFilter(_regionfilter);
+		sweep.setBarcodeDuplicates(_barcodeduplicates);
+		sweep.setBarcodeCorrector(corrector);
+		if(cache != null) {
+			cache.create();
+			sweep.setClusterCache(cache);
+		}
+		ReadSink[] sinks = getReadSinks(cells, outdir);
+		sweep.setReadSinks(sinks);
+		sweep.setReadSorter(sorter);
+		ReadPipeline pipeline = new ReadPipeline();
+		OverlapWriterStage writer = getOverlapWriterStage(bw, outdir, cells, sweep, pipeline.getSweepStatistics());
+		sweep.setWriterStage(writer);
+		metrics.setSweep(sweep);
+		metrics.setStages(pipeline.getDecodeStatistics(), pipeline.getSweepStatistics(), writer.getStatistics());
+
+		//The reads on the chromosome list are queried through the index, the other contigs are either
+		//read with a raw scan after them or not at all. Their reads only count towards the totals, so
+		//the order does not change the output.
+		LinkedList<long[]> regions = null;
+		if(skip && _rawbam) {
+			regions = RawBAMReader.getRegions(reader.indexing().getIndex(), inchromosomes, false);
+		}
+		else if(scan && !_rawbam) {
+			regions = RawBAMReader.getRegions(reader.indexing().getIndex(), getExcluded(inchromosomes), true);
+		}
+		
+		BatchReader batchreader;
+		SamReader streamreader = null;
+		reader.close();
+		if(_rawbam) {
+			//Every contig is read raw already, so the scan is the same as reading the whole file
+			RawBAMReader rawreader = new RawBAMReader(bamfile, _threads, _barcodeattribute, cells, dict.size());
+			rawreader.setBarcodeCorrector(corrector);
+			if(skip) {
+				rawreader.setRegions(regions);
+			}
+			batchreader = rawreader;
+		}
+		else if(scan || skip) {
+			File file = new File(bamfile);
+			CountingSeekableStream counter = new CountingSeekableStream(new SeekableFileStream(file));
+			streamreader = getReaderFactory().open(SamInputResource.of(counter).index(SamFiles.findIndex(file)));
+			batchreader = new SAMRecordBatchReader(streamreader.query(getQueryIntervals(inchromosomes), false), sweep, counter);
+			if(scan) {
+				RawBAMReader scanreader = new RawBAMReader(bamfile, 1, _barcodeattribute, cells, dict.size());
+				scanreader.setBarcodeCorrector(corrector);
+				scanreader.setRegions(regions);
+				batchreader = new SequentialBatchReader(new BatchReader[] { batchreader, scanreader });
+			}
+		}
+		else {
+			//Read through a counting stream for the bytes read metric
+			CountingInputStream counter = new CountingInputStream(new FileInputStream(bamfile));
+			streamreader = getReaderFactory().open(SamInputResource.of(new BufferedInputStream(counter, 1 << 16)));
+			batchreader = new SAMRecordBatchReader(streamreader.iterator(), sweep, counter);
+		}
+		metrics.setBatchReader(batchreader);
+		pipeline.run(batchreader, sweep);
+		if(sorter != null) {
+			replaySorted(sorter, sweep);
+		}
+		batchreader.close();
+		if(streamreader != null) {
+			streamreader.close();
+		}
+		writer.close();
+		closeReadSinks(sinks);
+		if(cache != null) {
+			cache.finish(sweep, skip);
+		}
+		
+		printStageStatistics(new StageStatistics[] { pipeline.getDecodeStatistics(), pipeline.getSweepStatistics(), writer.getStatistics() });
+		writeSummaries(sweep, cells, skip, _regionfilter != null, _barcodeduplicates, corrector != null, outdir);
+		return sweep;
+	}
+	
+	//Several BAM files separated by commas or a stream on stdin
+	private boolean isMergedInput(String bamfile) {
+		return bamfile.equals(STDIN) || bamfile.indexOf(',') >= 0;
+	}
+	
+	/**
+	 * True if the reader is coordinate sorted or --forcesorted is set, false if it is not and its
+	 * reads are sorted with --sortmem. Otherwise exits, a sample of a batch fails instead.
+	 */
+	private boolean checkSorted(SamReader reader) throws IOException {
+		if(_forcesorted) {
+			reader.getFileHeader().setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		}
+		
+		if(!(reader.getFileHeader().getSortOrder().getComparatorInstance() instanceof SAMRecordCoordinateComparator)) {
+			if(_sortmemory > 0) {
+				return false;
+			}
+			reader.close();
+			if(_insidebatch) {
+				//The other samples of the batch still run
+				throw new IOException("The input BAM file must be coordinate sorted. If you believe the bam file is sorted, use the --forcesorted option, otherwise --sortmem sorts its reads.");
+			}
+			System.out.println("The input BAM file must be coordinate sorted. If you believe the bam file is sorted, use the --forcesorted option, otherwise --sortmem sorts its reads.");
+			System.exit(0);
+		}
+		return true;
+	}
+	
+	/**
+	 * The sorter of the valid reads of unsorted input, its runs are written to the temporary
+	 * directory of the output directory.
+	 */
+	private ReadSorter getReadSorter(SAMSequenceDictionary dict, String outdir) throws IOException {
+		if(_barcodeduplicates) {
+			throw new IOException("--barcodedups finds the duplicates in coordinate order, please sort the BAM file to use it.");
+		}
+		if(!ReadSorter.isSortable(_maxinsertsize)) {
+			throw new IOException("--sortmem needs a --maxinsertsize below 16777216.");
+		}
+		System.out.println("The input is not coordinate sorted, sorting its reads with "+Long.toString(_sortmemory >> 20)+" MB.");
+		return new ReadSorter(dict.size(), _sortmemory, new File(outdir+"/OverlapCounter-tmp"));
+	}
+	
+	//The corrector of the barcodes of the reads without a cell, null without --correctbc
+	private BarcodeCorrector getBarcodeCorrector(TreeMap<String, String> cellbarcodemap, CellIndex cells) {
+		if(_correctiontag == null) {
+			return null;
+		}
+		System.out.println("Correcting the "+_correctiontag+" barcodes of the reads without a cell to at most one mismatch.");
+		return new BarcodeCorrector(cellbarcodemap, cells, _correctiontag);
+	}
+	
+	//Replays the sorted reads into the sweep after the pass over the input
+	private void replaySorted(ReadSorter sorter, OverlapSweep sweep) throws IOException {
+		long start = System.nanoTime();
+		sorter.replay(sweep);
+		String runs = sorter.getRuns() > 0 ? " in "+Integer.toString(sorter.getRuns())+" runs" : " in memory";
+		System.out.println("Sorted "+Long.toString(sorter.getReads())+" reads"+runs+", merged into the sweep in "+String.format("%.3f", (System.nanoTime()-start)/1e9)+"s.");
+	}
+	
+	/**
+	 * Several coordinate sorted BAM files, merged in coordinate order while they are read (see
+	 * MergingRecordIterator), or a SAM or BAM stream on stdin. The output is that of the merged
+	 * BAM file. The inputs are streamed by a single reader, without their indices.
+	 */
+	private OverlapSweep findMergedOverlaps(String[] inputs, String cellbarcodes, String chromsizes, String outdir, RunMetrics metrics, ClusterCache cache) throws IOException {
+		int overlapthresh = _expectedoverlap+1;
+		
+		if(_shards > 0) {
+			throw new IOException("--shard needs a single indexed BAM file.");
+		}
+		if(_threads > 1 || _rawbam || !_excludedcontigs.equals(EXCLUDED_READ)) {
+			System.out.println("Several BAM files or a stream are decoded by a single htsjdk reader, reading the contigs that are not in the chromosome list.");
+		}
+		
+		//Unsorted inputs are read one after the other, as the sort orders their reads anyway
+		boolean sorted = true;
+		
+		SamReader[] readers = new SamReader[inputs.length];
+		CountingInputStream[] counters = new CountingInputStream[inputs.length];
+		SAMRecordIterator[] its = new SAMRecordIterator[inputs.length];
+		SAMSequenceDictionary dict = null;
+		for(int i = 0; i < inputs.length; i++) {
+			if(FragmentReader.isFragmentFile(inputs[i])) {
+				throw new IOException("Only BAM files can be merged, "+inputs[i]+" is a fragment file.");
+			}
+			if(inputs[i].equals(STDIN) && inputs.length > 1) {
+				throw new IOException("The stream on stdin cannot be merged with other inputs.");
+			}
+			counters[i] = new CountingInputStream(inputs[i].equals(STDIN) ? System.in : new FileInputStream(inputs[i]));
+			readers[i] = getReaderFactory().open(SamInputResource.of(new BufferedInputStream(counters[i], 1 << 16)));
+			sorted &= checkSorted(readers[i]);
+			SAMSequenceDictionary next = readers[i].getFileHeader().getSequenceDictionary();
+			if(dict == null) {
+				dict = next;
+			}
+			else if(!dict.isSameDictionary(next)) {
+				throw new IOException("The sequence dictionaries of "+inputs[0]+" and "+inputs[i]+" differ, the BAM files cannot be merged.");
+			}
+			its[i] = readers[i].iterator();
+		}
+		
+		Util u = new Util();
+		boolean[] inchromosomes = getChromosomeFilter(dict, u.readChromSizes(chromsizes));
+		TreeMap<String, String> cellbarcodemap = u.readCellBarcodes(cellbarcodes, _barcodeidx, _cellididx, _iscellidx);
+		CellIndex cells = new CellIndex(cellbarcodemap);
+		BarcodeCorrector corrector = getBarcodeCorrector(cellbarcodemap, cells);
+		ReadSorter sorter = sorted ? null : getReadSorter(dict, outdir);
+		
+		System.out.println(inputs.length > 1 ? "Merging "+Integer.toString(inputs.length)+" BAM files." : "Reading stdin.");
+		
+		BufferedWriter bw = _binaryoverlaps ? getOverlapsWriter(outdir, false) : null;
+		OverlapSweep sweep = new OverlapSweep(_barcodeattribute, _mapqthreshold, _maxinsertsize, _forwardcorrection, _reversecorrection, overlapthresh, getReferenceNames(dict), inchromosomes, cells, bw, true);
+		sweep.setOverlapThresholds(getOverlapThresholds());
+		sweep.setRegionFilter(_regionfilter);
+		sweep.setBarcodeDuplicates(_barcodeduplicates);
+		sweep.setBarcodeCorrector(corrector);
+		if(cache != null) {
+			cache.create();
+			sweep.setClusterCache(cache);
+		}
+		ReadSink[] sinks = getReadSinks(cells, outdir);
+		sweep.setReadSinks(sinks);
+		sweep.setReadSorter(sorter);
+		ReadPipeline pipeline = new ReadPipeline();
+		OverlapWriterStage writer = getOverlapWriterStage(bw, outdir, cells, sweep, pipeline.getSweepStatistics());
+		sweep.setWriterStage(writer);
+		metrics.setSweep(sweep);
+		metrics.setStages(pipeline.getDecodeStatistics(), pipeline.getSweepStatistics(), writer.getStatistics());
+		
+		BatchReader batchreader;
+		if(sorted) {
+			batchreader = new SAMRecordBatchReader(new MergingRecordIterator(its), sweep, counters);
+		}
+		else {
+			BatchReader[] batchreaders = new BatchReader[its.length];
+			for(int i = 0; i < its.length; i++) {
+				batchreaders[i] = new SAMRecordBatchReader(its[i], sweep, counters[i]);
+			}
+			batchreader = new SequentialBatchReader(batchreaders);
+		}
+		metrics.setBatchReader(batchreader);
+		pipeline.run(batchreader, sweep);
+		if(sorter != null) {
+			replaySorted(sorter, sweep);
+		}
+		batchreader.close();
+		for(int i = 0; i < readers.length; i++) {
+			readers[i].close();
+		}
+		writer.close();
+		closeReadSinks(sinks);
+		if(cache != null) {
+			cache.finish(sweep, false);
+		}
+		
+		printStageStatistics(new StageStatistics[] { pipeline.getDecodeStatistics(), pipeline.getSweepStatistics(), writer.getStatistics() });
+		writeSummaries(sweep, cells, false, _regionfilter != null, _barcodeduplicates, corrector != null, outdir);
+		return sweep;
+	}
+	
+	/**
+	 * Fragment file input (*.tsv, *.txt, *.tsv.gz, *.txt.gz) through the same sweep and writers as
+	 * the BAM input. The threads are used to inflate BGZF blocks.
+	 */
+	private OverlapSweep findFragmentOverlaps(String fragmentfile, String cellbarcodes, String chromsizes, String outdir, RunMetrics metrics, ClusterCache cache) throws IOException {
+		int overlapthresh = _expectedoverlap+1;
+		
+		Util u = new Util();
+		CellIndex cells = new CellIndex(u.readCellBarcodes(cellbarcodes, _barcodeidx, _cellididx, _iscellidx));
+		FragmentReader reader = new FragmentReader(cells, u.readChromSizes(chromsizes));
+		
+		if(_barcodeduplicates) {
+			System.out.println("The fragments of a fragment file are already unique per cell, --barcodedups only applies to BAM files.");
+		}
+		if(_correctiontag != null) {
+			System.out.println("The fragments of a fragment file only have their cell barcode, --correctbc only applies to BAM files.");
+		}
+		System.out.println("Reading fragment file.");
+		BufferedWriter bw = _binaryoverlaps ? getOverlapsWriter(outdir, false) : null;
+		OverlapSweep sweep = new OverlapSweep(_barcodeattribute, _mapqthreshold, _maxinsertsize, _forwardcorrection, _reversecorrection, overlapthresh, new String[0], new boolean[0], cells, bw, true);
+		sweep.setOverlapThresholds(getOverlapThresholds());
+		sweep.setRegionFilter(_regionfilter);
+		if(cache != null) {
+			cache.create();
+			sweep.setClusterCache(cache);
+		}
+		ReadSink[] sinks = getReadSinks(cells, outdir);
+		sweep.setReadSinks(sinks);
+		StageStatistics sweepstats = new StageStatistics("Read and sweep");
+		OverlapWriterStage writer = getOverlapWriterStage(bw, outdir, cells, sweep, sweepstats);
+		sweep.setWriterStage(writer);
+		metrics.setSweep(sweep);
+		metrics.setFragmentReader(reader);
+		metrics.setStages(sweepstats, null, writer.getStatistics());
+		
+		sweepstats.start();
+		reader.read(fragmentfile, _threads, sweep);
+		sweepstats.finish();
+		writer.close();
+		closeReadSinks(sinks);
+		if(cache != null) {
+			cache.finish(sweep, false);
+		}
+		
+		printStageStatistics(new StageStatistics[] { sweepstats, writer.getStatistics() });
+		writeSummaries(sweep, cells, false, _regionfilter != null, false, false, outdir);
+		return sweep;
+	}
+	
+	private boolean hasReadOutputs() {
+		return _fragmentsout || _peakfile != null;
+	}
+	
+	//The sinks of the fragments and the peak matrix, null for none
+	private ReadSink[] getReadSinks(CellIndex cells, String outdir) throws IOException {
+		if(!hasReadOutputs()) {
+			return null;
+		}
+		LinkedList<ReadSink> sinks = new LinkedList<ReadSink>();
+		if(_fragmentsout) {
+			sinks.add(new FragmentFileSink(outdir+"/Fragments.tsv.gz", cells));
+		}
+		if(_peakfile != null) {
+			sinks.add(new PeakMatrixSink(_peakfile, outdir+"/PeakMatrix", cells));
+		}
+		return sinks.toArray(new ReadSink[sinks.size()]);
+	}
+	
+	private void closeReadSinks(ReadSink[] sinks) throws IOException {
+		if(sinks != null) {
+			for(int i = 0; i < sinks.length; i++) {
+				sinks[i].close();
+			}
+		}
+	}
+	
+	/**
+	 * The cluster cache of the input and the read parameters, null without a cache directory. The
+	 * clusters of a single read are not saved, so the cache is not used for an expected overlap of 0.
+	 */
+	private ClusterCache getClusterCache(String file, String cellbarcodes, String chromsizes) throws IOException {
+		if(_clustercache == null || _shards > 0) {
+			return null;
+		}
+		if(file.equals(STDIN)) {
+			System.out.println("A stream on stdin has no fingerprint, the cluster cache is not used.");
+			return null;
+		}
+		if(_expectedoverlap < 1) {
+			System.out.println("The cluster cache has no clusters of a single read, it is not used for an expected overlap of 0.");
+			return null;
+		}
+		return new ClusterCache(_clustercache, getClusterCacheKey(file, cellbarcodes, chromsizes));
+	}
+	
+	/**
+	 * The fingerprint of the input and everything that decides which reads are in a cluster. The
+	 * overlap thresholds and the multiplet detection parameters are not part of it.
+	 */
+	private String getClusterCacheKey(String file, String cellbarcodes, String chromsizes) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("input:\t");
+		String[] inputs = file.split(",");
+		for(int i = 0; i < inputs.length; i++) {
+			if(i > 0) {
+				sb.append(",");
+			}
+			sb.append(ClusterCache.getFingerprint(inputs[i]));
+		}
+		sb.append("\ncellbarcodes:\t");
+		sb.append(ClusterCache.getChecksum(cellbarcodes));
+		sb.append("\nbcidx:\t");
+		sb.append(Integer.toString(_barcodeidx));
+		sb.append("\ncellidx:\t");
+		sb.append(Integer.toString(_cellididx));
+		sb.append("\niscellidx:\t");
+		sb.append(Integer.toString(_iscellidx));
+		sb.append("\nchromosomes:\t");
+		sb.append(ClusterCache.getChecksum(chromsizes));
+		sb.append("\nbambc:\t");
+		sb.append(_barcodeattribute);
+		sb.append("\nmapqthresh:\t");
+		sb.append(Integer.toString(_mapqthreshold));
+		sb.append("\nmaxinsertsize:\t");
+		sb.append(Integer.toString(_maxinsertsize));
+		sb.append("\nstartbases:\t");
+		sb.append(Integer.toString(_forwardcorrection));
+		sb.append("\nendbases:\t");
+		sb.append(Integer.toString(_reversecorrection));
+		sb.append("\nexcludedcontigs:\t");
+		sb.append(_excludedcontigs);
+		sb.append("\nrfilterreads:\t");
+		sb.append(_regionfilter != null ? ClusterCache.getChecksum(_regionfilter.getFile()) : "none");
+		sb.append("\nbarcodedups:\t");
+		sb.append(Boolean.toString(_barcodeduplicates));
+		sb.append("\ncorrectbc:\t");
+		sb.append(_correctiontag != null ? _correctiontag : "none");
+		sb.append("\n");
+		return sb.toString();
+	}
+	
+	//The outputs of a run from its cluster cache
+	private OverlapSweep replayClusterCache(ClusterCache cache, String cellbarcodes, String outdir, RunMetrics metrics) throws IOException {
+		Util u = new Util();
+		CellIndex cells = new CellIndex(u.readCellBarcodes(cellbarcodes, _barcodeidx, _cellididx, _iscellidx));
+		String[] refnames = cache.getReferenceNames();
+		
+		System.out.println("Reading the cluster cache "+cache.getDirectory()+".");
+		BufferedWriter bw = _binaryoverlaps ? getOverlapsWriter(outdir, false) : null;
+		OverlapSweep sweep = new OverlapSweep(_barcodeattribute, _mapqthreshold, _maxinsertsize, _forwardcorrection, _reversecorrection, _expectedoverlap+1, refnames, new boolean[refnames.length], cells, bw, true);
+		sweep.setOverlapThresholds(getOverlapThresholds());
+		sweep.setMappingQualityReported(cache.hasMappingQuality());
+		OverlapWriterStage writer = getOverlapWriterStage(bw, outdir, cells, sweep, new StageStatistics("Replay"));
+		sweep.setWriterStage(writer);
+		metrics.setSweep(sweep);
+		
+		cache.replay(sweep);
+		writer.close();
+		
+		metrics.setBytesRead(cache.getSize());
+		writeSummaries(sweep, cells, cache.isApproximate(), _regionfilter != null, _barcodeduplicates && sweep.hasMappingQuality(), _correctiontag != null && sweep.hasMappingQuality(), outdir);
+		return sweep;
+	}
+	
+	/**
+	 * Splits the BAM into work units using its index and processes them on a work-stealing pool.
+	 * The unit outputs are merged in genome order so that the output files are the same as the
+	 * single threaded output.
+	 */
+	private OverlapSweep findOverlapsParallel(String bamfile, String cellbarcodes, String chromsizes, String outdir, RunMetrics metrics) throws IOException {
+		int overlapthresh = _expectedoverlap+1;
+		
+		Util u = new Util();
+		SamReader reader = getReaderFactory().open(new File(bamfile));
+		SAMSequenceDictionary dict = reader.getFileHeader().getSequenceDictionary();
+		String[] refnames = getReferenceNames(dict);
+		boolean[] inchromosomes = getChromosomeFilter(dict, u.readChromSizes(chromsizes));
+		TreeMap<String, String> cellbarcodemap = u.readCellBarcodes(cellbarcodes, _barcodeidx, _cellididx, _iscellidx);
+		CellIndex cells = new CellIndex(cellbarcodemap);
+		BarcodeCorrector corrector = getBarcodeCorrector(cellbarcodemap, cells);
+		LinkedList<WorkUnit> units;
+		if(_shards > 0) {
+			//The same units in every shard, whatever its number of threads
+			units = getShardUnits(getWorkUnits(dict, inchromosomes, _shards*SHARDPARTS), reader.indexing().getIndex());
+		}
+		else {
+			units = getWorkUnits(dict, inchromosomes, _threads);
+		}
+		reader.close();
+
+		File tmpdir = new File(outdir+"/OverlapCounter-tmp");
+		tmpdir.mkdirs();
+		
+		BufferedWriter bw = getOverlapsWriter(outdir, _shards > 0);
+		OverlapSweep total = new OverlapSweep(_barcodeattribute, _mapqthreshold, _maxinsertsize, _forwardcorrection, _reversecorrection, overlapthresh, refnames, inchromosomes, cells, bw, true);
+		total.setOverlapThresholds(getOverlapThresholds());
+		metrics.setSweep(total);
+		
+		if(_shards > 0) {
+			System.out.println("Reading shard "+Integer.toString(_shard)+" of "+Integer.toString(_shards)+" of the BAM file with "+Integer.toString(_threads)+" threads ("+Integer.toString(units.size())+" work units).");
+		}
+		else {
+			System.out.println("Reading BAM file with "+Integer.toString(_threads)+" threads ("+Integer.toString(units.size())+" work units).");
+		}
+		ForkJoinPool pool = new ForkJoinPool(_threads);
+		LinkedList<Future<OverlapSweep>> futures = new LinkedList<Future<OverlapSweep>>();
+		int unitidx = 0;
+		for(Iterator<WorkUnit> it = units.iterator(); it.hasNext();) {
+			WorkUnit unit = it.next();
+			File unitfile = new File(tmpdir, "unit"+Integer.toString(unitidx++)+".txt");
+			futures.add(pool.submit(new UnitTask(bamfile, unit, unitfile, refnames, inchromosomes, cells, corrector, overlapthresh, total)));
+		}
+		
+		//Replay the unit outputs in order, the open clusters carry over from one unit to the next
+		UnitMerger merger = new UnitMerger(bw, total, cells, _shards > 0);
+		unitidx = 0;
+		try {
+			for(Iterator<Future<OverlapSweep>> it = futures.iterator(); it.hasNext();) {
+				OverlapSweep sweep = getUnitResult(it.next());
+				File unitfile = new File(tmpdir, "unit"+Integer.toString(unitidx++)+".txt");
+				BufferedReader br = new BufferedReader(new FileReader(unitfile));
+				merger.add(sweep.getUnitResult(), br);
+				br.close();
+				unitfile.delete();
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		tmpdir.delete();
+		
+		bw.flush();
+		bw.close();
+		
+		if(_shards > 0) {
+			writeShard(merger.getResult(), total, outdir);
+		}
+		
+		//The units read through their own indexed readers
+		metrics.setBytesRead(new File(bamfile).length());
+		writeSummaries(total, cells, _excludedcontigs.equals(EXCLUDED_SKIP), _regionfilter != null, _barcodeduplicates, corrector != null, outdir);
+		return total;
+	}
+	
+	//With skipped, the contigs that are not in the chromosome list were not read and the totals are marked as approximate,
+	//with filtered the reads dropped by the region filter and with deduplicated the barcode aware duplicates are added to StatSummary.txt,
+	//with corrected the reads of corrected barcodes are added to OverlapSummary.txt
+	private void writeSummaries(OverlapSweep sweep, CellIndex cells, boolean skipped, boolean filtered, boolean deduplicated, boolean corrected, String outdir) throws IOException {
+		int[] creadcounts = corrected ? sweep.getCorrectedReadCounts() : null;
+		for(int i = 0; i < _expectedoverlaps.length; i++) {
+			writeOverlapCounts(sweep.getValidReadCounts(), sweep.getOverlapCounts(i), cells, sweep.getTotalReadCounts(), creadcounts, skipped, getExpectedOverlapDirectory(outdir, i)+"/OverlapSummary.txt");
+		}
+		writeReadInsertStatistics(sweep.getTotalReads(), sweep.getValidReads(), sweep.getPositive(), sweep.getNegative(), sweep.getNotInChromosome(), sweep.getValidReadSummary(), sweep.getInsertSizeFlag(), sweep.getLowMapQ(), sweep.getReadLengthSum(), sweep.getInsertSizeSum(), filtered ? sweep.getFilteredReads() : -1, deduplicated ? sweep.getBarcodeDuplicates() : -1, skipped, outdir+"/StatSummary.txt");
+		
+		if(skipped) {
+			System.out.println("The contigs that are not in the chromosome list were skipped, the total read counts are approximate.");
+		}
+
+		TreeSet<String> omittedchromosomes = sweep.getOmittedChromosomes();
+		if(omittedchromosomes.size() > 0) {
+			System.out.println("The following chromosomes were omitted:");
+			for(Iterator<String> ocit = omittedchromosomes.iterator(); ocit.hasNext();) {
+				System.out.println(ocit.next());
+			}
+		}
+		
+		System.out.println("Complete.");
+	}
+	
+	private void printStageStatistics(StageStatistics[] stats) {
+		for(int i = 0; i < stats.length; i++) {
+			System.out.println(stats[i].getSummary());
+		}
+	}
+	
+	private String[] getReferenceNames(SAMSequenceDictionary dict) {
+		String[] rv = new String[dict.size()];
+		for(int i = 0; i < rv.length; i++) {
+			rv[i] = dict.getSequence(i).getSequenceName();
+		}
+		return rv;
+	}
+	
+	//Resolves the chromosome list to the reference indices of the BAM header
+	private boolean[] getChromosomeFilter(SAMSequenceDictionary dict, TreeSet<String> chromsizesmap) {
+		boolean[] rv = new boolean[dict.size()];
+		for(int i = 0; i < rv.length; i++) {
+			rv[i] = chromsizesmap.contains(dict.getSequence(i).getSequenceName());
+		}
+		return rv;
+	}
+	
+	private boolean[] getExcluded(boolean[] inchromosomes) {
+		boolean[] rv = new boolean[inchromosomes.length];
+		for(int i = 0; i < rv.length; i++) {
+			rv[i] = !inchromosomes[i];
+		}
+		return rv;
+	}
+	
+	//Whole reference sequences of the chromosome list
+	private QueryInterval[] getQueryIntervals(boolean[] inchromosomes) {
+		LinkedList<QueryInterval> intervals = new LinkedList<QueryInterval>();
+		for(int i = 0; i < inchromosomes.length; i++) {
+			if(inchromosomes[i]) {
+				intervals.add(new QueryInterval(i, 1, -1));
+			}
+		}
+		return intervals.toArray(new QueryInterval[intervals.size()]);
+	}
+	
+	private SamReaderFactory getReaderFactory() {
+		return SamReaderFactory.makeDefault()
+	              .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS, SamReaderFactory.Option.VALIDATE_CRC_CHECKSUMS)
+	              .validationStringency(ValidationStringency.SILENT);
+	}
+	
+	/**
+	 * Whole chromosomes, with consecutive small ones grouped together, and windows of the large
+	 * chromosomes in the chromosome list. The unmapped reads are the last unit.
+	 *
+	 * Unless the excluded contigs are read, only the chromosome list is queried. For a scan, the
+	 * other contigs and the unmapped reads are the last unit, read with a RawBAMReader.
+	 *
+	 * The windows are sized for the given number of threads.
+	 */
+	private LinkedList<WorkUnit> getWorkUnits(SAMSequenceDictionary dict, boolean[] inchromosomes, int threads) {
+		long totallength = 0;
+		for(Iterator<SAMSequenceRecord> it = dict.getSequences().iterator(); it.hasNext();) {
+			totallength += it.next().getSequenceLength();
+		}
+		int windowsize = (int) Math.min(Integer.MAX_VALUE, Math.max(MINWINDOWSIZE, totallength/((long) threads*WINDOWSPERTHREAD)));
+		
+		LinkedList<WorkUnit> rv = new LinkedList<WorkUnit>();
+		LinkedList<Integer> group = new LinkedList<Integer>();
+		long grouplength = 0;
+		for(Iterator<SAMSequenceRecord> it = dict.getSequences().iterator(); it.hasNext();) {
+			SAMSequenceRecord next = it.next();
+			int length = next.getSequenceLength();
+			if(!inchromosomes[next.getSequenceIndex()] && !_excludedcontigs.equals(EXCLUDED_READ)) {
+				continue;
+			}
+			if(length > windowsize && inchromosomes[next.getSequenceIndex()]) {
+				if(group.size() > 0) {
+					rv.add(new WorkUnit(group));
+					group = new LinkedList<Integer>();
+					grouplength = 0;
+				}
+				for(int cut = 1; cut <= length; cut += windowsize) {
+					int nextcut = cut+windowsize > length ? -1 : cut+windowsize;
+					rv.add(new WorkUnit(next.getSequenceIndex(), cut, nextcut));
+				}
+			}
+			else {
+				group.add(next.getSequenceIndex());
+				grouplength += length;
+				if(grouplength >= windowsize) {
+					rv.add(new WorkUnit(group));
+					group = new LinkedList<Integer>();
+					grouplength = 0;
+				}
+			}
+		}
+		if(group.size() > 0) {
+			rv.add(new WorkUnit(group));
+		}
+		if(_excludedcontigs.equals(EXCLUDED_READ)) {
+			rv.add(new WorkUnit());
+		}
+		else if(_excludedcontigs.equals(EXCLUDED_SCAN)) {
+			rv.add(new WorkUnit(getExcluded(inchromosomes)));
 		}
-		catch(NumberFormatException e) {
-			System.out.println("Please use integer values for index locations.");
+		return rv;
+	}
+	
+	/**
+	 * The units of this shard. The shards are consecutive runs of units with about the same number
+	 * of compressed bytes in the BAM index.
+	 */
+	private LinkedList<WorkUnit> getShardUnits(LinkedList<WorkUnit> units, BAMIndex index) {
+		long[] sizes = new long[units.size()];
+		long totalsize = 0;
+		int i = 0;
+		for(Iterator<WorkUnit> it = units.iterator(); it.hasNext();) {
+			sizes[i] = it.next().getSize(index);
+			totalsize += sizes[i++];
 		}
+		
+		LinkedList<WorkUnit> rv = new LinkedList<WorkUnit>();
+		long cumulative = 0;
+		i = 0;
+		for(Iterator<WorkUnit> it = units.iterator(); it.hasNext(); i++) {
+			WorkUnit next = it.next();
+			//The shard of the middle of the unit
+			int shard = totalsize > 0 ? (int) Math.min(_shards-1, (cumulative+sizes[i]/2)*_shards/totalsize) : (int) ((long) i*_shards/sizes.length);
+			cumulative += sizes[i];
+			if(shard == _shard-1) {
+				rv.add(next);
+			}
+		}
+		return rv;
 	}
 	
-	public void writeRunTime(long start, long end, String outdir) throws IOException {
-		BufferedWriter bw = new BufferedWriter(new FileWriter(outdir+"/RunTime.txt"));
-		double duration = (double)(end-start)/1000;
+	//Shard.txt has the merge bookkeeping of the output of the shard and ShardCounts.txt its counts
+	private void writeShard(UnitResult result, OverlapSweep total, String outdir) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outdir+"/Shard.txt"));
+		result.write(bw);
+		bw.flush();
+		bw.close();
 		
-		bw.write("Overlap counter finished in: "+Double.toString(duration)+" seconds.");
+		bw = new BufferedWriter(new FileWriter(outdir+"/ShardCounts.txt"));
+		total.writeCounts(bw);
 		bw.flush();
 		bw.close();
 	}
 	
-	public void findOverlaps(String bamfile, String cellbarcodes, String chromsizes, String outdir) throws IOException{
-		int overlapthresh = _expectedoverlap+1; //If the expected is 2 then we are looking for overlaps of 3 or more
-		
-		SamReaderFactory factory = SamReaderFactory.makeDefault()
-	              .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS, SamReaderFactory.Option.VALIDATE_CRC_CHECKSUMS)
-	              .validationStringency(ValidationStringency.SILENT);
-		
-		final SamReader reader = factory.open(new File(bamfile));
+	/**
+	 * Combines the outputs of the --shard runs 1/N to N/N, in that order, into the output of a
+	 * single run of the BAM file. The shards must have been run with the same parameters.
+	 */
+	public void mergeShards(String[] sharddirs, String cellbarcodes, String outdir) throws IOException {
+		TreeMap<String, String> parameters = checkShards(sharddirs);
+		setExpectedOverlaps(parameters.get("expectedoverlap"));
+		boolean skipped = EXCLUDED_SKIP.equals(parameters.get("excludedcontigs"));
 		
-		if(_forcesorted) {
-			reader.getFileHeader().setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		Util u = new Util();
+		CellIndex cells = new CellIndex(u.readCellBarcodes(cellbarcodes, _barcodeidx, _cellididx, _iscellidx));
+		
+		System.out.println("Merging "+Integer.toString(sharddirs.length)+" shards.");
+		BufferedWriter bw = getOverlapsWriter(outdir, false);
+		OverlapSweep total = new OverlapSweep(_barcodeattribute, _mapqthreshold, _maxinsertsize, _forwardcorrection, _reversecorrection, _expectedoverlap+1, new String[0], new boolean[0], cells, bw, true);
+		total.setOverlapThresholds(getOverlapThresholds());
+		UnitMerger merger = new UnitMerger(bw, total, cells, false);
+		for(int i = 0; i < sharddirs.length; i++) {
+			BufferedReader br = new BufferedReader(new FileReader(sharddirs[i]+"/ShardCounts.txt"));
+			total.addCounts(br);
+			br.close();
+			
+			br = new BufferedReader(new FileReader(sharddirs[i]+"/Shard.txt"));
+			UnitResult result = UnitResult.read(br);
+			br.close();
+			if(result.getTouched().length != cells.size()) {
+				throw new IOException("The shard "+sharddirs[i]+" has "+Integer.toString(result.getTouched().length)+" cells, the barcode map has "+Integer.toString(cells.size())+".");
+			}
+			
+			br = new BufferedReader(new FileReader(sharddirs[i]+"/Overlaps.txt"));
+			//The header
+			br.readLine();
+			merger.add(result, br);
+			br.close();
 		}
+		bw.flush();
+		bw.close();
 		
-		if(!(reader.getFileHeader().getSortOrder().getComparatorInstance() instanceof SAMRecordCoordinateComparator)) {
-			System.out.println("The input BAM file must be coordinate sorted. If you believe the bam file is sorted, use the --forcesorted option.");
-			reader.close();
-			System.exit(0);
+		writeSummaries(total, cells, skipped, !"none".equals(parameters.get("rfilterreads")), Boolean.parseBoolean(parameters.get("barcodedups")), isCorrected(parameters), outdir);
+	}
+	
+	//Shards of a version without barcode correction have no correctbc parameter
+	private boolean isCorrected(TreeMap<String, String> parameters) {
+		String correctbc = parameters.get("correctbc");
+		return correctbc != null && !correctbc.equals("none");
+	}
+	
+	//The parameters of the shards, which may only differ in the shard and the threads
+	private TreeMap<String, String> checkShards(String[] sharddirs) throws IOException {
+		TreeMap<String, String> rv = null;
+		for(int i = 0; i < sharddirs.length; i++) {
+			TreeMap<String, String> parameters = new TreeMap<String, String>();
+			BufferedReader br = new BufferedReader(new FileReader(sharddirs[i]+"/OverlapCounter-LastRunParameters.txt"));
+			br.readLine();
+			String line;
+			while((line = br.readLine()) != null) {
+				String[] split = line.split(":\t", 2);
+				if(split.length == 2) {
+					parameters.put(split[0], split[1]);
+				}
+			}
+			br.close();
+			
+			String shard = Integer.toString(i+1)+"/"+Integer.toString(sharddirs.length);
+			if(!shard.equals(parameters.get("shard"))) {
+				throw new IOException("Expected shard "+shard+" in "+sharddirs[i]+", found "+parameters.get("shard")+".");
+			}
+			parameters.remove("shard");
+			parameters.remove("threads");
+			if(rv == null) {
+				rv = parameters;
+			}
+			else if(!rv.equals(parameters)) {
+				throw new IOException("The shard "+sharddirs[i]+" was run with other parameters than "+sharddirs[0]+".");
+			}
+		}
+		return rv;
+	}
+	
+	private OverlapSweep getUnitResult(Future<OverlapSweep> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
 		}
+	}
+	
+	private class WorkUnit {
 		
-		SAMRecordIterator it = reader.iterator();
-		Util u = new Util();
-		ValidReadSummary vrs = new ValidReadSummary();
-		TreeSet<String> chromsizesmap = u.readChromSizes(chromsizes);
-		TreeMap<String, String> cellbarcodemap = u.readCellBarcodes(cellbarcodes, _barcodeidx, _cellididx, _iscellidx);
-
+		private LinkedList<Integer> _refindices;
+		private boolean[] _scanreferences;
+		private int _refindex, _start, _nextcut;
 		
-		System.out.println("Reading BAM file.");
-		int totalreads = 0;
+		//Whole reference sequences
+		public WorkUnit(LinkedList<Integer> refindices) {
+			_refindices = refindices;
+			_refindex = -1;
+		}
 		
-		int lowmapq = 0;
-		int insertsizeflag = 0;
-		int positive = 0;
-		int negative = 0;
-		int notinchromosome = 0;
-		int validreads = 0;
-		long readlengthsum = 0;
-		long insertsizesum = 0;
+		//Window of a reference sequence, nextcut is -1 for the last window
+		public WorkUnit(int refindex, int start, int nextcut) {
+			_refindex = refindex;
+			_start = start;
+			_nextcut = nextcut;
+		}
 		
+		//Unmapped reads without a position
+		public WorkUnit() {
+			_refindex = -1;
+		}
 		
-		String curchr = null;
-
+		//Raw scan of the reference sequences and the unmapped reads
+		public WorkUnit(boolean[] scanreferences) {
+			_scanreferences = scanreferences;
+			_refindex = -1;
+		}
 		
-		TreeMap<String, LinkedList<Location>> previousreads = new TreeMap<String, LinkedList<Location>>();
-		TreeMap<String, Integer> previousend = new TreeMap<String, Integer>();
-
-		TreeMap<String, Incrementor> treadcounts = new TreeMap<String, Incrementor>();
-		TreeMap<String, Incrementor> vreadcounts = new TreeMap<String, Incrementor>();
-		TreeMap<String, Incrementor> overlapcounts = new TreeMap<String, Incrementor>();
-		for(Iterator<String> cellidit = cellbarcodemap.values().iterator(); cellidit.hasNext();) {
-			String cellid = cellidit.next();
-			vreadcounts.put(cellid, new Incrementor(0));
-			treadcounts.put(cellid, new Incrementor(0));
-			overlapcounts.put(cellid, new Incrementor(0));
+		public boolean isWindow() {
+			return _refindex >= 0;
 		}
 		
-		TreeSet<String> omittedchromosomes = new TreeSet<String>();
-
-		BufferedWriter bw = getOverlapWriter(outdir+"/Overlaps.txt");
+		public boolean isScan() {
+			return _scanreferences != null;
+		}
 		
-
-		while(it.hasNext()){
-			if(totalreads % 10000000 == 0) {
-				System.out.println(Integer.toString(totalreads));
+		//The compressed bytes of the unit in the BAM index, the unmapped reads are not counted
+		public long getSize(BAMIndex index) {
+			if(isWindow()) {
+				return getSize(index.getSpanOverlapping(_refindex, _start, _nextcut > 0 ? _nextcut-1 : -1));
 			}
-			
-			SAMRecord next = it.next();
-			
-			totalreads++;
-			int curmapq = next.getMappingQuality();
-			if(curmapq <= _mapqthreshold) {
-				lowmapq++;
+			long rv = 0;
+			if(_refindices != null) {
+				for(Iterator<Integer> it = _refindices.iterator(); it.hasNext();) {
+					rv += getSize(index.getSpanOverlapping(it.next(), 1, -1));
+				}
 			}
-			
-			boolean isnegative = next.getReadNegativeStrandFlag();
-			if(isnegative) {
-				negative++;
+			return rv;
+		}
+		
+		private long getSize(BAMFileSpan span) {
+			long rv = 0;
+			if(span != null) {
+				for(Iterator<Chunk> it = span.getChunks().iterator(); it.hasNext();) {
+					Chunk next = it.next();
+					rv += (next.getChunkEnd() >>> 16)-(next.getChunkStart() >>> 16);
+				}
 			}
-			else {
-				positive++;
+			return rv;
+		}
+		
+		public SAMRecordIterator query(SamReader reader, int pad) {
+			if(isWindow()) {
+				int querystart = Math.max(1, _start-pad);
+				return reader.query(new QueryInterval[] { new QueryInterval(_refindex, querystart, -1) }, false);
+			}
+			else if(_refindices != null) {
+				QueryInterval[] intervals = new QueryInterval[_refindices.size()];
+				int i = 0;
+				for(Iterator<Integer> it = _refindices.iterator(); it.hasNext();) {
+					intervals[i++] = new QueryInterval(it.next(), 1, -1);
+				}
+				return reader.query(intervals, false);
 			}
+			return reader.queryUnmapped();
+		}
+	}
+	
+	private class UnitTask implements Callable<OverlapSweep> {
+		
+		private String _bamfile;
+		private WorkUnit _unit;
+		private File _outfile;
+		private String[] _refnames;
+		private boolean[] _inchromosomes;
+		private CellIndex _cells;
+		private BarcodeCorrector _corrector;
+		private int _overlapthresh;
+		private OverlapSweep _total;
+		
+		public UnitTask(String bamfile, WorkUnit unit, File outfile, String[] refnames, boolean[] inchromosomes, CellIndex cells, BarcodeCorrector corrector, int overlapthresh, OverlapSweep total) {
+			_bamfile = bamfile;
+			_unit = unit;
+			_outfile = outfile;
+			_refnames = refnames;
+			_inchromosomes = inchromosomes;
+			_cells = cells;
+			_corrector = corrector;
+			_overlapthresh = overlapthresh;
+			_total = total;
+		}
+		
+		@Override
+		public OverlapSweep call() throws IOException {
+			SamReader reader = getReaderFactory().open(new File(_bamfile));
+			BufferedWriter bw = new BufferedWriter(new FileWriter(_outfile));
+			OverlapSweep sweep = new OverlapSweep(_barcodeattribute, _mapqthreshold, _maxinsertsize, _forwardcorrection, _reversecorrection, _overlapthresh, _refnames, _inchromosomes, _cells, bw, false);
+			sweep.setOverlapThresholds(getOverlapThresholds());
+			sweep.setRegionFilter(_regionfilter);
+			sweep.setBarcodeDuplicates(_barcodeduplicates);
+			sweep.setBarcodeCorrector(_corrector);
 			
-			int insertsize = next.getInferredInsertSize();
+			if(_unit.isScan()) {
+				RawBAMReader scanreader = new RawBAMReader(_bamfile, 1, _barcodeattribute, _cells, _refnames.length);
+				scanreader.setBarcodeCorrector(_corrector);
+				scanreader.setRegions(RawBAMReader.getRegions(reader.indexing().getIndex(), _unit._scanreferences, true));
+				reader.close();
+				ReadBatch batch = new ReadBatch(SCANBATCHSIZE);
+				while(scanreader.read(batch)) {
+					for(int i = 0; i < batch.size(); i++) {
+						sweep.process(batch, i);
+					}
+					batch.clear();
+				}
+				scanreader.close();
+				bw.flush();
+				bw.close();
+				sweep.finishUnit(_total);
+				return sweep;
+			}
 			
+			//Reads starting before the pad cannot have a fragment that crosses the window start
+			int pad = Math.max(_maxinsertsize, 0)+1;
+			SAMRecordIterator it = _unit.query(reader, pad);
 			
-			if(insertsize > 0 && curmapq > _mapqthreshold && vrs.isValidRead(next)) {
-				
-				String chr = next.getReferenceName();
-				if(chromsizesmap.contains(chr)) {
-					
-					if(!chr.equals(curchr)) {
-						//find/write overlaps
-						for(Iterator<String> cellidit = cellbarcodemap.values().iterator(); cellidit.hasNext();) {
-							String curcellid = cellidit.next();
-							LinkedList<OverlapLocation> curol = findOverlaps(previousreads.get(curcellid), overlapthresh, curchr);
-							writeOverlaps(bw, curcellid, curol);
-							overlapcounts.get(curcellid).increment(curol.size());
-						}
-						
-						//initialize observed read list, these will determine where the overlaps are
-						previousreads = new TreeMap<String, LinkedList<Location>>();
-						previousend = new TreeMap<String, Integer>();
-						for(Iterator<String> cellidit = cellbarcodemap.values().iterator(); cellidit.hasNext();) {
-							String cellid = cellidit.next();
-							previousreads.put(cellid, new LinkedList<Location>());
-							previousend.put(cellid, Integer.MIN_VALUE);
-						}
-						curchr = chr;
-					}
-					
-					String barcode = u.getBarcode(next, _barcodeattribute);
-
-					if(barcode == null) {
-						continue;
-					}
-					
-					String cellid = cellbarcodemap.get(barcode);
-					
-					if(cellid == null) {
-						continue;
-					}
-
-					int orig_start = next.getAlignmentStart()-1;
-					int start = orig_start+_forwardcorrection;
-					int end = orig_start+insertsize+_reversecorrection;
-					int endtoendinsertsize = end-start;
-					
-					
-					if(endtoendinsertsize > _maxinsertsize || endtoendinsertsize <= 0) {
-						insertsizeflag++;
+			//Windows start and stop at the first cluster read at or after their cut that is past
+			//the end of every earlier fragment, so no cluster spans two windows
+			boolean started = !_unit.isWindow() || _unit._start == 1;
+			int prescanstart = _unit._start-pad;
+			long maxend = Long.MIN_VALUE;
+			while(it.hasNext()) {
+				SAMRecord next = it.next();
+				if(_unit.isWindow()) {
+					int alignmentstart = next.getAlignmentStart();
+					if(!started && alignmentstart < prescanstart) {
 						continue;
 					}
-					
-					
-					readlengthsum += next.getReadLength();
-					insertsizesum += endtoendinsertsize;
-					validreads += 1;
-					
-					int mappingquality = next.getMappingQuality();
-					
-					vreadcounts.get(cellid).increment();
-					treadcounts.get(cellid).increment();
-					
-					Location readlocation = new Location(curchr, start, end, mappingquality);
-					LinkedList<Location> curlist = previousreads.get(cellid);
-					int endposition = previousend.get(cellid);
-					
-					if(endposition < start) {
-						LinkedList<OverlapLocation> ol = findOverlaps(curlist, overlapthresh, curchr);
-						writeOverlaps(bw, cellid, ol);
-						overlapcounts.get(cellid).increment(ol.size());
-
-						//Start a new list
-						LinkedList<Location> newlist = new LinkedList<Location>();
-						newlist.add(readlocation);
-						previousreads.put(cellid, newlist);						
-					}
-					else {
-						//Current read overlaps with the previous reads and is added to the list
-						curlist.add(readlocation);
+					if(sweep.isClusterRead(next)) {
+						int start = sweep.getFragmentStart(next);
+						boolean gap = start > maxend;
+						if(gap && _unit._nextcut > 0 && alignmentstart >= _unit._nextcut) {
+							break;
+						}
+						if(gap && !started && alignmentstart >= _unit._start) {
+							started = true;
+						}
+						maxend = Math.max(maxend, sweep.getFragmentEnd(next));
 					}
-					int newend = Math.max(endposition, end);
-					previousend.put(cellid, newend);
-					
-					
-				}
-				else {
-					String barcode = u.getBarcode(next, _barcodeattribute);
-
-					if(barcode == null) {
+					if(!started) {
 						continue;
 					}
-					String cellid = cellbarcodemap.get(barcode);
-					
-					if(cellid != null) {
-						treadcounts.get(cellid).increment();
-						omittedchromosomes.add(chr);
-						notinchromosome++;
-					}
-					
 				}
-				
+				sweep.process(next);
 			}
-			else {
-				String barcode = u.getBarcode(next, _barcodeattribute);
-
-				if(barcode == null) {
-					continue;
-				}
-				
-				String cellid = cellbarcodemap.get(barcode);
-				
-				if(cellid == null) {
-					continue;
-				}
-				
-				treadcounts.get(cellid).increment();
-
-			}
-			
+			it.close();
+			reader.close();
+			bw.flush();
+			bw.close();
+			sweep.finishUnit(_total);
+			return sweep;
 		}
-
-		bw.flush();
-		bw.close();
-		
-		writeOverlapCounts(vreadcounts, overlapcounts, cellbarcodemap, treadcounts, outdir+"/OverlapSummary.txt");
-		writeReadInsertStatistics(totalreads, validreads, positive, negative, notinchromosome, vrs, insertsizeflag, lowmapq, readlengthsum, insertsizesum, outdir+"/StatSummary.txt");
-
-		if(omittedchromosomes.size() > 0) {
-			System.out.println("The following chromosomes were omitted:");
-			for(Iterator<String> ocit = omittedchromosomes.iterator(); ocit.hasNext();) {
-				System.out.println(ocit.next());
-			}
+	}
+	
+	
+	//If the expected is 2 then we are looking for overlaps of 3 or more
+	private int[] getOverlapThresholds() {
+		int[] rv = new int[_expectedoverlaps.length];
+		for(int i = 0; i < rv.length; i++) {
+			rv[i] = _expectedoverlaps[i]+1;
 		}
-		
-		System.out.println("Complete.");
+		return rv;
 	}
 	
+	/**
+	 * The writer of the overlaps of a run. With several expected overlaps the lines of the sweep
+	 * are split into the overlap file of each, unless tagged is set: a shard keeps them in one
+	 * Overlaps.txt for the merge.
+	 */
+	private BufferedWriter getOverlapsWriter(String outdir, boolean tagged) throws IOException {
+		if(_expectedoverlaps.length == 1) {
+			return getOverlapWriter(getOverlapFile(outdir));
+		}
+		if(tagged) {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(getOverlapFile(outdir)));
+			bw.write("Threshold Index\t");
+			bw.write(getOverlapHeader());
+			return bw;
+		}
+		Writer[] writers = new Writer[_expectedoverlaps.length];
+		for(int i = 0; i < writers.length; i++) {
+			String dir = getExpectedOverlapDirectory(outdir, i);
+			new File(dir).mkdirs();
+			writers[i] = getOverlapWriter(getOverlapFile(dir));
+		}
+		return new BufferedWriter(new OverlapThresholdWriter(writers), 1 << 16);
+	}
 	
 	private BufferedWriter getOverlapWriter(String filepath) throws IOException {
-		BufferedWriter bw = new BufferedWriter(new FileWriter(filepath));
-		
+		if(_binaryoverlaps) {
+			return new BufferedWriter(new BinaryOverlapWriter(filepath), 1 << 16);
+		}
+		BufferedWriter bw;
+		if(_gzipoverlaps) {
+			bw = new BufferedWriter(new OutputStreamWriter(new BlockCompressedOutputStream(new File(filepath))), 1 << 16);
+		}
+		else {
+			bw = new BufferedWriter(new FileWriter(filepath));
+		}
+		bw.write(getOverlapHeader());
+		return bw;
+	}
+	
+	/**
+	 * The writer stage of a standalone sweep. The text output is formatted by an OverlapEncoder,
+	 * without a writer, Overlaps.bin is parsed from the text of the writer.
+	 */
+	private OverlapWriterStage getOverlapWriterStage(BufferedWriter bw, String outdir, CellIndex cells, OverlapSweep sweep, StageStatistics producerstats) throws IOException {
+		if(bw != null) {
+			return new OverlapWriterStage(bw, sweep, producerstats);
+		}
+		String[] files = new String[_expectedoverlaps.length];
+		for(int i = 0; i < files.length; i++) {
+			String dir = getExpectedOverlapDirectory(outdir, i);
+			new File(dir).mkdirs();
+			files[i] = getOverlapFile(dir);
+		}
+		return new OverlapWriterStage(new OverlapEncoder(files, getOverlapHeader(), cells, _gzipoverlaps), sweep, producerstats);
+	}
+	
+	private String getOverlapHeader() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("chr");
 		sb.append("\t");
@@ -421,20 +1726,23 @@ public class OverlapCounter {
 		sb.append("\t");
 		sb.append("Ends");
 		sb.append("\n");
-		
-		bw.write(sb.toString());
-		return bw;
+		return sb.toString();
 	}
 	
 
-	private void writeParameters(String outfile) throws IOException {
+	public void writeParameters(String outfile) throws IOException {
 		
 		BufferedWriter bw = new BufferedWriter(new FileWriter(outfile));
 		StringBuilder sb = new StringBuilder();
 		sb.append("Parameter:\tValue\n");
 		
 		sb.append("expectedoverlap:\t");
-		sb.append(Integer.toString(_expectedoverlap));
+		for(int i = 0; i < _expectedoverlaps.length; i++) {
+			if(i > 0) {
+				sb.append(",");
+			}
+			sb.append(Integer.toString(_expectedoverlaps[i]));
+		}
 		sb.append("\n");
 		
 		sb.append("bambc:\t");
@@ -473,20 +1781,72 @@ public class OverlapCounter {
 		sb.append(Integer.toString(_reversecorrection));
 		sb.append("\n");
 		
+		sb.append("threads:\t");
+		sb.append(Integer.toString(_threads));
+		sb.append("\n");
+		
+		sb.append("rawbam:\t");
+		sb.append(Boolean.toString(_rawbam));
+		sb.append("\n");
+		
+		sb.append("excludedcontigs:\t");
+		sb.append(_excludedcontigs);
+		sb.append("\n");
+		
+		sb.append("binaryoverlaps:\t");
+		sb.append(Boolean.toString(_binaryoverlaps));
+		sb.append("\n");
+		
+		sb.append("gzipoverlaps:\t");
+		sb.append(Boolean.toString(_gzipoverlaps));
+		sb.append("\n");
+		
+		sb.append("rfilterreads:\t");
+		sb.append(_regionfilter != null ? _regionfilter.getFile() : "none");
+		sb.append("\n");
+		
+		sb.append("barcodedups:\t");
+		sb.append(Boolean.toString(_barcodeduplicates));
+		sb.append("\n");
+		
+		sb.append("clustercache:\t");
+		sb.append(_clustercache != null ? _clustercache : "none");
+		sb.append("\n");
+		
+		sb.append("fragmentsout:\t");
+		sb.append(Boolean.toString(_fragmentsout));
+		sb.append("\n");
+		
+		sb.append("peakmatrix:\t");
+		sb.append(_peakfile != null ? _peakfile : "none");
+		sb.append("\n");
+		
+		sb.append("sortmem:\t");
+		sb.append(_sortmemory > 0 ? Long.toString(_sortmemory >> 20) : "none");
+		sb.append("\n");
+		
+		sb.append("correctbc:\t");
+		sb.append(_correctiontag != null ? _correctiontag : "none");
+		sb.append("\n");
+		
+		sb.append("shard:\t");
+		sb.append(_shards > 0 ? Integer.toString(_shard)+"/"+Integer.toString(_shards) : "none");
+		sb.append("\n");
+		
 		bw.write(sb.toString());
 		bw.flush();
 		bw.close();
 		
 	}
 	
-	private void writeReadInsertStatistics(int totalreads, int validreads, int positive, int negative, int notinchromosome, ValidReadSummary vrs, int insert, int mq, long readlengthsum, long insertsizesum, String outfile) throws IOException {
+	private void writeReadInsertStatistics(int totalreads, int validreads, int positive, int negative, int notinchromosome, ValidReadSummary vrs, int insert, int mq, long readlengthsum, long insertsizesum, int filteredreads, int barcodeduplicates, boolean approximate, String outfile) throws IOException {
 		
 		double meanreadlength = (double)readlengthsum/(double)validreads;
 		double meaninsertsize = (double)insertsizesum/(double)validreads;
 		
 		StringBuilder sb = new StringBuilder();
 		
-		sb.append("Total Reads:\t");
+		sb.append(approximate ? "Total Reads (Approximate):\t" : "Total Reads:\t");
 		sb.append(Integer.toString(totalreads));
 		
 		sb.append("\nValid Read Pairs:\t");
@@ -499,7 +1859,7 @@ public class OverlapCounter {
 		sb.append(Integer.toString(negative));
 		
 		sb.append("\nNot in chromosome list:\t");
-		sb.append(Integer.toString(notinchromosome));
+		sb.append(approximate ? "NA" : Integer.toString(notinchromosome));
 
 		sb.append("\nInsert size (<=0 or >");
 		sb.append(Integer.toString(_maxinsertsize));
@@ -543,6 +1903,20 @@ public class OverlapCounter {
 		sb.append(Integer.toString(vrs.getRefMismatch()));
 		sb.append("\n");
 		
+		if(filteredreads >= 0) {
+			sb.append("Valid Read Pairs in Filtered Regions:\t");
+			sb.append(Integer.toString(filteredreads));
+			sb.append("\n");
+		}
+		if(barcodeduplicates >= 0) {
+			sb.append("Barcode Aware Duplicates:\t");
+			sb.append(Integer.toString(barcodeduplicates));
+			sb.append("\n");
+		}
+		if(approximate) {
+			sb.append("Contigs not in chromosome list:\tSkipped, the read counts only include the chromosome list\n");
+		}
+		
 		BufferedWriter bw = new BufferedWriter(new FileWriter(outfile));
 		bw.write(sb.toString());
 		bw.flush();
@@ -550,7 +1924,8 @@ public class OverlapCounter {
 		
 	}
 	
-	private void writeOverlapCounts(TreeMap<String, Incrementor> numreads, TreeMap<String, Incrementor> overlaps, TreeMap<String, String> barcode, TreeMap<String, Incrementor> tnumreads, String outfile) throws IOException {
+	//cnumreads are the corrected reads of the cells, null without barcode correction
+	private void writeOverlapCounts(int[] numreads, int[] overlaps, CellIndex cells, int[] tnumreads, int[] cnumreads, boolean approximate, String outfile) throws IOException {
 		BufferedWriter bw = new BufferedWriter(new FileWriter(outfile));
 		
 		StringBuilder sb = new StringBuilder();
@@ -562,33 +1937,30 @@ public class OverlapCounter {
 		sb.append("\t");
 		sb.append("Barcode");
 		sb.append("\t");
-		sb.append("Total Number of Reads");
+		sb.append(approximate ? "Total Number of Reads (Approximate)" : "Total Number of Reads");
+		if(cnumreads != null) {
+			sb.append("\t");
+			sb.append("Number of Corrected Reads");
+		}
 		sb.append("\n");
 		
 		bw.write(sb.toString());
 		
-		TreeMap<String, String> revbarcode = new TreeMap<String, String>();
-		for (Iterator<Entry<String, String>> it = barcode.entrySet().iterator(); it.hasNext();) {
-			Entry<String, String> next = it.next();
-			String cellid = next.getValue();
-			String curbarcode = next.getKey();
-			revbarcode.put(cellid, curbarcode);
-		}
-		
-		
-		for(Iterator<String> it = numreads.keySet().iterator(); it.hasNext();) {
-			String cellid = it.next();
-			
+		for(int i = 0; i < cells.size(); i++) {
 			sb = new StringBuilder();
-			sb.append(cellid);
+			sb.append(cells.getCellId(i));
 			sb.append("\t");
-			sb.append(Integer.toString(numreads.get(cellid).getValue()));
+			sb.append(Integer.toString(numreads[i]));
 			sb.append("\t");
-			sb.append(Integer.toString(overlaps.get(cellid).getValue()));
+			sb.append(Integer.toString(overlaps[i]));
 			sb.append("\t");
-			sb.append(revbarcode.get(cellid));
+			sb.append(cells.getBarcode(i));
 			sb.append("\t");
-			sb.append(Integer.toString(tnumreads.get(cellid).getValue()));
+			sb.append(Integer.toString(tnumreads[i]));
+			if(cnumreads != null) {
+				sb.append("\t");
+				sb.append(Integer.toString(cnumreads[i]));
+			}
 			sb.append("\n");
 			bw.write(sb.toString());
 		}
@@ -598,197 +1970,4 @@ public class OverlapCounter {
 		
 	}
 	
-	private void writeOverlaps(BufferedWriter bw, String cellid, LinkedList<OverlapLocation> ol) throws IOException {
-
-		StringBuilder sb = new StringBuilder();
-		for(Iterator<OverlapLocation> olit = ol.iterator(); olit.hasNext();) {
-			OverlapLocation curoverlap = olit.next();
-			
-			sb.append(curoverlap.getChr());
-			sb.append("\t");
-			sb.append(Integer.toString(curoverlap.getStart()));
-			sb.append("\t");
-			sb.append(Integer.toString(curoverlap.getEnd()));
-			sb.append("\t");
-			sb.append(cellid);
-			sb.append("\t");
-			sb.append(Integer.toString(curoverlap.getMinOverlap()));
-			sb.append("\t");
-			sb.append(Integer.toString(curoverlap.getMaxOverlap()));
-			sb.append("\t");
-			sb.append(Double.toString(curoverlap.getMeanMappingQuality()));
-			sb.append("\t");
-			sb.append(Integer.toString(curoverlap.getMinMappingQuality()));
-			sb.append("\t");
-			sb.append(Integer.toString(curoverlap.getMaxMappingQuality()));
-			sb.append("\t");
-			sb.append(curoverlap.getStarts());
-			sb.append("\t");
-			sb.append(curoverlap.getEnds());
-			sb.append("\n");
-		}
-		
-		bw.write(sb.toString());
-	}
-
-	private LinkedList<OverlapLocation> findOverlaps(LinkedList<Location> l, int overlapthresh, String chr) {
-		if(l == null) {
-			return new LinkedList<OverlapLocation>();
-		}
-		LinkedList<OverlapIndex> ol = new LinkedList<OverlapIndex>();
-		
-		for(Iterator<Location> it = l.iterator(); it.hasNext();) {
-			Location next = it.next();
-			ol.add(new OverlapIndex(next.getStart(),1));
-			ol.add(new OverlapIndex(next.getEnd(),-1));
-		}
-		
-		ol.sort(new OverlapIndexComparator());
-		
-		int runningsum = 0;
-		int prevposition = -1;
-		LinkedList<OverlapIndex> runningsumlist = new LinkedList<OverlapIndex>();
-		
-		for(Iterator<OverlapIndex> it = ol.iterator(); it.hasNext();){
-			OverlapIndex next = it.next();
-			runningsum += next.getValue();
-			int position = next.getPosition();
-			if(position == prevposition) {
-				runningsumlist.getLast().setValue(runningsum);
-			}
-			else {
-				runningsumlist.add(new OverlapIndex(position, runningsum));
-			}
-			prevposition = position;
-		}
-		
-		
-		//Scan the running sum list and find all subintervals where the overlap is >= the overlapthresh,
-		//breaking when dropping less than overlapthresh
-		LinkedList<OverlapLocation> intervals = new LinkedList<OverlapLocation>();
-
-		boolean start = false;
-		int startposition = 0;
-		int minoverlap = 0;
-		int maxoverlap = 0;
-		
-		for(Iterator<OverlapIndex> it = runningsumlist.iterator(); it.hasNext();) {
-			OverlapIndex next = it.next();
-			int curposition = next.getPosition();
-			int curvalue = next.getValue();
-			if(curvalue < overlapthresh && start) {
-				intervals.add(new OverlapLocation(chr, startposition, curposition, minoverlap, maxoverlap));
-				start = false;
-				startposition = 0;
-				minoverlap = 0;
-				maxoverlap = 0;
-			}
-			else if(curvalue >= overlapthresh) {
-				if(!start) {
-					start = true;
-					startposition = curposition;
-					minoverlap = curvalue;
-				}
-				minoverlap = Math.min(minoverlap, curvalue);
-				maxoverlap = Math.max(curvalue, maxoverlap);
-			}
-			
-		}
-		
-		//Include overlaps that extend for the rest of the list via same end points
-		if(start) {
-			intervals.add(new OverlapLocation(chr, startposition, runningsumlist.getLast().getPosition(), minoverlap, maxoverlap));
-		}
-		
-		setOverlapInfo(intervals, l);
-		return intervals;
-		
-	}
-	
-	private void setOverlapInfo(LinkedList<OverlapLocation> ol, LinkedList<Location> l) {
-		Iterator<OverlapLocation> oli = ol.iterator();
-		Iterator<Location> li = l.iterator();
-		
-		LinkedList<Location> multioverlaps = new LinkedList<Location>();
-		while(oli.hasNext()) {
-			OverlapLocation curol = oli.next();
-			int curolstart = curol.getStart();
-			int curolend = curol.getEnd();
-			LinkedList<Location> curoverlaps = new LinkedList<Location>();
-
-			//Check all previously checked locations that could be overlapping the current iteration
-			LinkedList<Location> nextmultioverlaps = new LinkedList<Location>();
-			for(Iterator<Location> poit = multioverlaps.iterator(); poit.hasNext();) {
-				Location nextpo = poit.next();
-				
-				if(nextpo.getEnd() >= curolstart && curolend >= nextpo.getStart()) {
-					curoverlaps.add(nextpo);
-				}
-				
-				if(nextpo.getEnd() >= curolend) {
-					nextmultioverlaps.add(nextpo);
-				}
-				
-			}
-			multioverlaps = nextmultioverlaps;
-			
-			//Check new locations until the next start > end
-			while(li.hasNext()) {
-				Location nextloci = li.next();
-				
-				if(nextloci.getEnd() >= curolstart && curolend >= nextloci.getStart()) {
-					curoverlaps.add(nextloci);
-				}
-				
-				if(nextloci.getEnd() >= curolend) {
-					multioverlaps.add(nextloci);
-				}
-			}
-			
-			curol.setOverlapInfo(curoverlaps);
-		}
-		
-	}
-	
-	private class OverlapIndex {
-		
-		private int _position;
-		private int _value;
-		
-		public OverlapIndex(int position, int value) {
-			_position = position;
-			_value = value;
-		}
-		
-		public int getPosition() {
-			return _position;
-		}
-		
-		public int getValue() {
-			return _value;
-		}
-		
-		public void setValue(int v) {
-			_value = v;
-		}
-		
-	}
-	
-	private class OverlapIndexComparator implements Comparator<OverlapIndex> {
-
-		@Override
-		public int compare(OverlapIndex o1, OverlapIndex o2) {
-			if(o1.getPosition() < o2.getPosition()) {
-				return -1;
-			}
-			else if(o1.getPosition() > o2.getPosition()) {
-				return 1;
-			}
-			return 0;
-		}
-		
-	}
-	
-
-	
 }
@@ -0,0 +1,301 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.jax.snatacoverlapcounter.util.CellIndex;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Formats overlaps as Overlaps.txt rows straight into a reusable buffer, without the strings of
+ * OverlapSweep.formatOverlaps, and writes the buffer through a FileChannel when it is full. The
+ * rows are the same bytes as those of formatOverlaps. With several overlap thresholds each
+ * threshold has its own file and a row goes to the file of its threshold index.
+ *
+ * Integers are written digit by digit. A whole mean mapping quality is written as its integer
+ * and ".0", the other means are formatted by Double.toString once and kept in a small cache.
+ *
+ * With compression the files are BGZF, which gzip reads, and the full buffers of each file are
+ * compressed on a thread of the file.
+ */
+public class OverlapEncoder {
+
+	private static final int BUFFERSIZE = 1 << 20;
+	private static final int BUFFERS = 4;
+	//The most bytes of an integer and its separator, and of a row without its chromosome, cell and reads
+	private static final int INTBYTES = 12;
+	private static final int ROWBYTES = 128;
+	private static final int MEANCACHEBITS = 10;
+	private static final byte TAB = '\t';
+	private static final byte[] NOMAPPINGQUALITY = ".\t.\t.".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] WHOLE = ".0".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] MININT = Integer.toString(Integer.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+	private Output[] _outputs;
+	private Charset _charset;
+	private byte[][] _cellids;
+	private String _lastchr;
+	private byte[] _lastchrbytes;
+	private long[] _meankeys;
+	private byte[][] _meantexts;
+
+	/**
+	 * One file per overlap threshold, each starts with the header. Compressed files are BGZF.
+	 */
+	public OverlapEncoder(String[] files, String header, CellIndex cells, boolean compress) throws IOException {
+		//The charset of the FileWriter of formatOverlaps
+		_charset = Charset.defaultCharset();
+		_cellids = new byte[cells.size()][];
+		for(int i = 0; i < _cellids.length; i++) {
+			_cellids[i] = cells.getCellId(i).getBytes(_charset);
+		}
+		_meankeys = new long[1 << MEANCACHEBITS];
+		_meantexts = new byte[1 << MEANCACHEBITS][];
+
+		byte[] headerbytes = header.getBytes(_charset);
+		_outputs = new Output[files.length];
+		for(int i = 0; i < files.length; i++) {
+			_outputs[i] = new Output(files[i], compress);
+			_outputs[i].reserve(headerbytes.length).put(headerbytes);
+		}
+	}
+
+	//The overlaps of a cluster of the cell, mean, min and max mapping quality are "." without mapping qualities
+	public void encode(int cellidx, LinkedList<OverlapLocation> ol, boolean mappingquality) throws IOException {
+		byte[] cellid = _cellids[cellidx];
+		for(Iterator<OverlapLocation> it = ol.iterator(); it.hasNext();) {
+			OverlapLocation next = it.next();
+			byte[] chr = getChromosome(next.getChr());
+			int n = next.getReadCount();
+			Output out = _outputs[_outputs.length == 1 ? 0 : next.getThresholdIndex()];
+			ByteBuffer buffer = out.reserve(chr.length+cellid.length+ROWBYTES+2*n*INTBYTES);
+
+			buffer.put(chr);
+			buffer.put(TAB);
+			putInt(buffer, next.getStart());
+			buffer.put(TAB);
+			putInt(buffer, next.getEnd());
+			buffer.put(TAB);
+			buffer.put(cellid);
+			buffer.put(TAB);
+			putInt(buffer, next.getMinOverlap());
+			buffer.put(TAB);
+			putInt(buffer, next.getMaxOverlap());
+			buffer.put(TAB);
+			if(mappingquality) {
+				putMean(buffer, next.getMeanMappingQuality());
+				buffer.put(TAB);
+				putInt(buffer, next.getMinMappingQuality());
+				buffer.put(TAB);
+				putInt(buffer, next.getMaxMappingQuality());
+			}
+			else {
+				buffer.put(NOMAPPINGQUALITY);
+			}
+			buffer.put(TAB);
+			for(int i = 0; i < n; i++) {
+				putInt(buffer, next.getReadStart(i));
+				buffer.put((byte) ',');
+			}
+			buffer.put(TAB);
+			for(int i = 0; i < n; i++) {
+				putInt(buffer, next.getReadEnd(i));
+				buffer.put((byte) ',');
+			}
+			buffer.put((byte) '\n');
+		}
+	}
+
+	//Writes the rest of the rows and closes the files
+	public void close() throws IOException {
+		IOException failure = null;
+		for(int i = 0; i < _outputs.length; i++) {
+			try {
+				_outputs[i].close();
+			} catch (IOException e) {
+				failure = failure == null ? e : failure;
+			}
+		}
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+	//The rows of a cluster are on one chromosome, so the bytes of the last one are kept
+	private byte[] getChromosome(String chr) {
+		if(chr != _lastchr && !chr.equals(_lastchr)) {
+			_lastchrbytes = chr.getBytes(_charset);
+		}
+		_lastchr = chr;
+		return _lastchrbytes;
+	}
+
+	private void putInt(ByteBuffer buffer, int value) {
+		if(value < 0) {
+			if(value == Integer.MIN_VALUE) {
+				buffer.put(MININT);
+				return;
+			}
+			buffer.put((byte) '-');
+			value = -value;
+		}
+		int digits = 1;
+		for(int v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+		int pos = buffer.position();
+		for(int i = pos+digits-1; i >= pos; i--) {
+			buffer.put(i, (byte) ('0'+value%10));
+			value /= 10;
+		}
+		//Through Buffer, the ByteBuffer overloads of position, flip and clear are not in Java 8
+		((Buffer) buffer).position(pos+digits);
+	}
+
+	//The same text as Double.toString, which switches to an exponent at 10^7
+	private void putMean(ByteBuffer buffer, double mean) {
+		if(mean >= 0 && mean < 1e7 && mean == (int) mean) {
+			putInt(buffer, (int) mean);
+			buffer.put(WHOLE);
+			return;
+		}
+		long bits = Double.doubleToLongBits(mean);
+		int slot = ((int) (bits ^ (bits >>> 32))*0x9e3779b9) >>> (32-MEANCACHEBITS);
+		if(_meantexts[slot] == null || _meankeys[slot] != bits) {
+			_meankeys[slot] = bits;
+			_meantexts[slot] = Double.toString(mean).getBytes(StandardCharsets.US_ASCII);
+		}
+		buffer.put(_meantexts[slot]);
+	}
+
+	/**
+	 * The buffer and file of one threshold. Without compression the buffer is direct and written
+	 * to the channel. With compression full buffers go to the thread of the file, which has
+	 * BUFFERS buffers, the encoder waits once they are all full.
+	 */
+	private static class Output implements Runnable {
+
+		private FileOutputStream _out;
+		private FileChannel _channel;
+		private BlockCompressedOutputStream _bgzf;
+		private ByteBuffer _buffer;
+		private ArrayBlockingQueue<ByteBuffer> _full, _free;
+		private Thread _thread;
+		private volatile IOException _failure;
+
+		public Output(String file, boolean compress) throws IOException {
+			if(compress) {
+				_bgzf = new BlockCompressedOutputStream(new File(file));
+				_full = new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+				_free = new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+				for(int i = 1; i < BUFFERS; i++) {
+					_free.add(ByteBuffer.allocate(BUFFERSIZE));
+				}
+				_buffer = ByteBuffer.allocate(BUFFERSIZE);
+				_thread = new Thread(this, "OverlapCompressor");
+				_thread.setDaemon(true);
+				_thread.start();
+			}
+			else {
+				_out = new FileOutputStream(file);
+				_channel = _out.getChannel();
+				_buffer = ByteBuffer.allocateDirect(BUFFERSIZE);
+			}
+		}
+
+		//The buffer with at least size bytes remaining
+		public ByteBuffer reserve(int size) throws IOException {
+			if(_buffer.remaining() < size) {
+				writeBuffer();
+				if(_buffer.capacity() < size) {
+					//A row larger than the buffer, the larger buffer is kept
+					_buffer = _bgzf != null ? ByteBuffer.allocate(size) : ByteBuffer.allocateDirect(size);
+				}
+			}
+			return _buffer;
+		}
+
+		public void close() throws IOException {
+			writeBuffer();
+			if(_bgzf != null) {
+				//An empty buffer ends the stream
+				try {
+					_full.put(_buffer);
+					_thread.join();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				if(_failure != null) {
+					throw _failure;
+				}
+			}
+			else {
+				_channel.close();
+				_out.close();
+			}
+		}
+
+		private void writeBuffer() throws IOException {
+			if(_buffer.position() == 0) {
+				return;
+			}
+			if(_bgzf != null) {
+				if(_failure != null) {
+					throw _failure;
+				}
+				try {
+					_full.put(_buffer);
+					_buffer = _free.take();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			else {
+				((Buffer) _buffer).flip();
+				while(_buffer.hasRemaining()) {
+					_channel.write(_buffer);
+				}
+				((Buffer) _buffer).clear();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					ByteBuffer buffer = _full.take();
+					if(buffer.position() == 0) {
+						break;
+					}
+					//After a failure the buffers are still taken so that the encoder does not block
+					if(_failure == null) {
+						try {
+							_bgzf.write(buffer.array(), 0, buffer.position());
+						} catch (IOException e) {
+							_failure = e;
+						}
+					}
+					((Buffer) buffer).clear();
+					_free.add(buffer);
+				}
+				if(_failure == null) {
+					_bgzf.close();
+				}
+			} catch (InterruptedException e) {
+				_failure = new IOException(e);
+			} catch (IOException e) {
+				_failure = e;
+			}
+		}
+	}
+}
@@ -1,8 +1,5 @@
 package org.jax.snatacoverlapcounter;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-
 public class OverlapLocation extends Location {
 
 	private int _minoverlap;
@@ -11,7 +8,10 @@ public class OverlapLocation extends Location {
 	private int _minmap;
 	private int _maxmap;
 	private double _meanmap;
-	private LinkedList<Location> _overlaplocations;
+	private int[] _overlapstarts;
+	private int[] _overlapends;
+	private int _from, _to;
+	private int _thresholdidx;
 	
 	public OverlapLocation(String chr, int start, int end, int minoverlap, int maxoverlap) {
 		super(chr, start, end, 0);
@@ -19,19 +19,31 @@ public class OverlapLocation extends Location {
 		_maxoverlap = maxoverlap;
 	}
 	
-	public void setOverlapInfo(LinkedList<Location> l) {
-		_overlaplocations = l;
+	//The reads of this overlap are [from, to) of the arrays, which are shared by the overlaps of a cluster
+	public void setOverlapInfo(int[] starts, int[] ends, int[] mapq, int from, int to) {
+		_overlapstarts = starts;
+		_overlapends = ends;
+		_from = from;
+		_to = to;
 		_minmap = Integer.MAX_VALUE;
 		_maxmap = Integer.MIN_VALUE;
 		double runningmapping = 0;
-		for(Iterator<Location> it = l.iterator(); it.hasNext();) {
-			Location next = it.next();
-			int mq = next.getMappingQuality();
+		for(int i = from; i < to; i++) {
+			int mq = mapq[i];
 			_minmap = Math.min(_minmap, mq);
 			_maxmap = Math.max(_maxmap, mq);
 			runningmapping += mq;
 		}
-		_meanmap = runningmapping/l.size();
+		_meanmap = runningmapping/(to-from);
+	}
+	
+	//The index of the overlap threshold that found this overlap, when there are several
+	public void setThresholdIndex(int thresholdidx) {
+		_thresholdidx = thresholdidx;
+	}
+	
+	public int getThresholdIndex() {
+		return _thresholdidx;
 	}
 	
 	public int getMinOverlap() {
@@ -54,24 +66,33 @@ public class OverlapLocation extends Location {
 		return _meanmap;
 	}
 	
-	public LinkedList<Location> getOverlapLocation() {
-		return _overlaplocations;
+	//The reads of the overlap, for formatting them without the strings of getStarts and getEnds
+	public int getReadCount() {
+		return _to-_from;
 	}
-	
+
+	public int getReadStart(int i) {
+		return _overlapstarts[_from+i];
+	}
+
+	public int getReadEnd(int i) {
+		return _overlapends[_from+i];
+	}
+
 	public String getStarts() {
 		StringBuilder sb = new StringBuilder();
-		for(Iterator<Location> it = _overlaplocations.iterator(); it.hasNext();) {
-			Location next = it.next();
-			sb.append(next.getStart()+",");
+		for(int i = _from; i < _to; i++) {
+			sb.append(_overlapstarts[i]);
+			sb.append(',');
 		}
 		return sb.toString();
 	}
 
 	public String getEnds() {
 		StringBuilder sb = new StringBuilder();
-		for(Iterator<Location> it = _overlaplocations.iterator(); it.hasNext();) {
-			Location next = it.next();
-			sb.append(next.getEnd()+",");
+		for(int i = _from; i < _to; i++) {
+			sb.append(_overlapends[i]);
+			sb.append(',');
 		}
 		return sb.toString();
 	}
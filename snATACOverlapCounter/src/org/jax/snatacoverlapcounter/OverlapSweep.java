@@ -0,0 +1,1266 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.jax.snatacoverlapcounter.util.BarcodeCorrector;
+import org.jax.snatacoverlapcounter.util.BarcodeDuplicateFilter;
+import org.jax.snatacoverlapcounter.util.CellIndex;
+import org.jax.snatacoverlapcounter.util.RegionFilter;
+import org.jax.snatacoverlapcounter.util.Util;
+import org.jax.snatacoverlapcounter.util.ValidReadSummary;
+
+import htsjdk.samtools.BAMRecord;
+import htsjdk.samtools.SAMFlag;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Per-read state of the overlap counter: read filters, per-cell read clusters and counts.
+ * Cells are the dense indices of a CellIndex and chromosomes are reference indices.
+ *
+ * A standalone sweep sees the whole BAM and writes every overlap directly. A unit sweep
+ * only sees part of the BAM (see OverlapCounter.findOverlapsParallel), so until its first
+ * chromosome change it cannot flush clusters that started in an earlier unit. Instead it
+ * records where those flushes happen and leaves them to the merge step.
+ */
+public class OverlapSweep {
+
+	private short _barcodetag, _correctiontag;
+	private int _mapqthreshold, _maxinsertsize, _forwardcorrection, _reversecorrection, _overlapthresh;
+	private String[] _refnames;
+	private boolean[] _inchromosomes;
+	private CellIndex _cells;
+	private Util _u;
+
+	private BufferedWriter _bw;
+	private OverlapWriterStage _writerstage;
+	private long _written;
+	private boolean _ownsclusters, _hasmappingquality;
+
+	private int _totalreads, _lowmapq, _insertsizeflag, _positive, _negative, _notinchromosome, _validreads, _filteredreads, _barcodeduplicates;
+	private long _readlengthsum, _insertsizesum;
+	private ValidReadSummary _vrs;
+	private RegionFilter.Cursor _regioncursor;
+	private BarcodeDuplicateFilter _duplicatefilter;
+	private BarcodeCorrector _corrector;
+
+	//Cluster sizes in powers of two, bucket i holds the sizes [2^i, 2^(i+1)), and the nanoseconds spent finding overlaps
+	private long[] _clustersizes;
+	private long _overlaptime, _overlapinfotime;
+
+	private int _currefindex, _firstrefindex;
+	private String _curchr;
+	private ReadCluster[] _clusters;
+	private int[] _startbuffer, _endbuffer, _overlapbuffer, _activebuffer, _offsetbuffer;
+	private long[] _orderbuffer;
+	private int[] _treadcounts, _vreadcounts, _creadcounts;
+	//The overlap counts of each threshold
+	private int[][] _overlapcounts;
+	private int[] _overlapthresholds;
+	private boolean[] _omittedchromosomes;
+	private ClusterCache _clustercache;
+	private ReadSink[] _sinks;
+	private ReadSorter _sorter;
+
+	//Unit bookkeeping for clusters owned by the preceding unit
+	private boolean[] _touched;
+	private long[] _markeroffsets;
+	private int[] _markercells;
+	private int _markercount;
+	private long _flushoffset;
+	private TreeMap<Integer, String> _flushoverlaps;
+	private UnitResult _unitresult;
+
+	public OverlapSweep(String bca, int mapqthresh, int maxinsertsize, int forwardcorrection, int reversecorrection, int overlapthresh, String[] refnames, boolean[] inchromosomes, CellIndex cells, BufferedWriter bw, boolean ownsclusters) {
+		_mapqthreshold = mapqthresh;
+		_maxinsertsize = maxinsertsize;
+		_forwardcorrection = forwardcorrection;
+		_reversecorrection = reversecorrection;
+		_overlapthresh = overlapthresh;
+		_refnames = refnames;
+		_inchromosomes = inchromosomes;
+		_cells = cells;
+		_u = new Util();
+		_barcodetag = _u.getBinaryTag(bca);
+		_bw = bw;
+		_written = 0;
+		_ownsclusters = ownsclusters;
+		_hasmappingquality = true;
+
+		_vrs = new ValidReadSummary();
+		_clustersizes = new long[32];
+		_currefindex = -1;
+		_firstrefindex = -1;
+		int numcells = cells.size();
+		_clusters = new ReadCluster[numcells];
+		_startbuffer = new int[0];
+		_endbuffer = new int[0];
+		_overlapbuffer = new int[0];
+		_activebuffer = new int[0];
+		_offsetbuffer = new int[0];
+		_orderbuffer = new long[0];
+		_treadcounts = new int[numcells];
+		_vreadcounts = new int[numcells];
+		_creadcounts = new int[numcells];
+		_overlapcounts = new int[1][numcells];
+		_omittedchromosomes = new boolean[refnames.length];
+
+		_touched = new boolean[numcells];
+		_markeroffsets = new long[16];
+		_markercells = new int[16];
+		_markercount = 0;
+		_flushoffset = -1;
+	}
+
+	public void process(SAMRecord next) throws IOException {
+		process(next.getReferenceIndex(), next.getAlignmentStart(), next.getInferredInsertSize(), next.getMappingQuality(), ValidReadSummary.getFlags(next), next.getReadLength(), getCellIndex(next));
+	}
+
+	public void process(ReadBatch batch, int i) throws IOException {
+		process(batch.getReferenceIndex(i), batch.getAlignmentStart(i), batch.getInsertSize(i), batch.getMappingQuality(i), batch.getFlags(i), batch.getReadLength(i), batch.getCellIndex(i));
+	}
+
+	private void process(int refindex, int alignmentstart, int insertsize, int curmapq, int flags, int readlength, int cellidx) throws IOException {
+		_totalreads++;
+		//-1 has every bit set
+		if(cellidx >= BarcodeCorrector.CORRECTED) {
+			cellidx &= ~BarcodeCorrector.CORRECTED;
+			_creadcounts[cellidx]++;
+		}
+		if(curmapq <= _mapqthreshold) {
+			_lowmapq++;
+		}
+
+		boolean isnegative = (flags & SAMFlag.READ_REVERSE_STRAND.intValue()) != 0;
+		if(isnegative) {
+			_negative++;
+		}
+		else {
+			_positive++;
+		}
+
+		if(insertsize > 0 && curmapq > _mapqthreshold && _vrs.isValidRead(flags)) {
+
+			if(refindex >= 0 && _inchromosomes[refindex]) {
+
+				if(_sorter != null) {
+					_sorter.addChromosome(refindex);
+				}
+				else if(refindex != _currefindex) {
+					changeChromosome(refindex);
+				}
+
+				if(cellidx < 0) {
+					return;
+				}
+
+				int orig_start = alignmentstart-1;
+				int start = orig_start+_forwardcorrection;
+				int end = orig_start+insertsize+_reversecorrection;
+				int endtoendinsertsize = end-start;
+
+
+				if(endtoendinsertsize > _maxinsertsize || endtoendinsertsize <= 0) {
+					_insertsizeflag++;
+					return;
+				}
+
+
+				if(_duplicatefilter != null && _duplicatefilter.isDuplicate(refindex, alignmentstart, cellidx, insertsize, isnegative)) {
+					_barcodeduplicates++;
+					_treadcounts[cellidx]++;
+					return;
+				}
+
+				_readlengthsum += readlength;
+				_insertsizesum += endtoendinsertsize;
+				_validreads += 1;
+
+				_vreadcounts[cellidx]++;
+				_treadcounts[cellidx]++;
+
+				if(_sorter != null) {
+					_sorter.add(refindex, start, end, cellidx, curmapq);
+					return;
+				}
+				addToSinks(cellidx, start, end);
+				if(isFiltered(start, end)) {
+					return;
+				}
+				addToCluster(cellidx, start, end, curmapq);
+
+			}
+			else if(cellidx >= 0) {
+				_treadcounts[cellidx]++;
+				if(refindex >= 0) {
+					_omittedchromosomes[refindex] = true;
+				}
+				_notinchromosome++;
+			}
+
+		}
+		else if(cellidx >= 0) {
+			_treadcounts[cellidx]++;
+		}
+	}
+
+	/**
+	 * Fragment file input. The fragment is already a read pair, so only the cell, insert size
+	 * and chromosome filters apply and no mapping quality is reported.
+	 */
+	public void processFragment(int refindex, int fragmentstart, int fragmentend, int cellidx) throws IOException {
+		_totalreads++;
+		if(cellidx < 0) {
+			return;
+		}
+		_treadcounts[cellidx]++;
+
+		int start = fragmentstart+_forwardcorrection;
+		int end = fragmentend+_reversecorrection;
+		int endtoendinsertsize = end-start;
+
+		if(endtoendinsertsize > _maxinsertsize || endtoendinsertsize <= 0) {
+			_insertsizeflag++;
+			return;
+		}
+
+		if(!_inchromosomes[refindex]) {
+			_omittedchromosomes[refindex] = true;
+			_notinchromosome++;
+			return;
+		}
+
+		if(refindex != _currefindex) {
+			changeChromosome(refindex);
+		}
+
+		_insertsizesum += endtoendinsertsize;
+		_validreads += 1;
+		_vreadcounts[cellidx]++;
+
+		addToSinks(cellidx, start, end);
+		if(isFiltered(start, end)) {
+			return;
+		}
+		addToCluster(cellidx, start, end, 0);
+	}
+
+	/**
+	 * The valid reads of the sorter (see ReadSorter) in coordinate order, they were counted by
+	 * process already. A cell index of -1 only changes the chromosome, like the reads of process
+	 * that are not in a cell.
+	 */
+	public void processSorted(int refindex, int start, int end, int cellidx, int mappingquality) throws IOException {
+		if(refindex != _currefindex) {
+			changeChromosome(refindex);
+		}
+		if(cellidx < 0) {
+			return;
+		}
+		addToSinks(cellidx, start, end);
+		if(isFiltered(start, end)) {
+			return;
+		}
+		addToCluster(cellidx, start, end, mappingquality);
+	}
+
+	/**
+	 * Fragment files have no header, so their chromosomes are added as they are found. The
+	 * arrays only grow and keep the existing indices.
+	 */
+	public void setReferences(String[] refnames, boolean[] inchromosomes) {
+		_refnames = refnames;
+		_inchromosomes = inchromosomes;
+		_omittedchromosomes = Arrays.copyOf(_omittedchromosomes, refnames.length);
+	}
+
+	//Fragment files have no mapping quality, "." is written in its columns instead
+	public void setMappingQualityReported(boolean reported) {
+		_hasmappingquality = reported;
+	}
+
+	/**
+	 * Finds the overlaps of several thresholds at once, the first one is the threshold of the
+	 * constructor. Each written overlap line then starts with the index of its threshold and a
+	 * tab, see OverlapThresholdWriter. The thresholds must be ascending.
+	 */
+	public void setOverlapThresholds(int[] thresholds) {
+		if(thresholds.length > 1) {
+			_overlapthresholds = thresholds;
+			_overlapcounts = new int[thresholds.length][_cells.size()];
+		}
+	}
+
+	/**
+	 * Saves the clusters of two or more reads to the cache as they are written. Only for a
+	 * standalone sweep, must be set before the first read.
+	 */
+	public void setClusterCache(ClusterCache clustercache) {
+		_clustercache = clustercache;
+	}
+
+	/**
+	 * Drops the valid reads that overlap the regions of the filter before they enter a cluster.
+	 * They are still counted as valid reads. Must be set before the first read.
+	 */
+	public void setRegionFilter(RegionFilter filter) {
+		_regioncursor = filter == null ? null : filter.getCursor();
+	}
+
+	/**
+	 * Marks the duplicates by cell, start, end and strand instead of by the duplicate flag, which
+	 * ignores the cell barcodes. The duplicates are not valid reads. Must be set before the first read.
+	 */
+	public void setBarcodeDuplicates(boolean barcodeduplicates) {
+		_duplicatefilter = barcodeduplicates ? new BarcodeDuplicateFilter() : null;
+		_vrs.setDuplicateFlagChecked(!barcodeduplicates);
+	}
+
+	/**
+	 * Reads whose barcode tag is missing or not a cell are assigned to the cell of their corrected
+	 * barcode (see BarcodeCorrector), and counted as corrected reads of the cell. The sweep keeps
+	 * its own copy of the corrector. Must be set before the first read.
+	 */
+	public void setBarcodeCorrector(BarcodeCorrector corrector) {
+		_corrector = corrector != null ? new BarcodeCorrector(corrector) : null;
+		_correctiontag = corrector != null ? _u.getBinaryTag(corrector.getTag()) : 0;
+	}
+
+	/**
+	 * For input that is not coordinate sorted: process only counts the reads and hands the valid
+	 * ones to the sorter, which replays them in coordinate order to processSorted. Not with
+	 * setBarcodeDuplicates, which needs the reads in coordinate order. Only for a standalone
+	 * sweep, must be set before the first read.
+	 */
+	public void setReadSorter(ReadSorter sorter) {
+		_sorter = sorter;
+	}
+
+	/**
+	 * Hands every valid read to the sinks, including the ones dropped by the region filter. Only
+	 * for a standalone sweep, must be set before the first read.
+	 */
+	public void setReadSinks(ReadSink[] sinks) {
+		_sinks = sinks;
+	}
+
+	private void addToSinks(int cellidx, int start, int end) throws IOException {
+		if(_sinks != null) {
+			for(int i = 0; i < _sinks.length; i++) {
+				_sinks[i].add(cellidx, start, end);
+			}
+		}
+	}
+
+	private boolean isFiltered(int start, int end) {
+		if(_regioncursor != null && _regioncursor.overlaps(start, end)) {
+			_filteredreads++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Hands the overlaps to a writer thread instead of writing them to the BufferedWriter. Only
+	 * for standalone sweeps, a unit sweep needs the written offsets.
+	 */
+	public void setWriterStage(OverlapWriterStage writerstage) {
+		_writerstage = writerstage;
+	}
+
+	private void addToCluster(int cellidx, int start, int end, int mappingquality) throws IOException {
+		if(!_ownsclusters && !_touched[cellidx]) {
+			//The cluster this read closes belongs to the preceding unit
+			_touched[cellidx] = true;
+			addMarker(cellidx);
+		}
+
+		ReadCluster cluster = _clusters[cellidx];
+		if(cluster == null) {
+			cluster = new ReadCluster();
+			_clusters[cellidx] = cluster;
+		}
+
+		if(cluster.getEnd() < start) {
+			cacheCluster(cellidx, cluster);
+			writeOverlaps(cellidx, findClusterOverlaps(cluster));
+
+			//Start a new cluster
+			cluster.clear();
+		}
+		//Otherwise the current read overlaps with the previous reads and is added to the cluster
+		cluster.add(start, end, mappingquality);
+	}
+
+	/**
+	 * Only reads the CellIndex, so the decoder stage can call it on its own thread. The barcode of
+	 * a BAM record is looked up in its aux bytes, without decoding its attributes into Strings.
+	 * With a BarcodeCorrector, the cell of a corrected barcode has BarcodeCorrector.CORRECTED set.
+	 * The corrector caches its answers, so only one thread at a time may call this then.
+	 */
+	public int getCellIndex(SAMRecord next) {
+		int cellidx = getCellIndex(next, false);
+		if(cellidx < 0 && _corrector != null) {
+			cellidx = getCellIndex(next, true);
+			if(cellidx >= 0) {
+				cellidx |= BarcodeCorrector.CORRECTED;
+			}
+		}
+		return cellidx;
+	}
+
+	//The cell of the barcode tag, or with correct of the barcode tag of the corrector
+	private int getCellIndex(SAMRecord next, boolean correct) {
+		short tag = correct ? _correctiontag : _barcodetag;
+		if(next instanceof BAMRecord) {
+			BAMRecord record = (BAMRecord) next;
+			byte[] variable = record.getVariableBinaryRepresentation();
+			int auxsize = record.getAttributesBinarySize();
+			if(variable != null && auxsize >= 0) {
+				try {
+					if(correct) {
+						return _corrector.getCellIndex(variable, variable.length-auxsize, variable.length);
+					}
+					return _cells.getCellIndex(variable, variable.length-auxsize, variable.length, (byte) tag, (byte) (tag >> 8));
+				}
+				catch(IOException e) {
+					//htsjdk decodes the attributes and reports the problem instead
+				}
+			}
+		}
+		String barcode = _u.getBarcode(next, tag);
+		if(barcode == null) {
+			return -1;
+		}
+		return correct ? _corrector.getCellIndex(barcode) : _cells.getCellIndex(barcode);
+	}
+
+	/**
+	 * Returns true if the read would be added to a cell's cluster. Unlike process, this
+	 * does not change any counts, and it ignores the region filter.
+	 */
+	public boolean isClusterRead(SAMRecord next) {
+		int insertsize = next.getInferredInsertSize();
+		if(insertsize <= 0 || next.getMappingQuality() <= _mapqthreshold || !_u.isValidRead(next, _duplicatefilter == null)) {
+			return false;
+		}
+		int refindex = next.getReferenceIndex();
+		if(refindex < 0 || !_inchromosomes[refindex] || getCellIndex(next) < 0) {
+			return false;
+		}
+		int endtoendinsertsize = insertsize+_reversecorrection-_forwardcorrection;
+		return endtoendinsertsize <= _maxinsertsize && endtoendinsertsize > 0;
+	}
+
+	public int getFragmentStart(SAMRecord next) {
+		return next.getAlignmentStart()-1+_forwardcorrection;
+	}
+
+	public int getFragmentEnd(SAMRecord next) {
+		return next.getAlignmentStart()-1+next.getInferredInsertSize()+_reversecorrection;
+	}
+
+	private void changeChromosome(int refindex) throws IOException {
+		if(_regioncursor != null) {
+			_regioncursor.setChromosome(_refnames[refindex]);
+		}
+		if(_currefindex < 0 && !_ownsclusters) {
+			//Whether this is a chromosome change depends on the preceding unit
+			_firstrefindex = refindex;
+			_currefindex = refindex;
+			_curchr = _refnames[refindex];
+			return;
+		}
+
+		if(!_ownsclusters) {
+			//Hold back the clusters touched by this unit, the merge step flushes them together with the inherited ones
+			_flushoffset = _written;
+			_flushoverlaps = getPendingOverlaps();
+			_ownsclusters = true;
+		}
+		else {
+			//find/write overlaps
+			int[] flushorder = _cells.getFlushOrder();
+			for(int i = 0; i < flushorder.length; i++) {
+				int cellidx = flushorder[i];
+				if(_clusters[cellidx] != null) {
+					cacheCluster(cellidx, _clusters[cellidx]);
+					writeOverlaps(cellidx, findClusterOverlaps(_clusters[cellidx]));
+				}
+			}
+		}
+
+		//clear the observed reads, these will determine where the overlaps are
+		for(int i = 0; i < _clusters.length; i++) {
+			if(_clusters[i] != null) {
+				_clusters[i].clear();
+			}
+		}
+		if(_firstrefindex < 0) {
+			_firstrefindex = refindex;
+		}
+		_currefindex = refindex;
+		_curchr = _refnames[refindex];
+		if(_clustercache != null) {
+			_clustercache.setChromosome(_curchr);
+		}
+		if(_sinks != null) {
+			for(int i = 0; i < _sinks.length; i++) {
+				_sinks[i].setChromosome(_curchr);
+			}
+		}
+	}
+
+	private void cacheCluster(int cellidx, ReadCluster cluster) throws IOException {
+		if(_clustercache != null && cluster.size() >= 2) {
+			_clustercache.add(cellidx, cluster);
+		}
+	}
+
+	//The clusters replayed after this are on the chromosome
+	public void replayChromosome(String chr) {
+		_curchr = chr;
+	}
+
+	//Finds and writes the overlaps of a cluster of a ClusterCache
+	public void replayCluster(int cellidx, ReadCluster cluster) throws IOException {
+		writeOverlaps(cellidx, findClusterOverlaps(cluster));
+	}
+
+	private void addMarker(int cellidx) {
+		if(_markercount == _markercells.length) {
+			_markeroffsets = Arrays.copyOf(_markeroffsets, _markercount*2);
+			_markercells = Arrays.copyOf(_markercells, _markercount*2);
+		}
+		_markeroffsets[_markercount] = _written;
+		_markercells[_markercount] = cellidx;
+		_markercount++;
+	}
+
+	/**
+	 * The formatted overlaps of the clusters that are still open. For a unit that never changed
+	 * chromosome these only cover the touched cells.
+	 */
+	private TreeMap<Integer, String> getPendingOverlaps() {
+		TreeMap<Integer, String> rv = new TreeMap<Integer, String>();
+		for(int i = 0; i < _clusters.length; i++) {
+			if(_clusters[i] != null && (_ownsclusters || _touched[i])) {
+				LinkedList<OverlapLocation> ol = findClusterOverlaps(_clusters[i]);
+				if(ol.size() > 0) {
+					rv.put(i, formatOverlaps(i, ol));
+				}
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Called at the end of a unit: keeps the open cluster overlaps for the merge step, adds
+	 * the counts to the total and frees the per-cell buffers.
+	 */
+	public void finishUnit(OverlapSweep total) {
+		_unitresult = new UnitResult(_firstrefindex, _currefindex, _written, _ownsclusters, _touched, _markeroffsets, _markercells, _markercount, _flushoffset, _flushoverlaps, getPendingOverlaps());
+		_clusters = null;
+		_startbuffer = null;
+		_endbuffer = null;
+		_overlapbuffer = null;
+		_activebuffer = null;
+		_offsetbuffer = null;
+		_orderbuffer = null;
+		synchronized(total) {
+			total.add(this);
+		}
+		_treadcounts = null;
+		_vreadcounts = null;
+		_creadcounts = null;
+		_overlapcounts = null;
+	}
+
+	private void add(OverlapSweep sweep) {
+		_totalreads += sweep._totalreads;
+		_validreads += sweep._validreads;
+		_positive += sweep._positive;
+		_negative += sweep._negative;
+		_notinchromosome += sweep._notinchromosome;
+		_filteredreads += sweep._filteredreads;
+		_barcodeduplicates += sweep._barcodeduplicates;
+		_insertsizeflag += sweep._insertsizeflag;
+		_lowmapq += sweep._lowmapq;
+		_readlengthsum += sweep._readlengthsum;
+		_insertsizesum += sweep._insertsizesum;
+		_vrs.add(sweep._vrs);
+		for(int i = 0; i < _clustersizes.length; i++) {
+			_clustersizes[i] += sweep._clustersizes[i];
+		}
+		_overlaptime += sweep._overlaptime;
+		_overlapinfotime += sweep._overlapinfotime;
+		for(int i = 0; i < _treadcounts.length; i++) {
+			_treadcounts[i] += sweep._treadcounts[i];
+			_vreadcounts[i] += sweep._vreadcounts[i];
+			_creadcounts[i] += sweep._creadcounts[i];
+		}
+		for(int i = 0; i < _overlapcounts.length; i++) {
+			addCounts(_overlapcounts[i], sweep._overlapcounts[i]);
+		}
+		for(int i = 0; i < _omittedchromosomes.length; i++) {
+			_omittedchromosomes[i] |= sweep._omittedchromosomes[i];
+		}
+	}
+
+	/**
+	 * Writes the counts of the sweep as name value lines, so that the counts of the shards of a
+	 * BAM file can be added up by addCounts.
+	 */
+	public void writeCounts(BufferedWriter bw) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("totalreads\t");
+		sb.append(Integer.toString(_totalreads));
+		sb.append("\nlowmapq\t");
+		sb.append(Integer.toString(_lowmapq));
+		sb.append("\ninsertsizeflag\t");
+		sb.append(Integer.toString(_insertsizeflag));
+		sb.append("\npositive\t");
+		sb.append(Integer.toString(_positive));
+		sb.append("\nnegative\t");
+		sb.append(Integer.toString(_negative));
+		sb.append("\nnotinchromosome\t");
+		sb.append(Integer.toString(_notinchromosome));
+		sb.append("\nvalidreads\t");
+		sb.append(Integer.toString(_validreads));
+		sb.append("\nfilteredreads\t");
+		sb.append(Integer.toString(_filteredreads));
+		sb.append("\nbarcodeduplicates\t");
+		sb.append(Integer.toString(_barcodeduplicates));
+		sb.append("\nreadlengthsum\t");
+		sb.append(Long.toString(_readlengthsum));
+		sb.append("\ninsertsizesum\t");
+		sb.append(Long.toString(_insertsizesum));
+		sb.append("\nvalidreadsummary\t");
+		sb.append(join(_vrs.getCounts()));
+		sb.append("\nclustersizes\t");
+		sb.append(join(_clustersizes));
+		sb.append("\nomittedchromosomes\t");
+		String separator = "";
+		for(int i = 0; i < _omittedchromosomes.length; i++) {
+			if(_omittedchromosomes[i]) {
+				sb.append(separator);
+				sb.append(_refnames[i]);
+				separator = ",";
+			}
+		}
+		sb.append("\ntotalreadcounts\t");
+		sb.append(join(_treadcounts));
+		sb.append("\nvalidreadcounts\t");
+		sb.append(join(_vreadcounts));
+		sb.append("\ncorrectedreadcounts\t");
+		sb.append(join(_creadcounts));
+		for(int i = 0; i < _overlapcounts.length; i++) {
+			//One line per threshold
+			sb.append("\noverlapcounts\t");
+			sb.append(join(_overlapcounts[i]));
+		}
+		sb.append("\n");
+		bw.write(sb.toString());
+	}
+
+	//Adds the counts written by writeCounts, the omitted chromosomes are added to the references
+	public void addCounts(BufferedReader br) throws IOException {
+		addCounts(br, true);
+	}
+
+	/**
+	 * Without clusters, the overlap counts and the cluster sizes are skipped, they are counted
+	 * again when the clusters of a ClusterCache are replayed.
+	 */
+	public void addCounts(BufferedReader br, boolean clusters) throws IOException {
+		int overlapcountidx = 0;
+		String line;
+		while((line = br.readLine()) != null) {
+			String[] split = line.split("\t", -1);
+			if(!clusters && (split[0].equals("overlapcounts") || split[0].equals("clustersizes"))) {
+				continue;
+			}
+			switch(split[0]) {
+				case "totalreads":
+					_totalreads += Integer.parseInt(split[1]);
+					break;
+				case "lowmapq":
+					_lowmapq += Integer.parseInt(split[1]);
+					break;
+				case "insertsizeflag":
+					_insertsizeflag += Integer.parseInt(split[1]);
+					break;
+				case "positive":
+					_positive += Integer.parseInt(split[1]);
+					break;
+				case "negative":
+					_negative += Integer.parseInt(split[1]);
+					break;
+				case "notinchromosome":
+					_notinchromosome += Integer.parseInt(split[1]);
+					break;
+				case "validreads":
+					_validreads += Integer.parseInt(split[1]);
+					break;
+				case "filteredreads":
+					_filteredreads += Integer.parseInt(split[1]);
+					break;
+				case "barcodeduplicates":
+					_barcodeduplicates += Integer.parseInt(split[1]);
+					break;
+				case "readlengthsum":
+					_readlengthsum += Long.parseLong(split[1]);
+					break;
+				case "insertsizesum":
+					_insertsizesum += Long.parseLong(split[1]);
+					break;
+				case "validreadsummary":
+					_vrs.add(parseInts(split[1], 8));
+					break;
+				case "clustersizes":
+					String[] clustersizes = split(split[1], _clustersizes.length);
+					for(int i = 0; i < clustersizes.length; i++) {
+						_clustersizes[i] += Long.parseLong(clustersizes[i]);
+					}
+					break;
+				case "omittedchromosomes":
+					if(split[1].length() > 0) {
+						String[] names = split[1].split(",");
+						for(int i = 0; i < names.length; i++) {
+							addOmittedChromosome(names[i]);
+						}
+					}
+					break;
+				case "totalreadcounts":
+					addCounts(_treadcounts, parseInts(split[1], _treadcounts.length));
+					break;
+				case "validreadcounts":
+					addCounts(_vreadcounts, parseInts(split[1], _vreadcounts.length));
+					break;
+				case "correctedreadcounts":
+					addCounts(_creadcounts, parseInts(split[1], _creadcounts.length));
+					break;
+				case "overlapcounts":
+					if(overlapcountidx == _overlapcounts.length) {
+						throw new IOException("More overlap thresholds than "+Integer.toString(_overlapcounts.length)+".");
+					}
+					int[] overlapcounts = _overlapcounts[overlapcountidx++];
+					addCounts(overlapcounts, parseInts(split[1], overlapcounts.length));
+					break;
+				default:
+					throw new IOException("Unknown count: "+split[0]);
+			}
+		}
+	}
+
+	private void addOmittedChromosome(String name) {
+		for(int i = 0; i < _refnames.length; i++) {
+			if(_refnames[i].equals(name)) {
+				_omittedchromosomes[i] = true;
+				return;
+			}
+		}
+		String[] refnames = Arrays.copyOf(_refnames, _refnames.length+1);
+		refnames[_refnames.length] = name;
+		boolean[] inchromosomes = Arrays.copyOf(_inchromosomes, refnames.length);
+		setReferences(refnames, inchromosomes);
+		_omittedchromosomes[refnames.length-1] = true;
+	}
+
+	private void addCounts(int[] counts, int[] add) {
+		for(int i = 0; i < counts.length; i++) {
+			counts[i] += add[i];
+		}
+	}
+
+	private int[] parseInts(String value, int length) throws IOException {
+		String[] split = split(value, length);
+		int[] rv = new int[length];
+		for(int i = 0; i < length; i++) {
+			rv[i] = Integer.parseInt(split[i]);
+		}
+		return rv;
+	}
+
+	private String[] split(String value, int length) throws IOException {
+		String[] rv = value.length() == 0 ? new String[0] : value.split(",");
+		if(rv.length != length) {
+			throw new IOException("Expected "+Integer.toString(length)+" counts, found "+Integer.toString(rv.length)+".");
+		}
+		return rv;
+	}
+
+	private String join(int[] values) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < values.length; i++) {
+			if(i > 0) {
+				sb.append(',');
+			}
+			sb.append(Integer.toString(values[i]));
+		}
+		return sb.toString();
+	}
+
+	private String join(long[] values) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < values.length; i++) {
+			if(i > 0) {
+				sb.append(',');
+			}
+			sb.append(Long.toString(values[i]));
+		}
+		return sb.toString();
+	}
+
+	private void writeOverlaps(int cellidx, LinkedList<OverlapLocation> ol) throws IOException {
+		if(ol.size() == 0) {
+			return;
+		}
+		if(_writerstage != null) {
+			_writerstage.add(cellidx, ol);
+		}
+		else {
+			String overlaps = formatOverlaps(cellidx, ol);
+			_bw.write(overlaps);
+			_written += overlaps.length();
+		}
+		if(_overlapthresholds == null) {
+			_overlapcounts[0][cellidx] += ol.size();
+		}
+		else {
+			for(Iterator<OverlapLocation> it = ol.iterator(); it.hasNext();) {
+				_overlapcounts[it.next().getThresholdIndex()][cellidx]++;
+			}
+		}
+	}
+
+	/**
+	 * Writes formatted overlaps that were held back by a unit sweep, the sweep must be the total
+	 * of a parallel run.
+	 */
+	public void writeMergedOverlaps(BufferedWriter bw, int cellidx, String overlaps) throws IOException {
+		bw.write(overlaps);
+		if(_overlapthresholds == null) {
+			for(int i = 0; i < overlaps.length(); i++) {
+				if(overlaps.charAt(i) == '\n') {
+					_overlapcounts[0][cellidx]++;
+				}
+			}
+		}
+		else {
+			//Each line starts with its threshold index
+			int linestart = 0;
+			while(linestart < overlaps.length()) {
+				_overlapcounts[Integer.parseInt(overlaps.substring(linestart, overlaps.indexOf('\t', linestart)))][cellidx]++;
+				linestart = overlaps.indexOf('\n', linestart)+1;
+			}
+		}
+	}
+
+	//Does not change the sweep, so the writer stage can call it on its own thread
+	String formatOverlaps(int cellidx, LinkedList<OverlapLocation> ol) {
+
+		String cellid = _cells.getCellId(cellidx);
+		StringBuilder sb = new StringBuilder();
+		for(Iterator<OverlapLocation> olit = ol.iterator(); olit.hasNext();) {
+			OverlapLocation curoverlap = olit.next();
+
+			if(_overlapthresholds != null) {
+				sb.append(Integer.toString(curoverlap.getThresholdIndex()));
+				sb.append("\t");
+			}
+			sb.append(curoverlap.getChr());
+			sb.append("\t");
+			sb.append(Integer.toString(curoverlap.getStart()));
+			sb.append("\t");
+			sb.append(Integer.toString(curoverlap.getEnd()));
+			sb.append("\t");
+			sb.append(cellid);
+			sb.append("\t");
+			sb.append(Integer.toString(curoverlap.getMinOverlap()));
+			sb.append("\t");
+			sb.append(Integer.toString(curoverlap.getMaxOverlap()));
+			sb.append("\t");
+			if(_hasmappingquality) {
+				sb.append(Double.toString(curoverlap.getMeanMappingQuality()));
+				sb.append("\t");
+				sb.append(Integer.toString(curoverlap.getMinMappingQuality()));
+				sb.append("\t");
+				sb.append(Integer.toString(curoverlap.getMaxMappingQuality()));
+			}
+			else {
+				sb.append(".\t.\t.");
+			}
+			sb.append("\t");
+			sb.append(curoverlap.getStarts());
+			sb.append("\t");
+			sb.append(curoverlap.getEnds());
+			sb.append("\n");
+		}
+
+		return sb.toString();
+	}
+
+	//Package private for the benchmarks, as is setOverlapInfo
+	LinkedList<OverlapLocation> findOverlaps(ReadCluster cluster, int overlapthresh, String chr) {
+		int n = cluster.size();
+		if(n > 0) {
+			_clustersizes[31-Integer.numberOfLeadingZeros(n)]++;
+		}
+		if(n < overlapthresh) {
+			return new LinkedList<OverlapLocation>();
+		}
+		long timestart = System.nanoTime();
+		sortCluster(cluster);
+		LinkedList<OverlapLocation> intervals = scanOverlaps(cluster, overlapthresh, chr);
+		_overlaptime += System.nanoTime()-timestart;
+		return intervals;
+	}
+
+	/**
+	 * The overlaps of each threshold in turn, tagged with the index of their threshold. The
+	 * cluster is sorted once for all of them.
+	 */
+	private LinkedList<OverlapLocation> findClusterOverlaps(ReadCluster cluster) {
+		if(_overlapthresholds == null) {
+			return findOverlaps(cluster, _overlapthresh, _curchr);
+		}
+		LinkedList<OverlapLocation> rv = new LinkedList<OverlapLocation>();
+		int n = cluster.size();
+		if(n > 0) {
+			_clustersizes[31-Integer.numberOfLeadingZeros(n)]++;
+		}
+		if(n < _overlapthresholds[0]) {
+			return rv;
+		}
+		long timestart = System.nanoTime();
+		sortCluster(cluster);
+		for(int i = 0; i < _overlapthresholds.length && n >= _overlapthresholds[i]; i++) {
+			LinkedList<OverlapLocation> intervals = scanOverlaps(cluster, _overlapthresholds[i], _curchr);
+			for(Iterator<OverlapLocation> it = intervals.iterator(); it.hasNext();) {
+				OverlapLocation next = it.next();
+				next.setThresholdIndex(i);
+				rv.add(next);
+			}
+		}
+		_overlaptime += System.nanoTime()-timestart;
+		return rv;
+	}
+
+	//Reads are added in coordinate order so only the ends need sorting, after which the
+	//running sum is a merge of the start and end positions
+	private void sortCluster(ReadCluster cluster) {
+		int n = cluster.size();
+		if(!cluster.isSorted()) {
+			_startbuffer = sortedCopy(cluster.getStarts(), n, _startbuffer);
+		}
+		_endbuffer = sortedCopy(cluster.getEnds(), n, _endbuffer);
+	}
+
+	//The running sum scan of a cluster sorted by sortCluster
+	private LinkedList<OverlapLocation> scanOverlaps(ReadCluster cluster, int overlapthresh, String chr) {
+		LinkedList<OverlapLocation> intervals = new LinkedList<OverlapLocation>();
+		int n = cluster.size();
+		int[] starts = cluster.isSorted() ? cluster.getStarts() : _startbuffer;
+		int[] ends = _endbuffer;
+		int startidx = 0;
+		int endidx = 0;
+		int runningsum = 0;
+
+		//Scan the running sum and find all subintervals where the overlap is >= the overlapthresh,
+		//breaking when dropping less than overlapthresh
+		boolean start = false;
+		int startposition = 0;
+		int minoverlap = 0;
+		int maxoverlap = 0;
+		int curposition = 0;
+		
+		while(startidx < n || endidx < n) {
+			if(endidx == n || (startidx < n && starts[startidx] <= ends[endidx])) {
+				curposition = starts[startidx];
+			}
+			else {
+				curposition = ends[endidx];
+			}
+			while(startidx < n && starts[startidx] == curposition) {
+				runningsum++;
+				startidx++;
+			}
+			while(endidx < n && ends[endidx] == curposition) {
+				runningsum--;
+				endidx++;
+			}
+			
+			int curvalue = runningsum;
+			if(curvalue < overlapthresh && start) {
+				intervals.add(new OverlapLocation(chr, startposition, curposition, minoverlap, maxoverlap));
+				start = false;
+				startposition = 0;
+				minoverlap = 0;
+				maxoverlap = 0;
+			}
+			else if(curvalue >= overlapthresh) {
+				if(!start) {
+					start = true;
+					startposition = curposition;
+					minoverlap = curvalue;
+				}
+				minoverlap = Math.min(minoverlap, curvalue);
+				maxoverlap = Math.max(curvalue, maxoverlap);
+			}
+		}
+
+		//Include overlaps that extend for the rest of the list via same end points
+		if(start) {
+			intervals.add(new OverlapLocation(chr, startposition, curposition, minoverlap, maxoverlap));
+		}
+
+		long infostart = System.nanoTime();
+		setOverlapInfo(intervals, cluster);
+		_overlapinfotime += System.nanoTime()-infostart;
+		return intervals;
+
+	}
+	
+	//Copies the first n values into the buffer, growing it if needed, and sorts them
+	private int[] sortedCopy(int[] a, int n, int[] buffer) {
+		if(buffer.length < n) {
+			buffer = new int[Math.max(n, buffer.length*2)];
+		}
+		System.arraycopy(a, 0, buffer, 0, n);
+		Arrays.sort(buffer, 0, n);
+		return buffer;
+	}
+
+	/**
+	 * Assigns the reads to the overlaps in one pass. Reads enter the active set in start order once
+	 * they start before the end of the overlap and leave it, in end order, once they end before its
+	 * start. The reads of each overlap are listed in cluster order, as they were added.
+	 */
+	void setOverlapInfo(LinkedList<OverlapLocation> ol, ReadCluster cluster) {
+		if(ol.size() == 0) {
+			return;
+		}
+		int n = cluster.size();
+		int[] starts = cluster.getStarts();
+		int[] ends = cluster.getEnds();
+		int[] mapq = cluster.getMappingQualities();
+		if(_activebuffer.length < n) {
+			_activebuffer = new int[Math.max(n, _activebuffer.length*2)];
+		}
+		if(_offsetbuffer.length < ol.size()+1) {
+			_offsetbuffer = new int[Math.max(ol.size()+1, _offsetbuffer.length*2)];
+		}
+		
+		boolean sorted = cluster.isSorted();
+		if(!sorted) {
+			if(_orderbuffer.length < n) {
+				_orderbuffer = new long[Math.max(n, _orderbuffer.length*2)];
+			}
+			for(int i = 0; i < n; i++) {
+				_orderbuffer[i] = ((long) starts[i] << 32) | i;
+			}
+			Arrays.sort(_orderbuffer, 0, n);
+		}
+		
+		_offsetbuffer[0] = 0;
+		int next = 0;
+		int activecount = 0;
+		int overlapcount = 0;
+		int olidx = 0;
+		for(Iterator<OverlapLocation> oli = ol.iterator(); oli.hasNext();) {
+			OverlapLocation curol = oli.next();
+			int curolstart = curol.getStart();
+			int curolend = curol.getEnd();
+			
+			while(next < n) {
+				int i = sorted ? next : (int) _orderbuffer[next];
+				if(starts[i] > curolend) {
+					break;
+				}
+				activecount = pushActive(i, activecount, ends);
+				next++;
+			}
+			while(activecount > 0 && ends[_activebuffer[0]] < curolstart) {
+				activecount = popActive(activecount, ends);
+			}
+			
+			if(_overlapbuffer.length < overlapcount+activecount) {
+				_overlapbuffer = Arrays.copyOf(_overlapbuffer, Math.max(overlapcount+activecount, _overlapbuffer.length*2));
+			}
+			System.arraycopy(_activebuffer, 0, _overlapbuffer, overlapcount, activecount);
+			Arrays.sort(_overlapbuffer, overlapcount, overlapcount+activecount);
+			overlapcount += activecount;
+			_offsetbuffer[++olidx] = overlapcount;
+		}
+		
+		//The overlaps of the cluster share one copy of their reads, the cluster itself is reused
+		int[] olstarts = new int[overlapcount];
+		int[] olends = new int[overlapcount];
+		int[] olmapq = new int[overlapcount];
+		for(int i = 0; i < overlapcount; i++) {
+			int idx = _overlapbuffer[i];
+			olstarts[i] = starts[idx];
+			olends[i] = ends[idx];
+			olmapq[i] = mapq[idx];
+		}
+		olidx = 0;
+		for(Iterator<OverlapLocation> oli = ol.iterator(); oli.hasNext(); olidx++) {
+			oli.next().setOverlapInfo(olstarts, olends, olmapq, _offsetbuffer[olidx], _offsetbuffer[olidx+1]);
+		}
+	}
+	
+	//Adds a read to the active set, a binary heap on the read ends
+	private int pushActive(int read, int count, int[] ends) {
+		int i = count;
+		while(i > 0) {
+			int parent = (i-1) >>> 1;
+			if(ends[_activebuffer[parent]] <= ends[read]) {
+				break;
+			}
+			_activebuffer[i] = _activebuffer[parent];
+			i = parent;
+		}
+		_activebuffer[i] = read;
+		return count+1;
+	}
+	
+	//Removes the read with the smallest end from the active set
+	private int popActive(int count, int[] ends) {
+		int last = _activebuffer[--count];
+		int i = 0;
+		while(true) {
+			int child = 2*i+1;
+			if(child >= count) {
+				break;
+			}
+			if(child+1 < count && ends[_activebuffer[child+1]] < ends[_activebuffer[child]]) {
+				child++;
+			}
+			if(ends[last] <= ends[_activebuffer[child]]) {
+				break;
+			}
+			_activebuffer[i] = _activebuffer[child];
+			i = child;
+		}
+		_activebuffer[i] = last;
+		return count;
+	}
+
+	//What the merge step needs of a unit sweep, set by finishUnit
+	public UnitResult getUnitResult() {
+		return _unitresult;
+	}
+
+	public int getTotalReads() {
+		return _totalreads;
+	}
+
+	public int getLowMapQ() {
+		return _lowmapq;
+	}
+
+	public int getInsertSizeFlag() {
+		return _insertsizeflag;
+	}
+
+	public int getPositive() {
+		return _positive;
+	}
+
+	public int getNegative() {
+		return _negative;
+	}
+
+	public int getNotInChromosome() {
+		return _notinchromosome;
+	}
+
+	//The valid reads dropped by the region filter
+	public int getFilteredReads() {
+		return _filteredreads;
+	}
+
+	//The read pairs marked as duplicates by setBarcodeDuplicates
+	public int getBarcodeDuplicates() {
+		return _barcodeduplicates;
+	}
+
+	public int getValidReads() {
+		return _validreads;
+	}
+
+	public long getReadLengthSum() {
+		return _readlengthsum;
+	}
+
+	public long getInsertSizeSum() {
+		return _insertsizesum;
+	}
+
+	public long[] getClusterSizeHistogram() {
+		return _clustersizes;
+	}
+
+	//Nanoseconds spent in clusters with enough reads for an overlap, including getOverlapInfoTime()
+	public long getOverlapTime() {
+		return _overlaptime;
+	}
+
+	//Nanoseconds spent assigning the reads to the overlaps
+	public long getOverlapInfoTime() {
+		return _overlapinfotime;
+	}
+
+	public ValidReadSummary getValidReadSummary() {
+		return _vrs;
+	}
+
+	public int[] getTotalReadCounts() {
+		return _treadcounts;
+	}
+
+	public int[] getValidReadCounts() {
+		return _vreadcounts;
+	}
+
+	//The reads of each cell whose barcode was corrected, see setBarcodeCorrector
+	public int[] getCorrectedReadCounts() {
+		return _creadcounts;
+	}
+
+	public int[] getOverlapCounts() {
+		return _overlapcounts[0];
+	}
+
+	//The overlap counts of the threshold with the index
+	public int[] getOverlapCounts(int thresholdidx) {
+		return _overlapcounts[thresholdidx];
+	}
+
+	public String[] getReferenceNames() {
+		return _refnames;
+	}
+
+	//False for fragment files
+	public boolean hasMappingQuality() {
+		return _hasmappingquality;
+	}
+
+	public TreeSet<String> getOmittedChromosomes() {
+		TreeSet<String> rv = new TreeSet<String>();
+		for(int i = 0; i < _omittedchromosomes.length; i++) {
+			if(_omittedchromosomes[i]) {
+				rv.add(_refnames[i]);
+			}
+		}
+		return rv;
+	}
+
+}
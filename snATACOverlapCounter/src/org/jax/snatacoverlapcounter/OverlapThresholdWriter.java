@@ -0,0 +1,84 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Splits the overlap lines of a sweep with several thresholds (see
+ * OverlapSweep.setOverlapThresholds) by their threshold. Each line starts with the index of its
+ * threshold and a tab, the rest of the line is written to the writer of that index.
+ */
+public class OverlapThresholdWriter extends Writer {
+
+	private Writer[] _writers;
+	private Writer _current;
+	private int _index;
+
+	public OverlapThresholdWriter(Writer[] writers) {
+		_writers = writers;
+		_current = null;
+		_index = 0;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		int end = off+len;
+		int i = off;
+		while(i < end) {
+			if(_current == null) {
+				//The threshold index of a new line
+				char c = cbuf[i++];
+				if(c == '\t') {
+					if(_index >= _writers.length) {
+						throw new IOException("Unknown overlap threshold index "+Integer.toString(_index)+".");
+					}
+					_current = _writers[_index];
+					_index = 0;
+				}
+				else if(c >= '0' && c <= '9') {
+					_index = _index*10+(c-'0');
+				}
+				else {
+					throw new IOException("An overlap line does not start with its threshold index.");
+				}
+			}
+			else {
+				//The rest of the line, including the line break
+				int from = i;
+				while(i < end && cbuf[i] != '\n') {
+					i++;
+				}
+				if(i < end) {
+					i++;
+					_current.write(cbuf, from, i-from);
+					_current = null;
+				}
+				else {
+					_current.write(cbuf, from, i-from);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		char[] cbuf = new char[len];
+		str.getChars(off, off+len, cbuf, 0);
+		write(cbuf, 0, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		for(int i = 0; i < _writers.length; i++) {
+			_writers[i].flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(int i = 0; i < _writers.length; i++) {
+			_writers[i].flush();
+			_writers[i].close();
+		}
+	}
+}
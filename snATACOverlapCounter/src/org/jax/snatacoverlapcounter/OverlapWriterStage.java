@@ -0,0 +1,186 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.jax.snatacoverlapcounter.util.StageStatistics;
+
+/**
+ * Formats and writes the overlaps of a standalone sweep on its own thread. The sweep hands over
+ * the overlaps of each written cluster in batches, they are not changed after that. Batches are
+ * reused, so the sweep blocks once the writer is BATCHES batches behind.
+ *
+ * The overlaps are either formatted by an OverlapEncoder or as text for a writer.
+ */
+public class OverlapWriterStage implements Runnable {
+
+	private static final int BATCHSIZE = 256;
+	private static final int BATCHES = 16;
+
+	private BufferedWriter _bw;
+	private OverlapEncoder _encoder;
+	private OverlapSweep _sweep;
+	private StageStatistics _stats, _producerstats;
+	private ArrayBlockingQueue<OverlapBatch> _full, _free;
+	private OverlapBatch _batch;
+	private Thread _thread;
+	private volatile IOException _failure;
+
+	/**
+	 * The writer is closed by close(). The producer statistics are those of the sweep, they get
+	 * the time the sweep waits for a free batch.
+	 */
+	public OverlapWriterStage(BufferedWriter bw, OverlapSweep sweep, StageStatistics producerstats) {
+		this(sweep, producerstats);
+		_bw = bw;
+		start();
+	}
+
+	//The encoder is closed by close()
+	public OverlapWriterStage(OverlapEncoder encoder, OverlapSweep sweep, StageStatistics producerstats) {
+		this(sweep, producerstats);
+		_encoder = encoder;
+		start();
+	}
+
+	private OverlapWriterStage(OverlapSweep sweep, StageStatistics producerstats) {
+		_sweep = sweep;
+		_producerstats = producerstats;
+		_stats = new StageStatistics("Write");
+		_full = new ArrayBlockingQueue<OverlapBatch>(BATCHES);
+		_free = new ArrayBlockingQueue<OverlapBatch>(BATCHES);
+		for(int i = 0; i < BATCHES; i++) {
+			_free.add(new OverlapBatch());
+		}
+		_batch = _free.poll();
+	}
+
+	private void start() {
+		_thread = new Thread(this, "OverlapWriter");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	public void add(int cellidx, LinkedList<OverlapLocation> ol) throws IOException {
+		if(_failure != null) {
+			throw _failure;
+		}
+		_batch.add(cellidx, ol);
+		if(_batch.size() == BATCHSIZE) {
+			try {
+				_producerstats.put(_full, _batch);
+				_batch = _producerstats.take(_free);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	//Writes the remaining overlaps and closes the writer
+	public void close() throws IOException {
+		try {
+			if(_batch.size() > 0) {
+				_producerstats.put(_full, _batch);
+				_batch = _producerstats.take(_free);
+			}
+			//An empty batch ends the stream
+			_producerstats.put(_full, _batch);
+			_thread.join();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		if(_failure != null) {
+			throw _failure;
+		}
+	}
+
+	public StageStatistics getStatistics() {
+		return _stats;
+	}
+
+	@Override
+	public void run() {
+		_stats.start();
+		try {
+			while(true) {
+				OverlapBatch batch = _stats.take(_full);
+				if(batch.size() == 0) {
+					break;
+				}
+				_stats.addBatch();
+				//After a failure the batches are still taken so that the sweep does not block
+				if(_failure == null) {
+					write(batch);
+				}
+				batch.clear();
+				_free.add(batch);
+			}
+			if(_failure == null && _encoder != null) {
+				_encoder.close();
+			}
+			else if(_failure == null) {
+				_bw.flush();
+				_bw.close();
+			}
+		} catch (InterruptedException e) {
+			_failure = new IOException(e);
+		} catch (IOException e) {
+			_failure = e;
+		}
+		_stats.finish();
+	}
+
+	private void write(OverlapBatch batch) {
+		try {
+			if(_encoder != null) {
+				boolean mappingquality = _sweep.hasMappingQuality();
+				for(int i = 0; i < batch.size(); i++) {
+					_encoder.encode(batch.getCellIndex(i), batch.getOverlaps(i), mappingquality);
+				}
+				return;
+			}
+			for(int i = 0; i < batch.size(); i++) {
+				_bw.write(_sweep.formatOverlaps(batch.getCellIndex(i), batch.getOverlaps(i)));
+			}
+		} catch (IOException e) {
+			_failure = e;
+		} catch (RuntimeException e) {
+			_failure = new IOException(e);
+		}
+	}
+
+	private class OverlapBatch {
+
+		private int[] _cells;
+		private ArrayList<LinkedList<OverlapLocation>> _overlaps;
+
+		public OverlapBatch() {
+			_cells = new int[BATCHSIZE];
+			_overlaps = new ArrayList<LinkedList<OverlapLocation>>(BATCHSIZE);
+		}
+
+		public void add(int cellidx, LinkedList<OverlapLocation> ol) {
+			_cells[_overlaps.size()] = cellidx;
+			_overlaps.add(ol);
+		}
+
+		public void clear() {
+			_overlaps.clear();
+		}
+
+		public int size() {
+			return _overlaps.size();
+		}
+
+		public int getCellIndex(int i) {
+			return _cells[i];
+		}
+
+		public LinkedList<OverlapLocation> getOverlaps(int i) {
+			return _overlaps.get(i);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.jax.snatacoverlapcounter.util.CellIndex;
+
+/**
+ * Counts the Tn5 cut sites (the start and the last base of each read) of every cell in the
+ * peaks of a BED file and writes the counts as a sparse matrix in MatrixMarket format, with the
+ * peaks as rows and the cells as columns like the 10x peak matrix. The output directory holds
+ * matrix.mtx, barcodes.tsv (the cell ids of the columns) and peaks.bed (the peaks of the rows).
+ *
+ * The peaks are ordered by chromosome, in the order of the BED file, and start. Only the peaks
+ * that the current read can still reach are open, each collects the cells of its cut sites until
+ * the reads start at or after its end.
+ */
+public class PeakMatrixSink implements ReadSink {
+
+	private String _dir;
+	private CellIndex _cells;
+	private String[] _peakchrs;
+	private int[] _peakstarts, _peakends;
+	//The largest end of the peaks of the chromosome up to each peak
+	private int[] _maxends;
+	private HashMap<String, int[]> _chrpeaks;
+
+	//The peaks of the current chromosome are [_from, _to), the ones before _open are closed
+	private int _from, _to, _open;
+	private int[][] _cutcells;
+	private int[] _cutcounts;
+
+	private int[] _entrypeaks, _entrycells, _entrycounts;
+	private int _entries;
+
+	public PeakMatrixSink(String peakfile, String dir, CellIndex cells) throws IOException {
+		_dir = dir;
+		_cells = cells;
+
+		//The peaks of each chromosome as start << 32 | end
+		ArrayList<String> chrs = new ArrayList<String>();
+		HashMap<String, Integer> chrindices = new HashMap<String, Integer>();
+		long[][] peaks = new long[0][];
+		int[] counts = new int[0];
+		BufferedReader br = new BufferedReader(new FileReader(peakfile));
+		String line;
+		while((line = br.readLine()) != null) {
+			if(line.length() == 0 || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+				continue;
+			}
+			String[] split = line.split("\t");
+			Integer chr = chrindices.get(split[0]);
+			if(chr == null) {
+				chr = chrs.size();
+				chrindices.put(split[0], chr);
+				chrs.add(split[0]);
+				peaks = Arrays.copyOf(peaks, chrs.size());
+				peaks[chr] = new long[16];
+				counts = Arrays.copyOf(counts, chrs.size());
+			}
+			if(counts[chr] == peaks[chr].length) {
+				peaks[chr] = Arrays.copyOf(peaks[chr], peaks[chr].length*2);
+			}
+			peaks[chr][counts[chr]++] = ((long) Integer.parseInt(split[1]) << 32) | Integer.parseInt(split[2]);
+		}
+		br.close();
+
+		int numpeaks = 0;
+		for(int i = 0; i < counts.length; i++) {
+			numpeaks += counts[i];
+		}
+		_peakchrs = new String[numpeaks];
+		_peakstarts = new int[numpeaks];
+		_peakends = new int[numpeaks];
+		_maxends = new int[numpeaks];
+		_chrpeaks = new HashMap<String, int[]>();
+		int idx = 0;
+		for(int chr = 0; chr < counts.length; chr++) {
+			Arrays.sort(peaks[chr], 0, counts[chr]);
+			_chrpeaks.put(chrs.get(chr), new int[] { idx, idx+counts[chr] });
+			for(int i = 0; i < counts[chr]; i++) {
+				_peakchrs[idx] = chrs.get(chr);
+				_peakstarts[idx] = (int) (peaks[chr][i] >>> 32);
+				_peakends[idx] = (int) peaks[chr][i];
+				_maxends[idx] = i == 0 ? _peakends[idx] : Math.max(_maxends[idx-1], _peakends[idx]);
+				idx++;
+			}
+		}
+
+		_cutcells = new int[numpeaks][];
+		_cutcounts = new int[numpeaks];
+		_entrypeaks = new int[1024];
+		_entrycells = new int[1024];
+		_entrycounts = new int[1024];
+		_entries = 0;
+	}
+
+	@Override
+	public void setChromosome(String chr) throws IOException {
+		closePeaks(Integer.MAX_VALUE);
+		int[] range = _chrpeaks.get(chr);
+		_from = range == null ? 0 : range[0];
+		_to = range == null ? 0 : range[1];
+		_open = _from;
+	}
+
+	@Override
+	public void add(int cellidx, int start, int end) throws IOException {
+		//The cut sites of this and the following reads are at or after the start
+		closePeaks(start);
+		addCutSite(cellidx, start);
+		addCutSite(cellidx, end-1);
+	}
+
+	@Override
+	public void close() throws IOException {
+		closePeaks(Integer.MAX_VALUE);
+		new File(_dir).mkdirs();
+
+		BufferedWriter bw = new BufferedWriter(new FileWriter(_dir+"/matrix.mtx"));
+		bw.write("%%MatrixMarket matrix coordinate integer general\n");
+		bw.write(Integer.toString(_peakstarts.length)+" "+Integer.toString(_cells.size())+" "+Integer.toString(_entries)+"\n");
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < _entries; i++) {
+			sb.setLength(0);
+			sb.append(_entrypeaks[i]+1);
+			sb.append(' ');
+			sb.append(_entrycells[i]+1);
+			sb.append(' ');
+			sb.append(_entrycounts[i]);
+			sb.append('\n');
+			bw.write(sb.toString());
+		}
+		bw.flush();
+		bw.close();
+
+		bw = new BufferedWriter(new FileWriter(_dir+"/barcodes.tsv"));
+		for(int i = 0; i < _cells.size(); i++) {
+			bw.write(_cells.getCellId(i)+"\n");
+		}
+		bw.flush();
+		bw.close();
+
+		bw = new BufferedWriter(new FileWriter(_dir+"/peaks.bed"));
+		for(int i = 0; i < _peakstarts.length; i++) {
+			bw.write(_peakchrs[i]+"\t"+Integer.toString(_peakstarts[i])+"\t"+Integer.toString(_peakends[i])+"\n");
+		}
+		bw.flush();
+		bw.close();
+	}
+
+	private void addCutSite(int cellidx, int position) {
+		//The last peak that starts at or before the position
+		int s = _open;
+		int e = _to;
+		while(s < e) {
+			int mi = (s+e) >>> 1;
+			if(_peakstarts[mi] <= position) {
+				s = mi+1;
+			}
+			else {
+				e = mi;
+			}
+		}
+
+		//Peaks may overlap, the earlier ones contain the position as long as their largest end is after it
+		for(int i = s-1; i >= _open && _maxends[i] > position; i--) {
+			if(_peakends[i] > position) {
+				if(_cutcells[i] == null) {
+					_cutcells[i] = new int[8];
+				}
+				else if(_cutcounts[i] == _cutcells[i].length) {
+					_cutcells[i] = Arrays.copyOf(_cutcells[i], _cutcells[i].length*2);
+				}
+				_cutcells[i][_cutcounts[i]++] = cellidx;
+			}
+		}
+	}
+
+	//Closes the open peaks that end at or before the position, in peak order
+	private void closePeaks(int position) {
+		while(_open < _to && _maxends[_open] <= position) {
+			int[] cells = _cutcells[_open];
+			if(cells != null) {
+				int n = _cutcounts[_open];
+				Arrays.sort(cells, 0, n);
+				int i = 0;
+				while(i < n) {
+					int count = 1;
+					while(i+count < n && cells[i+count] == cells[i]) {
+						count++;
+					}
+					addEntry(_open, cells[i], count);
+					i += count;
+				}
+				_cutcells[_open] = null;
+			}
+			_open++;
+		}
+	}
+
+	private void addEntry(int peak, int cellidx, int count) {
+		if(_entries == _entrypeaks.length) {
+			_entrypeaks = Arrays.copyOf(_entrypeaks, _entries*2);
+			_entrycells = Arrays.copyOf(_entrycells, _entries*2);
+			_entrycounts = Arrays.copyOf(_entrycounts, _entries*2);
+		}
+		_entrypeaks[_entries] = peak;
+		_entrycells[_entries] = cellidx;
+		_entrycounts[_entries] = count;
+		_entries++;
+	}
+}
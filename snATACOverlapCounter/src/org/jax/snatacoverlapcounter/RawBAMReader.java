@@ -0,0 +1,342 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.zip.GZIPInputStream;
+
+import org.jax.snatacoverlapcounter.util.BarcodeCorrector;
+import org.jax.snatacoverlapcounter.util.CellIndex;
+import org.jax.snatacoverlapcounter.util.CountingInputStream;
+import org.jax.snatacoverlapcounter.util.ParallelBGZFInputStream;
+import org.jax.snatacoverlapcounter.util.SampledTimer;
+import org.jax.snatacoverlapcounter.util.ValidReadSummary;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+
+/**
+ * Reads BAM records straight from the inflated BGZF stream. Only the fixed fields the sweep uses
+ * (reference, position, MAPQ, flag, read length, insert size and mate reference) are read, the
+ * read name, CIGAR, bases and qualities are skipped and the aux block is only scanned for the
+ * barcode tag, which is looked up in the CellIndex without making a String.
+ *
+ * The records are not checked beyond their block sizes, BGZF blocks are checked against their
+ * CRC32 as before.
+ *
+ * With setRegions, only the given runs of reference sequences are read, each from the virtual file
+ * offset of its first record in the BAM index, so the blocks between the runs are never inflated.
+ */
+public class RawBAMReader implements BatchReader {
+
+	private static final int BUFFERSIZE = 1 << 20;
+	private static final byte[] MAGIC = { 'B', 'A', 'M', 1 };
+	//Closer regions are reached by reading on, the seek would throw away more buffered input
+	private static final long MINSEEK = 1 << 22;
+
+	private String _file;
+	private int _threads;
+	private InputStream _in;
+	private byte[] _buf;
+	private int _pos, _end;
+	private byte _tag1, _tag2;
+	private CellIndex _cells;
+	private BarcodeCorrector _corrector;
+	private CountingInputStream _counter;
+	private volatile long _bytesread;
+	private long _streamstart;
+	private SampledTimer _lookuptimer;
+	private LinkedList<long[]> _regions;
+	private int _firstkey, _lastkey;
+	private boolean _done;
+
+	/**
+	 * BGZF blocks are inflated on the given number of threads. The header must have the given
+	 * number of reference sequences, the reference indices are those of the BAM header.
+	 */
+	public RawBAMReader(String file, int threads, String barcodetag, CellIndex cells, int numreferences) throws IOException {
+		_file = file;
+		_threads = threads;
+		_lookuptimer = new SampledTimer();
+		_buf = new byte[BUFFERSIZE];
+		_regions = new LinkedList<long[]>();
+		_firstkey = Integer.MIN_VALUE;
+		_lastkey = Integer.MAX_VALUE;
+		open(0);
+		_tag1 = (byte) barcodetag.charAt(0);
+		_tag2 = (byte) barcodetag.charAt(1);
+		_cells = cells;
+
+		try {
+			readHeader(numreferences);
+		}
+		catch(IOException e) {
+			_in.close();
+			throw e;
+		}
+	}
+
+	//Opens the file at the virtual offset of a record (the block offset << 16 | the offset in the block)
+	private void open(long virtualoffset) throws IOException {
+		if(_in != null) {
+			_bytesread += _counter.getCount();
+			_in.close();
+		}
+		FileInputStream fis = new FileInputStream(_file);
+		fis.getChannel().position(virtualoffset >>> 16);
+		_counter = new CountingInputStream(fis);
+		_streamstart = virtualoffset >>> 16;
+		InputStream in = new BufferedInputStream(_counter, BUFFERSIZE);
+		if(_threads > 1) {
+			_in = new ParallelBGZFInputStream(in, _threads);
+		}
+		else {
+			_in = new GZIPInputStream(in, BUFFERSIZE);
+		}
+		_pos = 0;
+		_end = 0;
+		skip((int) (virtualoffset & 0xffff));
+	}
+
+	/**
+	 * The runs of consecutive reference sequences of the BAM index that are read, as { virtual
+	 * offset of the first record, first reference index, last reference index }. Reference
+	 * sequences without reads join the runs next to them. With unmapped, the reads without a
+	 * position are the last run, its reference indices are -1.
+	 */
+	public static LinkedList<long[]> getRegions(BAMIndex index, boolean[] references, boolean unmapped) {
+		LinkedList<long[]> rv = new LinkedList<long[]>();
+		int start = -1;
+		long startoffset = -1;
+		for(int i = 0; i <= references.length; i++) {
+			long offset = -1;
+			if(i < references.length) {
+				BAMFileSpan span = index.getSpanOverlapping(i, 1, -1);
+				if(span != null && !span.isEmpty()) {
+					offset = span.getFirstOffset();
+				}
+			}
+			boolean read = i < references.length && (references[i] || (start >= 0 && offset < 0));
+			if(read && start < 0) {
+				start = i;
+				startoffset = offset;
+			}
+			else if(read && startoffset < 0) {
+				startoffset = offset;
+			}
+			else if(!read && start >= 0) {
+				if(startoffset >= 0) {
+					rv.add(new long[] { startoffset, start, i-1 });
+				}
+				start = -1;
+				startoffset = -1;
+			}
+		}
+
+		if(unmapped) {
+			if(rv.size() > 0 && rv.getLast()[2] == references.length-1) {
+				//The unmapped reads follow the last run
+				rv.getLast()[2] = -1;
+			}
+			else {
+				//-1 if no read has a position, the unmapped reads then follow the header
+				rv.add(new long[] { index.getStartOfLastLinearBin(), -1, -1 });
+			}
+		}
+		return rv;
+	}
+
+	//Corrects the barcodes of the reads without a cell (see OverlapSweep.setBarcodeCorrector), null for none
+	public void setBarcodeCorrector(BarcodeCorrector corrector) {
+		_corrector = corrector != null ? new BarcodeCorrector(corrector) : null;
+	}
+
+	/**
+	 * Reads only the regions of getRegions, in their order. The reads of a region are read until
+	 * the first read of a later reference sequence in the file. Regions that start within a few MB
+	 * of the compressed input read so far are reached by reading on and skipping the reads before
+	 * them.
+	 */
+	public void setRegions(LinkedList<long[]> regions) throws IOException {
+		_regions = new LinkedList<long[]>(regions);
+		nextRegion();
+	}
+
+	private void nextRegion() throws IOException {
+		if(_regions.isEmpty()) {
+			_done = true;
+			return;
+		}
+		long[] region = _regions.removeFirst();
+		if(region[0] >= 0 && (region[0] >>> 16) > _streamstart+_counter.getCount()+MINSEEK) {
+			open(region[0]);
+		}
+		_firstkey = getKey((int) region[1]);
+		_lastkey = getKey((int) region[2]);
+	}
+
+	//The order of the reference index in a coordinate sorted file, the unmapped reads are last
+	private int getKey(int refindex) {
+		return refindex < 0 ? Integer.MAX_VALUE : refindex;
+	}
+
+	private void readHeader(int numreferences) throws IOException {
+		if(!ensure(8)) {
+			throw new IOException("Missing BAM header.");
+		}
+		for(int i = 0; i < MAGIC.length; i++) {
+			if(_buf[_pos+i] != MAGIC[i]) {
+				throw new IOException("Not a BAM file.");
+			}
+		}
+		int textlength = getInt(_pos+4);
+		_pos += 8;
+		skip(textlength);
+
+		if(!ensure(4)) {
+			throw new IOException("Truncated BAM header.");
+		}
+		int numrefs = getInt(_pos);
+		_pos += 4;
+		if(numrefs != numreferences) {
+			throw new IOException("The BAM header has "+Integer.toString(numrefs)+" reference sequences, expected "+Integer.toString(numreferences)+".");
+		}
+		for(int i = 0; i < numrefs; i++) {
+			if(!ensure(4)) {
+				throw new IOException("Truncated BAM header.");
+			}
+			int namelength = getInt(_pos);
+			_pos += 4;
+			//Name and sequence length
+			skip(namelength+4);
+		}
+	}
+
+	@Override
+	public boolean read(ReadBatch batch) throws IOException {
+		while(!batch.isFull() && !_done) {
+			if(!ensure(4)) {
+				if(_pos < _end) {
+					throw new IOException("Truncated BAM record.");
+				}
+				nextRegion();
+				continue;
+			}
+			int blocksize = getInt(_pos);
+			if(blocksize < 32 || !ensure(4+blocksize)) {
+				throw new IOException("Truncated BAM record.");
+			}
+			int off = _pos+4;
+			int recordend = off+blocksize;
+
+			int refindex = getInt(off);
+			int key = getKey(refindex);
+			if(key < _firstkey) {
+				_pos = recordend;
+				continue;
+			}
+			if(key > _lastkey) {
+				nextRegion();
+				continue;
+			}
+			int position = getInt(off+4);
+			int readnamelength = _buf[off+8] & 0xff;
+			int mapq = _buf[off+9] & 0xff;
+			int cigarops = getUnsignedShort(off+12);
+			int flags = getUnsignedShort(off+14);
+			int readlength = getInt(off+16);
+			int materefindex = getInt(off+20);
+			int insertsize = getInt(off+28);
+
+			//Boxed as SAMRecord keeps them, see ValidReadSummary.getFlags
+			if(Integer.valueOf(refindex) != Integer.valueOf(materefindex)) {
+				flags |= ValidReadSummary.REFERENCEMISMATCH;
+			}
+
+			//Every read with a cell counts towards its total, so the barcode is needed even if the read fails the filters
+			int auxstart = off+32+readnamelength+4*cigarops+(readlength+1)/2+readlength;
+			boolean timed = _lookuptimer.start();
+			int cellidx = getCellIndex(auxstart, recordend);
+			if(timed) {
+				_lookuptimer.stop();
+			}
+
+			batch.add(refindex, position+1, insertsize, mapq, flags, readlength, cellidx);
+			_pos = recordend;
+		}
+		return batch.size() > 0;
+	}
+
+	//The cell of the barcode tag in the aux block [off, end), -1 if there is none
+	private int getCellIndex(int off, int end) throws IOException {
+		int cellidx = _cells.getCellIndex(_buf, off, end, _tag1, _tag2);
+		if(cellidx < 0 && _corrector != null) {
+			cellidx = _corrector.getCellIndex(_buf, off, end);
+			if(cellidx >= 0) {
+				cellidx |= BarcodeCorrector.CORRECTED;
+			}
+		}
+		return cellidx;
+	}
+
+	//Makes sure that length bytes are buffered from _pos, false if the input ends first
+	private boolean ensure(int length) throws IOException {
+		if(_end-_pos >= length) {
+			return true;
+		}
+		if(length > _buf.length) {
+			byte[] buf = new byte[Math.max(length, _buf.length*2)];
+			System.arraycopy(_buf, _pos, buf, 0, _end-_pos);
+			_buf = buf;
+		}
+		else {
+			System.arraycopy(_buf, _pos, _buf, 0, _end-_pos);
+		}
+		_end -= _pos;
+		_pos = 0;
+		while(_end < length) {
+			int n = _in.read(_buf, _end, _buf.length-_end);
+			if(n < 0) {
+				return false;
+			}
+			_end += n;
+		}
+		return true;
+	}
+
+	private void skip(int length) throws IOException {
+		while(length > 0) {
+			if(!ensure(1)) {
+				throw new IOException("Truncated BAM file.");
+			}
+			int n = Math.min(length, _end-_pos);
+			_pos += n;
+			length -= n;
+		}
+	}
+
+	private int getInt(int off) {
+		return (_buf[off] & 0xff) | (_buf[off+1] & 0xff) << 8 | (_buf[off+2] & 0xff) << 16 | (_buf[off+3] & 0xff) << 24;
+	}
+
+	private int getUnsignedShort(int off) {
+		return (_buf[off] & 0xff) | (_buf[off+1] & 0xff) << 8;
+	}
+
+	@Override
+	public long getBytesRead() {
+		return _bytesread+_counter.getCount();
+	}
+
+	@Override
+	public long getBarcodeLookupTime() {
+		return _lookuptimer.getTime();
+	}
+
+	@Override
+	public void close() throws IOException {
+		_in.close();
+	}
+}
@@ -0,0 +1,90 @@
+package org.jax.snatacoverlapcounter;
+
+import org.jax.snatacoverlapcounter.util.ValidReadSummary;
+
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * The fields of a run of BAM records that the sweep uses, stored as primitive columns. Batches are
+ * filled by the decoder stage, read by the sweep and reused after clear().
+ */
+public class ReadBatch {
+
+	private int[] _refindex;
+	private int[] _alignmentstart;
+	private int[] _insertsize;
+	private int[] _mapq;
+	private int[] _flags;
+	private int[] _readlength;
+	private int[] _cell;
+	private int _size;
+
+	public ReadBatch(int capacity) {
+		_refindex = new int[capacity];
+		_alignmentstart = new int[capacity];
+		_insertsize = new int[capacity];
+		_mapq = new int[capacity];
+		_flags = new int[capacity];
+		_readlength = new int[capacity];
+		_cell = new int[capacity];
+		_size = 0;
+	}
+
+	public void add(SAMRecord record, int cellidx) {
+		add(record.getReferenceIndex(), record.getAlignmentStart(), record.getInferredInsertSize(), record.getMappingQuality(), ValidReadSummary.getFlags(record), record.getReadLength(), cellidx);
+	}
+
+	public void add(int refindex, int alignmentstart, int insertsize, int mapq, int flags, int readlength, int cellidx) {
+		_refindex[_size] = refindex;
+		_alignmentstart[_size] = alignmentstart;
+		_insertsize[_size] = insertsize;
+		_mapq[_size] = mapq;
+		_flags[_size] = flags;
+		_readlength[_size] = readlength;
+		_cell[_size] = cellidx;
+		_size++;
+	}
+
+	public void clear() {
+		_size = 0;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	public boolean isFull() {
+		return _size == _refindex.length;
+	}
+
+	public int getReferenceIndex(int i) {
+		return _refindex[i];
+	}
+
+	//1-based, as SAMRecord.getAlignmentStart
+	public int getAlignmentStart(int i) {
+		return _alignmentstart[i];
+	}
+
+	public int getInsertSize(int i) {
+		return _insertsize[i];
+	}
+
+	public int getMappingQuality(int i) {
+		return _mapq[i];
+	}
+
+	//See ValidReadSummary.getFlags
+	public int getFlags(int i) {
+		return _flags[i];
+	}
+
+	public int getReadLength(int i) {
+		return _readlength[i];
+	}
+
+	//-1 if the read has no cell barcode, with BarcodeCorrector.CORRECTED set if it was corrected
+	public int getCellIndex(int i) {
+		return _cell[i];
+	}
+}
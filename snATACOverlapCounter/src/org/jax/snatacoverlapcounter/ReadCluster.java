@@ -0,0 +1,79 @@
+package org.jax.snatacoverlapcounter;
+
+/**
+ * The overlapping reads of one cell that have not been written yet. The arrays
+ * grow as needed and are reused after clear(), so adding a read does not allocate.
+ */
+public class ReadCluster {
+
+	private static final int INITIALCAPACITY = 8;
+
+	private int[] _starts;
+	private int[] _ends;
+	private int[] _mapq;
+	private int _size;
+	private int _end;
+	private boolean _sorted;
+
+	public ReadCluster() {
+		_starts = new int[INITIALCAPACITY];
+		_ends = new int[INITIALCAPACITY];
+		_mapq = new int[INITIALCAPACITY];
+		clear();
+	}
+
+	public void add(int start, int end, int mq) {
+		if(_size == _starts.length) {
+			int capacity = _size*2;
+			_starts = copyOf(_starts, capacity);
+			_ends = copyOf(_ends, capacity);
+			_mapq = copyOf(_mapq, capacity);
+		}
+		if(_size > 0 && start < _starts[_size-1]) {
+			_sorted = false;
+		}
+		_starts[_size] = start;
+		_ends[_size] = end;
+		_mapq[_size] = mq;
+		_size++;
+		_end = Math.max(_end, end);
+	}
+
+	public void clear() {
+		_size = 0;
+		_end = Integer.MIN_VALUE;
+		_sorted = true;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	//The largest end position of the reads in the cluster
+	public int getEnd() {
+		return _end;
+	}
+
+	//True if the reads were added in order of their start position
+	public boolean isSorted() {
+		return _sorted;
+	}
+
+	public int[] getStarts() {
+		return _starts;
+	}
+
+	public int[] getEnds() {
+		return _ends;
+	}
+
+	public int[] getMappingQualities() {
+		return _mapq;
+	}
+
+	private int[] copyOf(int[] a, int capacity) {
+		int[] rv = new int[capacity];
+		System.arraycopy(a, 0, rv, 0, _size);
+		return rv;
+	}
+}
@@ -0,0 +1,117 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.jax.snatacoverlapcounter.util.StageStatistics;
+
+/**
+ * Runs a standalone sweep over a BAM file as a pipeline. A decoder thread reads the records
+ * (BGZF inflation, record decoding and the barcode lookup) into ReadBatches with a BatchReader
+ * and the calling thread runs the sweep on them. With an OverlapWriterStage on the sweep, the overlaps are
+ * formatted and written on a third thread.
+ *
+ * The stages are connected by bounded queues of reused batches, so a stage that runs ahead blocks
+ * until the next one catches up.
+ */
+public class ReadPipeline {
+
+	private static final int BATCHSIZE = 4096;
+	private static final int BATCHES = 8;
+
+	private ArrayBlockingQueue<ReadBatch> _full, _free;
+	private StageStatistics _decodestats, _sweepstats;
+	private volatile Throwable _failure;
+
+	public ReadPipeline() {
+		_full = new ArrayBlockingQueue<ReadBatch>(BATCHES);
+		_free = new ArrayBlockingQueue<ReadBatch>(BATCHES);
+		for(int i = 0; i < BATCHES; i++) {
+			_free.add(new ReadBatch(BATCHSIZE));
+		}
+		_decodestats = new StageStatistics("Decode");
+		_sweepstats = new StageStatistics("Sweep");
+	}
+
+	public void run(final BatchReader reader, OverlapSweep sweep) throws IOException {
+		Thread decoder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				decode(reader);
+			}
+		}, "BAMDecoder");
+		decoder.setDaemon(true);
+		decoder.start();
+
+		_sweepstats.start();
+		boolean complete = false;
+		int totalreads = 0;
+		try {
+			while(true) {
+				ReadBatch batch = _sweepstats.take(_full);
+				if(batch.size() == 0) {
+					break;
+				}
+				_sweepstats.addBatch();
+				for(int i = 0; i < batch.size(); i++) {
+					if(totalreads % 10000000 == 0) {
+						System.out.println(Integer.toString(totalreads));
+					}
+					totalreads++;
+					sweep.process(batch, i);
+				}
+				batch.clear();
+				_free.add(batch);
+			}
+			complete = true;
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		finally {
+			if(!complete) {
+				decoder.interrupt();
+			}
+		}
+		_sweepstats.finish();
+
+		if(_failure != null) {
+			throw new RuntimeException(_failure);
+		}
+	}
+
+	private void decode(BatchReader reader) {
+		_decodestats.start();
+		ReadBatch batch = null;
+		try {
+			batch = _decodestats.take(_free);
+			while(reader.read(batch)) {
+				batch = send(batch);
+			}
+		} catch (Throwable t) {
+			_failure = t;
+		}
+		_decodestats.finish();
+
+		//An empty batch ends the stream
+		if(batch == null) {
+			batch = new ReadBatch(0);
+		}
+		batch.clear();
+		_full.offer(batch);
+	}
+
+	//Passes the batch on to the sweep and returns a free batch
+	private ReadBatch send(ReadBatch batch) throws InterruptedException {
+		_decodestats.addBatch();
+		_decodestats.put(_full, batch);
+		return _decodestats.take(_free);
+	}
+
+	public StageStatistics getDecodeStatistics() {
+		return _decodestats;
+	}
+
+	public StageStatistics getSweepStatistics() {
+		return _sweepstats;
+	}
+}
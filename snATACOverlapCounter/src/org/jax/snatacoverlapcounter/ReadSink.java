@@ -0,0 +1,20 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.IOException;
+
+/**
+ * An output of the valid reads of a sweep, written in the same pass as the overlaps (see
+ * OverlapSweep.setReadSinks). A read is the fragment of a read pair after the start and end
+ * corrections, the same as the reads of the clusters, and arrives in start order within each
+ * chromosome.
+ */
+public interface ReadSink {
+
+	//The reads added after this are on the chromosome
+	public void setChromosome(String chr) throws IOException;
+
+	public void add(int cellidx, int start, int end) throws IOException;
+
+	//Called once after the last read
+	public void close() throws IOException;
+}
@@ -0,0 +1,299 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sorts the valid reads of input that is not coordinate sorted, so that the sweep does not need
+ * a sorted BAM file. Each read is a 16 byte record of two longs, the key (reference index << 32
+ * | start) and the value (cell << 32 | insert size << 8 | mapping quality). The records are
+ * collected in runs that fit in the memory, each run is radix sorted on the key and, once there
+ * is more than one, written to a file. The runs are then merged back in coordinate order.
+ *
+ * The sort is stable and the runs are merged in their order, so reads at the same position stay
+ * in the order of the input, as with a coordinate sorted BAM file. The first read of every
+ * chromosome that the sweep would change to is added as a marker record with cell -1, which
+ * sorts before the reads of its chromosome.
+ */
+public class ReadSorter {
+
+	//Two longs for the record and two for the radix sort
+	private static final int RECORDBYTES = 32;
+	private static final int MINRUN = 1 << 10;
+	private static final int MINBUFFER = 1 << 12;
+	private static final int MAXBUFFER = 1 << 24;
+	private static final int MAXINSERTSIZE = (1 << 24)-1;
+
+	private long _memory;
+	private File _dir;
+	private int _capacity;
+	private long[] _keys, _values, _sortkeys, _sortvalues;
+	private int _size;
+	private boolean[] _chromosomes;
+	private long[] _runsizes;
+	private int _runs;
+	private long _reads;
+
+	/**
+	 * Sorts in memory bytes, with runs written to the directory. The insert sizes of the reads
+	 * must be less than 2^24.
+	 */
+	public ReadSorter(int references, long memory, File dir) {
+		_memory = memory;
+		_dir = dir;
+		_capacity = (int) Math.min(Integer.MAX_VALUE-8, Math.max(MINRUN, memory/RECORDBYTES));
+		_keys = new long[Math.min(_capacity, MINRUN)];
+		_values = new long[_keys.length];
+		_size = 0;
+		_chromosomes = new boolean[references];
+		_runsizes = new long[16];
+		_runs = 0;
+		_reads = 0;
+	}
+
+	public static boolean isSortable(int maxinsertsize) {
+		return maxinsertsize <= MAXINSERTSIZE;
+	}
+
+	//The sweep changes to the chromosome here, a marker is added the first time
+	public void addChromosome(int refindex) throws IOException {
+		if(!_chromosomes[refindex]) {
+			_chromosomes[refindex] = true;
+			add(getKey(refindex, Integer.MIN_VALUE), -1L << 32);
+		}
+	}
+
+	public void add(int refindex, int start, int end, int cellidx, int mappingquality) throws IOException {
+		add(getKey(refindex, start), ((long) cellidx << 32) | ((long) (end-start) << 8) | (mappingquality & 0xff));
+		_reads++;
+	}
+
+	//The number of runs written to files, 0 if the reads fit in memory
+	public int getRuns() {
+		return _runs;
+	}
+
+	//The number of reads added, without the chromosome markers
+	public long getReads() {
+		return _reads;
+	}
+
+	/**
+	 * Hands the records to the sweep in coordinate order and deletes the runs.
+	 */
+	public void replay(OverlapSweep sweep) throws IOException {
+		sort();
+		if(_runs == 0) {
+			for(int i = 0; i < _size; i++) {
+				replay(sweep, _keys[i], _values[i]);
+			}
+			release();
+			return;
+		}
+
+		writeRun();
+		release();
+		merge(sweep);
+		for(int i = 0; i < _runs; i++) {
+			getRunFile(i).delete();
+		}
+		_dir.delete();
+	}
+
+	private void add(long key, long value) throws IOException {
+		if(_size == _keys.length) {
+			if(_size == _capacity) {
+				sort();
+				writeRun();
+				_size = 0;
+			}
+			else {
+				int capacity = (int) Math.min(_capacity, 2L*_keys.length);
+				_keys = Arrays.copyOf(_keys, capacity);
+				_values = Arrays.copyOf(_values, capacity);
+			}
+		}
+		_keys[_size] = key;
+		_values[_size] = value;
+		_size++;
+	}
+
+	//Starts are signed, flipping the sign bit orders them as unsigned
+	private long getKey(int refindex, int start) {
+		return ((long) refindex << 32) | ((start ^ Integer.MIN_VALUE) & 0xffffffffL);
+	}
+
+	private void replay(OverlapSweep sweep, long key, long value) throws IOException {
+		int start = ((int) key) ^ Integer.MIN_VALUE;
+		int insertsize = ((int) value) >>> 8;
+		sweep.processSorted((int) (key >>> 32), start, start+insertsize, (int) (value >> 32), ((int) value) & 0xff);
+	}
+
+	/**
+	 * LSD radix sort of the keys, a byte at a time, with the values moved along. The histograms of
+	 * all bytes are counted in one pass, the bytes that are the same in every key are skipped.
+	 */
+	private void sort() {
+		if(_size < 2) {
+			return;
+		}
+		int[][] counts = new int[8][256];
+		for(int i = 0; i < _size; i++) {
+			long key = _keys[i];
+			for(int b = 0; b < 8; b++) {
+				counts[b][(int) (key >>> (8*b)) & 0xff]++;
+			}
+		}
+
+		if(_sortkeys == null || _sortkeys.length < _keys.length) {
+			_sortkeys = new long[_keys.length];
+			_sortvalues = new long[_keys.length];
+		}
+		for(int b = 0; b < 8; b++) {
+			int[] count = counts[b];
+			if(count[(int) (_keys[0] >>> (8*b)) & 0xff] == _size) {
+				continue;
+			}
+			int offset = 0;
+			for(int d = 0; d < 256; d++) {
+				int c = count[d];
+				count[d] = offset;
+				offset += c;
+			}
+			int shift = 8*b;
+			for(int i = 0; i < _size; i++) {
+				int pos = count[(int) (_keys[i] >>> shift) & 0xff]++;
+				_sortkeys[pos] = _keys[i];
+				_sortvalues[pos] = _values[i];
+			}
+			long[] keys = _keys;
+			_keys = _sortkeys;
+			_sortkeys = keys;
+			long[] values = _values;
+			_values = _sortvalues;
+			_sortvalues = values;
+		}
+	}
+
+	private File getRunFile(int run) {
+		return new File(_dir, "run"+Integer.toString(run)+".bin");
+	}
+
+	private void writeRun() throws IOException {
+		if(_runs == 0) {
+			_dir.mkdirs();
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getRunFile(_runs)), 1 << 16));
+		for(int i = 0; i < _size; i++) {
+			out.writeLong(_keys[i]);
+			out.writeLong(_values[i]);
+		}
+		out.close();
+		if(_runs == _runsizes.length) {
+			_runsizes = Arrays.copyOf(_runsizes, _runs*2);
+		}
+		_runsizes[_runs++] = _size;
+	}
+
+	//The memory of the runs goes to the buffers of the merge
+	private void release() {
+		_keys = null;
+		_values = null;
+		_sortkeys = null;
+		_sortvalues = null;
+		_size = 0;
+	}
+
+	/**
+	 * Merges the runs with a binary heap of the runs keyed on their next record. Runs with the
+	 * same key are taken in run order, which keeps the sort stable.
+	 */
+	private void merge(OverlapSweep sweep) throws IOException {
+		int buffersize = (int) Math.max(MINBUFFER, Math.min(MAXBUFFER, _memory/_runs));
+		DataInputStream[] ins = new DataInputStream[_runs];
+		long[] remaining = new long[_runs];
+		long[] keys = new long[_runs];
+		long[] values = new long[_runs];
+		int[] heap = new int[_runs];
+		int size = 0;
+		try {
+			for(int run = 0; run < _runs; run++) {
+				ins[run] = new DataInputStream(new BufferedInputStream(new FileInputStream(getRunFile(run)), buffersize));
+				remaining[run] = _runsizes[run];
+				if(remaining[run] > 0) {
+					keys[run] = ins[run].readLong();
+					values[run] = ins[run].readLong();
+					remaining[run]--;
+					heap[size++] = run;
+					siftUp(heap, keys, size-1);
+				}
+			}
+
+			while(size > 0) {
+				int top = heap[0];
+				replay(sweep, keys[top], values[top]);
+				if(remaining[top] > 0) {
+					keys[top] = ins[top].readLong();
+					values[top] = ins[top].readLong();
+					remaining[top]--;
+				}
+				else {
+					heap[0] = heap[--size];
+				}
+				if(size > 0) {
+					siftDown(heap, keys, size, 0);
+				}
+			}
+		}
+		finally {
+			for(int run = 0; run < _runs; run++) {
+				if(ins[run] != null) {
+					ins[run].close();
+				}
+			}
+		}
+	}
+
+	private boolean isBefore(long[] keys, int a, int b) {
+		return keys[a] < keys[b] || (keys[a] == keys[b] && a < b);
+	}
+
+	private void siftUp(int[] heap, long[] keys, int pos) {
+		int run = heap[pos];
+		while(pos > 0) {
+			int parent = (pos-1) >>> 1;
+			if(!isBefore(keys, run, heap[parent])) {
+				break;
+			}
+			heap[pos] = heap[parent];
+			pos = parent;
+		}
+		heap[pos] = run;
+	}
+
+	private void siftDown(int[] heap, long[] keys, int size, int pos) {
+		int run = heap[pos];
+		while(true) {
+			int child = 2*pos+1;
+			if(child >= size) {
+				break;
+			}
+			if(child+1 < size && isBefore(keys, heap[child+1], heap[child])) {
+				child++;
+			}
+			if(!isBefore(keys, heap[child], run)) {
+				break;
+			}
+			heap[pos] = heap[child];
+			pos = child;
+		}
+		heap[pos] = run;
+	}
+}
@@ -0,0 +1,15 @@
+package org.jax.snatacoverlapcounter;
+
+/**
+ * The JFR events of a RunMetrics. The implementation is JFRRunEvents, see RunMetrics.
+ */
+interface RunEvents {
+
+	//The start of the run
+	public void begin();
+
+	//Commits the run and the busy time of each stage
+	public void end(RunMetrics metrics);
+
+	public void commitProgress(RunMetrics metrics);
+}
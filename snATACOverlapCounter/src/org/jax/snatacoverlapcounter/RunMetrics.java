@@ -0,0 +1,327 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.jax.snatacoverlapcounter.util.StageStatistics;
+
+/**
+ * Throughput, stage times, cluster sizes and heap use of one overlap counter run. The values are
+ * live during the run: they are registered as a JMX MBean and sent as periodic JFR events. At the
+ * end they are written to Metrics.txt, next to StatSummary.txt.
+ *
+ * The JFR events are in JFRRunEvents (src-jfr), which is compiled for Java 11 apart from the Java 8
+ * sources and only loaded if the JVM has JFR, so the metrics also run without it.
+ *
+ * Stage times are busy times. The barcode lookup is timed on a sample of the records (see
+ * SampledTimer), and decode is the rest of the decoder thread's time. Filter is the rest of the
+ * sweep thread's time after finding overlaps, which includes adding reads to clusters. Times that
+ * a run cannot measure, such as decoding in the index sharded mode, are NaN.
+ */
+public class RunMetrics implements RunMetricsMBean {
+
+	private static final HashSet<RunMetrics> RUNNING = new HashSet<RunMetrics>();
+	private static final Class<?> JFREVENTS = getJFREventsClass();
+
+	private String _input;
+	private long _starttime, _endtime;
+	private boolean _finished;
+	private OverlapSweep _sweep;
+	private BatchReader _batchreader;
+	private FragmentReader _fragmentreader;
+	private StageStatistics _readstats, _sweepstats, _writestats;
+	private long _bytesread;
+	private ObjectName _objectname;
+	private RunEvents _events;
+
+	public RunMetrics(String input) {
+		_input = input;
+		_starttime = System.nanoTime();
+		_finished = false;
+		_bytesread = -1;
+		_events = newRunEvents();
+		if(_events != null) {
+			_events.begin();
+		}
+	}
+
+	public void setSweep(OverlapSweep sweep) {
+		_sweep = sweep;
+	}
+
+	public void setBatchReader(BatchReader reader) {
+		_batchreader = reader;
+	}
+
+	public void setFragmentReader(FragmentReader reader) {
+		_fragmentreader = reader;
+	}
+
+	//The sweep statistics are null if the sweep runs on the reading thread
+	public void setStages(StageStatistics readstats, StageStatistics sweepstats, StageStatistics writestats) {
+		_readstats = readstats;
+		_sweepstats = sweepstats;
+		_writestats = writestats;
+	}
+
+	//For inputs that are not read through a counting stream
+	public void setBytesRead(long bytesread) {
+		_bytesread = bytesread;
+	}
+
+	/**
+	 * Registers the MBean as org.jax.snatacoverlapcounter:type=OverlapCounter,input="...". A run
+	 * that cannot be registered, for example a second run of the same input, only misses the JMX view.
+	 */
+	public void register() {
+		try {
+			_objectname = new ObjectName("org.jax.snatacoverlapcounter:type=OverlapCounter,input="+ObjectName.quote(_input));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, _objectname);
+		} catch (JMException e) {
+			_objectname = null;
+		}
+		synchronized(RUNNING) {
+			RUNNING.add(this);
+		}
+	}
+
+	public void finish() {
+		_endtime = System.nanoTime();
+		_finished = true;
+		synchronized(RUNNING) {
+			RUNNING.remove(this);
+		}
+		if(_objectname != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(_objectname);
+			} catch (JMException e) {
+			}
+			_objectname = null;
+		}
+
+		if(_events != null) {
+			_events.end(this);
+		}
+	}
+
+	public boolean isFinished() {
+		return _finished;
+	}
+
+	@Override
+	public String getInput() {
+		return _input;
+	}
+
+	@Override
+	public double getElapsedSeconds() {
+		long endtime = _finished ? _endtime : System.nanoTime();
+		return (endtime-_starttime)/1e9;
+	}
+
+	@Override
+	public long getRecords() {
+		return _sweep == null ? 0 : _sweep.getTotalReads();
+	}
+
+	@Override
+	public long getBytesRead() {
+		if(_bytesread >= 0) {
+			return _bytesread;
+		}
+		if(_batchreader != null) {
+			return _batchreader.getBytesRead();
+		}
+		if(_fragmentreader != null) {
+			return _fragmentreader.getBytesRead();
+		}
+		return 0;
+	}
+
+	@Override
+	public double getRecordsPerSecond() {
+		return getRecords()/getElapsedSeconds();
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return getBytesRead()/getElapsedSeconds();
+	}
+
+	@Override
+	public double getDecodeSeconds() {
+		if(_readstats == null) {
+			return Double.NaN;
+		}
+		long decodetime = _readstats.getBusyTime()-getBarcodeLookupTime();
+		if(_sweepstats == null && _fragmentreader != null) {
+			decodetime -= _fragmentreader.getSweepTime();
+		}
+		return Math.max(0, decodetime)/1e9;
+	}
+
+	@Override
+	public double getBarcodeLookupSeconds() {
+		if(_batchreader == null && _fragmentreader == null) {
+			return Double.NaN;
+		}
+		return getBarcodeLookupTime()/1e9;
+	}
+
+	@Override
+	public double getFilterSeconds() {
+		if(_sweep == null) {
+			return Double.NaN;
+		}
+		if(_sweepstats != null) {
+			return Math.max(0, _sweepstats.getBusyTime()-_sweep.getOverlapTime())/1e9;
+		}
+		if(_fragmentreader != null) {
+			return Math.max(0, _fragmentreader.getSweepTime()-_sweep.getOverlapTime())/1e9;
+		}
+		return Double.NaN;
+	}
+
+	@Override
+	public double getSweepSeconds() {
+		if(_sweep == null) {
+			return Double.NaN;
+		}
+		return (_sweep.getOverlapTime()-_sweep.getOverlapInfoTime())/1e9;
+	}
+
+	@Override
+	public double getSetOverlapInfoSeconds() {
+		if(_sweep == null) {
+			return Double.NaN;
+		}
+		return _sweep.getOverlapInfoTime()/1e9;
+	}
+
+	@Override
+	public double getWriteSeconds() {
+		if(_writestats == null) {
+			return Double.NaN;
+		}
+		return _writestats.getBusyTime()/1e9;
+	}
+
+	@Override
+	public long[] getClusterSizeHistogram() {
+		return _sweep == null ? new long[0] : _sweep.getClusterSizeHistogram().clone();
+	}
+
+	@Override
+	public long getHeapUsed() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	//The largest heap use of the JVM so far, summed over the heap pools
+	public long getHeapPeak() {
+		long rv = 0;
+		for(Iterator<MemoryPoolMXBean> it = ManagementFactory.getMemoryPoolMXBeans().iterator(); it.hasNext();) {
+			MemoryPoolMXBean next = it.next();
+			if(next.getType() == MemoryType.HEAP && next.getPeakUsage() != null) {
+				rv += next.getPeakUsage().getUsed();
+			}
+		}
+		return rv;
+	}
+
+	private long getBarcodeLookupTime() {
+		if(_batchreader != null) {
+			return _batchreader.getBarcodeLookupTime();
+		}
+		if(_fragmentreader != null) {
+			return _fragmentreader.getBarcodeLookupTime();
+		}
+		return 0;
+	}
+
+	public void writeMetrics(String outfile) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Metric\tValue\n");
+		appendMetric(sb, "input", _input);
+		appendMetric(sb, "elapsed_seconds", formatDouble(getElapsedSeconds()));
+		appendMetric(sb, "records", Long.toString(getRecords()));
+		appendMetric(sb, "bytes_read", Long.toString(getBytesRead()));
+		appendMetric(sb, "records_per_second", formatDouble(getRecordsPerSecond()));
+		appendMetric(sb, "bytes_per_second", formatDouble(getBytesPerSecond()));
+		appendMetric(sb, "decode_seconds", formatDouble(getDecodeSeconds()));
+		appendMetric(sb, "barcode_lookup_seconds", formatDouble(getBarcodeLookupSeconds()));
+		appendMetric(sb, "filter_seconds", formatDouble(getFilterSeconds()));
+		appendMetric(sb, "sweep_seconds", formatDouble(getSweepSeconds()));
+		appendMetric(sb, "set_overlap_info_seconds", formatDouble(getSetOverlapInfoSeconds()));
+		appendMetric(sb, "write_seconds", formatDouble(getWriteSeconds()));
+		appendMetric(sb, "heap_used_bytes", Long.toString(getHeapUsed()));
+		appendMetric(sb, "heap_peak_bytes", Long.toString(getHeapPeak()));
+		appendMetric(sb, "heap_max_bytes", Long.toString(Runtime.getRuntime().maxMemory()));
+
+		long[] histogram = getClusterSizeHistogram();
+		int last = histogram.length-1;
+		while(last >= 0 && histogram[last] == 0) {
+			last--;
+		}
+		for(int i = 0; i <= last; i++) {
+			appendMetric(sb, "cluster_size_"+Long.toString(1L << i)+"-"+Long.toString((1L << (i+1))-1), Long.toString(histogram[i]));
+		}
+
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outfile));
+		bw.write(sb.toString());
+		bw.flush();
+		bw.close();
+	}
+
+	private void appendMetric(StringBuilder sb, String metric, String value) {
+		sb.append(metric);
+		sb.append("\t");
+		sb.append(value);
+		sb.append("\n");
+	}
+
+	private String formatDouble(double d) {
+		return Double.isNaN(d) ? "NA" : Double.toString(d);
+	}
+
+	//Called by the periodic progress event of JFRRunEvents
+	static void commitProgressEvents() {
+		synchronized(RUNNING) {
+			for(Iterator<RunMetrics> it = RUNNING.iterator(); it.hasNext();) {
+				RunMetrics next = it.next();
+				if(next._events != null) {
+					next._events.commitProgress(next);
+				}
+			}
+		}
+	}
+
+	//JFR is in Java 11 and later, JFRRunEvents needs Java 11. Null without them
+	private static Class<?> getJFREventsClass() {
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+			return Class.forName("org.jax.snatacoverlapcounter.JFRRunEvents");
+		} catch (ClassNotFoundException | LinkageError e) {
+			return null;
+		}
+	}
+
+	private static RunEvents newRunEvents() {
+		if(JFREVENTS == null) {
+			return null;
+		}
+		try {
+			return (RunEvents) JFREVENTS.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
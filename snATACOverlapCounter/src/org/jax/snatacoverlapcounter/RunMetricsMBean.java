@@ -0,0 +1,36 @@
+package org.jax.snatacoverlapcounter;
+
+/**
+ * The JMX view of RunMetrics. Times are in seconds, NaN if the run cannot measure them.
+ */
+public interface RunMetricsMBean {
+
+	public String getInput();
+
+	public double getElapsedSeconds();
+
+	public long getRecords();
+
+	public long getBytesRead();
+
+	public double getRecordsPerSecond();
+
+	public double getBytesPerSecond();
+
+	public double getDecodeSeconds();
+
+	public double getBarcodeLookupSeconds();
+
+	public double getFilterSeconds();
+
+	public double getSweepSeconds();
+
+	public double getSetOverlapInfoSeconds();
+
+	public double getWriteSeconds();
+
+	//Bucket i is the number of clusters with [2^i, 2^(i+1)) reads
+	public long[] getClusterSizeHistogram();
+
+	public long getHeapUsed();
+}
@@ -0,0 +1,79 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.IOException;
+
+import org.jax.snatacoverlapcounter.util.CountingInputStream;
+import org.jax.snatacoverlapcounter.util.CountingSeekableStream;
+import org.jax.snatacoverlapcounter.util.SampledTimer;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+
+/**
+ * Decodes the records with htsjdk and keeps the fields the sweep uses.
+ */
+public class SAMRecordBatchReader implements BatchReader {
+
+	private SAMRecordIterator _it;
+	private OverlapSweep _sweep;
+	private CountingInputStream[] _ins;
+	private CountingSeekableStream _seekablein;
+	private SampledTimer _lookuptimer;
+
+	//The iterator reads the BAM file from the counting stream
+	public SAMRecordBatchReader(SAMRecordIterator it, OverlapSweep sweep, CountingInputStream in) {
+		this(it, sweep, new CountingInputStream[] { in });
+	}
+
+	//The iterator merges the files read from the counting streams, see MergingRecordIterator
+	public SAMRecordBatchReader(SAMRecordIterator it, OverlapSweep sweep, CountingInputStream[] ins) {
+		_it = it;
+		_sweep = sweep;
+		_ins = ins;
+		_lookuptimer = new SampledTimer();
+	}
+
+	//The iterator queries the BAM file through the counting stream
+	public SAMRecordBatchReader(SAMRecordIterator it, OverlapSweep sweep, CountingSeekableStream in) {
+		_it = it;
+		_sweep = sweep;
+		_seekablein = in;
+		_lookuptimer = new SampledTimer();
+	}
+
+	@Override
+	public boolean read(ReadBatch batch) {
+		while(!batch.isFull() && _it.hasNext()) {
+			SAMRecord next = _it.next();
+			boolean timed = _lookuptimer.start();
+			int cellidx = _sweep.getCellIndex(next);
+			if(timed) {
+				_lookuptimer.stop();
+			}
+			batch.add(next, cellidx);
+		}
+		return batch.size() > 0;
+	}
+
+	@Override
+	public long getBytesRead() {
+		if(_seekablein != null) {
+			return _seekablein.getCount();
+		}
+		long rv = 0;
+		for(int i = 0; i < _ins.length; i++) {
+			rv += _ins[i].getCount();
+		}
+		return rv;
+	}
+
+	@Override
+	public long getBarcodeLookupTime() {
+		return _lookuptimer.getTime();
+	}
+
+	@Override
+	public void close() throws IOException {
+		_it.close();
+	}
+}
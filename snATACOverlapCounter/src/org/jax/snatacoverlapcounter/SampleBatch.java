@@ -0,0 +1,284 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jax.snatacoverlapcounter.util.Util;
+
+/**
+ * Runs the samples of a manifest in one JVM. Each manifest line is a BAM or fragment file and its
+ * barcode to cell id map, separated by a comma or tab, optionally followed by a sample name. Other
+ * sample names are inferred from the file paths as in Util.inferSampleNames.
+ *
+ * The samples run single threaded on a pool of --threads workers and write to their own output
+ * directories. A sample only starts if its estimated memory fits in what the running samples
+ * leave of the memory budget. The largest samples are started first and smaller ones fill the
+ * rest of the budget. A sample that is larger than the whole budget runs alone.
+ */
+public class SampleBatch {
+
+	//Rough estimate of a sample run: the pipeline buffers, then the clusters, counts and pending overlaps of each cell
+	private static final long SAMPLEMEMORY = 64L << 20;
+	private static final long CELLMEMORY = 4096;
+
+	private OverlapCounter _pc;
+	private String _forwardcorrection, _reversecorrection;
+	private long _memorybudget;
+	private boolean _multiplets;
+	private int _minoverlap;
+	private double _qthreshold, _qrepthreshold;
+	private String _rfilter;
+
+	/**
+	 * The counter holds the options of all samples. The start and end corrections are null to use
+	 * the default of each input type.
+	 */
+	public SampleBatch(OverlapCounter pc, String forwardcorrection, String reversecorrection, long memorybudget) {
+		_pc = pc;
+		_forwardcorrection = forwardcorrection;
+		_reversecorrection = reversecorrection;
+		_memorybudget = memorybudget;
+		_multiplets = false;
+	}
+
+	public void setMultipletDetection(int minoverlap, double qthreshold, double qrepthreshold, String rfilter) {
+		_multiplets = true;
+		_minoverlap = minoverlap;
+		_qthreshold = qthreshold;
+		_qrepthreshold = qrepthreshold;
+		_rfilter = rfilter;
+	}
+
+	public void run(String manifest, String chromsizes, String outdir) throws IOException {
+		Sample[] samples = readManifest(manifest);
+		System.out.println("Running "+Integer.toString(samples.length)+" samples on "+Integer.toString(_pc.getThreads())+" threads with "+Long.toString(_memorybudget >> 20)+" MB.");
+
+		LinkedList<Sample> pending = new LinkedList<Sample>();
+		for(int i = 0; i < samples.length; i++) {
+			samples[i]._outdir = outdir+"/"+samples[i]._name;
+			if(samples[i]._status == null) {
+				pending.add(samples[i]);
+			}
+		}
+		Sample[] bysize = pending.toArray(new Sample[0]);
+		Arrays.sort(bysize, new Comparator<Sample>() {
+			@Override
+			public int compare(Sample s1, Sample s2) {
+				return Long.compare(s2._memory, s1._memory);
+			}
+		});
+		pending = new LinkedList<Sample>(Arrays.asList(bysize));
+
+		int threads = _pc.getThreads();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ExecutorCompletionService<Sample> ecs = new ExecutorCompletionService<Sample>(pool);
+		long used = 0;
+		int running = 0;
+		try {
+			while(pending.size() > 0 || running > 0) {
+				for(Iterator<Sample> it = pending.iterator(); it.hasNext() && running < threads;) {
+					Sample next = it.next();
+					if(running == 0 || used+next._memory <= _memorybudget) {
+						ecs.submit(new SampleTask(next, chromsizes));
+						used += next._memory;
+						running++;
+						it.remove();
+					}
+				}
+				Sample done = ecs.take().get();
+				used -= done._memory;
+				running--;
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+
+		writeBatchSummary(samples, outdir+"/BatchSummary.txt");
+	}
+
+	private Sample[] readManifest(String manifest) throws IOException {
+		Util u = new Util();
+		String[] lines = u.getFiles(manifest);
+		LinkedList<String[]> entries = new LinkedList<String[]>();
+		for(int i = 0; i < lines.length; i++) {
+			String line = lines[i].trim();
+			if(line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			String[] split = line.split("\t|,");
+			for(int j = 0; j < split.length; j++) {
+				split[j] = split[j].trim();
+			}
+			if(split.length < 2) {
+				throw new IOException("Manifest lines need an input file and a barcode to cell id map: "+line);
+			}
+			entries.add(split);
+		}
+
+		String[] files = new String[entries.size()];
+		int i = 0;
+		for(Iterator<String[]> it = entries.iterator(); it.hasNext();) {
+			files[i++] = it.next()[0];
+		}
+		String[] names = u.inferSampleNames(files);
+
+		Sample[] rv = new Sample[files.length];
+		HashSet<String> used = new HashSet<String>();
+		i = 0;
+		for(Iterator<String[]> it = entries.iterator(); it.hasNext(); i++) {
+			String[] next = it.next();
+			String name = next.length > 2 ? next[2] : names[i];
+			if(!used.add(name)) {
+				throw new IOException("Duplicate sample name "+name+", add sample names as the third manifest column.");
+			}
+			rv[i] = new Sample(name, next[0], next[1]);
+			try {
+				rv[i]._memory = SAMPLEMEMORY+CELLMEMORY*_pc.getCellCount(next[1]);
+				if(!FragmentReader.isFragmentFile(next[0])) {
+					//The BAM file may not be sorted
+					rv[i]._memory += _pc.getSortMemory();
+				}
+			}
+			catch(IOException e) {
+				rv[i]._status = "Failed: "+e.toString();
+			}
+		}
+		return rv;
+	}
+
+	private void writeBatchSummary(Sample[] samples, String outfile) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(outfile));
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Sample");
+		sb.append("\t");
+		sb.append("Input");
+		sb.append("\t");
+		sb.append("Cells");
+		sb.append("\t");
+		sb.append("Total Reads");
+		sb.append("\t");
+		sb.append("Valid Read Pairs");
+		sb.append("\t");
+		sb.append("Number of Overlaps");
+		sb.append("\t");
+		sb.append("Run Time (s)");
+		sb.append("\t");
+		sb.append("Status");
+		sb.append("\n");
+		bw.write(sb.toString());
+
+		for(int i = 0; i < samples.length; i++) {
+			Sample next = samples[i];
+			sb = new StringBuilder();
+			sb.append(next._name);
+			sb.append("\t");
+			sb.append(next._file);
+			sb.append("\t");
+			sb.append(Integer.toString(next._cells));
+			sb.append("\t");
+			sb.append(Integer.toString(next._totalreads));
+			sb.append("\t");
+			sb.append(Integer.toString(next._validreads));
+			sb.append("\t");
+			sb.append(Long.toString(next._overlaps));
+			sb.append("\t");
+			sb.append(Double.toString(next._runtime));
+			sb.append("\t");
+			sb.append(next._status);
+			sb.append("\n");
+			bw.write(sb.toString());
+		}
+
+		bw.flush();
+		bw.close();
+	}
+
+	private class Sample {
+
+		private String _name, _file, _cellbarcodes, _outdir, _status;
+		private long _memory, _overlaps;
+		private int _cells, _totalreads, _validreads;
+		private double _runtime;
+
+		public Sample(String name, String file, String cellbarcodes) {
+			_name = name;
+			_file = file;
+			_cellbarcodes = cellbarcodes;
+		}
+
+		public void setCounts(OverlapSweep sweep) {
+			_totalreads = sweep.getTotalReads();
+			_validreads = sweep.getValidReads();
+			int[] overlaps = sweep.getOverlapCounts();
+			_cells = overlaps.length;
+			for(int i = 0; i < overlaps.length; i++) {
+				_overlaps += overlaps[i];
+			}
+		}
+	}
+
+	private class SampleTask implements Callable<Sample> {
+
+		private Sample _sample;
+		private String _chromsizes;
+
+		public SampleTask(Sample sample, String chromsizes) {
+			_sample = sample;
+			_chromsizes = chromsizes;
+		}
+
+		@Override
+		public Sample call() {
+			long timestart = System.currentTimeMillis();
+			System.out.println("Starting sample "+_sample._name+".");
+			new File(_sample._outdir).mkdirs();
+
+			OverlapCounter sc = _pc.getSampleCounter(_sample._file, _forwardcorrection, _reversecorrection);
+			try {
+				sc.writeParameters(_sample._outdir+"/OverlapCounter-LastRunParameters.txt");
+				_sample.setCounts(sc.findOverlaps(_sample._file, _sample._cellbarcodes, _chromsizes, _sample._outdir));
+				if(_multiplets) {
+					sc.detectMultiplets(_minoverlap, _qthreshold, _qrepthreshold, _rfilter, _sample._outdir);
+				}
+				_sample._status = "Complete";
+			} catch (Exception e) {
+				//A failed sample does not stop the batch
+				e.printStackTrace();
+				_sample._status = "Failed: "+e.toString();
+				try {
+					new Util().writeErrorFile(e, _sample._outdir);
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+			}
+
+			long timeend = System.currentTimeMillis();
+			_sample._runtime = (double)(timeend-timestart)/1000;
+			try {
+				sc.writeRunTime(timestart, timeend, _sample._outdir);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			System.out.println("Finished sample "+_sample._name+": "+_sample._status);
+			return _sample;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.IOException;
+
+/**
+ * Reads the batch readers one after the other.
+ */
+public class SequentialBatchReader implements BatchReader {
+
+	private BatchReader[] _readers;
+	private int _current;
+
+	public SequentialBatchReader(BatchReader[] readers) {
+		_readers = readers;
+		_current = 0;
+	}
+
+	@Override
+	public boolean read(ReadBatch batch) throws IOException {
+		while(_current < _readers.length) {
+			if(_readers[_current].read(batch)) {
+				return true;
+			}
+			_current++;
+		}
+		return false;
+	}
+
+	@Override
+	public long getBytesRead() {
+		long rv = 0;
+		for(int i = 0; i < _readers.length; i++) {
+			rv += _readers[i].getBytesRead();
+		}
+		return rv;
+	}
+
+	@Override
+	public long getBarcodeLookupTime() {
+		long rv = 0;
+		for(int i = 0; i < _readers.length; i++) {
+			rv += _readers[i].getBarcodeLookupTime();
+		}
+		return rv;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(int i = 0; i < _readers.length; i++) {
+			_readers[i].close();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.jax.snatacoverlapcounter.util.CellIndex;
+
+/**
+ * Replays the outputs of consecutive work units in genome order, the open clusters carry over
+ * from one unit to the next. The overlaps held back by the units are written through the total
+ * sweep, which counts them.
+ *
+ * A merger that starts at the beginning of the BAM file writes the final output. An open merger
+ * starts after units it does not know (a shard, see OverlapCounter), so like a unit sweep it only
+ * records where the clusters left open by them are closed, and getResult describes its output as
+ * one larger unit.
+ */
+public class UnitMerger {
+
+	private BufferedWriter _bw;
+	private OverlapSweep _total;
+	private CellIndex _cells;
+	private boolean _open;
+
+	private String[] _pending;
+	private int _firstrefindex, _currefindex;
+	private long _written;
+
+	//The bookkeeping of an open merger, as in OverlapSweep
+	private boolean _ownsclusters;
+	private boolean[] _touched;
+	private long[] _markeroffsets;
+	private int[] _markercells;
+	private int _markercount;
+	private long _flushoffset;
+	private TreeMap<Integer, String> _flushoverlaps;
+
+	public UnitMerger(BufferedWriter bw, OverlapSweep total, CellIndex cells, boolean open) {
+		_bw = bw;
+		_total = total;
+		_cells = cells;
+		_open = open;
+		_pending = new String[cells.size()];
+		_firstrefindex = -1;
+		_currefindex = -1;
+		_written = 0;
+		_ownsclusters = !open;
+		_touched = new boolean[cells.size()];
+		_markeroffsets = new long[16];
+		_markercells = new int[16];
+		_markercount = 0;
+		_flushoffset = -1;
+	}
+
+	//Adds the next unit, br reads its output
+	public void add(UnitResult unit, BufferedReader br) throws IOException {
+		if(unit.getFirstReferenceIndex() < 0) {
+			return;
+		}
+		if(_firstrefindex < 0) {
+			_firstrefindex = unit.getFirstReferenceIndex();
+		}
+		else if(unit.getFirstReferenceIndex() != _currefindex) {
+			flushPending();
+		}
+
+		long copied = 0;
+		long[] offsets = unit.getMarkerOffsets();
+		int[] markercells = unit.getMarkerCells();
+		for(int i = 0; i < unit.getMarkerCount(); i++) {
+			copied += copy(br, offsets[i]-copied);
+			int cellidx = markercells[i];
+			if(!_ownsclusters && !_touched[cellidx]) {
+				//The cluster belongs to a unit before this merger
+				_touched[cellidx] = true;
+				addMarker(cellidx);
+			}
+			else if(_pending[cellidx] != null) {
+				write(cellidx, _pending[cellidx]);
+				_pending[cellidx] = null;
+			}
+		}
+
+		if(unit.getFlushOffset() >= 0) {
+			copied += copy(br, unit.getFlushOffset()-copied);
+			setPending(unit.getTouched(), unit.getFlushOverlaps());
+			flushPending();
+		}
+
+		copy(br, unit.getWritten()-copied);
+
+		setPending(unit.ownsClusters() ? null : unit.getTouched(), unit.getPendingOverlaps());
+		_currefindex = unit.getCurrentReferenceIndex();
+	}
+
+	/**
+	 * The output of an open merger as a unit. The clusters that are still open are not written,
+	 * as the last chromosome is never flushed.
+	 */
+	public UnitResult getResult() {
+		TreeMap<Integer, String> pending = new TreeMap<Integer, String>();
+		for(int i = 0; i < _pending.length; i++) {
+			if(_pending[i] != null) {
+				pending.put(i, _pending[i]);
+			}
+		}
+		return new UnitResult(_firstrefindex, _currefindex, _written, _ownsclusters, _touched, _markeroffsets, _markercells, _markercount, _flushoffset, _flushoverlaps, pending);
+	}
+
+	private void flushPending() throws IOException {
+		if(!_ownsclusters) {
+			//The inherited clusters are flushed together with these by the merge
+			_flushoffset = _written;
+			_flushoverlaps = new TreeMap<Integer, String>();
+			for(int i = 0; i < _pending.length; i++) {
+				if(_pending[i] != null) {
+					_flushoverlaps.put(i, _pending[i]);
+				}
+			}
+			_ownsclusters = true;
+		}
+		else {
+			int[] flushorder = _cells.getFlushOrder();
+			for(int i = 0; i < flushorder.length; i++) {
+				int cellidx = flushorder[i];
+				if(_pending[cellidx] != null) {
+					write(cellidx, _pending[cellidx]);
+				}
+			}
+		}
+		Arrays.fill(_pending, null);
+	}
+
+	//Replaces the pending overlaps of the touched cells, or of all cells if touched is null
+	private void setPending(boolean[] touched, TreeMap<Integer, String> overlaps) {
+		for(int i = 0; i < _pending.length; i++) {
+			if(touched == null || touched[i]) {
+				_pending[i] = null;
+			}
+		}
+		for(Iterator<Entry<Integer, String>> it = overlaps.entrySet().iterator(); it.hasNext();) {
+			Entry<Integer, String> next = it.next();
+			_pending[next.getKey()] = next.getValue();
+		}
+	}
+
+	private void addMarker(int cellidx) {
+		if(_markercount == _markercells.length) {
+			_markeroffsets = Arrays.copyOf(_markeroffsets, _markercount*2);
+			_markercells = Arrays.copyOf(_markercells, _markercount*2);
+		}
+		_markeroffsets[_markercount] = _written;
+		_markercells[_markercount] = cellidx;
+		_markercount++;
+	}
+
+	private void write(int cellidx, String overlaps) throws IOException {
+		_total.writeMergedOverlaps(_bw, cellidx, overlaps);
+		_written += overlaps.length();
+	}
+
+	private long copy(BufferedReader br, long length) throws IOException {
+		char[] buffer = new char[65536];
+		long remaining = length;
+		while(remaining > 0) {
+			int read = br.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if(read < 0) {
+				throw new IOException("Unexpected end of work unit output.");
+			}
+			_bw.write(buffer, 0, read);
+			remaining -= read;
+		}
+		_written += length;
+		return length;
+	}
+}
@@ -0,0 +1,220 @@
+package org.jax.snatacoverlapcounter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * What the merge step needs to know about the output of a work unit, or of a shard, that only
+ * saw part of the BAM file (see OverlapSweep and UnitMerger): where its output closes clusters
+ * left open by the preceding units and the overlaps of the clusters it left open itself. The
+ * overlaps are kept formatted, one line per overlap.
+ */
+public class UnitResult {
+
+	private int _firstrefindex, _currefindex;
+	private long _written;
+	private boolean _ownsclusters;
+	private boolean[] _touched;
+	private long[] _markeroffsets;
+	private int[] _markercells;
+	private int _markercount;
+	private long _flushoffset;
+	private TreeMap<Integer, String> _flushoverlaps, _pendingoverlaps;
+
+	public UnitResult(int firstrefindex, int currefindex, long written, boolean ownsclusters, boolean[] touched, long[] markeroffsets, int[] markercells, int markercount, long flushoffset, TreeMap<Integer, String> flushoverlaps, TreeMap<Integer, String> pendingoverlaps) {
+		_firstrefindex = firstrefindex;
+		_currefindex = currefindex;
+		_written = written;
+		_ownsclusters = ownsclusters;
+		_touched = touched;
+		_markeroffsets = markeroffsets;
+		_markercells = markercells;
+		_markercount = markercount;
+		_flushoffset = flushoffset;
+		_flushoverlaps = flushoverlaps != null ? flushoverlaps : new TreeMap<Integer, String>();
+		_pendingoverlaps = pendingoverlaps;
+	}
+
+	//The reference index of the first read that could change the chromosome, -1 if there was none
+	public int getFirstReferenceIndex() {
+		return _firstrefindex;
+	}
+
+	public int getCurrentReferenceIndex() {
+		return _currefindex;
+	}
+
+	//The length of the output
+	public long getWritten() {
+		return _written;
+	}
+
+	//True if the unit changed chromosome, its pending overlaps then replace all of the inherited ones
+	public boolean ownsClusters() {
+		return _ownsclusters;
+	}
+
+	//The cells whose inherited clusters were closed by the unit
+	public boolean[] getTouched() {
+		return _touched;
+	}
+
+	public int getMarkerCount() {
+		return _markercount;
+	}
+
+	//Where the inherited cluster of the marker cell is written in the output
+	public long[] getMarkerOffsets() {
+		return _markeroffsets;
+	}
+
+	public int[] getMarkerCells() {
+		return _markercells;
+	}
+
+	//Where the unit changed chromosome and all open clusters are written, -1 if it did not
+	public long getFlushOffset() {
+		return _flushoffset;
+	}
+
+	//The open clusters of the touched cells at the flush offset
+	public TreeMap<Integer, String> getFlushOverlaps() {
+		return _flushoverlaps;
+	}
+
+	//The clusters that were open at the end of the unit
+	public TreeMap<Integer, String> getPendingOverlaps() {
+		return _pendingoverlaps;
+	}
+
+	public void write(BufferedWriter bw) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("firstrefindex\t");
+		sb.append(Integer.toString(_firstrefindex));
+		sb.append("\ncurrefindex\t");
+		sb.append(Integer.toString(_currefindex));
+		sb.append("\nwritten\t");
+		sb.append(Long.toString(_written));
+		sb.append("\nownsclusters\t");
+		sb.append(Boolean.toString(_ownsclusters));
+		sb.append("\ncells\t");
+		sb.append(Integer.toString(_touched.length));
+		sb.append("\nflushoffset\t");
+		sb.append(Long.toString(_flushoffset));
+		sb.append("\n");
+		bw.write(sb.toString());
+
+		for(int i = 0; i < _touched.length; i++) {
+			if(_touched[i]) {
+				bw.write("touched\t"+Integer.toString(i)+"\n");
+			}
+		}
+		for(int i = 0; i < _markercount; i++) {
+			bw.write("marker\t"+Long.toString(_markeroffsets[i])+"\t"+Integer.toString(_markercells[i])+"\n");
+		}
+		writeOverlaps(bw, "flush", _flushoverlaps);
+		writeOverlaps(bw, "pending", _pendingoverlaps);
+	}
+
+	//One line per overlap, prefixed with the section and the cell
+	private void writeOverlaps(BufferedWriter bw, String section, TreeMap<Integer, String> overlaps) throws IOException {
+		for(Iterator<Entry<Integer, String>> it = overlaps.entrySet().iterator(); it.hasNext();) {
+			Entry<Integer, String> next = it.next();
+			String prefix = section+"\t"+Integer.toString(next.getKey())+"\t";
+			String[] lines = next.getValue().split("\n");
+			for(int i = 0; i < lines.length; i++) {
+				bw.write(prefix);
+				bw.write(lines[i]);
+				bw.write("\n");
+			}
+		}
+	}
+
+	public static UnitResult read(BufferedReader br) throws IOException {
+		int firstrefindex = -1;
+		int currefindex = -1;
+		long written = 0;
+		boolean ownsclusters = false;
+		boolean[] touched = null;
+		long[] markeroffsets = new long[16];
+		int[] markercells = new int[16];
+		int markercount = 0;
+		long flushoffset = -1;
+		TreeMap<Integer, StringBuilder> flushoverlaps = new TreeMap<Integer, StringBuilder>();
+		TreeMap<Integer, StringBuilder> pendingoverlaps = new TreeMap<Integer, StringBuilder>();
+
+		String line;
+		while((line = br.readLine()) != null) {
+			String[] split = line.split("\t", 3);
+			switch(split[0]) {
+				case "firstrefindex":
+					firstrefindex = Integer.parseInt(split[1]);
+					break;
+				case "currefindex":
+					currefindex = Integer.parseInt(split[1]);
+					break;
+				case "written":
+					written = Long.parseLong(split[1]);
+					break;
+				case "ownsclusters":
+					ownsclusters = Boolean.parseBoolean(split[1]);
+					break;
+				case "cells":
+					touched = new boolean[Integer.parseInt(split[1])];
+					break;
+				case "flushoffset":
+					flushoffset = Long.parseLong(split[1]);
+					break;
+				case "touched":
+					touched[Integer.parseInt(split[1])] = true;
+					break;
+				case "marker":
+					if(markercount == markercells.length) {
+						markeroffsets = Arrays.copyOf(markeroffsets, markercount*2);
+						markercells = Arrays.copyOf(markercells, markercount*2);
+					}
+					markeroffsets[markercount] = Long.parseLong(split[1]);
+					markercells[markercount] = Integer.parseInt(split[2]);
+					markercount++;
+					break;
+				case "flush":
+					addOverlap(flushoverlaps, split);
+					break;
+				case "pending":
+					addOverlap(pendingoverlaps, split);
+					break;
+				default:
+					throw new IOException("Unknown shard state line: "+line);
+			}
+		}
+		if(touched == null) {
+			throw new IOException("Incomplete shard state.");
+		}
+		return new UnitResult(firstrefindex, currefindex, written, ownsclusters, touched, markeroffsets, markercells, markercount, flushoffset, toStrings(flushoverlaps), toStrings(pendingoverlaps));
+	}
+
+	private static void addOverlap(TreeMap<Integer, StringBuilder> overlaps, String[] split) {
+		int cellidx = Integer.parseInt(split[1]);
+		StringBuilder sb = overlaps.get(cellidx);
+		if(sb == null) {
+			sb = new StringBuilder();
+			overlaps.put(cellidx, sb);
+		}
+		sb.append(split[2]);
+		sb.append("\n");
+	}
+
+	private static TreeMap<Integer, String> toStrings(TreeMap<Integer, StringBuilder> overlaps) {
+		TreeMap<Integer, String> rv = new TreeMap<Integer, String>();
+		for(Iterator<Entry<Integer, StringBuilder>> it = overlaps.entrySet().iterator(); it.hasNext();) {
+			Entry<Integer, StringBuilder> next = it.next();
+			rv.put(next.getKey(), next.getValue().toString());
+		}
+		return rv;
+	}
+}
@@ -0,0 +1,224 @@
+package org.jax.snatacoverlapcounter.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Corrects an uncorrected barcode (e.g. the CR tag) to the cell barcode that it matches or is a
+ * single mismatch away from. A suffix "-n" of the barcodes is ignored.
+ *
+ * The bases of every cell barcode are indexed once with each of their positions deleted, keyed
+ * by the position and the number of bases. A barcode with a mismatch at position i has the same
+ * key for i as its cell barcode, so a lookup is one probe per position. Barcodes that are a
+ * mismatch away from the cell barcodes of two cells are not corrected, neither are barcodes with
+ * more than one N. An N is the mismatch, only its position is probed.
+ *
+ * The answers for recent barcodes are cached. The cache is not shared, a corrector is used by a
+ * single thread and the copy constructor makes another one on the same index.
+ */
+public class BarcodeCorrector {
+
+	//Set in the cell index of a read whose barcode was corrected, see OverlapSweep.process
+	public static final int CORRECTED = 1 << 30;
+
+	//The value of a key of more than one cell
+	private static final int AMBIGUOUS = -2;
+	private static final int LENGTHSHIFT = 2*BarcodeMap.MAXBASES;
+	private static final int POSITIONSHIFT = LENGTHSHIFT+5;
+	private static final int CACHESIZE = 1 << 12;
+
+	private String _tag;
+	private byte _tag1, _tag2;
+	private BarcodeMap _exact, _neighbors;
+	private long[] _cachekeys;
+	private int[] _cachecells;
+
+	public BarcodeCorrector(TreeMap<String, String> cellbarcodemap, CellIndex cells, String tag) {
+		_tag = tag;
+		_tag1 = (byte) tag.charAt(0);
+		_tag2 = (byte) tag.charAt(1);
+		_exact = new BarcodeMap(cellbarcodemap.size());
+		_neighbors = new BarcodeMap(16*cellbarcodemap.size());
+		for(Iterator<Entry<String, String>> it = cellbarcodemap.entrySet().iterator(); it.hasNext();) {
+			String barcode = it.next().getKey();
+			int n = getBaseCount(barcode);
+			long bases = getBases(barcode, n);
+			if(bases < 0) {
+				//Other letters or more than 26 bases are only looked up exactly by the CellIndex
+				continue;
+			}
+			int cellidx = cells.getCellIndex(barcode);
+			put(_exact, getKey(bases, n, -1), cellidx);
+			for(int i = 0; i < n; i++) {
+				put(_neighbors, getKey(bases, n, i), cellidx);
+			}
+		}
+		initCache();
+	}
+
+	//Shares the index of the corrector, with a cache of its own
+	public BarcodeCorrector(BarcodeCorrector corrector) {
+		_tag = corrector._tag;
+		_tag1 = corrector._tag1;
+		_tag2 = corrector._tag2;
+		_exact = corrector._exact;
+		_neighbors = corrector._neighbors;
+		initCache();
+	}
+
+	public String getTag() {
+		return _tag;
+	}
+
+	/**
+	 * The cell of the corrected barcode of the tag in the BAM aux block buf[off, end), -1 if the
+	 * block has no such tag or its barcode is not corrected.
+	 */
+	public int getCellIndex(byte[] buf, int off, int end) throws IOException {
+		int value = CellIndex.findStringTag(buf, off, end, _tag1, _tag2);
+		if(value < 0) {
+			return -1;
+		}
+		int valueend = CellIndex.getStringEnd(buf, value, end);
+		long bases = 0;
+		int n = 0;
+		int npos = -1;
+		while(value+n < valueend && buf[value+n] != '-') {
+			int base = BarcodeMap.BASES[buf[value+n] & 0xff];
+			if(base < 0) {
+				if(buf[value+n] != 'N' || npos >= 0) {
+					return -1;
+				}
+				npos = n;
+				base = 0;
+			}
+			if(n == BarcodeMap.MAXBASES) {
+				return -1;
+			}
+			bases |= (long) base << (2*n);
+			n++;
+		}
+		return getCellIndex(bases, n, npos);
+	}
+
+	//Same as getCellIndex(byte[], int, int) for the barcode of the tag
+	public int getCellIndex(String barcode) {
+		long bases = 0;
+		int n = 0;
+		int npos = -1;
+		while(n < barcode.length() && barcode.charAt(n) != '-') {
+			char c = barcode.charAt(n);
+			int base = c < 256 ? BarcodeMap.BASES[c] : -1;
+			if(base < 0) {
+				if(c != 'N' || npos >= 0) {
+					return -1;
+				}
+				npos = n;
+				base = 0;
+			}
+			if(n == BarcodeMap.MAXBASES) {
+				return -1;
+			}
+			bases |= (long) base << (2*n);
+			n++;
+		}
+		return getCellIndex(bases, n, npos);
+	}
+
+	//The bases of the barcode with an N at npos (0 in bases), npos is -1 without an N
+	private int getCellIndex(long bases, int n, int npos) {
+		if(n == 0) {
+			return -1;
+		}
+		long cachekey = getKey(bases, n, -1) | ((long) (npos+1) << POSITIONSHIFT);
+		int slot = hash(cachekey) & (CACHESIZE-1);
+		if(_cachekeys[slot] == cachekey) {
+			return _cachecells[slot];
+		}
+
+		int rv;
+		if(npos >= 0) {
+			rv = Math.max(-1, _neighbors.get(getKey(bases, n, npos)));
+		}
+		else {
+			rv = _exact.get(getKey(bases, n, -1));
+			if(rv == -1) {
+				for(int i = 0; i < n; i++) {
+					int cellidx = _neighbors.get(getKey(bases, n, i));
+					if(cellidx == -1) {
+						continue;
+					}
+					if(cellidx == AMBIGUOUS || (rv >= 0 && rv != cellidx)) {
+						rv = AMBIGUOUS;
+						break;
+					}
+					rv = cellidx;
+				}
+			}
+			rv = Math.max(-1, rv);
+		}
+
+		_cachekeys[slot] = cachekey;
+		_cachecells[slot] = rv;
+		return rv;
+	}
+
+	/**
+	 * The key of the bases with the position deleted, with the number of bases and the position
+	 * (+1). The position is -1 for the key of all the bases.
+	 */
+	private long getKey(long bases, int n, int position) {
+		if(position >= 0) {
+			long low = bases & ((1L << (2*position))-1);
+			bases = low | ((bases >>> (2*position+2)) << (2*position));
+		}
+		return ((long) (position+1) << POSITIONSHIFT) | ((long) n << LENGTHSHIFT) | bases;
+	}
+
+	//A key of two cells is not corrected to either
+	private void put(BarcodeMap map, long key, int cellidx) {
+		int current = map.get(key);
+		if(current == -1) {
+			map.put(key, cellidx);
+		}
+		else if(current != cellidx) {
+			map.put(key, AMBIGUOUS);
+		}
+	}
+
+	private int getBaseCount(String barcode) {
+		int n = barcode.indexOf('-');
+		return n < 0 ? barcode.length() : n;
+	}
+
+	//-1 if the first n characters are not 1 to 26 bases
+	private long getBases(String barcode, int n) {
+		if(n == 0 || n > BarcodeMap.MAXBASES) {
+			return -1;
+		}
+		long rv = 0;
+		for(int i = 0; i < n; i++) {
+			char c = barcode.charAt(i);
+			int base = c < 256 ? BarcodeMap.BASES[c] : -1;
+			if(base < 0) {
+				return -1;
+			}
+			rv |= (long) base << (2*i);
+		}
+		return rv;
+	}
+
+	private void initCache() {
+		_cachekeys = new long[CACHESIZE];
+		_cachecells = new int[CACHESIZE];
+		Arrays.fill(_cachekeys, -1);
+	}
+
+	private int hash(long key) {
+		long h = key*0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,88 @@
+package org.jax.snatacoverlapcounter.util;
+
+import java.util.Arrays;
+
+/**
+ * Finds the duplicate read pairs of a cell in a coordinate sorted stream. A read pair is a
+ * duplicate if a pair of the same cell with the same start, end and strand came before it. As
+ * duplicates start at the same position, only the pairs at the current position are kept, in
+ * an open addressing hash set that is emptied when the position changes.
+ */
+public class BarcodeDuplicateFilter {
+
+	private static final long EMPTY = -1;
+
+	private long[] _keys;
+	private int[] _used;
+	private int _size, _mask;
+	private int _refindex, _position;
+
+	public BarcodeDuplicateFilter() {
+		_keys = new long[16];
+		_used = new int[8];
+		_mask = _keys.length-1;
+		_size = 0;
+		_refindex = -1;
+		_position = -1;
+		Arrays.fill(_keys, EMPTY);
+	}
+
+	/**
+	 * True if the pair of the cell at the position with the insert size and strand was seen
+	 * before, otherwise it is added. The insert size must be positive.
+	 */
+	public boolean isDuplicate(int refindex, int position, int cellidx, int insertsize, boolean negative) {
+		if(position != _position || refindex != _refindex) {
+			clear();
+			_refindex = refindex;
+			_position = position;
+		}
+
+		long key = ((long) cellidx << 32) | ((long) insertsize << 1) | (negative ? 1 : 0);
+		int slot = hash(key) & _mask;
+		while(_keys[slot] != EMPTY) {
+			if(_keys[slot] == key) {
+				return true;
+			}
+			slot = (slot+1) & _mask;
+		}
+		_keys[slot] = key;
+		_used[_size++] = slot;
+		if(_size*2 >= _keys.length) {
+			grow();
+		}
+		return false;
+	}
+
+	//Only the used slots are emptied, the table is mostly empty
+	private void clear() {
+		for(int i = 0; i < _size; i++) {
+			_keys[_used[i]] = EMPTY;
+		}
+		_size = 0;
+	}
+
+	private void grow() {
+		long[] keys = new long[_keys.length*2];
+		Arrays.fill(keys, EMPTY);
+		int[] used = new int[keys.length/2];
+		int mask = keys.length-1;
+		for(int i = 0; i < _size; i++) {
+			long key = _keys[_used[i]];
+			int slot = hash(key) & mask;
+			while(keys[slot] != EMPTY) {
+				slot = (slot+1) & mask;
+			}
+			keys[slot] = key;
+			used[i] = slot;
+		}
+		_keys = keys;
+		_used = used;
+		_mask = mask;
+	}
+
+	private int hash(long key) {
+		long h = key*0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
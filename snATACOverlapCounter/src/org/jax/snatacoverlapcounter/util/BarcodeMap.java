@@ -0,0 +1,169 @@
+package org.jax.snatacoverlapcounter.util;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing map of packed barcodes to cell indices, without a String or an Integer per
+ * barcode. pack turns a barcode of up to 26 bases (A, C, G or T) with an optional suffix "-n"
+ * (0 <= n <= 62, e.g. the "-1" of CellRanger) into a non-negative long: 2 bits per base, the
+ * number of bases and the suffix. Other barcodes are not packed, pack returns -1 for them.
+ *
+ * A key and its value are next to each other in one array, so a lookup usually reads a single
+ * cache line.
+ */
+public class BarcodeMap {
+
+	private static final long EMPTY = -1;
+	static final int MAXBASES = 26;
+	private static final int MAXSUFFIX = 62;
+	private static final int LENGTHSHIFT = 2*MAXBASES;
+	private static final int SUFFIXSHIFT = LENGTHSHIFT+5;
+	//The 2 bits of the bases A, C, G and T by character, -1 for the others
+	static final byte[] BASES = new byte[256];
+
+	static {
+		Arrays.fill(BASES, (byte) -1);
+		BASES['A'] = 0;
+		BASES['C'] = 1;
+		BASES['G'] = 2;
+		BASES['T'] = 3;
+	}
+
+	//The key of slot i at 2*i and its value at 2*i+1
+	private long[] _table;
+	private int _size, _mask;
+
+	public BarcodeMap(int capacity) {
+		int slots = 16;
+		while(slots < capacity*2) {
+			slots *= 2;
+		}
+		_table = new long[2*slots];
+		_mask = slots-1;
+		_size = 0;
+		Arrays.fill(_table, EMPTY);
+	}
+
+	//The key must be packed, the value of a key that is already in the map is replaced
+	public void put(long key, int value) {
+		if((_size+1)*4 > _table.length) {
+			grow();
+		}
+		int slot = hash(key) & _mask;
+		while(_table[2*slot] != EMPTY) {
+			if(_table[2*slot] == key) {
+				_table[2*slot+1] = value;
+				return;
+			}
+			slot = (slot+1) & _mask;
+		}
+		_table[2*slot] = key;
+		_table[2*slot+1] = value;
+		_size++;
+	}
+
+	//Returns -1 if the key is not in the map
+	public int get(long key) {
+		int slot = hash(key) & _mask;
+		long next;
+		while((next = _table[2*slot]) != EMPTY) {
+			if(next == key) {
+				return (int) _table[2*slot+1];
+			}
+			slot = (slot+1) & _mask;
+		}
+		return -1;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	public static long pack(CharSequence barcode) {
+		int len = barcode.length();
+		long bases = 0;
+		int n = 0;
+		while(n < len && barcode.charAt(n) != '-') {
+			char c = barcode.charAt(n);
+			int base = c < 256 ? BASES[c] : -1;
+			if(base < 0 || n == MAXBASES) {
+				return -1;
+			}
+			bases |= (long) base << (2*n);
+			n++;
+		}
+		int suffix = 0;
+		int digits = len-n-1;
+		if(digits >= 0) {
+			suffix = digits == 0 ? -1 : getSuffix(barcode.charAt(n+1), digits > 1 ? barcode.charAt(n+2) : -1, digits);
+		}
+		return getKey(bases, n, suffix);
+	}
+
+	//Same as pack(CharSequence) for the UTF-8 barcode in buf[off, off+len)
+	public static long pack(byte[] buf, int off, int len) {
+		long bases = 0;
+		int n = 0;
+		while(n < len && buf[off+n] != '-') {
+			int base = BASES[buf[off+n] & 0xff];
+			if(base < 0 || n == MAXBASES) {
+				return -1;
+			}
+			bases |= (long) base << (2*n);
+			n++;
+		}
+		int suffix = 0;
+		int digits = len-n-1;
+		if(digits >= 0) {
+			suffix = digits == 0 ? -1 : getSuffix(buf[off+n+1], digits > 1 ? buf[off+n+2] : -1, digits);
+		}
+		return getKey(bases, n, suffix);
+	}
+
+	private static long getKey(long bases, int n, int suffix) {
+		if(n == 0 || suffix < 0) {
+			return -1;
+		}
+		return ((long) suffix << SUFFIXSHIFT) | ((long) n << LENGTHSHIFT) | bases;
+	}
+
+	/**
+	 * The suffix of the digits after the '-' as n+1, -1 if they are not 1 or 2 digits of at
+	 * most MAXSUFFIX without a leading 0, which would pack "-01" like "-1".
+	 */
+	private static int getSuffix(int first, int second, int digits) {
+		if(digits > 2 || first < '0' || first > '9') {
+			return -1;
+		}
+		if(digits == 1) {
+			return first-'0'+1;
+		}
+		if(first == '0' || second < '0' || second > '9') {
+			return -1;
+		}
+		int value = 10*(first-'0')+second-'0';
+		return value <= MAXSUFFIX ? value+1 : -1;
+	}
+
+	private void grow() {
+		long[] table = _table;
+		_table = new long[table.length*2];
+		_mask = _table.length/2-1;
+		Arrays.fill(_table, EMPTY);
+		for(int i = 0; i < table.length; i += 2) {
+			if(table[i] != EMPTY) {
+				int slot = hash(table[i]) & _mask;
+				while(_table[2*slot] != EMPTY) {
+					slot = (slot+1) & _mask;
+				}
+				_table[2*slot] = table[i];
+				_table[2*slot+1] = table[i+1];
+			}
+		}
+	}
+
+	private int hash(long key) {
+		long h = key*0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,217 @@
+package org.jax.snatacoverlapcounter.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Dense integer ids for the cells of a barcode to cell id map. Cells are numbered in
+ * cell id order, so arrays indexed by cell are already in output order.
+ *
+ * The barcodes are looked up packed in a BarcodeMap, so a lookup from a String or an input
+ * buffer does not make a String. Barcodes that do not pack (other letters, more than 26 bases or
+ * another suffix) are kept as bytes in a second open addressing table.
+ */
+public class CellIndex {
+
+	private String[] _cellids;
+	private String[] _barcodes;
+	private int[] _flushorder;
+	private BarcodeMap _packedbarcodes;
+	private byte[][] _tablebarcodes;
+	private int[] _tablecells;
+	private int _tablemask, _tablesize;
+
+	public CellIndex(TreeMap<String, String> cellbarcodemap) {
+		TreeSet<String> cellids = new TreeSet<String>(cellbarcodemap.values());
+		_cellids = cellids.toArray(new String[0]);
+
+		//If several barcodes map to one cell, the last barcode is reported for the cell
+		_barcodes = new String[_cellids.length];
+		_packedbarcodes = new BarcodeMap(cellbarcodemap.size());
+		LinkedList<String> unpacked = new LinkedList<String>();
+		_flushorder = new int[cellbarcodemap.size()];
+		int i = 0;
+		for(Iterator<Entry<String, String>> it = cellbarcodemap.entrySet().iterator(); it.hasNext();) {
+			Entry<String, String> next = it.next();
+			//The cell ids are sorted like the TreeSet
+			int idx = Arrays.binarySearch(_cellids, next.getValue());
+			_barcodes[idx] = next.getKey();
+			_flushorder[i++] = idx;
+			long packed = BarcodeMap.pack(next.getKey());
+			if(packed >= 0) {
+				_packedbarcodes.put(packed, idx);
+			}
+			else {
+				unpacked.add(next.getKey());
+			}
+		}
+		
+		//Open addressing table of the bytes of the other barcodes for lookups straight from an input buffer
+		int tablesize = 16;
+		while(tablesize < unpacked.size()*2) {
+			tablesize *= 2;
+		}
+		_tablebarcodes = new byte[tablesize][];
+		_tablecells = new int[tablesize];
+		_tablemask = tablesize-1;
+		_tablesize = unpacked.size();
+		for(Iterator<String> it = unpacked.iterator(); it.hasNext();) {
+			String next = it.next();
+			byte[] barcode = next.getBytes(StandardCharsets.UTF_8);
+			int slot = hash(barcode, 0, barcode.length) & _tablemask;
+			while(_tablebarcodes[slot] != null) {
+				slot = (slot+1) & _tablemask;
+			}
+			_tablebarcodes[slot] = barcode;
+			_tablecells[slot] = Arrays.binarySearch(_cellids, cellbarcodemap.get(next));
+		}
+	}
+
+	public int size() {
+		return _cellids.length;
+	}
+
+	//Returns -1 if the barcode is not a cell
+	public int getCellIndex(String barcode) {
+		long packed = BarcodeMap.pack(barcode);
+		if(packed >= 0) {
+			return _packedbarcodes.get(packed);
+		}
+		if(_tablesize == 0) {
+			return -1;
+		}
+		byte[] bytes = barcode.getBytes(StandardCharsets.UTF_8);
+		return getUnpackedCellIndex(bytes, 0, bytes.length);
+	}
+
+	//Same as getCellIndex(String) for the UTF-8 barcode in buf[off, off+len)
+	public int getCellIndex(byte[] buf, int off, int len) {
+		long packed = BarcodeMap.pack(buf, off, len);
+		if(packed >= 0) {
+			return _packedbarcodes.get(packed);
+		}
+		return _tablesize == 0 ? -1 : getUnpackedCellIndex(buf, off, len);
+	}
+
+	/**
+	 * The cell of the string tag tag1 tag2 in the BAM aux block buf[off, end), -1 if the block
+	 * has no such tag.
+	 */
+	public int getCellIndex(byte[] buf, int off, int end, byte tag1, byte tag2) throws IOException {
+		int value = findStringTag(buf, off, end, tag1, tag2);
+		if(value < 0) {
+			return -1;
+		}
+		return getCellIndex(buf, value, getStringEnd(buf, value, end)-value);
+	}
+
+	/**
+	 * The offset of the value of the string tag tag1 tag2 in the BAM aux block buf[off, end), -1
+	 * if the block has no such tag.
+	 */
+	static int findStringTag(byte[] buf, int off, int end, byte tag1, byte tag2) throws IOException {
+		while(off+3 <= end) {
+			boolean istag = buf[off] == tag1 && buf[off+1] == tag2;
+			byte type = buf[off+2];
+			off += 3;
+			if(type == 'Z' || type == 'H') {
+				if(istag && type == 'Z') {
+					return off;
+				}
+				off = getStringEnd(buf, off, end)+1;
+			}
+			else {
+				off += getValueSize(buf, type, off, end);
+			}
+			if(istag) {
+				throw new IOException("The BAM attribute "+(char) tag1+(char) tag2+" is not a string.");
+			}
+		}
+		return -1;
+	}
+
+	//The offset of the NUL that ends the string value at off
+	static int getStringEnd(byte[] buf, int off, int end) {
+		while(off < end && buf[off] != 0) {
+			off++;
+		}
+		return off;
+	}
+
+	private int getUnpackedCellIndex(byte[] buf, int off, int len) {
+		int slot = hash(buf, off, len) & _tablemask;
+		byte[] barcode;
+		while((barcode = _tablebarcodes[slot]) != null) {
+			if(barcode.length == len && equals(barcode, buf, off)) {
+				return _tablecells[slot];
+			}
+			slot = (slot+1) & _tablemask;
+		}
+		return -1;
+	}
+	
+	public String getCellId(int idx) {
+		return _cellids[idx];
+	}
+
+	public String getBarcode(int idx) {
+		return _barcodes[idx];
+	}
+
+	/**
+	 * The order in which the open clusters are written at a chromosome change, one entry
+	 * per barcode in barcode order.
+	 */
+	public int[] getFlushOrder() {
+		return _flushorder;
+	}
+	
+	//The size of the value of an aux field of the type
+	private static int getValueSize(byte[] buf, byte type, int off, int end) throws IOException {
+		switch(type) {
+			case 'A':
+			case 'c':
+			case 'C':
+				return 1;
+			case 's':
+			case 'S':
+				return 2;
+			case 'i':
+			case 'I':
+			case 'f':
+				return 4;
+			case 'B':
+				if(off+5 > end) {
+					throw new IOException("Truncated BAM attribute.");
+				}
+				int count = (buf[off+1] & 0xff) | (buf[off+2] & 0xff) << 8 | (buf[off+3] & 0xff) << 16 | (buf[off+4] & 0xff) << 24;
+				return 5+count*getValueSize(buf, buf[off], off, end);
+			default:
+				throw new IOException("Unknown BAM attribute type: "+(char) type);
+		}
+	}
+	
+	private int hash(byte[] buf, int off, int len) {
+		int h = 0;
+		for(int i = off; i < off+len; i++) {
+			h = 31*h+buf[i];
+		}
+		return h ^ (h >>> 16);
+	}
+	
+	private boolean equals(byte[] barcode, byte[] buf, int off) {
+		for(int i = 0; i < barcode.length; i++) {
+			if(barcode[i] != buf[off+i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
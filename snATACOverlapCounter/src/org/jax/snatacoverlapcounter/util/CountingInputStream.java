@@ -0,0 +1,52 @@
+package org.jax.snatacoverlapcounter.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from the underlying stream. The count can be read from other threads.
+ */
+public class CountingInputStream extends FilterInputStream {
+
+	private volatile long _count;
+
+	public CountingInputStream(InputStream in) {
+		super(in);
+		_count = 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int rv = in.read();
+		if(rv >= 0) {
+			_count++;
+		}
+		return rv;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int rv = in.read(b, off, len);
+		if(rv > 0) {
+			_count += rv;
+		}
+		return rv;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long rv = in.skip(n);
+		_count += rv;
+		return rv;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	public long getCount() {
+		return _count;
+	}
+}
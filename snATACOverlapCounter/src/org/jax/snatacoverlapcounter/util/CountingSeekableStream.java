@@ -0,0 +1,72 @@
+package org.jax.snatacoverlapcounter.util;
+
+import java.io.IOException;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+/**
+ * Counts the bytes read from the underlying seekable stream, the bytes seeked over are not counted.
+ * The count can be read from other threads.
+ */
+public class CountingSeekableStream extends SeekableStream {
+
+	private SeekableStream _in;
+	private volatile long _count;
+
+	public CountingSeekableStream(SeekableStream in) {
+		_in = in;
+		_count = 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int rv = _in.read();
+		if(rv >= 0) {
+			_count++;
+		}
+		return rv;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int rv = _in.read(b, off, len);
+		if(rv > 0) {
+			_count += rv;
+		}
+		return rv;
+	}
+
+	@Override
+	public long length() {
+		return _in.length();
+	}
+
+	@Override
+	public long position() throws IOException {
+		return _in.position();
+	}
+
+	@Override
+	public void seek(long position) throws IOException {
+		_in.seek(position);
+	}
+
+	@Override
+	public boolean eof() throws IOException {
+		return _in.eof();
+	}
+
+	@Override
+	public String getSource() {
+		return _in.getSource();
+	}
+
+	@Override
+	public void close() throws IOException {
+		_in.close();
+	}
+
+	public long getCount() {
+		return _count;
+	}
+}
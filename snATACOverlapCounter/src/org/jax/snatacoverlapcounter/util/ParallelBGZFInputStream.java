@@ -0,0 +1,216 @@
+package org.jax.snatacoverlapcounter.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a BGZF file on several threads. Each BGZF block is an independent gzip member
+ * whose compressed size is stored in its header, so the blocks can be read in order on the
+ * calling thread and inflated on the pool. The decompressed blocks are returned in file order.
+ * The input stream should be buffered.
+ */
+public class ParallelBGZFInputStream extends InputStream {
+
+	private static final int BLOCKSPERTHREAD = 8;
+	private static final int MAXBLOCKSIZE = 65536;
+
+	private InputStream _in;
+	private ExecutorService _pool;
+	private LinkedList<Future<byte[]>> _blocks;
+	private int _readahead;
+	private boolean _eof;
+	private byte[] _current;
+	private int _pos;
+	private byte[] _header;
+
+	public ParallelBGZFInputStream(InputStream in, int threads) {
+		_in = in;
+		_pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BGZF-inflater");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		_blocks = new LinkedList<Future<byte[]>>();
+		_readahead = threads*BLOCKSPERTHREAD;
+		_eof = false;
+		_current = new byte[0];
+		_pos = 0;
+		_header = new byte[18];
+	}
+
+	/**
+	 * True if the stream starts with a BGZF block header. The stream must support mark/reset.
+	 */
+	public static boolean isBGZF(InputStream in) throws IOException {
+		byte[] header = new byte[18];
+		in.mark(header.length);
+		int n = readFully(in, header, 0, header.length);
+		in.reset();
+		return n == header.length && hasBGZFHeader(header);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!fill()) {
+			return -1;
+		}
+		return _current[_pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, _current.length-_pos);
+		System.arraycopy(_current, _pos, b, off, n);
+		_pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		_pool.shutdownNow();
+		_in.close();
+	}
+
+	//Moves to the next non-empty block, returns false at the end of the file
+	private boolean fill() throws IOException {
+		while(_pos == _current.length) {
+			while(!_eof && _blocks.size() < _readahead) {
+				submitNextBlock();
+			}
+			if(_blocks.isEmpty()) {
+				return false;
+			}
+			_current = getBlock(_blocks.removeFirst());
+			_pos = 0;
+		}
+		return true;
+	}
+
+	private void submitNextBlock() throws IOException {
+		int n = readFully(_in, _header, 0, _header.length);
+		if(n == 0) {
+			_eof = true;
+			return;
+		}
+		if(n < _header.length || !hasBGZFHeader(_header)) {
+			throw new IOException("Invalid BGZF block header.");
+		}
+
+		int xlen = (_header[10] & 0xff) | ((_header[11] & 0xff) << 8);
+		int blocksize = getBlockSize(_header)+1;
+		byte[] block = new byte[blocksize];
+		System.arraycopy(_header, 0, block, 0, _header.length);
+		if(readFully(_in, block, _header.length, blocksize-_header.length) < blocksize-_header.length) {
+			throw new EOFException("Truncated BGZF block.");
+		}
+
+		_blocks.add(_pool.submit(new InflateTask(block, 12+xlen)));
+	}
+
+	private byte[] getBlock(Future<byte[]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static boolean hasBGZFHeader(byte[] header) {
+		return (header[0] & 0xff) == 31 && (header[1] & 0xff) == 139 && header[2] == 8 && (header[3] & 4) != 0
+				&& header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+	}
+
+	private static int getBlockSize(byte[] header) {
+		return (header[16] & 0xff) | ((header[17] & 0xff) << 8);
+	}
+
+	private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while(total < len) {
+			int n = in.read(b, off+total, len-total);
+			if(n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	private static class InflateTask implements Callable<byte[]> {
+
+		private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+			protected Inflater initialValue() {
+				return new Inflater(true);
+			}
+		};
+
+		private byte[] _block;
+		private int _dataoffset;
+
+		public InflateTask(byte[] block, int dataoffset) {
+			_block = block;
+			_dataoffset = dataoffset;
+		}
+
+		public byte[] call() throws IOException {
+			int footer = _block.length-8;
+			int isize = (_block[footer+4] & 0xff) | ((_block[footer+5] & 0xff) << 8) | ((_block[footer+6] & 0xff) << 16) | ((_block[footer+7] & 0xff) << 24);
+			if(isize < 0 || isize > MAXBLOCKSIZE) {
+				throw new IOException("Invalid BGZF block size.");
+			}
+			byte[] rv = new byte[isize];
+
+			Inflater inflater = INFLATERS.get();
+			inflater.reset();
+			inflater.setInput(_block, _dataoffset, footer-_dataoffset);
+			try {
+				int n = 0;
+				while(n < isize && !inflater.finished()) {
+					int inflated = inflater.inflate(rv, n, isize-n);
+					if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					n += inflated;
+				}
+				if(n != isize) {
+					throw new IOException("BGZF block is shorter than its stored size.");
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(e);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(rv, 0, isize);
+			int storedcrc = (_block[footer] & 0xff) | ((_block[footer+1] & 0xff) << 8) | ((_block[footer+2] & 0xff) << 16) | ((_block[footer+3] & 0xff) << 24);
+			if((int) crc.getValue() != storedcrc) {
+				throw new IOException("BGZF block CRC mismatch.");
+			}
+			return rv;
+		}
+	}
+}
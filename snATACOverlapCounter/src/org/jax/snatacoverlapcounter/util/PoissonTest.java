@@ -0,0 +1,183 @@
+package org.jax.snatacoverlapcounter.util;
+
+import java.util.Arrays;
+
+/**
+ * Poisson upper tail probabilities of counts against their mean with Benjamini-Hochberg
+ * correction, the same as scipy.stats.poisson.sf and statsmodels multipletests(method='fdr_bh').
+ */
+public class PoissonTest {
+
+	private static final double MACHEP = 1.11022302462515654042e-16;
+	private static final int MAXITER = 100000;
+	private static final double BIG = 4.503599627370496e15;
+	private static final double BIGINV = 2.22044604925031308085e-16;
+	private static final double LN_SQRT_2PI = 0.918938533204672741780329736406;
+
+	//The exact factorials that fit in a double
+	private static final double[] FACTORIALS = new double[23];
+	static {
+		FACTORIALS[0] = 1;
+		for(int i = 1; i < FACTORIALS.length; i++) {
+			FACTORIALS[i] = FACTORIALS[i-1]*i;
+		}
+	}
+
+	//P(X > count) for X ~ Poisson(mean of the counts)
+	public double[] getPValues(int[] counts) {
+		long sum = 0;
+		for(int i = 0; i < counts.length; i++) {
+			sum += counts[i];
+		}
+		double mean = (double) sum/counts.length;
+
+		double[] rv = new double[counts.length];
+		for(int i = 0; i < counts.length; i++) {
+			rv[i] = getUpperTail(counts[i], mean);
+		}
+		return rv;
+	}
+
+	public double[] getBHCorrectedPValues(double[] pvalues) {
+		int n = pvalues.length;
+		double[] sorted = Arrays.copyOf(pvalues, n);
+		Arrays.sort(sorted);
+
+		//Tied p-values end up with the same corrected value, so the position of any copy can be used
+		double[] corrected = new double[n];
+		double min = Double.POSITIVE_INFINITY;
+		for(int i = n-1; i >= 0; i--) {
+			double ecdffactor = (double) (i+1)/n;
+			min = Math.min(min, sorted[i]/ecdffactor);
+			corrected[i] = Math.min(min, 1);
+		}
+
+		double[] rv = new double[n];
+		for(int i = 0; i < n; i++) {
+			rv[i] = corrected[Arrays.binarySearch(sorted, pvalues[i])];
+		}
+		return rv;
+	}
+
+	/**
+	 * P(X > k) for X ~ Poisson(mu), which is the regularized lower incomplete gamma
+	 * function P(k+1, mu).
+	 */
+	public double getUpperTail(int k, double mu) {
+		if(k < 0) {
+			return 1.0;
+		}
+		if(mu == 0) {
+			return 0.0;
+		}
+		double a = k+1;
+		if(mu > 1 && mu > a) {
+			return 1-getUpperGammaContinuedFraction(a, mu);
+		}
+		return getLowerGammaSeries(a, mu);
+	}
+
+	//P(a, x) = x^a e^-x / Gamma(a+1) * (1 + x/(a+1) + x^2/((a+1)(a+2)) + ...)
+	private double getLowerGammaSeries(double a, double x) {
+		double ax = getPoissonDensity(a, x);
+		if(ax == 0) {
+			return 0;
+		}
+		double r = a;
+		double c = 1;
+		double ans = 1;
+		for(int i = 0; i < MAXITER; i++) {
+			r += 1;
+			c *= x/r;
+			ans += c;
+			if(c <= MACHEP*ans) {
+				break;
+			}
+		}
+		return ans*ax;
+	}
+
+	//Q(a, x) by the continued fraction of Cephes igamc
+	private double getUpperGammaContinuedFraction(double a, double x) {
+		double ax = a*getPoissonDensity(a, x);
+		if(ax == 0) {
+			return 0;
+		}
+		double y = 1-a;
+		double z = x+y+1;
+		double c = 0;
+		double pkm2 = 1;
+		double qkm2 = x;
+		double pkm1 = x+1;
+		double qkm1 = z*x;
+		double ans = pkm1/qkm1;
+		for(int i = 0; i < MAXITER; i++) {
+			c += 1;
+			y += 1;
+			z += 2;
+			double yc = y*c;
+			double pk = pkm1*z-pkm2*yc;
+			double qk = qkm1*z-qkm2*yc;
+			double t;
+			if(qk != 0) {
+				double r = pk/qk;
+				t = Math.abs((ans-r)/r);
+				ans = r;
+			}
+			else {
+				t = 1;
+			}
+			pkm2 = pkm1;
+			pkm1 = pk;
+			qkm2 = qkm1;
+			qkm1 = qk;
+			if(Math.abs(pk) > BIG) {
+				pkm2 *= BIGINV;
+				pkm1 *= BIGINV;
+				qkm2 *= BIGINV;
+				qkm1 *= BIGINV;
+			}
+			if(t <= MACHEP) {
+				break;
+			}
+		}
+		return ans*ax;
+	}
+
+	/**
+	 * x^a e^-x / Gamma(a+1) for integer a, computed as in Loader's saddle point method so that
+	 * large a and x do not lose precision.
+	 */
+	private double getPoissonDensity(double a, double x) {
+		return Math.exp(-getStirlingError(a)-getDeviance(a, x))/Math.sqrt(2*Math.PI*a);
+	}
+
+	//log(a!) - log(sqrt(2 pi a) (a/e)^a)
+	private double getStirlingError(double a) {
+		if(a < FACTORIALS.length) {
+			return Math.log(FACTORIALS[(int) a])-(a+0.5)*Math.log(a)+a-LN_SQRT_2PI;
+		}
+		double a2 = a*a;
+		return (1.0/12-(1.0/360-(1.0/1260-(1.0/1680-1.0/(1188*a2))/a2)/a2)/a2)/a;
+	}
+
+	//a log(a/x) + x - a
+	private double getDeviance(double a, double x) {
+		if(Math.abs(a-x) < 0.1*(a+x)) {
+			double v = (a-x)/(a+x);
+			double s = (a-x)*v;
+			double ej = 2*a*v;
+			v = v*v;
+			for(int j = 1; j < MAXITER; j++) {
+				ej *= v;
+				double s1 = s+ej/(2*j+1);
+				if(s1 == s) {
+					return s1;
+				}
+				s = s1;
+			}
+			return s;
+		}
+		return a*Math.log(a/x)+x-a;
+	}
+}
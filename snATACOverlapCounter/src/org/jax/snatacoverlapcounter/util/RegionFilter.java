@@ -0,0 +1,128 @@
+package org.jax.snatacoverlapcounter.util;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * The regions of a BED file (e.g., known repetitive regions), merged and sorted per chromosome, for
+ * dropping the reads that overlap them while the reads are streamed in coordinate order. A read
+ * overlaps a region if it starts at or before the region end and ends after the region start, the
+ * same test as RegionIndex on the union of the regions in the multiplet detection.
+ *
+ * The filter does not change after it is read, each sweep moves its own Cursor through it.
+ */
+public class RegionFilter {
+
+	private HashMap<String, int[][]> _regions;
+	private String _file;
+
+	public RegionFilter(String bedfile) throws IOException {
+		_file = bedfile;
+		RegionList regions = new RegionList();
+		HashMap<String, Integer> chrindices = new HashMap<String, Integer>();
+		BufferedReader br = new BufferedReader(new FileReader(bedfile));
+		String line;
+		while((line = br.readLine()) != null) {
+			if(line.length() == 0 || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+				continue;
+			}
+			String[] split = line.split("\t");
+			Integer chr = chrindices.get(split[0]);
+			if(chr == null) {
+				chr = chrindices.size();
+				chrindices.put(split[0], chr);
+			}
+			regions.add(chr, Integer.parseInt(split[1]), Integer.parseInt(split[2]), -1);
+		}
+		br.close();
+
+		int[] chrrank = new int[chrindices.size()];
+		for(int i = 0; i < chrrank.length; i++) {
+			chrrank[i] = i;
+		}
+		RegionList union = regions.getUnion(chrrank);
+		int[] counts = new int[chrrank.length];
+		for(int i = 0; i < union.size(); i++) {
+			counts[union.getChromosome(i)]++;
+		}
+
+		//The union is ordered by chromosome, so each chromosome is a run
+		_regions = new HashMap<String, int[][]>();
+		String[] chrnames = new String[chrrank.length];
+		for(Iterator<Entry<String, Integer>> it = chrindices.entrySet().iterator(); it.hasNext();) {
+			Entry<String, Integer> next = it.next();
+			chrnames[next.getValue()] = next.getKey();
+		}
+		int offset = 0;
+		for(int chr = 0; chr < chrnames.length; chr++) {
+			int[][] startsends = new int[2][counts[chr]];
+			for(int i = 0; i < counts[chr]; i++) {
+				startsends[0][i] = union.getStart(offset+i);
+				startsends[1][i] = union.getEnd(offset+i);
+			}
+			_regions.put(chrnames[chr], startsends);
+			offset += counts[chr];
+		}
+	}
+
+	public String getFile() {
+		return _file;
+	}
+
+	public Cursor getCursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * The position of a sweep in the filter. The reads of a chromosome are expected in start order,
+	 * the first read and a read that starts before the previous one are looked up.
+	 */
+	public class Cursor {
+
+		private int[] _starts, _ends;
+		private int _idx, _laststart;
+
+		private Cursor() {
+			setChromosome(null);
+		}
+
+		//Moves to the start of the chromosome, which may have no regions
+		public void setChromosome(String chr) {
+			int[][] startsends = chr == null ? null : _regions.get(chr);
+			_starts = startsends == null ? new int[0] : startsends[0];
+			_ends = startsends == null ? new int[0] : startsends[1];
+			_idx = 0;
+			//The first read is looked up, a window of a chromosome may start anywhere
+			_laststart = Integer.MAX_VALUE;
+		}
+
+		public boolean overlaps(int start, int end) {
+			if(start < _laststart) {
+				//Binary search for the first region that ends at or after the start
+				int s = 0;
+				int e = _ends.length;
+				while(s < e) {
+					int mi = (s+e) >>> 1;
+					if(_ends[mi] < start) {
+						s = mi+1;
+					}
+					else {
+						e = mi;
+					}
+				}
+				_idx = s;
+			}
+			_laststart = start;
+
+			//The merged regions are disjoint, so their ends are sorted too
+			while(_idx < _ends.length && _ends[_idx] < start) {
+				_idx++;
+			}
+			return _idx < _starts.length && _starts[_idx] < end;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package org.jax.snatacoverlapcounter.util;
+
+import java.util.Arrays;
+
+/**
+ * Start sorted regions of each chromosome for finding the regions that overlap a position.
+ * The lookup is the same as getOverlappingRegions in peakoverlap.py: a binary search for the
+ * start, then a scan until the regions start at or after the end.
+ */
+public class RegionIndex {
+
+	private RegionList _regions;
+	private int[] _chroffsets;
+	private int[] _starts;
+	private int[] _indices;
+	private int[] _overlaps;
+
+	public RegionIndex(RegionList regions, int numchr) {
+		_regions = regions;
+
+		//Group by chromosome index, the order of the chromosomes does not matter here
+		int[] chrrank = new int[numchr];
+		for(int i = 0; i < numchr; i++) {
+			chrrank[i] = i;
+		}
+		_indices = regions.getSortedOrder(chrrank);
+		_starts = new int[_indices.length];
+		_chroffsets = new int[numchr+1];
+		for(int i = 0; i < _indices.length; i++) {
+			_starts[i] = regions.getStart(_indices[i]);
+			_chroffsets[regions.getChromosome(_indices[i])+1]++;
+		}
+		for(int i = 0; i < numchr; i++) {
+			_chroffsets[i+1] += _chroffsets[i];
+		}
+		_overlaps = new int[16];
+	}
+
+	/**
+	 * Finds the regions with start < end and end >= start. Returns the number of regions,
+	 * their indices are in getOverlaps().
+	 */
+	public int findOverlappingRegions(int chr, int start, int end) {
+		if(chr >= _chroffsets.length-1) {
+			return 0;
+		}
+		int offset = _chroffsets[chr];
+		int length = _chroffsets[chr+1]-offset;
+
+		int s = 0;
+		int e = length;
+		while(e-s > 1) {
+			int mi = s+(e-s)/2;
+			int mstart = _starts[offset+mi];
+			if(mstart < start) {
+				s = mi;
+			}
+			else if(mstart > start) {
+				e = mi;
+			}
+			else {
+				s = mi;
+				e = mi;
+			}
+		}
+
+		int rv = 0;
+		for(int idx = s; idx < length && end > _starts[offset+idx]; idx++) {
+			int didx = _indices[offset+idx];
+			if(start <= _regions.getEnd(didx) && end >= _starts[offset+idx]) {
+				if(rv == _overlaps.length) {
+					_overlaps = Arrays.copyOf(_overlaps, rv*2);
+				}
+				_overlaps[rv++] = didx;
+			}
+		}
+		return rv;
+	}
+
+	public int[] getOverlaps() {
+		return _overlaps;
+	}
+}
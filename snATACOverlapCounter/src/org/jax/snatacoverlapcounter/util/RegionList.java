@@ -0,0 +1,142 @@
+package org.jax.snatacoverlapcounter.util;
+
+/**
+ * A list of regions stored as primitive columns: chromosome index, start, end and
+ * cell index (-1 if the region has no cell).
+ */
+public class RegionList {
+
+	private static final int INITIALCAPACITY = 1024;
+
+	private int[] _chr;
+	private int[] _start;
+	private int[] _end;
+	private int[] _cell;
+	private int _size;
+
+	public RegionList() {
+		_chr = new int[INITIALCAPACITY];
+		_start = new int[INITIALCAPACITY];
+		_end = new int[INITIALCAPACITY];
+		_cell = new int[INITIALCAPACITY];
+		_size = 0;
+	}
+
+	public void add(int chr, int start, int end, int cell) {
+		if(_size == _chr.length) {
+			int capacity = _size*2;
+			_chr = copyOf(_chr, capacity);
+			_start = copyOf(_start, capacity);
+			_end = copyOf(_end, capacity);
+			_cell = copyOf(_cell, capacity);
+		}
+		_chr[_size] = chr;
+		_start[_size] = start;
+		_end[_size] = end;
+		_cell[_size] = cell;
+		_size++;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	public int getChromosome(int i) {
+		return _chr[i];
+	}
+
+	public int getStart(int i) {
+		return _start[i];
+	}
+
+	public int getEnd(int i) {
+		return _end[i];
+	}
+
+	public int getCell(int i) {
+		return _cell[i];
+	}
+
+	/**
+	 * The region indices sorted by chromosome rank and start. The sort is stable, so regions
+	 * with the same start keep their order.
+	 */
+	public int[] getSortedOrder(int[] chrrank) {
+		int[] rv = new int[_size];
+		for(int i = 0; i < _size; i++) {
+			rv[i] = i;
+		}
+		int[] buffer = new int[_size];
+		mergeSort(rv, buffer, 0, _size, chrrank);
+		return rv;
+	}
+
+	/**
+	 * Merges the regions of each chromosome into non-overlapping regions, a region is merged
+	 * with the previous one unless it starts after the previous end. The union is ordered by
+	 * chromosome rank and start.
+	 */
+	public RegionList getUnion(int[] chrrank) {
+		RegionList rv = new RegionList();
+		int[] order = getSortedOrder(chrrank);
+		int i = 0;
+		while(i < order.length) {
+			int chr = _chr[order[i]];
+			int curstart = _start[order[i]];
+			int curend = _end[order[i]];
+			i++;
+			while(i < order.length && _chr[order[i]] == chr) {
+				int next = order[i];
+				if(_start[next] > curend) {
+					rv.add(chr, curstart, curend, -1);
+					curstart = _start[next];
+					curend = _end[next];
+				}
+				else {
+					curend = Math.max(curend, _end[next]);
+				}
+				i++;
+			}
+			rv.add(chr, curstart, curend, -1);
+		}
+		return rv;
+	}
+
+	private void mergeSort(int[] a, int[] buffer, int from, int to, int[] chrrank) {
+		if(to-from < 2) {
+			return;
+		}
+		int mid = (from+to) >>> 1;
+		mergeSort(a, buffer, from, mid, chrrank);
+		mergeSort(a, buffer, mid, to, chrrank);
+		if(compare(a[mid-1], a[mid], chrrank) <= 0) {
+			//Already in order, which is the common case for overlaps written in genome order
+			return;
+		}
+		System.arraycopy(a, from, buffer, from, to-from);
+		int l = from;
+		int r = mid;
+		for(int i = from; i < to; i++) {
+			if(r >= to || (l < mid && compare(buffer[l], buffer[r], chrrank) <= 0)) {
+				a[i] = buffer[l++];
+			}
+			else {
+				a[i] = buffer[r++];
+			}
+		}
+	}
+
+	private int compare(int i1, int i2, int[] chrrank) {
+		int rv = Integer.compare(chrrank[_chr[i1]], chrrank[_chr[i2]]);
+		if(rv == 0) {
+			rv = Integer.compare(_start[i1], _start[i2]);
+		}
+		return rv;
+	}
+
+	private int[] copyOf(int[] a, int capacity) {
+		int[] rv = new int[capacity];
+		System.arraycopy(a, 0, rv, 0, _size);
+		return rv;
+	}
+}
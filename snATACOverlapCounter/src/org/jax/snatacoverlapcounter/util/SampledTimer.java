@@ -0,0 +1,31 @@
+package org.jax.snatacoverlapcounter.util;
+
+/**
+ * Estimates the total time of a step that runs once per record by timing every INTERVAL-th call
+ * only, so that the clock is not read twice for every record. stop() must only be called if
+ * start() returned true.
+ */
+public class SampledTimer {
+
+	private static final int INTERVAL = 64;
+
+	private int _calls;
+	private long _starttime, _time;
+
+	public boolean start() {
+		if((_calls++ & (INTERVAL-1)) != 0) {
+			return false;
+		}
+		_starttime = System.nanoTime();
+		return true;
+	}
+
+	public void stop() {
+		_time += (System.nanoTime()-_starttime)*INTERVAL;
+	}
+
+	//Estimated nanoseconds
+	public long getTime() {
+		return _time;
+	}
+}
@@ -0,0 +1,73 @@
+package org.jax.snatacoverlapcounter.util;
+
+import java.util.Arrays;
+
+/**
+ * A binary matrix in compressed sparse row format. Entries are added as (row, column) pairs,
+ * duplicates are set once.
+ */
+public class SparseBinaryMatrix {
+
+	private int _numrows, _numcols;
+	private int[] _rowoffsets;
+	private int[] _columns;
+
+	public SparseBinaryMatrix(int numrows, int numcols, int[] rows, int[] cols, int n) {
+		_numrows = numrows;
+		_numcols = numcols;
+
+		//Counting sort of the entries by row
+		int[] offsets = new int[numrows+1];
+		for(int i = 0; i < n; i++) {
+			offsets[rows[i]+1]++;
+		}
+		for(int i = 0; i < numrows; i++) {
+			offsets[i+1] += offsets[i];
+		}
+		int[] columns = new int[n];
+		int[] next = Arrays.copyOf(offsets, numrows);
+		for(int i = 0; i < n; i++) {
+			columns[next[rows[i]]++] = cols[i];
+		}
+
+		//Sort each row and remove the duplicates in place
+		_rowoffsets = new int[numrows+1];
+		int size = 0;
+		for(int r = 0; r < numrows; r++) {
+			int from = offsets[r];
+			int to = offsets[r+1];
+			Arrays.sort(columns, from, to);
+			for(int i = from; i < to; i++) {
+				if(i == from || columns[i] != columns[i-1]) {
+					columns[size++] = columns[i];
+				}
+			}
+			_rowoffsets[r+1] = size;
+		}
+		_columns = Arrays.copyOf(columns, size);
+	}
+
+	public int getNumRows() {
+		return _numrows;
+	}
+
+	public int getNumColumns() {
+		return _numcols;
+	}
+
+	public int[] getRowSums() {
+		int[] rv = new int[_numrows];
+		for(int r = 0; r < _numrows; r++) {
+			rv[r] = _rowoffsets[r+1]-_rowoffsets[r];
+		}
+		return rv;
+	}
+
+	public int[] getColumnSums() {
+		int[] rv = new int[_numcols];
+		for(int i = 0; i < _columns.length; i++) {
+			rv[_columns[i]]++;
+		}
+		return rv;
+	}
+}
@@ -0,0 +1,99 @@
+package org.jax.snatacoverlapcounter.util;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Busy and stalled time of one pipeline stage. A stage stalls while it waits on an empty input
+ * queue or a full output queue, the rest of its running time is busy. The statistics are written
+ * by the thread of the stage only.
+ */
+public class StageStatistics {
+
+	private String _name;
+	private long _starttime, _endtime, _stalltime;
+	private boolean _started, _finished;
+	private int _stalls;
+	private long _batches;
+
+	public StageStatistics(String name) {
+		_name = name;
+	}
+
+	public void start() {
+		_starttime = System.nanoTime();
+		_started = true;
+	}
+
+	public void finish() {
+		_endtime = System.nanoTime();
+		_finished = true;
+	}
+
+	public void addBatch() {
+		_batches++;
+	}
+
+	public <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException {
+		if(!queue.offer(item)) {
+			long stallstart = System.nanoTime();
+			queue.put(item);
+			_stalltime += System.nanoTime()-stallstart;
+			_stalls++;
+		}
+	}
+
+	public <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+		T rv = queue.poll();
+		if(rv == null) {
+			long stallstart = System.nanoTime();
+			rv = queue.take();
+			_stalltime += System.nanoTime()-stallstart;
+			_stalls++;
+		}
+		return rv;
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	public long getBatches() {
+		return _batches;
+	}
+
+	public int getStalls() {
+		return _stalls;
+	}
+
+	//Nanoseconds
+	public long getStallTime() {
+		return _stalltime;
+	}
+
+	//Nanoseconds, up to now if the stage is still running
+	public long getBusyTime() {
+		if(!_started) {
+			return 0;
+		}
+		long endtime = _finished ? _endtime : System.nanoTime();
+		return endtime-_starttime-_stalltime;
+	}
+
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(_name);
+		sb.append(" stage: ");
+		if(_batches > 0) {
+			sb.append(Long.toString(_batches));
+			sb.append(" batches, ");
+		}
+		sb.append("busy ");
+		sb.append(Double.toString((double) (getBusyTime()/1000000)/1000));
+		sb.append("s, stalled ");
+		sb.append(Double.toString((double) (_stalltime/1000000)/1000));
+		sb.append("s in ");
+		sb.append(Integer.toString(_stalls));
+		sb.append(" waits");
+		return sb.toString();
+	}
+}
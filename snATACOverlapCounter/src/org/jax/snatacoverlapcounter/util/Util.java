@@ -10,28 +10,24 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Locale;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecord.SAMTagAndValue;
+import htsjdk.samtools.SAMTag;
 
 public class Util {
 
 	
-	public String getBarcode(SAMRecord read, String attributeid) {
-		List<SAMTagAndValue> attributes = read.getAttributes();
-		for(Iterator<SAMTagAndValue> it = attributes.iterator(); it.hasNext();) {
-			SAMTagAndValue next = it.next();
-			if(next.tag.equals(attributeid)){
-				return (String) next.value;
-			}
-		}
-		return null;
+	public short getBinaryTag(String attributeid) {
+		return SAMTag.makeBinaryTag(attributeid);
+	}
+	
+	//Looks up a single tag without decoding the others, see getBinaryTag
+	public String getBarcode(SAMRecord read, short tag) {
+		return (String) read.getAttribute(tag);
 	}
 	
 	public TreeSet<String> readChromSizes(String chromsizefile) throws IOException{
@@ -65,11 +61,16 @@ public class Util {
 	}
 
 	public boolean isValidRead(SAMRecord record){
+		return isValidRead(record, true);
+	}
+
+	//Without duplicateflag the duplicate flag is ignored
+	public boolean isValidRead(SAMRecord record, boolean duplicateflag){
 		if ((!record.getReadPairedFlag() ||
                 record.getReadUnmappedFlag() ||
                 record.getMateUnmappedFlag() ||
                 record.isSecondaryOrSupplementary() ||
-                record.getDuplicateReadFlag())) {
+                (duplicateflag && record.getDuplicateReadFlag()))) {
 			return false;
 		}
 		
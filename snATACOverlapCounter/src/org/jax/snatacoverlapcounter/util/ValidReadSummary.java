@@ -1,11 +1,15 @@
 package org.jax.snatacoverlapcounter.util;
 
+import htsjdk.samtools.SAMFlag;
 import htsjdk.samtools.SAMRecord;
 
 public class ValidReadSummary {
 
+	//Set in getFlags when the read and mate reference indices differ
+	public static final int REFERENCEMISMATCH = 0x10000;
 	
 	private int _totalreads, _unpaired, _unmapped, _mateunmapped, _secondary, _duplicate, _refmismatch, _validreads;
+	private boolean _duplicatechecked;
 	
 	public ValidReadSummary() {
 		_totalreads = 0;
@@ -16,6 +20,12 @@ public class ValidReadSummary {
 		_duplicate = 0;
 		_refmismatch = 0;
 		_validreads = 0;
+		_duplicatechecked = true;
+	}
+	
+	//If the duplicate flag is not checked, flagged duplicates are counted but still valid
+	public void setDuplicateFlagChecked(boolean checked) {
+		_duplicatechecked = checked;
 	}
 	
 	public int getTotalReads() {
@@ -50,38 +60,88 @@ public class ValidReadSummary {
 		return _validreads;
 	}
 	
+	public void add(ValidReadSummary vrs) {
+		_totalreads += vrs._totalreads;
+		_unpaired += vrs._unpaired;
+		_unmapped += vrs._unmapped;
+		_mateunmapped += vrs._mateunmapped;
+		_secondary += vrs._secondary;
+		_duplicate += vrs._duplicate;
+		_refmismatch += vrs._refmismatch;
+		_validreads += vrs._validreads;
+	}
+
+	//The counts in a fixed order, see add(int[])
+	public int[] getCounts() {
+		return new int[] { _totalreads, _unpaired, _unmapped, _mateunmapped, _secondary, _duplicate, _refmismatch, _validreads };
+	}
+
+	//Adds counts of getCounts, e.g. of another shard
+	public void add(int[] counts) {
+		_totalreads += counts[0];
+		_unpaired += counts[1];
+		_unmapped += counts[2];
+		_mateunmapped += counts[3];
+		_secondary += counts[4];
+		_duplicate += counts[5];
+		_refmismatch += counts[6];
+		_validreads += counts[7];
+	}
+	
+	/**
+	 * The SAM flags of the record plus REFERENCEMISMATCH, everything isValidRead needs. The
+	 * reference indices are compared as Integer objects, as isValidRead always has.
+	 */
+	public static int getFlags(SAMRecord record) {
+		int rv = record.getFlags();
+		if(record.getReferenceIndex() != record.getMateReferenceIndex()){
+			rv |= REFERENCEMISMATCH;
+		}
+		return rv;
+	}
+	
 	public boolean isValidRead(SAMRecord record){
+		return isValidRead(getFlags(record));
+	}
+	
+	public boolean isValidRead(int flags){
 		//Assume the read is valid until it isn't
 		_totalreads++;
 		boolean isvalid = true;
 		
-		if(!record.getReadPairedFlag()) {
+		if((flags & SAMFlag.READ_PAIRED.intValue()) == 0) {
 			_unpaired++;
 			isvalid=false;
 		}
 		
-		if(record.getReadUnmappedFlag()) {
+		if((flags & SAMFlag.READ_UNMAPPED.intValue()) != 0) {
 			_unmapped++;
 			isvalid=false;
 		}
 		
-		if(record.getMateUnmappedFlag()) {
+		//Same as SAMRecord.getMateUnmappedFlag, which only applies to paired reads
+		if((flags & SAMFlag.READ_PAIRED.intValue()) == 0) {
+			throw new IllegalStateException("Inappropriate call if not paired read");
+		}
+		if((flags & SAMFlag.MATE_UNMAPPED.intValue()) != 0) {
 			_mateunmapped++;
 			isvalid=false;
 		}
 		
-		if(record.isSecondaryOrSupplementary()) {
+		if((flags & (SAMFlag.SECONDARY_ALIGNMENT.intValue() | SAMFlag.SUPPLEMENTARY_ALIGNMENT.intValue())) != 0) {
 			_secondary++;
 			isvalid=false;
 		}
 		
-		if(record.getDuplicateReadFlag()) {
+		if((flags & SAMFlag.DUPLICATE_READ.intValue()) != 0) {
 			_duplicate++;
-			isvalid=false;
+			if(_duplicatechecked) {
+				isvalid=false;
+			}
 		}
 		
 		
-		if(record.getReferenceIndex() != record.getMateReferenceIndex()){
+		if((flags & REFERENCEMISMATCH) != 0){
 			_refmismatch++;
 			isvalid=false;
 		}